@@ -0,0 +1,305 @@
+// @formatter:off
+/*
+ * MessageQueue.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * JVM replacement for the native-backed {@code android.os.MessageQueue}, so that a {@link Looper} can be prepared and handlers
+ * constructed off the device.
+ * <p>
+ * Messages are kept in a list ordered by {@link Message#when}, and {@link #next()} waits on the queue's monitor instead of
+ * polling a native file descriptor. Sync barriers are not supported. Note that {@link Looper#loop()} still needs the native
+ * {@code Binder}, so messages can be queued but not delivered.
+ */
+public class MessageQueue
+{
+    public static interface IdleHandler
+    {
+        boolean queueIdle();
+    }
+
+    private final boolean mQuitAllowed;
+
+    /**
+     * Head of the list of pending messages, ordered by {@link Message#when}. Guarded by this queue's monitor.
+     */
+    Message mMessages;
+
+    private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
+
+    private boolean mQuiting;
+
+    MessageQueue(final boolean quitAllowed)
+    {
+        mQuitAllowed = quitAllowed;
+    }
+
+    public final void addIdleHandler(final IdleHandler handler)
+    {
+        if (null == handler)
+        {
+            throw new NullPointerException("Can't add a null IdleHandler"); //$NON-NLS-1$
+        }
+
+        synchronized (this)
+        {
+            mIdleHandlers.add(handler);
+        }
+    }
+
+    public final void removeIdleHandler(final IdleHandler handler)
+    {
+        synchronized (this)
+        {
+            mIdleHandlers.remove(handler);
+        }
+    }
+
+    final Message next()
+    {
+        boolean isIdle = false;
+        while (true)
+        {
+            final IdleHandler[] idleHandlers;
+            synchronized (this)
+            {
+                if (mQuiting)
+                {
+                    return null;
+                }
+
+                final long now = SystemClock.uptimeMillis();
+                final Message msg = mMessages;
+                if (null != msg && msg.when <= now)
+                {
+                    mMessages = msg.next;
+                    msg.next = null;
+                    msg.markInUse();
+                    return msg;
+                }
+
+                /*
+                 * Idle handlers run once each time the queue becomes idle, like on the device
+                 */
+                if (isIdle || mIdleHandlers.isEmpty())
+                {
+                    try
+                    {
+                        wait(null == msg ? 0 : msg.when - now);
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    isIdle = false;
+                    continue;
+                }
+
+                idleHandlers = mIdleHandlers.toArray(new IdleHandler[mIdleHandlers.size()]);
+                isIdle = true;
+            }
+
+            for (final IdleHandler idleHandler : idleHandlers)
+            {
+                if (!idleHandler.queueIdle())
+                {
+                    removeIdleHandler(idleHandler);
+                }
+            }
+        }
+    }
+
+    final void quit()
+    {
+        if (!mQuitAllowed)
+        {
+            throw new RuntimeException("Main thread not allowed to quit."); //$NON-NLS-1$
+        }
+
+        synchronized (this)
+        {
+            mQuiting = true;
+            notifyAll();
+        }
+    }
+
+    final int enqueueSyncBarrier(final long when)
+    {
+        throw new UnsupportedOperationException("Sync barriers are not supported"); //$NON-NLS-1$
+    }
+
+    final void removeSyncBarrier(final int token)
+    {
+        throw new UnsupportedOperationException("Sync barriers are not supported"); //$NON-NLS-1$
+    }
+
+    final boolean enqueueMessage(final Message msg, final long when)
+    {
+        if (msg.isInUse())
+        {
+            throw new RuntimeException(msg + " This message is already in use."); //$NON-NLS-1$
+        }
+        if (null == msg.target)
+        {
+            throw new RuntimeException("Message must have a target."); //$NON-NLS-1$
+        }
+
+        synchronized (this)
+        {
+            if (mQuiting)
+            {
+                return false;
+            }
+
+            msg.when = when;
+
+            Message prev = null;
+            Message p = mMessages;
+            while (null != p && p.when <= when)
+            {
+                prev = p;
+                p = p.next;
+            }
+            msg.next = p;
+            if (null == prev)
+            {
+                mMessages = msg;
+            }
+            else
+            {
+                prev.next = msg;
+            }
+
+            notifyAll();
+        }
+        return true;
+    }
+
+    final boolean hasMessages(final Handler h, final int what, final Object object)
+    {
+        synchronized (this)
+        {
+            for (Message p = mMessages; null != p; p = p.next)
+            {
+                if (p.target == h && p.what == what && (null == object || p.obj == object))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    final boolean hasMessages(final Handler h, final Runnable r, final Object object)
+    {
+        synchronized (this)
+        {
+            for (Message p = mMessages; null != p; p = p.next)
+            {
+                if (p.target == h && p.callback == r && (null == object || p.obj == object))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    final void removeMessages(final Handler h, final int what, final Object object)
+    {
+        synchronized (this)
+        {
+            Message prev = null;
+            Message p = mMessages;
+            while (null != p)
+            {
+                final Message n = p.next;
+                if (p.target == h && p.what == what && (null == object || p.obj == object))
+                {
+                    unlink(prev, p);
+                }
+                else
+                {
+                    prev = p;
+                }
+                p = n;
+            }
+        }
+    }
+
+    final void removeMessages(final Handler h, final Runnable r, final Object object)
+    {
+        if (null == h || null == r)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            Message prev = null;
+            Message p = mMessages;
+            while (null != p)
+            {
+                final Message n = p.next;
+                if (p.target == h && p.callback == r && (null == object || p.obj == object))
+                {
+                    unlink(prev, p);
+                }
+                else
+                {
+                    prev = p;
+                }
+                p = n;
+            }
+        }
+    }
+
+    final void removeCallbacksAndMessages(final Handler h, final Object object)
+    {
+        synchronized (this)
+        {
+            Message prev = null;
+            Message p = mMessages;
+            while (null != p)
+            {
+                final Message n = p.next;
+                if (p.target == h && (null == object || p.obj == object))
+                {
+                    unlink(prev, p);
+                }
+                else
+                {
+                    prev = p;
+                }
+                p = n;
+            }
+        }
+    }
+
+    /**
+     * Removes {@code p} from the list of pending messages and recycles it. Must be called with this queue's monitor held.
+     *
+     * @param prev Message before {@code p}, or null if {@code p} is the head.
+     * @param p Message to remove.
+     */
+    private void unlink(final Message prev, final Message p)
+    {
+        if (null == prev)
+        {
+            mMessages = p.next;
+        }
+        else
+        {
+            prev.next = p.next;
+        }
+        p.recycle();
+    }
+}
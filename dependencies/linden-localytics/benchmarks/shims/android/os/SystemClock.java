@@ -0,0 +1,75 @@
+// @formatter:off
+/*
+ * SystemClock.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package android.os;
+
+/**
+ * JVM replacement for the native-backed {@code android.os.SystemClock}.
+ * <p>
+ * Uptime and elapsed realtime are both measured from class initialization with {@link System#nanoTime()}, since a JVM has no
+ * notion of deep sleep.
+ */
+public final class SystemClock
+{
+    /**
+     * Value of {@link System#nanoTime()} when this class was initialized.
+     */
+    private static final long sStartNanos = System.nanoTime();
+
+    private SystemClock()
+    {
+    }
+
+    public static void sleep(final long ms)
+    {
+        final long end = uptimeMillis() + ms;
+        long remaining = ms;
+        while (remaining > 0)
+        {
+            try
+            {
+                Thread.sleep(remaining);
+            }
+            catch (final InterruptedException e)
+            {
+                // keep sleeping, like the framework implementation
+            }
+            remaining = end - uptimeMillis();
+        }
+    }
+
+    public static boolean setCurrentTimeMillis(final long millis)
+    {
+        return false;
+    }
+
+    public static long uptimeMillis()
+    {
+        return (System.nanoTime() - sStartNanos) / 1000000L;
+    }
+
+    public static long elapsedRealtime()
+    {
+        return uptimeMillis();
+    }
+
+    public static long currentThreadTimeMillis()
+    {
+        return currentThreadTimeMicro() / 1000L;
+    }
+
+    public static long currentThreadTimeMicro()
+    {
+        return (System.nanoTime() - sStartNanos) / 1000L;
+    }
+
+    public static long currentTimeMicro()
+    {
+        return System.currentTimeMillis() * 1000L;
+    }
+}
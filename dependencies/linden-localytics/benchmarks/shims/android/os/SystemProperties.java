@@ -0,0 +1,95 @@
+// @formatter:off
+/*
+ * SystemProperties.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM replacement for the native-backed {@code android.os.SystemProperties}, so that framework classes such as
+ * {@link Build.VERSION} can be initialized off the device.
+ * <p>
+ * Properties are read from the Java system properties, falling back to the values of an API 16 device.
+ */
+public class SystemProperties
+{
+    public static final int PROP_NAME_MAX = 31;
+
+    public static final int PROP_VALUE_MAX = 91;
+
+    /**
+     * Values reported for properties that are not set as Java system properties.
+     */
+    private static final Map<String, String> sDefaults = new HashMap<String, String>();
+
+    static
+    {
+        sDefaults.put("ro.build.version.sdk", "16"); //$NON-NLS-1$ //$NON-NLS-2$
+        sDefaults.put("ro.build.version.release", "4.1.2"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    public static String get(final String key)
+    {
+        return get(key, ""); //$NON-NLS-1$
+    }
+
+    public static String get(final String key, final String def)
+    {
+        final String value = System.getProperty(key, sDefaults.get(key));
+        return null == value ? def : value;
+    }
+
+    public static int getInt(final String key, final int def)
+    {
+        try
+        {
+            return Integer.parseInt(get(key));
+        }
+        catch (final NumberFormatException e)
+        {
+            return def;
+        }
+    }
+
+    public static long getLong(final String key, final long def)
+    {
+        try
+        {
+            return Long.parseLong(get(key));
+        }
+        catch (final NumberFormatException e)
+        {
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(final String key, final boolean def)
+    {
+        final String value = get(key);
+        if ("1".equals(value) || "true".equals(value)) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            return true;
+        }
+        if ("0".equals(value) || "false".equals(value)) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            return false;
+        }
+        return def;
+    }
+
+    public static void set(final String key, final String val)
+    {
+        System.setProperty(key, val);
+    }
+
+    public static void addChangeCallback(final Runnable callback)
+    {
+        // properties never change off the device
+    }
+}
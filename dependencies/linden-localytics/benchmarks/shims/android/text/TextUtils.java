@@ -0,0 +1,57 @@
+// @formatter:off
+/*
+ * TextUtils.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package android.text;
+
+import java.util.Iterator;
+
+/**
+ * JVM replacement for {@code android.text.TextUtils}, whose static initializer loads the system resources through native code.
+ * <p>
+ * Only the methods used by the library are provided.
+ */
+public final class TextUtils
+{
+    private TextUtils()
+    {
+    }
+
+    public static boolean isEmpty(final CharSequence str)
+    {
+        return null == str || 0 == str.length();
+    }
+
+    public static String join(final CharSequence delimiter, final Iterable<?> tokens)
+    {
+        final StringBuilder sb = new StringBuilder();
+        final Iterator<?> it = tokens.iterator();
+        while (it.hasNext())
+        {
+            sb.append(it.next());
+            if (it.hasNext())
+            {
+                sb.append(delimiter);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String join(final CharSequence delimiter, final Object[] tokens)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens.length; i++)
+        {
+            if (0 != i)
+            {
+                sb.append(delimiter);
+            }
+            sb.append(tokens[i]);
+        }
+        return sb.toString();
+    }
+}
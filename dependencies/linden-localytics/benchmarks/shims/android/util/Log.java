@@ -0,0 +1,133 @@
+// @formatter:off
+/*
+ * Log.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * JVM replacement for the native-backed {@code android.util.Log}. Warnings and errors are written to {@link System#err};
+ * lower priorities are discarded so that they don't distort the measurements.
+ */
+public final class Log
+{
+    public static final int VERBOSE = 2;
+
+    public static final int DEBUG = 3;
+
+    public static final int INFO = 4;
+
+    public static final int WARN = 5;
+
+    public static final int ERROR = 6;
+
+    public static final int ASSERT = 7;
+
+    private Log()
+    {
+    }
+
+    public static int v(final String tag, final String msg)
+    {
+        return println(VERBOSE, tag, msg);
+    }
+
+    public static int v(final String tag, final String msg, final Throwable tr)
+    {
+        return println(VERBOSE, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int d(final String tag, final String msg)
+    {
+        return println(DEBUG, tag, msg);
+    }
+
+    public static int d(final String tag, final String msg, final Throwable tr)
+    {
+        return println(DEBUG, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int i(final String tag, final String msg)
+    {
+        return println(INFO, tag, msg);
+    }
+
+    public static int i(final String tag, final String msg, final Throwable tr)
+    {
+        return println(INFO, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int w(final String tag, final String msg)
+    {
+        return println(WARN, tag, msg);
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr)
+    {
+        return println(WARN, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int w(final String tag, final Throwable tr)
+    {
+        return println(WARN, tag, getStackTraceString(tr));
+    }
+
+    public static boolean isLoggable(final String tag, final int level)
+    {
+        return level >= WARN;
+    }
+
+    public static int e(final String tag, final String msg)
+    {
+        return println(ERROR, tag, msg);
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr)
+    {
+        return println(ERROR, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static int wtf(final String tag, final String msg)
+    {
+        return println(ASSERT, tag, msg);
+    }
+
+    public static int wtf(final String tag, final Throwable tr)
+    {
+        return println(ASSERT, tag, getStackTraceString(tr));
+    }
+
+    public static int wtf(final String tag, final String msg, final Throwable tr)
+    {
+        return println(ASSERT, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static String getStackTraceString(final Throwable tr)
+    {
+        if (null == tr)
+        {
+            return ""; //$NON-NLS-1$
+        }
+
+        final StringWriter sw = new StringWriter();
+        tr.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    public static int println(final int priority, final String tag, final String msg)
+    {
+        if (priority < WARN)
+        {
+            return 0;
+        }
+
+        System.err.println(String.format("%s: %s", tag, msg)); //$NON-NLS-1$
+        return msg.length();
+    }
+}
@@ -0,0 +1,442 @@
+// @formatter:off
+/*
+ * BacklogStressHarness.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import com.localytics.android.LocalyticsProvider.UploadBlobsDbColumns;
+import com.localytics.android.LocalyticsSession.SessionEngine;
+import com.localytics.android.LocalyticsSession.UploadEngine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stress harness for a device that reconnects after a long time offline. It synthesizes a database with a large backlog of
+ * closed sessions, then runs the upload cycle against a local HTTP server:
+ * <ol>
+ * <li>{@code build}: {@link SessionEngine#preUploadBuildBlobs(LocalyticsStorage, Context, String, boolean)}, as done by an
+ * upload request on the session thread.</li>
+ * <li>{@code convert}: {@link UploadEngine#convertDatabaseToJson(Context, LocalyticsStorage, String)} over all blobs.</li>
+ * <li>{@code upload}: the upload thread's chunk loop, building chunks with
+ * {@link UploadEngine#buildUploadChunk(Context, LocalyticsStorage, String, long, Cursor, List, MetricsRegistry)} while an
+ * {@link UploadPipeline} posts them with {@link UploadEngine#uploadCompressed(String, byte[], String)}.</li>
+ * <li>{@code delete}: {@link UploadEngine#deleteBlobsAndSessions(LocalyticsStorage, List)} for the accepted blobs.</li>
+ * </ol>
+ * For every stage it reports the wall time, the peak heap, and the database size afterwards. The results are written as a
+ * properties file that can be diffed against a previous run, and are compared with {@code baseline} when given.
+ * <p>
+ * Arguments are {@code name=value} pairs:
+ * <ul>
+ * <li>{@code sessions}: sessions in the backlog. Defaults to 10.</li>
+ * <li>{@code events}: application events per session. Defaults to 1000.</li>
+ * <li>{@code attributes}: attributes per event. Defaults to {@link Constants#MAX_NUM_ATTRIBUTES}.</li>
+ * <li>{@code serialize}: whether blobs are serialized when they are built. Defaults to false.</li>
+ * <li>{@code latency}: milliseconds the HTTP server waits before responding. Defaults to 0.</li>
+ * <li>{@code output}: file the results are written to. Defaults to standard output only.</li>
+ * <li>{@code baseline}: results of an earlier run to compare with. Optional.</li>
+ * </ul>
+ * Upload is driven directly rather than through {@link UploadEngine#upload(UploadListener, boolean)}, which needs a package
+ * manager to look up the rollup key.
+ */
+public final class BacklogStressHarness
+{
+    /**
+     * Stages of the upload cycle, in order.
+     */
+    private static final String[] STAGES = new String[]
+        { "synthesize", "build", "convert", "upload", "delete" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+    /**
+     * Projection of the blobs to upload. Same as the upload handler's.
+     */
+    private static final String[] PROJECTION_UPLOAD_BODY = new String[]
+        {
+            UploadBlobsDbColumns._ID,
+            UploadBlobsDbColumns.UUID,
+            UploadBlobsDbColumns.PAYLOAD };
+
+    private BacklogStressHarness()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final Map<String, String> options = new LinkedHashMap<String, String>();
+        for (final String arg : args)
+        {
+            final int separator = arg.indexOf('=');
+            if (-1 == separator)
+            {
+                throw new IllegalArgumentException(String.format("argument %s is not name=value", arg)); //$NON-NLS-1$
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        final int sessions = getInt(options, "sessions", 10); //$NON-NLS-1$
+        final int events = getInt(options, "events", 1000); //$NON-NLS-1$
+        final int attributes = getInt(options, "attributes", Constants.MAX_NUM_ATTRIBUTES); //$NON-NLS-1$
+        final boolean isSerializing = Boolean.parseBoolean(options.get("serialize")); //$NON-NLS-1$
+        final int latency = getInt(options, "latency", 0); //$NON-NLS-1$
+
+        final Properties results = new Properties();
+        results.setProperty("config.sessions", Integer.toString(sessions)); //$NON-NLS-1$
+        results.setProperty("config.events", Integer.toString(events)); //$NON-NLS-1$
+        results.setProperty("config.attributes", Integer.toString(attributes)); //$NON-NLS-1$
+        results.setProperty("config.serialize", Boolean.toString(isSerializing)); //$NON-NLS-1$
+        results.setProperty("config.latency", Integer.toString(latency)); //$NON-NLS-1$
+
+        final Server server = new Server(latency);
+        final ExecutorService transmitter = Executors.newSingleThreadExecutor();
+        final Context context = BenchmarkSupport.newContext();
+        final File file = BenchmarkSupport.newDatabaseFile();
+        final JdbcLocalyticsStorage storage = BenchmarkSupport.newStorage(file);
+        try
+        {
+            final long totalStart = System.nanoTime();
+
+            /*
+             * synthesize
+             */
+            Stage stage = new Stage(results, file, STAGES[0]);
+            BenchmarkSupport.insertBacklog(storage, sessions, events, attributes);
+            stage.end();
+
+            /*
+             * build
+             */
+            stage = new Stage(results, file, STAGES[1]);
+            storage.runBatchTransaction(new Runnable()
+            {
+                public void run()
+                {
+                    SessionEngine.preUploadBuildBlobs(storage, context, BenchmarkSupport.API_KEY, isSerializing);
+                }
+            });
+            stage.end();
+
+            /*
+             * convert
+             */
+            stage = new Stage(results, file, STAGES[2]);
+            long jsonChars = 0;
+            for (final JSONObject json : UploadEngine.convertDatabaseToJson(context, storage, BenchmarkSupport.API_KEY))
+            {
+                jsonChars += json.toString().length() + 1;
+            }
+            stage.end();
+            results.setProperty("convert.json_chars", Long.toString(jsonChars)); //$NON-NLS-1$
+
+            /*
+             * upload
+             */
+            stage = new Stage(results, file, STAGES[3]);
+            final UploadPipeline pipeline = new UploadPipeline(UploadEngine.UPLOAD_PIPELINE_DEPTH, new TaskExecutor()
+            {
+                public void execute(final Runnable task)
+                {
+                    transmitter.execute(task);
+                }
+
+                public void executeDelayed(final Runnable task, final long delayMillis)
+                {
+                    throw new UnsupportedOperationException();
+                }
+            }, new UploadTransport()
+            {
+                public int upload(final String url, final byte[] data, final String installId)
+                {
+                    return UploadEngine.uploadCompressed(url, data, installId);
+                }
+            });
+            final UploadPipeline.Batch batch = pipeline.begin(server.getUrl(), "stress-install-id"); //$NON-NLS-1$
+            int chunks = 0;
+            final Cursor cursor = storage.query(UploadBlobsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_BODY, null, null, null);
+            try
+            {
+                final long creationTime = UploadEngine.getApiKeyCreationTime(storage, BenchmarkSupport.API_KEY);
+                while (true)
+                {
+                    final List<Long> blobIds = new LinkedList<Long>();
+                    final byte[] chunk = UploadEngine.buildUploadChunk(context, storage, BenchmarkSupport.API_KEY, creationTime, cursor, blobIds, null);
+                    if (null == chunk || !pipeline.submit(batch, chunk, blobIds))
+                    {
+                        break;
+                    }
+                    chunks++;
+                }
+            }
+            finally
+            {
+                cursor.close();
+                pipeline.await(batch);
+            }
+            stage.end();
+            results.setProperty("upload.chunks", Integer.toString(chunks)); //$NON-NLS-1$
+            results.setProperty("upload.bytes", Long.toString(batch.getBytesSent())); //$NON-NLS-1$
+            results.setProperty("upload.requests", Long.toString(server.mRequests.get())); //$NON-NLS-1$
+            results.setProperty("upload.success", Boolean.toString(batch.isSuccess())); //$NON-NLS-1$
+
+            /*
+             * delete
+             */
+            stage = new Stage(results, file, STAGES[4]);
+            final List<Long> sentBlobIds = batch.getSentBlobIds();
+            storage.runBatchTransaction(new Runnable()
+            {
+                public void run()
+                {
+                    UploadEngine.deleteBlobsAndSessions(storage, sentBlobIds);
+                }
+            });
+            stage.end();
+            results.setProperty("delete.blobs", Integer.toString(sentBlobIds.size())); //$NON-NLS-1$
+
+            results.setProperty("total.wall_ms", Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - totalStart))); //$NON-NLS-1$
+        }
+        finally
+        {
+            storage.close();
+            transmitter.shutdown();
+            server.stop();
+        }
+
+        report(results, options.get("output"), options.get("baseline")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Prints {@code results}, optionally next to a baseline, and writes them to {@code output}.
+     *
+     * @param results Results of this run. Cannot be null.
+     * @param output File to write the results to. May be null.
+     * @param baseline File with the results of an earlier run. May be null.
+     * @throws IOException if a file cannot be read or written.
+     */
+    private static void report(final Properties results, final String output, final String baseline) throws IOException
+    {
+        final Properties previous = new Properties();
+        if (null != baseline)
+        {
+            final InputStream in = new FileInputStream(baseline);
+            try
+            {
+                previous.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        for (final String key : new TreeSet<String>(results.stringPropertyNames()))
+        {
+            final String value = results.getProperty(key);
+            final String before = previous.getProperty(key);
+            if (null == before || before.equals(value))
+            {
+                System.out.println(String.format("%-24s %14s", key, value)); //$NON-NLS-1$
+            }
+            else
+            {
+                String change = ""; //$NON-NLS-1$
+                try
+                {
+                    final double b = Double.parseDouble(before);
+                    if (0 != b)
+                    {
+                        change = String.format("%+.1f%%", Double.valueOf((Double.parseDouble(value) - b) * 100 / b)); //$NON-NLS-1$
+                    }
+                }
+                catch (final NumberFormatException e)
+                {
+                    // not a number
+                }
+                System.out.println(String.format("%-24s %14s  (baseline %s) %s", key, value, before, change)); //$NON-NLS-1$
+            }
+        }
+
+        if (null != output)
+        {
+            final OutputStream out = new FileOutputStream(output);
+            try
+            {
+                results.store(out, String.format("BacklogStressHarness, %s %s, %s %s", System.getProperty("java.vm.name"), System.getProperty("java.version"), System.getProperty("os.name"), System.getProperty("os.arch"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+
+    private static int getInt(final Map<String, String> options, final String name, final int defaultValue)
+    {
+        final String value = options.get(name);
+        return null == value ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Measures a single stage: wall time, peak heap, and the database size once it ends.
+     */
+    private static final class Stage
+    {
+        private final Properties mResults;
+
+        private final File mFile;
+
+        private final String mName;
+
+        private final long mStart;
+
+        /**
+         * Starts measuring a stage. The heap is collected first, so that garbage from earlier stages doesn't count towards the
+         * peak.
+         *
+         * @param results Results to record the stage in. Cannot be null.
+         * @param file Database file. Cannot be null.
+         * @param name Name of the stage. Cannot be null.
+         */
+        public Stage(final Properties results, final File file, final String name)
+        {
+            mResults = results;
+            mFile = file;
+            mName = name;
+
+            System.gc();
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            {
+                pool.resetPeakUsage();
+            }
+            mStart = System.nanoTime();
+        }
+
+        /**
+         * Stops measuring and records the results.
+         */
+        public void end()
+        {
+            final long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStart);
+
+            /*
+             * The pools can peak at different times, so their sum is an upper bound on the peak heap
+             */
+            long peakHeap = 0;
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            {
+                if (MemoryType.HEAP == pool.getType())
+                {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+
+            mResults.setProperty(String.format("%s.wall_ms", mName), Long.toString(wallMillis)); //$NON-NLS-1$
+            mResults.setProperty(String.format("%s.peak_heap_kb", mName), Long.toString(peakHeap / 1024)); //$NON-NLS-1$
+            mResults.setProperty(String.format("%s.db_kb", mName), Long.toString(getDatabaseSize() / 1024)); //$NON-NLS-1$
+        }
+
+        /**
+         * @return Size of the database file and its journal, in bytes.
+         */
+        private long getDatabaseSize()
+        {
+            return mFile.length() + new File(mFile.getPath() + "-journal").length() + new File(mFile.getPath() + "-wal").length(); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Local stand-in for the upload webservice. Reads every request body and responds with 202 Accepted.
+     */
+    private static final class Server implements HttpHandler
+    {
+        private final HttpServer mServer;
+
+        private final int mLatencyMillis;
+
+        /* package */final AtomicLong mRequests = new AtomicLong();
+
+        /**
+         * Starts the server on an ephemeral loopback port.
+         *
+         * @param latencyMillis Milliseconds to wait before responding.
+         * @throws IOException if the server cannot be started.
+         */
+        public Server(final int latencyMillis) throws IOException
+        {
+            mLatencyMillis = latencyMillis;
+            mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0); //$NON-NLS-1$
+            mServer.createContext("/", this); //$NON-NLS-1$
+            mServer.start();
+        }
+
+        /**
+         * @return URL the uploads are posted to.
+         */
+        public String getUrl()
+        {
+            return String.format("http://127.0.0.1:%d/api/v2/applications/%s/uploads", Integer.valueOf(mServer.getAddress().getPort()), BenchmarkSupport.API_KEY); //$NON-NLS-1$
+        }
+
+        public void stop()
+        {
+            mServer.stop(0);
+        }
+
+        public void handle(final HttpExchange exchange) throws IOException
+        {
+            final InputStream in = exchange.getRequestBody();
+            final byte[] buffer = new byte[8192];
+            while (-1 != in.read(buffer))
+            {
+                // discard
+            }
+            in.close();
+
+            if (0 != mLatencyMillis)
+            {
+                try
+                {
+                    Thread.sleep(mLatencyMillis);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            mRequests.incrementAndGet();
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+// @formatter:off
+/*
+ * BenchmarkSupport.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.localytics.android.LocalyticsProvider.ApiKeysDbColumns;
+import com.localytics.android.LocalyticsProvider.AttributesDbColumns;
+import com.localytics.android.LocalyticsProvider.EventHistoryDbColumns;
+import com.localytics.android.LocalyticsProvider.EventsDbColumns;
+import com.localytics.android.LocalyticsProvider.SessionsDbColumns;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+/* package */final class BenchmarkSupport
+{
+    /**
+     * Package name reported by {@link #newContext()}.
+     */
+    public static final String PACKAGE_NAME = "com.localytics.benchmark"; //$NON-NLS-1$
+
+    /**
+     * API key used by all benchmarks.
+     */
+    public static final String API_KEY = "benchmark-api-key"; //$NON-NLS-1$
+
+    /**
+     * Name of the application events written by the fixtures.
+     */
+    public static final String EVENT_NAME = String.format(LocalyticsSession.EVENT_FORMAT, PACKAGE_NAME, "Benchmark Event"); //$NON-NLS-1$
+
+    private BenchmarkSupport()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @return A context that only answers {@link Context#getPackageName()}, which is all the storage helpers need.
+     */
+    public static Context newContext()
+    {
+        return new ContextWrapper(null)
+        {
+            @Override
+            public String getPackageName()
+            {
+                return PACKAGE_NAME;
+            }
+        };
+    }
+
+    /**
+     * Creates an executor that runs tasks on a new daemon thread, for driving the session engine off the device.
+     *
+     * @param name Name of the thread. Cannot be null.
+     * @return A new executor backed by a single-threaded {@link ScheduledExecutorService}.
+     */
+    public static TaskExecutor newExecutor(final String name)
+    {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(final Runnable r)
+            {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        return new TaskExecutor()
+        {
+            public void execute(final Runnable task)
+            {
+                executor.execute(task);
+            }
+
+            public void executeDelayed(final Runnable task, final long delayMillis)
+            {
+                executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    /**
+     * Creates a storage in a new temporary file, so that the measurements include real disk writes.
+     *
+     * @return A new, empty storage with the Localytics schema.
+     */
+    public static JdbcLocalyticsStorage newStorage()
+    {
+        return newStorage(newDatabaseFile());
+    }
+
+    /**
+     * @param file Database file, which must not exist yet. Cannot be null.
+     * @return A new, empty storage with the Localytics schema, stored in {@code file}.
+     */
+    public static JdbcLocalyticsStorage newStorage(final File file)
+    {
+        try
+        {
+            return new JdbcLocalyticsStorage(String.format("jdbc:sqlite:%s", file.getAbsolutePath())); //$NON-NLS-1$
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return Path of a new temporary database file, which is deleted when the JVM exits. The file itself doesn't exist yet.
+     */
+    public static File newDatabaseFile()
+    {
+        try
+        {
+            final File file = File.createTempFile("localytics-benchmark", ".sqlite"); //$NON-NLS-1$ //$NON-NLS-2$
+            file.deleteOnExit();
+            if (!file.delete())
+            {
+                throw new IOException(String.format("Could not delete %s", file)); //$NON-NLS-1$
+            }
+            return file;
+        }
+        catch (final IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param count Number of attributes.
+     * @param prefix Prefix of the attribute keys, such as a package name followed by a colon. May be empty.
+     * @return {@code count} attributes with distinct keys, or null if {@code count} is 0.
+     */
+    public static Map<String, String> newAttributes(final int count, final String prefix)
+    {
+        if (0 == count)
+        {
+            return null;
+        }
+
+        final Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++)
+        {
+            attributes.put(String.format("%sattribute %d", prefix, Integer.valueOf(i)), String.format("value %d", Integer.valueOf(i))); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return attributes;
+    }
+
+    /**
+     * Inserts the row for {@link #API_KEY}.
+     *
+     * @param storage Storage to write to. Cannot be null.
+     * @return {@link ApiKeysDbColumns#_ID} of the new row.
+     */
+    public static long insertApiKey(final LocalyticsStorage storage)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(ApiKeysDbColumns.API_KEY, API_KEY);
+        values.put(ApiKeysDbColumns.UUID, UUID.randomUUID().toString());
+        values.put(ApiKeysDbColumns.OPT_OUT, Boolean.FALSE);
+        values.put(ApiKeysDbColumns.CREATED_TIME, Long.valueOf(System.currentTimeMillis()));
+        return storage.insert(ApiKeysDbColumns.TABLE_NAME, values);
+    }
+
+    /**
+     * Inserts a session and its open event.
+     *
+     * @param storage Storage to write to. Cannot be null.
+     * @param apiKeyId {@link ApiKeysDbColumns#_ID} of the session's API key.
+     * @param startTime Wall time at which the session started.
+     * @return {@link SessionsDbColumns#_ID} of the new session.
+     */
+    public static long insertSession(final LocalyticsStorage storage, final long apiKeyId, final long startTime)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(SessionsDbColumns.API_KEY_REF, Long.valueOf(apiKeyId));
+        values.put(SessionsDbColumns.UUID, UUID.randomUUID().toString());
+        values.put(SessionsDbColumns.SESSION_START_WALL_TIME, Long.valueOf(startTime));
+        values.put(SessionsDbColumns.LOCALYTICS_LIBRARY_VERSION, Constants.LOCALYTICS_CLIENT_LIBRARY_VERSION);
+        values.put(SessionsDbColumns.LOCALYTICS_INSTALLATION_ID, UUID.randomUUID().toString());
+        values.put(SessionsDbColumns.APP_VERSION, "1.0"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.ANDROID_VERSION, "4.1.2"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.ANDROID_SDK, Integer.valueOf(16));
+        values.put(SessionsDbColumns.DEVICE_MODEL, "benchmark"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.DEVICE_MANUFACTURER, "benchmark"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.DEVICE_ANDROID_ID_HASH, "0000000000000000000000000000000000000000"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.LOCALE_LANGUAGE, "en"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.LOCALE_COUNTRY, "us"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.DEVICE_COUNTRY, "us"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.NETWORK_CARRIER, "benchmark"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.NETWORK_COUNTRY, "us"); //$NON-NLS-1$
+        values.put(SessionsDbColumns.NETWORK_TYPE, "wifi"); //$NON-NLS-1$
+        final long sessionId = storage.insert(SessionsDbColumns.TABLE_NAME, values);
+
+        insertEvent(storage, sessionId, LocalyticsSession.OPEN_EVENT, startTime, null);
+
+        return sessionId;
+    }
+
+    /**
+     * Inserts an event with its attributes and, for application events, its history entry. This writes the same rows as the
+     * session handler does when an event is tagged.
+     *
+     * @param storage Storage to write to. Cannot be null.
+     * @param sessionId {@link SessionsDbColumns#_ID} of the event's session.
+     * @param eventName Name of the event, including the package prefix. Cannot be null.
+     * @param wallTime Wall time of the event.
+     * @param attributes Attributes of the event. May be null.
+     */
+    public static void insertEvent(final LocalyticsStorage storage, final long sessionId, final String eventName, final long wallTime, final Map<String, String> attributes)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(EventsDbColumns.SESSION_KEY_REF, Long.valueOf(sessionId));
+        values.put(EventsDbColumns.UUID, UUID.randomUUID().toString());
+        values.put(EventsDbColumns.EVENT_NAME, eventName);
+        values.put(EventsDbColumns.REAL_TIME, Long.valueOf(wallTime));
+        values.put(EventsDbColumns.WALL_TIME, Long.valueOf(wallTime));
+        values.put(EventsDbColumns.CLV_INCREASE, Integer.valueOf(0));
+        values.put(EventsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL));
+        final long eventId = storage.insert(EventsDbColumns.TABLE_NAME, values);
+
+        if (null != attributes)
+        {
+            for (final Map.Entry<String, String> entry : attributes.entrySet())
+            {
+                values.clear();
+                values.put(AttributesDbColumns.EVENTS_KEY_REF, Long.valueOf(eventId));
+                values.put(AttributesDbColumns.ATTRIBUTE_KEY, entry.getKey());
+                values.put(AttributesDbColumns.ATTRIBUTE_VALUE, entry.getValue());
+                storage.insert(AttributesDbColumns.TABLE_NAME, values);
+            }
+        }
+
+        if (eventName.startsWith(PACKAGE_NAME))
+        {
+            values.clear();
+            values.put(EventHistoryDbColumns.NAME, eventName.substring(PACKAGE_NAME.length() + 1));
+            values.put(EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT));
+            values.put(EventHistoryDbColumns.SESSION_KEY_REF, Long.valueOf(sessionId));
+            values.putNull(EventHistoryDbColumns.PROCESSED_IN_BLOB);
+            storage.insert(EventHistoryDbColumns.TABLE_NAME, values);
+        }
+    }
+
+    /**
+     * Fills {@code storage} with a backlog of closed sessions, as if the app had been used offline. Sessions hold up to 100
+     * events each, and every event has {@code attributeCount} attributes.
+     *
+     * @param storage Storage to write to. Cannot be null.
+     * @param eventCount Number of application events in the backlog.
+     * @param attributeCount Number of attributes per event.
+     */
+    public static void insertBacklog(final LocalyticsStorage storage, final int eventCount, final int attributeCount)
+    {
+        insertBacklog(storage, (eventCount + 99) / 100, 100, eventCount, attributeCount);
+    }
+
+    /**
+     * Fills {@code storage} with a backlog of closed sessions, as if the app had been used offline.
+     *
+     * @param storage Storage to write to. Cannot be null.
+     * @param sessionCount Number of sessions in the backlog.
+     * @param eventsPerSession Number of application events per session.
+     * @param attributeCount Number of attributes per event.
+     */
+    public static void insertBacklog(final LocalyticsStorage storage, final int sessionCount, final int eventsPerSession, final int attributeCount)
+    {
+        insertBacklog(storage, sessionCount, eventsPerSession, sessionCount * eventsPerSession, attributeCount);
+    }
+
+    /**
+     * @param storage Storage to write to. Cannot be null.
+     * @param sessionCount Number of sessions in the backlog.
+     * @param eventsPerSession Maximum number of application events per session.
+     * @param eventCount Total number of application events in the backlog.
+     * @param attributeCount Number of attributes per event.
+     */
+    private static void insertBacklog(final LocalyticsStorage storage, final int sessionCount, final int eventsPerSession, final int eventCount, final int attributeCount)
+    {
+        storage.runBatchTransaction(new Runnable()
+        {
+            public void run()
+            {
+                final long apiKeyId = insertApiKey(storage);
+                final Map<String, String> attributes = newAttributes(attributeCount, String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, PACKAGE_NAME, "")); //$NON-NLS-1$
+
+                /*
+                 * Old enough that the close events are not held back for session reconnects
+                 */
+                long time = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+
+                int remaining = eventCount;
+                for (int session = 0; session < sessionCount; session++)
+                {
+                    final long sessionId = insertSession(storage, apiKeyId, time);
+                    final int sessionEvents = Math.min(eventsPerSession, remaining);
+                    for (int i = 0; i < sessionEvents; i++)
+                    {
+                        insertEvent(storage, sessionId, EVENT_NAME, ++time, attributes);
+                    }
+                    insertEvent(storage, sessionId, LocalyticsSession.CLOSE_EVENT, ++time, null);
+                    remaining -= sessionEvents;
+                }
+            }
+        });
+    }
+}
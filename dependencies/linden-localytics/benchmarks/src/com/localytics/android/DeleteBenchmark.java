@@ -0,0 +1,64 @@
+// @formatter:off
+/*
+ * DeleteBenchmark.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.localytics.android.LocalyticsSession.SessionEngine;
+import com.localytics.android.LocalyticsSession.UploadEngine;
+
+/**
+ * Measures {@link UploadEngine#deleteBlobsAndSessions(LocalyticsStorage)} after a successful upload of an offline backlog.
+ * Deletion is destructive, so each invocation starts from a freshly seeded and built database and runs once.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class DeleteBenchmark
+{
+    /**
+     * Number of application events in the backlog.
+     */
+    @Param(
+        { "1000", "10000" })
+    public int backlog;
+
+    private JdbcLocalyticsStorage mStorage;
+
+    @Setup(Level.Invocation)
+    public void setUp()
+    {
+        mStorage = BenchmarkSupport.newStorage();
+        BenchmarkSupport.insertBacklog(mStorage, backlog, 5);
+        SessionEngine.preUploadBuildBlobs(mStorage);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown()
+    {
+        mStorage.close();
+    }
+
+    @Benchmark
+    public void deleteBlobsAndSessions()
+    {
+        UploadEngine.deleteBlobsAndSessions(mStorage);
+    }
+}
@@ -0,0 +1,87 @@
+// @formatter:off
+/*
+ * ExportBenchmark.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.localytics.android.LocalyticsSession.SessionEngine;
+import com.localytics.android.LocalyticsSession.UploadEngine;
+
+/**
+ * Measures the export of built upload blobs: {@link UploadEngine#convertDatabaseToJson(Context, LocalyticsStorage, String)}
+ * followed by serialization and {@link UploadEngine#gzip(byte[])}. Export doesn't modify the database, so the blobs are built
+ * once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ExportBenchmark
+{
+    /**
+     * Number of application events in the exported blobs.
+     */
+    @Param(
+        { "100", "1000" })
+    public int backlog;
+
+    private Context mContext;
+
+    private JdbcLocalyticsStorage mStorage;
+
+    @Setup
+    public void setUp()
+    {
+        mContext = BenchmarkSupport.newContext();
+        mStorage = BenchmarkSupport.newStorage();
+        BenchmarkSupport.insertBacklog(mStorage, backlog, 5);
+        SessionEngine.preUploadBuildBlobs(mStorage);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        mStorage.close();
+    }
+
+    @Benchmark
+    public List<JSONObject> convertDatabaseToJson()
+    {
+        return UploadEngine.convertDatabaseToJson(mContext, mStorage, BenchmarkSupport.API_KEY);
+    }
+
+    @Benchmark
+    public byte[] convertAndCompress() throws IOException
+    {
+        final List<JSONObject> json = UploadEngine.convertDatabaseToJson(mContext, mStorage, BenchmarkSupport.API_KEY);
+
+        final StringBuilder builder = new StringBuilder();
+        for (final JSONObject element : json)
+        {
+            builder.append(element.toString());
+            builder.append('\n');
+        }
+
+        return UploadEngine.gzip(builder.toString().getBytes("UTF-8")); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,429 @@
+// @formatter:off
+/*
+ * JdbcLocalyticsStorage.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * {@link LocalyticsStorage} backed by SQLite over JDBC, with the same schema as {@link LocalyticsProvider}. This allows the
+ * session and upload helpers to run against a real SQLite database on a plain JVM.
+ * <p>
+ * Query results are materialized into a {@link MatrixCursor}, which adds a copy that the Android implementation doesn't have.
+ * Prepared statements are cached by their SQL text.
+ * <p>
+ * This class is not thread-safe. Benchmarks use one instance per thread.
+ */
+/* package */final class JdbcLocalyticsStorage implements LocalyticsStorage
+{
+    /**
+     * Connection to the database.
+     */
+    private final Connection mConnection;
+
+    /**
+     * Database file, for {@link #getStorageStats(long)}.
+     */
+    private final File mFile;
+
+    /**
+     * Cache of prepared statements, keyed by their SQL text.
+     */
+    private final Map<String, PreparedStatement> mStatements = new HashMap<String, PreparedStatement>();
+
+    /**
+     * Nesting depth of {@link #runBatchTransaction(Runnable)}.
+     */
+    private int mTransactionDepth;
+
+    /**
+     * Opens the database at {@code url} and creates the Localytics tables.
+     *
+     * @param url JDBC URL of an empty SQLite database, such as {@code jdbc:sqlite:/tmp/localytics.sqlite}. Cannot be null.
+     * @throws SQLException if the database cannot be opened or initialized.
+     */
+    public JdbcLocalyticsStorage(final String url) throws SQLException
+    {
+        mConnection = DriverManager.getConnection(url);
+        mFile = new File(url.substring(url.lastIndexOf(':') + 1));
+
+        final Statement statement = mConnection.createStatement();
+        try
+        {
+            statement.execute("PRAGMA foreign_keys = ON;"); //$NON-NLS-1$
+            for (final String create : LocalyticsProvider.getCreateStatements())
+            {
+                statement.execute(create);
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    public long insert(final String tableName, final ContentValues values)
+    {
+        final StringBuilder columns = new StringBuilder();
+        final StringBuilder placeholders = new StringBuilder();
+        final Object[] args = new Object[values.size()];
+
+        int i = 0;
+        for (final Entry<String, Object> entry : values.valueSet())
+        {
+            if (0 != i)
+            {
+                columns.append(',');
+                placeholders.append(',');
+            }
+            columns.append(entry.getKey());
+            placeholders.append('?');
+            args[i++] = entry.getValue();
+        }
+
+        try
+        {
+            execute(String.format("INSERT INTO %s (%s) VALUES (%s);", tableName, columns, placeholders), args); //$NON-NLS-1$
+
+            final ResultSet rs = prepare("SELECT last_insert_rowid();").executeQuery(); //$NON-NLS-1$
+            try
+            {
+                rs.next();
+                return rs.getLong(1);
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Cursor query(final String tableName, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder)
+    {
+        return query(tableName, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    public Cursor query(final String tableName, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder, final String limit)
+    {
+        final StringBuilder sql = new StringBuilder("SELECT "); //$NON-NLS-1$
+        if (null == projection)
+        {
+            sql.append('*');
+        }
+        else
+        {
+            for (int i = 0; i < projection.length; i++)
+            {
+                if (0 != i)
+                {
+                    sql.append(',');
+                }
+
+                /*
+                 * Mirrors the count projection map of LocalyticsProvider
+                 */
+                if (BaseColumns._COUNT.equals(projection[i]))
+                {
+                    sql.append("COUNT(*) AS ").append(BaseColumns._COUNT); //$NON-NLS-1$
+                }
+                else
+                {
+                    sql.append(projection[i]);
+                }
+            }
+        }
+        sql.append(" FROM ").append(tableName); //$NON-NLS-1$
+        if (null != selection)
+        {
+            sql.append(" WHERE ").append(selection); //$NON-NLS-1$
+        }
+        if (null != sortOrder)
+        {
+            sql.append(" ORDER BY ").append(sortOrder); //$NON-NLS-1$
+        }
+        if (null != limit)
+        {
+            sql.append(" LIMIT ").append(limit); //$NON-NLS-1$
+        }
+
+        try
+        {
+            final PreparedStatement statement = prepare(sql.toString());
+            bind(statement, selectionArgs);
+
+            final ResultSet rs = statement.executeQuery();
+            try
+            {
+                final ResultSetMetaData metaData = rs.getMetaData();
+                final String[] columnNames = new String[metaData.getColumnCount()];
+                for (int i = 0; i < columnNames.length; i++)
+                {
+                    columnNames[i] = metaData.getColumnLabel(i + 1);
+                }
+
+                final MatrixCursor cursor = new MatrixCursor(columnNames);
+                while (rs.next())
+                {
+                    final Object[] row = new Object[columnNames.length];
+                    for (int i = 0; i < row.length; i++)
+                    {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    cursor.addRow(row);
+                }
+                return cursor;
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int update(final String tableName, final ContentValues values, final String selection, final String[] selectionArgs)
+    {
+        final StringBuilder sql = new StringBuilder(String.format("UPDATE %s SET ", tableName)); //$NON-NLS-1$
+        final Object[] args = new Object[values.size() + (null == selectionArgs ? 0 : selectionArgs.length)];
+
+        int i = 0;
+        for (final Entry<String, Object> entry : values.valueSet())
+        {
+            if (0 != i)
+            {
+                sql.append(',');
+            }
+            sql.append(entry.getKey()).append("=?"); //$NON-NLS-1$
+            args[i++] = entry.getValue();
+        }
+        if (null != selection)
+        {
+            sql.append(" WHERE ").append(selection); //$NON-NLS-1$
+        }
+        if (null != selectionArgs)
+        {
+            System.arraycopy(selectionArgs, 0, args, i, selectionArgs.length);
+        }
+
+        try
+        {
+            return execute(sql.toString(), args);
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int delete(final String tableName, final String selection, final String[] selectionArgs)
+    {
+        try
+        {
+            return execute(String.format("DELETE FROM %s WHERE %s", tableName, null == selection ? "1" : selection), selectionArgs); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void runBatchTransaction(final Runnable runnable)
+    {
+        try
+        {
+            if (0 == mTransactionDepth)
+            {
+                mConnection.setAutoCommit(false);
+            }
+            mTransactionDepth++;
+
+            boolean isSuccessful = false;
+            try
+            {
+                runnable.run();
+                isSuccessful = true;
+            }
+            finally
+            {
+                mTransactionDepth--;
+                if (0 == mTransactionDepth)
+                {
+                    if (isSuccessful)
+                    {
+                        mConnection.commit();
+                    }
+                    else
+                    {
+                        mConnection.rollback();
+                    }
+                    mConnection.setAutoCommit(true);
+                }
+            }
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public StorageStats getStorageStats(final long estimatedUploadBytes)
+    {
+        try
+        {
+            final Map<String, Long> rowCounts = new TreeMap<String, Long>();
+            final ResultSet rs = prepare("SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%';").executeQuery(); //$NON-NLS-1$
+            try
+            {
+                while (rs.next())
+                {
+                    rowCounts.put(rs.getString(1), null);
+                }
+            }
+            finally
+            {
+                rs.close();
+            }
+            for (final Entry<String, Long> entry : rowCounts.entrySet())
+            {
+                entry.setValue(Long.valueOf(longForQuery(String.format("SELECT COUNT(*) FROM %s;", entry.getKey())))); //$NON-NLS-1$
+            }
+
+            final long databaseBytes = mFile.length() + new File(mFile.getPath() + "-journal").length() + new File(mFile.getPath() + "-wal").length(); //$NON-NLS-1$ //$NON-NLS-2$
+
+            return new StorageStats(rowCounts, databaseBytes, longForQuery("PRAGMA page_size;"), longForQuery("PRAGMA page_count;"), longForQuery("PRAGMA freelist_count;"), longForQuery(LocalyticsProvider.QUERY_OLDEST_EVENT), rowCounts.get(LocalyticsProvider.UploadBlobsDbColumns.TABLE_NAME).longValue(), estimatedUploadBytes); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes the database connection.
+     */
+    public void close()
+    {
+        try
+        {
+            for (final PreparedStatement statement : mStatements.values())
+            {
+                statement.close();
+            }
+            mStatements.clear();
+            mConnection.close();
+        }
+        catch (final SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param sql SQL text. Cannot be null.
+     * @return A cached prepared statement for {@code sql}.
+     * @throws SQLException if the statement cannot be prepared.
+     */
+    private PreparedStatement prepare(final String sql) throws SQLException
+    {
+        PreparedStatement statement = mStatements.get(sql);
+        if (null == statement)
+        {
+            statement = mConnection.prepareStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * @param sql Query that returns a single number. Cannot be null.
+     * @return The result of {@code sql}.
+     * @throws SQLException if the query fails.
+     */
+    private long longForQuery(final String sql) throws SQLException
+    {
+        final ResultSet rs = prepare(sql).executeQuery();
+        try
+        {
+            rs.next();
+            return rs.getLong(1);
+        }
+        finally
+        {
+            rs.close();
+        }
+    }
+
+    /**
+     * Executes an update statement.
+     *
+     * @param sql SQL text. Cannot be null.
+     * @param args Arguments to bind. May be null.
+     * @return The number of rows affected.
+     * @throws SQLException if the statement fails.
+     */
+    private int execute(final String sql, final Object[] args) throws SQLException
+    {
+        final PreparedStatement statement = prepare(sql);
+        bind(statement, args);
+        return statement.executeUpdate();
+    }
+
+    /**
+     * @param statement Statement to bind {@code args} to. Cannot be null.
+     * @param args Arguments to bind. May be null.
+     * @throws SQLException if binding fails.
+     */
+    private static void bind(final PreparedStatement statement, final Object[] args) throws SQLException
+    {
+        statement.clearParameters();
+        if (null == args)
+        {
+            return;
+        }
+
+        for (int i = 0; i < args.length; i++)
+        {
+            final Object arg = args[i];
+
+            /*
+             * Like SQLiteDatabase, store booleans as 0 and 1
+             */
+            if (arg instanceof Boolean)
+            {
+                statement.setInt(i + 1, ((Boolean) arg).booleanValue() ? 1 : 0);
+            }
+            else
+            {
+                statement.setObject(i + 1, arg);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// @formatter:off
+/*
+ * PersistenceBenchmark.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.localytics.android.LocalyticsProvider.AttributesDbColumns;
+import com.localytics.android.LocalyticsSession.SessionEngine;
+
+/**
+ * Measures the session thread's half of tagging an event: {@link SessionEngine#tagEvent(String, Map, Long, int)} writing the
+ * event, its attributes, and its history row to SQLite. The database is recreated for every iteration so that its size stays
+ * comparable between iterations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PersistenceBenchmark
+{
+    /**
+     * Number of attributes written with every event.
+     */
+    @Param(
+        { "0", "5", "10" })
+    public int attributes;
+
+    private JdbcLocalyticsStorage mStorage;
+
+    private SessionEngine mEngine;
+
+    private Map<String, String> mAttributes;
+
+    private Runnable mTagEvent;
+
+    @Setup(Level.Iteration)
+    public void setUp()
+    {
+        mStorage = BenchmarkSupport.newStorage();
+        BenchmarkSupport.insertSession(mStorage, BenchmarkSupport.insertApiKey(mStorage), System.currentTimeMillis());
+
+        final TaskExecutor executor = BenchmarkSupport.newExecutor(SessionEngine.class.getSimpleName());
+        mEngine = new SessionEngine(BenchmarkSupport.newContext(), BenchmarkSupport.API_KEY, executor, executor, executor, mStorage, new AndroidClock(), new HttpUploadTransport());
+        mAttributes = BenchmarkSupport.newAttributes(attributes, String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, BenchmarkSupport.PACKAGE_NAME, "")); //$NON-NLS-1$
+
+        /*
+         * Same transaction boundary as SessionHandler.MESSAGE_TAG_EVENT
+         */
+        mTagEvent = new Runnable()
+        {
+            public void run()
+            {
+                mEngine.tagEvent(BenchmarkSupport.EVENT_NAME, mAttributes, null, LocalyticsSession.PRIORITY_NORMAL);
+            }
+        };
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown()
+    {
+        mStorage.close();
+    }
+
+    @Benchmark
+    public void tagEvent()
+    {
+        mStorage.runBatchTransaction(mTagEvent);
+    }
+}
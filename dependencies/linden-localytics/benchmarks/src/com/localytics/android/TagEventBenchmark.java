@@ -0,0 +1,89 @@
+// @formatter:off
+/*
+ * TagEventBenchmark.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the cost of {@link LocalyticsSession#tagEvent(String, Map, List)} on the calling thread: parameter checking, attribute
+ * remapping, and the message hand-off. The session handler discards the messages, so the database write is not included. See
+ * {@link PersistenceBenchmark} for that half.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TagEventBenchmark
+{
+    /**
+     * Number of attributes passed with every event.
+     */
+    @Param(
+        { "0", "5", "10" })
+    public int attributes;
+
+    /**
+     * Whether custom dimensions are passed with every event.
+     */
+    @Param(
+        { "false", "true" })
+    public boolean dimensions;
+
+    private LocalyticsSession mSession;
+
+    private Map<String, String> mAttributes;
+
+    private List<String> mDimensions;
+
+    @Setup
+    public void setUp()
+    {
+        /*
+         * Recycles messages instead of queuing them, so that the queue doesn't grow while the looper can't deliver them
+         */
+        if (null == Looper.myLooper())
+        {
+            Looper.prepare();
+        }
+        final Handler discardingHandler = new Handler(Looper.myLooper())
+        {
+            @Override
+            public boolean sendMessageAtTime(final Message msg, final long uptimeMillis)
+            {
+                msg.recycle();
+                return true;
+            }
+        };
+
+        mSession = new LocalyticsSession(BenchmarkSupport.newContext(), BenchmarkSupport.API_KEY, discardingHandler);
+        mAttributes = BenchmarkSupport.newAttributes(attributes, ""); //$NON-NLS-1$
+        mDimensions = dimensions ? Arrays.asList("dimension 0", "dimension 1", "dimension 2") : null; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    @Benchmark
+    public void tagEvent()
+    {
+        mSession.tagEvent("Benchmark Event", mAttributes, mDimensions); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,27 @@
+// @formatter:off
+/*
+ * AndroidClock.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.os.SystemClock;
+
+/**
+ * {@link Clock} backed by the device clocks.
+ */
+/* package */final class AndroidClock implements Clock
+{
+    public long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    public long elapsedRealtime()
+    {
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,105 @@
+// @formatter:off
+/*
+ * AndroidDeviceConditions.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+/**
+ * {@link DeviceConditions} backed by the Android connectivity and battery services.
+ * <p>
+ * Reading the connection state requires the permission ACCESS_NETWORK_STATE. Without it, the device is assumed to be connected
+ * to a metered network.
+ */
+public final class AndroidDeviceConditions implements DeviceConditions
+{
+    /**
+     * Application context
+     */
+    private final Context mContext;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param context Application context. Cannot be null.
+     * @throws IllegalArgumentException if {@code context} is null.
+     */
+    public AndroidDeviceConditions(final Context context)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == context)
+            {
+                throw new IllegalArgumentException("context cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mContext = context.getApplicationContext();
+    }
+
+    public boolean isConnected()
+    {
+        try
+        {
+            final NetworkInfo info = ((ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
+            return null != info && info.isConnected();
+        }
+        catch (final SecurityException e)
+        {
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Application does not have the permission ACCESS_NETWORK_STATE. Assuming a connection is available", e); //$NON-NLS-1$
+            }
+
+            return true;
+        }
+    }
+
+    public boolean isUnmetered()
+    {
+        try
+        {
+            final NetworkInfo info = ((ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
+            if (null == info || !info.isConnected())
+            {
+                return false;
+            }
+
+            return ConnectivityManager.TYPE_WIFI == info.getType() || ConnectivityManager.TYPE_ETHERNET == info.getType();
+        }
+        catch (final SecurityException e)
+        {
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Application does not have the permission ACCESS_NETWORK_STATE. Assuming a metered connection", e); //$NON-NLS-1$
+            }
+
+            return false;
+        }
+    }
+
+    public boolean isCharging()
+    {
+        /*
+         * ACTION_BATTERY_CHANGED is sticky, so registering a null receiver returns the last broadcast without registering anything.
+         */
+        final Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (null == battery)
+        {
+            return false;
+        }
+
+        return 0 != battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+    }
+}
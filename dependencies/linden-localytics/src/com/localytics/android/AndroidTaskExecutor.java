@@ -0,0 +1,43 @@
+// @formatter:off
+/*
+ * AndroidTaskExecutor.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * {@link TaskExecutor} that posts tasks to a {@link Looper}.
+ */
+/* package */final class AndroidTaskExecutor implements TaskExecutor
+{
+    /**
+     * Handler that tasks are posted to.
+     */
+    private final Handler mHandler;
+
+    /**
+     * Constructs a new executor.
+     *
+     * @param looper Looper to run the tasks on. Cannot be null.
+     */
+    public AndroidTaskExecutor(final Looper looper)
+    {
+        mHandler = new Handler(looper);
+    }
+
+    public void execute(final Runnable task)
+    {
+        mHandler.post(task);
+    }
+
+    public void executeDelayed(final Runnable task, final long delayMillis)
+    {
+        mHandler.postDelayed(task, delayMillis);
+    }
+}
@@ -0,0 +1,30 @@
+// @formatter:off
+/*
+ * Clock.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Source of the current time for the session and upload engine.
+ * <p>
+ * {@link AndroidClock} reads the device clocks. Other implementations can supply controlled values, which allows the engine to
+ * run off the device.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+/* package */interface Clock
+{
+    /**
+     * @return Current wall time in milliseconds since the epoch, as {@link System#currentTimeMillis()}.
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return Milliseconds since boot, including time spent in sleep, as {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    long elapsedRealtime();
+}
@@ -62,9 +62,14 @@ import android.text.format.DateUtils;
     public static final String LOCALYTICS_METADATA_ROLLUP_KEY = "LOCALYTICS_ROLLUP_KEY"; //$NON-NLS-1$
     
     /**
-     * Maximum number of sessions to store on disk.
+     * Default {@link StorageQuota#getMaxBytes()}: estimated size in bytes of the data stored on disk.
      */
-    public static final int MAX_NUM_SESSIONS = 10;
+    public static final long DEFAULT_STORAGE_QUOTA_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Default {@link StorageQuota#getMaxEvents()}: number of events stored on disk.
+     */
+    public static final int DEFAULT_STORAGE_QUOTA_EVENTS = 10000;
 
     /**
      * Maximum number of attributes per event session.
@@ -95,7 +100,8 @@ import android.text.format.DateUtils;
     public static final String LOG_TAG = "Localytics"; //$NON-NLS-1$
 
     /**
-     * Boolean indicating whether logcat messages are enabled.
+     * Boolean indicating whether logcat messages are enabled by default. The level can be changed at runtime with
+     * {@link LocalyticsLog#setLevel(int)}.
      * <p>
      * Before releasing a production version of an app, this should be set to false for privacy and performance reasons. When
      * logging is enabled, sensitive information such as the device ID may be printed to the log.
@@ -0,0 +1,54 @@
+// @formatter:off
+/*
+ * DataMigration.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A data migration that {@link LocalyticsProvider} performs in the background, in batches of rows, after a schema upgrade.
+ * <p>
+ * A migration is recorded by inserting a row named {@link #getName()} into {@link LocalyticsProvider.MigrationsDbColumns}, with
+ * the range of {@link android.provider.BaseColumns#_ID} to rewrite. The provider advances the row's checkpoint after each batch
+ * and deletes the row once the range is done. Until then, readers of {@link #getTableName()} see the rows through
+ * {@link #getCompatibilityTable(String)}, so that they only ever see the new format.
+ * <p>
+ * Implementations must be stateless and thread-safe.
+ */
+/* package */interface DataMigration
+{
+    /**
+     * @return {@link LocalyticsProvider.MigrationsDbColumns#NAME} under which the migration is recorded. Cannot be null.
+     */
+    String getName();
+
+    /**
+     * @return Name of the table whose rows the migration rewrites. Cannot be null.
+     */
+    String getTableName();
+
+    /**
+     * Rewrites one batch of rows. This is called within a transaction that also advances the checkpoint.
+     *
+     * @param db Database to rewrite. Cannot be null.
+     * @param lastId Rows with a {@link android.provider.BaseColumns#_ID} greater than this are rewritten.
+     * @param batchEnd Rows with a {@link android.provider.BaseColumns#_ID} up to and including this are rewritten.
+     * @param argument {@link LocalyticsProvider.MigrationsDbColumns#ARGUMENT} of the migration. May be null.
+     */
+    void migrateBatch(SQLiteDatabase db, long lastId, long batchEnd, String argument);
+
+    /**
+     * Builds the table expression that replaces {@link #getTableName()} in queries while the migration is pending. The expression
+     * reads the checkpoint from {@link LocalyticsProvider.MigrationsDbColumns} within the same query, so that the result is
+     * consistent with the batches committed so far.
+     *
+     * @param source Table, or parenthesized table expression, to read the rows of {@link #getTableName()} from. Cannot be null.
+     * @return Parenthesized table expression, without an alias, with the same columns as {@link #getTableName()}.
+     */
+    String getCompatibilityTable(String source);
+}
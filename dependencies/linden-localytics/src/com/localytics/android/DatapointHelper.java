@@ -93,7 +93,7 @@ import java.security.NoSuchAlgorithmException;
         }
         catch (final Exception e)
         {
-            Log.w(Constants.LOG_TAG, "Caught exception", e); //$NON-NLS-1$
+            LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
 
             // Although probably not necessary, protects from the aforementioned deprecation
             try
@@ -103,9 +103,9 @@ import java.security.NoSuchAlgorithmException;
             }
             catch (final Exception ignore)
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    Log.w(Constants.LOG_TAG, "Caught exception", ignore); //$NON-NLS-1$
+                    LocalyticsLog.w("Caught exception", ignore); //$NON-NLS-1$
                 }
             }
         }
@@ -157,9 +157,9 @@ import java.security.NoSuchAlgorithmException;
                 }
                 catch (final FileNotFoundException e)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "Caught exception", e); //$NON-NLS-1$
+                        LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
                     }
                 }
                 finally
@@ -172,9 +172,9 @@ import java.security.NoSuchAlgorithmException;
             }
             catch (final IOException e)
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    Log.w(Constants.LOG_TAG, "Caught exception", e); //$NON-NLS-1$
+                    LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
                 }
             }
         }
@@ -248,9 +248,9 @@ import java.security.NoSuchAlgorithmException;
             final Boolean hasTelephony = ReflectionUtils.tryInvokeInstance(context.getPackageManager(), "hasSystemFeature", STRING_CLASS_ARRAY, HARDWARE_TELEPHONY); //$NON-NLS-1$
             if (!hasTelephony.booleanValue())
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.INFO))
                 {
-                    Log.i(Constants.LOG_TAG, "Device does not have telephony; cannot read telephony id"); //$NON-NLS-1$
+                    LocalyticsLog.i("Device does not have telephony; cannot read telephony id"); //$NON-NLS-1$
                 }
 
                 return null;
@@ -269,9 +269,9 @@ import java.security.NoSuchAlgorithmException;
         }
         else
         {
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.WARN))
             {
-                Log.w(Constants.LOG_TAG, "Application does not have permission READ_PHONE_STATE; determining device id is not possible.  Please consider requesting READ_PHONE_STATE in the AndroidManifest"); //$NON-NLS-1$
+                LocalyticsLog.w("Application does not have permission READ_PHONE_STATE; determining device id is not possible.  Please consider requesting READ_PHONE_STATE in the AndroidManifest"); //$NON-NLS-1$
             }
         }
 
@@ -297,9 +297,9 @@ import java.security.NoSuchAlgorithmException;
 
             if (!hasWifi.booleanValue())
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.INFO))
                 {
-                    Log.i(Constants.LOG_TAG, "Device does not have Wi-Fi; cannot read Wi-Fi MAC"); //$NON-NLS-1$
+                    LocalyticsLog.i("Device does not have Wi-Fi; cannot read Wi-Fi MAC"); //$NON-NLS-1$
                 }
 
                 return null;
@@ -322,13 +322,13 @@ import java.security.NoSuchAlgorithmException;
         }
         else
         {
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.INFO))
             {
                 /*
                  * Yes, this log message is different from the one that reads telephony ID. MAC address is less important than
                  * telephony ID and most applications probably don't need the ACCESS_WIFI_STATE permission.
                  */
-                Log.i(Constants.LOG_TAG, "Application does not have permission ACCESS_WIFI_STATE; determining MAC address is not possible."); //$NON-NLS-1$
+                LocalyticsLog.i("Application does not have permission ACCESS_WIFI_STATE; determining MAC address is not possible."); //$NON-NLS-1$
             }
         }
 
@@ -361,9 +361,9 @@ import java.security.NoSuchAlgorithmException;
             }
             else
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    Log.w(Constants.LOG_TAG, "Application does not have one more more of the following permissions: ACCESS_WIFI_STATE. Determining Wi-Fi connectivity is unavailable"); //$NON-NLS-1$
+                    LocalyticsLog.w("Application does not have one more more of the following permissions: ACCESS_WIFI_STATE. Determining Wi-Fi connectivity is unavailable"); //$NON-NLS-1$
                 }
             }
         }
@@ -373,9 +373,9 @@ import java.security.NoSuchAlgorithmException;
              * Although the documentation doesn't declare it, sometimes the ConnectivityService will throw an exception for
              * permission ACCESS_NETWORK_STATE
              */
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.WARN))
             {
-                Log.w(Constants.LOG_TAG, "Application does not have the permission ACCESS_NETWORK_STATE. Determining Wi-Fi connectivity is unavailable", e); //$NON-NLS-1$
+                LocalyticsLog.w("Application does not have the permission ACCESS_NETWORK_STATE. Determining Wi-Fi connectivity is unavailable", e); //$NON-NLS-1$
             }
         }
 
@@ -400,9 +400,9 @@ import java.security.NoSuchAlgorithmException;
             }
             catch (final Exception ignore)
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    Log.w(Constants.LOG_TAG, "Caught exception", ignore); //$NON-NLS-1$
+                    LocalyticsLog.w("Caught exception", ignore); //$NON-NLS-1$
                 }
             }
         }
@@ -435,9 +435,9 @@ import java.security.NoSuchAlgorithmException;
         }
         catch (final Exception e)
         {
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.WARN))
             {
-                Log.w(Constants.LOG_TAG, "Error reading FB attribution", e); //$NON-NLS-1$
+                LocalyticsLog.w("Error reading FB attribution", e); //$NON-NLS-1$
             }
         }
         finally
@@ -471,9 +471,9 @@ import java.security.NoSuchAlgorithmException;
              */
             if (null == versionName)
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    Log.w(Constants.LOG_TAG, "versionName was null--is a versionName attribute set in the Android Manifest?"); //$NON-NLS-1$
+                    LocalyticsLog.w("versionName was null--is a versionName attribute set in the Android Manifest?"); //$NON-NLS-1$
                 }
 
                 return "unknown"; //$NON-NLS-1$
@@ -0,0 +1,35 @@
+// @formatter:off
+/*
+ * DeviceConditions.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Source of the connectivity and power signals consulted by {@link UploadScheduler}.
+ * <p>
+ * {@link AndroidDeviceConditions} reads these signals from the device. Other implementations can supply fixed values, which
+ * allows the scheduling policy to be exercised without a device.
+ * <p>
+ * Implementations must be thread-safe, as they are queried from the upload thread.
+ */
+public interface DeviceConditions
+{
+    /**
+     * @return True if a network connection is available.
+     */
+    boolean isConnected();
+
+    /**
+     * @return True if the current network connection is not billed by the byte, such as Wi-Fi.
+     */
+    boolean isUnmetered();
+
+    /**
+     * @return True if the device is plugged in to a power source.
+     */
+    boolean isCharging();
+}
@@ -0,0 +1,538 @@
+// @formatter:off
+/*
+ * EventAttributes.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.localytics.android.LocalyticsProvider.AttributesDbColumns;
+
+/**
+ * Typed attributes for {@link LocalyticsSession#tagTypedEvent(String, EventAttributes)}.
+ * <p>
+ * Numeric and boolean values are kept as primitives and only converted to strings on the session's handler thread, when the
+ * event is written to the database. Ranged values are likewise bucketed with
+ * {@link LocalyticsSession#createRangedAttribute(int, int[])} on the handler thread. This keeps reflection, boxing, and string
+ * formatting off the calling thread, which matters for numeric telemetry tagged from a render loop.
+ * <p>
+ * Putting a key that is already present replaces its value. The attributes are copied when the event is tagged, so an instance
+ * may be reused after {@link #clear()}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class EventAttributes
+{
+    /**
+     * Value is in {@link #mObjects} as a String.
+     */
+    private static final int TYPE_STRING = 0;
+
+    /**
+     * Value is in {@link #mLongs}.
+     */
+    private static final int TYPE_LONG = 1;
+
+    /**
+     * Value is in {@link #mDoubles}.
+     */
+    private static final int TYPE_DOUBLE = 2;
+
+    /**
+     * Value is in {@link #mLongs}, as 0 or 1.
+     */
+    private static final int TYPE_BOOLEAN = 3;
+
+    /**
+     * Value is in {@link #mLongs} and its bucket boundaries are in {@link #mObjects} as an int[].
+     */
+    private static final int TYPE_RANGED = 4;
+
+    /**
+     * Initial capacity of the default constructor.
+     */
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * Attribute keys, without the package prefix.
+     */
+    private String[] mKeys;
+
+    /**
+     * Type of each attribute, one of the TYPE constants.
+     */
+    private int[] mTypes;
+
+    /**
+     * Values of {@link #TYPE_LONG}, {@link #TYPE_BOOLEAN}, and {@link #TYPE_RANGED} attributes.
+     */
+    private long[] mLongs;
+
+    /**
+     * Values of {@link #TYPE_DOUBLE} attributes.
+     */
+    private double[] mDoubles;
+
+    /**
+     * Values of {@link #TYPE_STRING} attributes and bucket boundaries of {@link #TYPE_RANGED} attributes.
+     */
+    private Object[] mObjects;
+
+    /**
+     * Number of attributes.
+     */
+    private int mSize;
+
+    /**
+     * Constructs an empty set of attributes.
+     */
+    public EventAttributes()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty set of attributes.
+     *
+     * @param capacity Expected number of attributes.
+     * @throws IllegalArgumentException if {@code capacity} is negative.
+     */
+    public EventAttributes(final int capacity)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (capacity < 0)
+            {
+                throw new IllegalArgumentException("capacity cannot be negative"); //$NON-NLS-1$
+            }
+        }
+
+        mKeys = new String[capacity];
+        mTypes = new int[capacity];
+        mLongs = new long[capacity];
+        mDoubles = new double[capacity];
+        mObjects = new Object[capacity];
+    }
+
+    /**
+     * @param key Attribute key. Cannot be null or empty.
+     * @param value Attribute value. Cannot be null or empty.
+     * @return This object, for chaining.
+     * @throws IllegalArgumentException if {@code key} or {@code value} is null or empty.
+     */
+    public EventAttributes putString(final String key, final String value)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == value)
+            {
+                throw new IllegalArgumentException("value cannot be null"); //$NON-NLS-1$
+            }
+
+            if (0 == value.length())
+            {
+                throw new IllegalArgumentException("value cannot be empty"); //$NON-NLS-1$
+            }
+        }
+
+        final int index = slot(key, TYPE_STRING);
+        mObjects[index] = value;
+        return this;
+    }
+
+    /**
+     * @param key Attribute key. Cannot be null or empty.
+     * @param value Attribute value.
+     * @return This object, for chaining.
+     * @throws IllegalArgumentException if {@code key} is null or empty.
+     */
+    public EventAttributes putLong(final String key, final long value)
+    {
+        final int index = slot(key, TYPE_LONG);
+        mLongs[index] = value;
+        return this;
+    }
+
+    /**
+     * @param key Attribute key. Cannot be null or empty.
+     * @param value Attribute value.
+     * @return This object, for chaining.
+     * @throws IllegalArgumentException if {@code key} is null or empty.
+     */
+    public EventAttributes putDouble(final String key, final double value)
+    {
+        final int index = slot(key, TYPE_DOUBLE);
+        mDoubles[index] = value;
+        return this;
+    }
+
+    /**
+     * @param key Attribute key. Cannot be null or empty.
+     * @param value Attribute value.
+     * @return This object, for chaining.
+     * @throws IllegalArgumentException if {@code key} is null or empty.
+     */
+    public EventAttributes putBoolean(final String key, final boolean value)
+    {
+        final int index = slot(key, TYPE_BOOLEAN);
+        mLongs[index] = value ? 1 : 0;
+        return this;
+    }
+
+    /**
+     * Puts a value that is bucketed as by {@link LocalyticsSession#createRangedAttribute(int, int, int, int)}.
+     *
+     * @param key Attribute key. Cannot be null or empty.
+     * @param value The value to be bucketed.
+     * @param minValue Inclusive minimum of the intervals.
+     * @param maxValue Inclusive maximum of the intervals.
+     * @param step Size of each interval.
+     * @return This object, for chaining.
+     * @throws IllegalArgumentException if {@code key} is null or empty.
+     * @throws IllegalArgumentException if {@code step} is less than 1 or {@code minValue} is not less than {@code maxValue}.
+     */
+    public EventAttributes putRanged(final String key, final int value, final int minValue, final int maxValue, final int step)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (step < 1)
+            {
+                throw new IllegalArgumentException("step must be at least 1"); //$NON-NLS-1$
+            }
+
+            if (minValue >= maxValue)
+            {
+                throw new IllegalArgumentException("minValue must be less than maxValue"); //$NON-NLS-1$
+            }
+        }
+
+        final int stepQuantity = (maxValue - minValue + step) / step;
+        final int[] steps = new int[stepQuantity + 1];
+        for (int currentStep = 0; currentStep <= stepQuantity; currentStep++)
+        {
+            steps[currentStep] = minValue + currentStep * step;
+        }
+
+        return putRanged(key, value, steps);
+    }
+
+    /**
+     * Puts a value that is bucketed as by {@link LocalyticsSession#createRangedAttribute(int, int[])}.
+     *
+     * @param key Attribute key. Cannot be null or empty.
+     * @param value The value to be bucketed.
+     * @param steps Sorted bucket boundaries. Cannot be null or empty. Must not be modified after this call.
+     * @return This object, for chaining.
+     * @throws IllegalArgumentException if {@code key} is null or empty.
+     * @throws IllegalArgumentException if {@code steps} is null or empty.
+     */
+    public EventAttributes putRanged(final String key, final int value, final int[] steps)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == steps)
+            {
+                throw new IllegalArgumentException("steps cannot be null"); //$NON-NLS-1$
+            }
+
+            if (0 == steps.length)
+            {
+                throw new IllegalArgumentException("steps length must be greater than 0"); //$NON-NLS-1$
+            }
+        }
+
+        final int index = slot(key, TYPE_RANGED);
+        mLongs[index] = value;
+        mObjects[index] = steps;
+        return this;
+    }
+
+    /**
+     * @return Number of attributes.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Removes all attributes, keeping the capacity.
+     */
+    public void clear()
+    {
+        for (int x = 0; x < mSize; x++)
+        {
+            mKeys[x] = null;
+            mObjects[x] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Finds or appends the slot for {@code key}.
+     *
+     * @param key Attribute key. Cannot be null or empty.
+     * @param type One of the TYPE constants.
+     * @return Index of the slot, whose type has been set to {@code type}.
+     * @throws IllegalArgumentException if {@code key} is null or empty.
+     */
+    private int slot(final String key, final int type)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == key)
+            {
+                throw new IllegalArgumentException("key cannot be null"); //$NON-NLS-1$
+            }
+
+            if (0 == key.length())
+            {
+                throw new IllegalArgumentException("key cannot be empty"); //$NON-NLS-1$
+            }
+        }
+
+        int index = 0;
+        while (index < mSize && !mKeys[index].equals(key))
+        {
+            index++;
+        }
+
+        if (index == mSize)
+        {
+            if (mSize == mKeys.length)
+            {
+                grow();
+            }
+            mKeys[index] = key;
+            mSize++;
+        }
+
+        mTypes[index] = type;
+        mObjects[index] = null;
+        return index;
+    }
+
+    /**
+     * Doubles the capacity.
+     */
+    private void grow()
+    {
+        final int capacity = Math.max(DEFAULT_CAPACITY, mKeys.length * 2);
+
+        final String[] keys = new String[capacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        mKeys = keys;
+
+        final int[] types = new int[capacity];
+        System.arraycopy(mTypes, 0, types, 0, mSize);
+        mTypes = types;
+
+        final long[] longs = new long[capacity];
+        System.arraycopy(mLongs, 0, longs, 0, mSize);
+        mLongs = longs;
+
+        final double[] doubles = new double[capacity];
+        System.arraycopy(mDoubles, 0, doubles, 0, mSize);
+        mDoubles = doubles;
+
+        final Object[] objects = new Object[capacity];
+        System.arraycopy(mObjects, 0, objects, 0, mSize);
+        mObjects = objects;
+    }
+
+    /**
+     * Copies the attributes into a map in the internal packagename:key representation. The map converts each value to a string
+     * only when the value is read, and iterates in key order like the {@code TreeMap} used for string attributes.
+     *
+     * @param packageName Package name to prefix the keys with. Cannot be null.
+     * @return Read-only snapshot of the attributes.
+     */
+    /* package */Map<String, String> toAttributeMap(final String packageName)
+    {
+        return new AttributeMap(this, String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, packageName, "")); //$NON-NLS-1$
+    }
+
+    /**
+     * Read-only snapshot of {@link EventAttributes} that defers key prefixing, sorting, and value conversion until it is read.
+     */
+    private static final class AttributeMap extends AbstractMap<String, String>
+    {
+        private final String mPrefix;
+        private final String[] mKeys;
+        private final int[] mTypes;
+        private final long[] mLongs;
+        private final double[] mDoubles;
+        private final Object[] mObjects;
+        private final int mSize;
+
+        /**
+         * Indexes of the attributes in key order, computed on first iteration.
+         */
+        private int[] mOrder;
+
+        /**
+         * @param attributes Attributes to copy.
+         * @param prefix Prefix of the keys.
+         */
+        /* package */AttributeMap(final EventAttributes attributes, final String prefix)
+        {
+            mPrefix = prefix;
+            mSize = attributes.mSize;
+            mKeys = new String[mSize];
+            System.arraycopy(attributes.mKeys, 0, mKeys, 0, mSize);
+            mTypes = new int[mSize];
+            System.arraycopy(attributes.mTypes, 0, mTypes, 0, mSize);
+            mLongs = new long[mSize];
+            System.arraycopy(attributes.mLongs, 0, mLongs, 0, mSize);
+            mDoubles = new double[mSize];
+            System.arraycopy(attributes.mDoubles, 0, mDoubles, 0, mSize);
+            mObjects = new Object[mSize];
+            System.arraycopy(attributes.mObjects, 0, mObjects, 0, mSize);
+        }
+
+        @Override
+        public int size()
+        {
+            return mSize;
+        }
+
+        @Override
+        public boolean containsKey(final Object key)
+        {
+            if (!(key instanceof String) || !((String) key).startsWith(mPrefix))
+            {
+                return false;
+            }
+
+            final String name = ((String) key).substring(mPrefix.length());
+            for (int x = 0; x < mSize; x++)
+            {
+                if (mKeys[x].equals(name))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet()
+        {
+            return new AbstractSet<Entry<String, String>>()
+            {
+                @Override
+                public int size()
+                {
+                    return mSize;
+                }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator()
+                {
+                    final int[] order = getOrder();
+                    return new Iterator<Entry<String, String>>()
+                    {
+                        private int mPosition;
+
+                        public boolean hasNext()
+                        {
+                            return mPosition < mSize;
+                        }
+
+                        public Entry<String, String> next()
+                        {
+                            if (mPosition >= mSize)
+                            {
+                                throw new NoSuchElementException();
+                            }
+
+                            final int index = order[mPosition++];
+                            return new SimpleImmutableEntry<String, String>(mPrefix + mKeys[index], valueAt(index));
+                        }
+
+                        public void remove()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+
+        /**
+         * @return Indexes of the attributes sorted by key.
+         */
+        private int[] getOrder()
+        {
+            if (null == mOrder)
+            {
+                final int[] order = new int[mSize];
+                for (int x = 0; x < mSize; x++)
+                {
+                    int y = x;
+                    while (y > 0 && mKeys[order[y - 1]].compareTo(mKeys[x]) > 0)
+                    {
+                        order[y] = order[y - 1];
+                        y--;
+                    }
+                    order[y] = x;
+                }
+                mOrder = order;
+            }
+            return mOrder;
+        }
+
+        /**
+         * @param index Index of an attribute.
+         * @return String value of the attribute.
+         */
+        private String valueAt(final int index)
+        {
+            switch (mTypes[index])
+            {
+                case TYPE_LONG:
+                    return Long.toString(mLongs[index]);
+                case TYPE_DOUBLE:
+                    return formatDouble(mDoubles[index]);
+                case TYPE_BOOLEAN:
+                    return 0 != mLongs[index] ? "true" : "false"; //$NON-NLS-1$ //$NON-NLS-2$
+                case TYPE_RANGED:
+                    return LocalyticsSession.createRangedAttribute((int) mLongs[index], (int[]) mObjects[index]);
+                default:
+                    return (String) mObjects[index];
+            }
+        }
+
+        /**
+         * Formats a double the way the string attributes of the Haxe glue do: integral values without a fractional part, and
+         * never in scientific notation. For example, 60.0 is "60" and 1.0E7 is "10000000".
+         *
+         * @param value Value to format.
+         * @return String value of {@code value}.
+         */
+        private static String formatDouble(final double value)
+        {
+            if (Double.isNaN(value) || Double.isInfinite(value))
+            {
+                return Double.toString(value);
+            }
+
+            if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+            {
+                return Long.toString((long) value);
+            }
+
+            return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+        }
+    }
+}
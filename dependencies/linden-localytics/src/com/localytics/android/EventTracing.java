@@ -0,0 +1,364 @@
+// @formatter:off
+/*
+ * EventTracing.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.localytics.android.LocalyticsProvider.UploadBlobEventsDbColumns;
+
+/**
+ * Follows sampled events of a single API key through the library, reporting their stages to a {@link LocalyticsTracer}.
+ * <p>
+ * When no tracer is installed, the only cost on the hot path is a volatile read in {@link #sample()}. Callers check for a trace
+ * ID of 0 before reading the clock for a report. Events that have been written but not yet acknowledged are kept in a bounded
+ * map of {@link LocalyticsProvider.EventsDbColumns#_ID} to trace, which is resolved to blobs after each blob build and cleared
+ * as blobs are acknowledged.
+ * <p>
+ * This class is thread-safe.
+ */
+/* package */final class EventTracing
+{
+    /**
+     * Maximum number of traces waiting for acknowledgement. Once reached, further events are still reported up to
+     * {@link LocalyticsTracer#STAGE_PERSISTED} but no longer followed.
+     */
+    private static final int MAX_PENDING_TRACES = 1000;
+
+    /**
+     * Selection for {@link #onBlobsBuilt(LocalyticsStorage, long)}.
+     */
+    private static final String SELECTION_BLOB_OF_EVENT = String.format("%s = ?", UploadBlobEventsDbColumns.EVENTS_KEY_REF); //$NON-NLS-1$
+
+    /**
+     * Projection for {@link #onBlobsBuilt(LocalyticsStorage, long)}.
+     */
+    private static final String[] PROJECTION_BLOB_OF_EVENT = new String[]
+        { UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF };
+
+    /**
+     * Map of API key to {@link EventTracing}.
+     */
+    private static final ConcurrentMap<String, EventTracing> sTracings = new ConcurrentHashMap<String, EventTracing>();
+
+    /**
+     * Installed tracer, or null if tracing is off.
+     */
+    private volatile LocalyticsTracer mTracer;
+
+    /**
+     * One in this many events is traced.
+     */
+    private volatile int mSampleInterval = 1;
+
+    /**
+     * Counts events for sampling.
+     */
+    private final AtomicInteger mEventCount = new AtomicInteger();
+
+    /**
+     * Source of trace IDs.
+     */
+    private final AtomicInteger mNextTraceId = new AtomicInteger();
+
+    /**
+     * Map of {@link LocalyticsProvider.EventsDbColumns#_ID} to the trace of that event, for traces that have been persisted but
+     * not acknowledged.
+     */
+    private final ConcurrentMap<Long, Trace> mPending = new ConcurrentHashMap<Long, Trace>();
+
+    /**
+     * Use {@link #getInstance(String)}.
+     */
+    private EventTracing()
+    {
+        /*
+         * Private constructor prevents direct instantiation
+         */
+    }
+
+    /**
+     * Obtains the tracing state for {@code apiKey}, creating it if necessary.
+     *
+     * @param apiKey Localytics API key. Cannot be null.
+     * @return The tracing state shared by all sessions for {@code apiKey}.
+     * @throws IllegalArgumentException if {@code apiKey} is null.
+     */
+    public static EventTracing getInstance(final String apiKey)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == apiKey)
+            {
+                throw new IllegalArgumentException("apiKey cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        final EventTracing tracing = sTracings.get(apiKey);
+        if (null != tracing)
+        {
+            return tracing;
+        }
+
+        final EventTracing newTracing = new EventTracing();
+        final EventTracing existingTracing = sTracings.putIfAbsent(apiKey, newTracing);
+
+        return null == existingTracing ? newTracing : existingTracing;
+    }
+
+    /**
+     * Installs or removes the tracer. Traces in progress are abandoned.
+     *
+     * @param tracer Tracer to install, or null to turn tracing off.
+     * @param sampleInterval One in this many events is traced. Must be at least 1.
+     */
+    public void setTracer(final LocalyticsTracer tracer, final int sampleInterval)
+    {
+        mSampleInterval = sampleInterval;
+        mTracer = tracer;
+        mPending.clear();
+    }
+
+    /**
+     * Decides whether the next event is traced.
+     *
+     * @return A new trace ID, or 0 if the event is not traced.
+     */
+    public int sample()
+    {
+        if (null == mTracer)
+        {
+            return 0;
+        }
+
+        if (0 != mEventCount.getAndIncrement() % mSampleInterval)
+        {
+            return 0;
+        }
+
+        /*
+         * Trace IDs are positive, leaving 0 to mean untraced
+         */
+        int traceId;
+        do
+        {
+            traceId = mNextTraceId.incrementAndGet() & Integer.MAX_VALUE;
+        }
+        while (0 == traceId);
+
+        return traceId;
+    }
+
+    /**
+     * Reports a stage that doesn't change the state of the trace.
+     *
+     * @param traceId Trace ID from {@link #sample()}. Ignored if 0.
+     * @param event Name of the event. Cannot be null.
+     * @param stage {@link LocalyticsTracer#STAGE_ENQUEUED} or {@link LocalyticsTracer#STAGE_DROPPED}.
+     * @param elapsedRealtime Time of the stage.
+     */
+    public void report(final int traceId, final String event, final int stage, final long elapsedRealtime)
+    {
+        if (0 != traceId)
+        {
+            notify(traceId, event, stage, elapsedRealtime);
+        }
+    }
+
+    /**
+     * Reports that a traced event was written, and starts following it.
+     *
+     * @param traceId Trace ID from {@link #sample()}. Ignored if 0.
+     * @param event Name of the event. Cannot be null.
+     * @param eventId {@link LocalyticsProvider.EventsDbColumns#_ID} of the event.
+     * @param elapsedRealtime Time of the stage.
+     */
+    public void onPersisted(final int traceId, final String event, final long eventId, final long elapsedRealtime)
+    {
+        if (0 == traceId)
+        {
+            return;
+        }
+
+        notify(traceId, event, LocalyticsTracer.STAGE_PERSISTED, elapsedRealtime);
+
+        if (mPending.size() < MAX_PENDING_TRACES)
+        {
+            mPending.put(Long.valueOf(eventId), new Trace(traceId, event));
+        }
+    }
+
+    /**
+     * Reports the traces whose events were just assigned to upload blobs.
+     *
+     * @param provider Localytics database. Cannot be null.
+     * @param elapsedRealtime Time of the stage.
+     */
+    public void onBlobsBuilt(final LocalyticsStorage provider, final long elapsedRealtime)
+    {
+        if (mPending.isEmpty())
+        {
+            return;
+        }
+
+        for (final Map.Entry<Long, Trace> entry : mPending.entrySet())
+        {
+            final Trace trace = entry.getValue();
+            if (-1 != trace.mBlobId)
+            {
+                continue;
+            }
+
+            Cursor cursor = null;
+            try
+            {
+                cursor = provider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_BLOB_OF_EVENT, SELECTION_BLOB_OF_EVENT, new String[]
+                    { entry.getKey().toString() }, null);
+
+                if (cursor.moveToFirst())
+                {
+                    trace.mBlobId = cursor.getLong(0);
+                    notify(trace.mTraceId, trace.mEvent, LocalyticsTracer.STAGE_BATCHED, elapsedRealtime);
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports and stops following the traces whose blobs were accepted by the server.
+     *
+     * @param blobIds {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the accepted blobs. Cannot be null.
+     * @param elapsedRealtime Time of the stage.
+     */
+    public void onBlobsAcknowledged(final List<Long> blobIds, final long elapsedRealtime)
+    {
+        if (mPending.isEmpty())
+        {
+            return;
+        }
+
+        for (final Iterator<Trace> iterator = mPending.values().iterator(); iterator.hasNext();)
+        {
+            final Trace trace = iterator.next();
+            if (-1 != trace.mBlobId && blobIds.contains(Long.valueOf(trace.mBlobId)))
+            {
+                iterator.remove();
+                notify(trace.mTraceId, trace.mEvent, LocalyticsTracer.STAGE_ACKNOWLEDGED, elapsedRealtime);
+            }
+        }
+    }
+
+    /**
+     * Reports and stops following the traces whose events were evicted individually, rather than with their whole upload blob.
+     *
+     * @param eventIds {@link LocalyticsProvider.EventsDbColumns#_ID} of the evicted events. Cannot be null.
+     * @param elapsedRealtime Time of the stage.
+     */
+    public void onEventsEvicted(final List<Long> eventIds, final long elapsedRealtime)
+    {
+        if (mPending.isEmpty())
+        {
+            return;
+        }
+
+        for (final Long eventId : eventIds)
+        {
+            final Trace trace = mPending.remove(eventId);
+            if (null != trace)
+            {
+                notify(trace.mTraceId, trace.mEvent, LocalyticsTracer.STAGE_DROPPED, elapsedRealtime);
+            }
+        }
+    }
+
+    /**
+     * Reports and stops following the traces whose blobs were evicted.
+     *
+     * @param blobIds {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the evicted blobs. Cannot be null.
+     * @param elapsedRealtime Time of the stage.
+     */
+    public void onBlobsEvicted(final List<Long> blobIds, final long elapsedRealtime)
+    {
+        if (mPending.isEmpty())
+        {
+            return;
+        }
+
+        for (final Iterator<Trace> iterator = mPending.values().iterator(); iterator.hasNext();)
+        {
+            final Trace trace = iterator.next();
+            if (-1 != trace.mBlobId && blobIds.contains(Long.valueOf(trace.mBlobId)))
+            {
+                iterator.remove();
+                notify(trace.mTraceId, trace.mEvent, LocalyticsTracer.STAGE_DROPPED, elapsedRealtime);
+            }
+        }
+    }
+
+    /**
+     * Calls the tracer, if any, shielding the library from its exceptions.
+     */
+    private void notify(final int traceId, final String event, final int stage, final long elapsedRealtime)
+    {
+        final LocalyticsTracer tracer = mTracer;
+        if (null == tracer)
+        {
+            return;
+        }
+
+        try
+        {
+            tracer.onEventStage(traceId, event, stage, elapsedRealtime);
+        }
+        catch (final RuntimeException e)
+        {
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Tracer threw an exception", e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * A traced event that has been persisted.
+     */
+    private static final class Trace
+    {
+        /* package */final int mTraceId;
+
+        /* package */final String mEvent;
+
+        /**
+         * {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the event's blob, or -1 if not assigned yet. Written by the
+         * session thread and read by the upload thread, after the blob has been handed to it.
+         */
+        /* package */volatile long mBlobId = -1;
+
+        /* package */Trace(final int traceId, final String event)
+        {
+            mTraceId = traceId;
+            mEvent = event;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+// @formatter:off
+/*
+ * FixedHistogram.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with fixed bucket boundaries. Recording a value is a bucket search and two atomic increments, with no allocation.
+ * <p>
+ * This class is thread-safe.
+ */
+/* package */final class FixedHistogram
+{
+    /**
+     * Inclusive upper bounds of the buckets, in increasing order. A final bucket holds the values above the last bound.
+     */
+    private final long[] mBounds;
+
+    /**
+     * Number of values in each bucket. One more element than {@link #mBounds}.
+     */
+    private final AtomicLongArray mCounts;
+
+    /**
+     * Sum of all recorded values.
+     */
+    private final AtomicLong mSum = new AtomicLong();
+
+    /**
+     * @param bounds Inclusive upper bounds of the buckets, in increasing order. Cannot be null.
+     */
+    public FixedHistogram(final long[] bounds)
+    {
+        mBounds = bounds.clone();
+        mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * @param value Value to record.
+     */
+    public void record(final long value)
+    {
+        int bucket = 0;
+        while (bucket < mBounds.length && value > mBounds[bucket])
+        {
+            bucket++;
+        }
+
+        mCounts.incrementAndGet(bucket);
+        mSum.addAndGet(value);
+    }
+
+    /**
+     * @return A copy of the current state. Values recorded concurrently with this call may be only partially included.
+     */
+    public LocalyticsMetrics.Histogram snapshot()
+    {
+        final long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = mCounts.get(i);
+        }
+
+        return new LocalyticsMetrics.Histogram(mBounds, counts, mSum.get());
+    }
+}
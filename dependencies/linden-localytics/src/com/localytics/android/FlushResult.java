@@ -0,0 +1,101 @@
+// @formatter:off
+/*
+ * FlushResult.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Outcome of {@link LocalyticsSession#flush(long, boolean)}: how much of the work queued before the flush completed within the
+ * deadline.
+ * <p>
+ * This class is immutable and therefore thread-safe.
+ */
+public final class FlushResult
+{
+    /**
+     * Whether every message queued before the flush was processed.
+     */
+    private final boolean mIsPersisted;
+
+    /**
+     * Whether an upload was requested.
+     */
+    private final boolean mIsUploadRequested;
+
+    /**
+     * Result of the upload, or null if it was not requested or did not complete in time.
+     */
+    private final UploadResult mUploadResult;
+
+    /**
+     * Time spent waiting in milliseconds.
+     */
+    private final long mElapsedMillis;
+
+    /**
+     * Constructs a new result.
+     *
+     * @param isPersisted True if every message queued before the flush was processed.
+     * @param isUploadRequested True if an upload was requested.
+     * @param uploadResult Result of the upload, or null if it was not requested or did not complete in time.
+     * @param elapsedMillis Time spent waiting in milliseconds.
+     */
+    /* package */FlushResult(final boolean isPersisted, final boolean isUploadRequested, final UploadResult uploadResult, final long elapsedMillis)
+    {
+        mIsPersisted = isPersisted;
+        mIsUploadRequested = isUploadRequested;
+        mUploadResult = uploadResult;
+        mElapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return True if every event, open, close, and other message queued before the flush was written to the database.
+     */
+    public boolean isPersisted()
+    {
+        return mIsPersisted;
+    }
+
+    /**
+     * @return True if the upload attempt completed before the deadline. False if no upload was requested.
+     */
+    public boolean isUploaded()
+    {
+        return null != mUploadResult;
+    }
+
+    /**
+     * @return Result of the upload attempt, or null if no upload was requested or it did not complete before the deadline.
+     */
+    public UploadResult getUploadResult()
+    {
+        return mUploadResult;
+    }
+
+    /**
+     * @return True if everything requested completed before the deadline. This doesn't mean that the upload succeeded; see
+     *         {@link UploadResult#isSuccess()}.
+     */
+    public boolean isComplete()
+    {
+        return mIsPersisted && (!mIsUploadRequested || null != mUploadResult);
+    }
+
+    /**
+     * @return Time spent waiting in milliseconds.
+     */
+    public long getElapsedMillis()
+    {
+        return mElapsedMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("FlushResult [persisted=%b, uploadRequested=%b, upload=%s, elapsedMillis=%d]", Boolean.valueOf(mIsPersisted), Boolean.valueOf(mIsUploadRequested), mUploadResult, Long.valueOf(mElapsedMillis)); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,178 @@
+// @formatter:off
+/*
+ * HandlerThreadPool.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns API keys to {@link HandlerThread}s according to a thread topology.
+ * <p>
+ * Once an API key has been assigned a thread, it keeps that thread for the life of the process. Since all messages for a key are
+ * processed by a single {@link Looper}, the ordering of work within a key is preserved regardless of the topology. Changing the
+ * topology only affects API keys that have not been assigned a thread yet.
+ * <p>
+ * This class is thread-safe.
+ */
+/* package */final class HandlerThreadPool
+{
+    /**
+     * All API keys share a single thread.
+     */
+    public static final int TOPOLOGY_SHARED = 0;
+
+    /**
+     * Each API key gets its own thread.
+     */
+    public static final int TOPOLOGY_PER_KEY = 1;
+
+    /**
+     * API keys are distributed over a bounded number of threads.
+     */
+    public static final int TOPOLOGY_POOL = 2;
+
+    /**
+     * Base name of the threads. Useful for debugging, as the thread name is shown in DDMS.
+     */
+    private final String mName;
+
+    /**
+     * Threads created so far, in creation order. The first thread is the shared thread.
+     */
+    private final List<HandlerThread> mThreads = new ArrayList<HandlerThread>();
+
+    /**
+     * Map of API key to its assigned thread.
+     */
+    private final Map<String, HandlerThread> mKeyThreads = new HashMap<String, HandlerThread>();
+
+    /**
+     * One of {@link #TOPOLOGY_SHARED}, {@link #TOPOLOGY_PER_KEY}, or {@link #TOPOLOGY_POOL}.
+     */
+    private int mTopology = TOPOLOGY_SHARED;
+
+    /**
+     * Maximum number of threads when {@link #mTopology} is {@link #TOPOLOGY_POOL}.
+     */
+    private int mPoolSize = 1;
+
+    /**
+     * Number of API keys assigned a thread under {@link #TOPOLOGY_POOL}, used to distribute keys evenly over the pool.
+     */
+    private int mPoolAssignments;
+
+    /**
+     * Constructs a new pool. No threads are started until an API key needs one.
+     *
+     * @param name Base name of the threads. Cannot be null.
+     */
+    public HandlerThreadPool(final String name)
+    {
+        mName = name;
+    }
+
+    /**
+     * Sets the topology for API keys that have not been assigned a thread yet.
+     *
+     * @param topology One of {@link #TOPOLOGY_SHARED}, {@link #TOPOLOGY_PER_KEY}, or {@link #TOPOLOGY_POOL}.
+     * @param poolSize Maximum number of threads for {@link #TOPOLOGY_POOL}. Ignored for the other topologies.
+     * @throws IllegalArgumentException if {@code topology} is not a valid topology.
+     * @throws IllegalArgumentException if {@code topology} is {@link #TOPOLOGY_POOL} and {@code poolSize} is less than 1.
+     */
+    public synchronized void setTopology(final int topology, final int poolSize)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (TOPOLOGY_SHARED != topology && TOPOLOGY_PER_KEY != topology && TOPOLOGY_POOL != topology)
+            {
+                throw new IllegalArgumentException(String.format("topology %d is not valid", Integer.valueOf(topology))); //$NON-NLS-1$
+            }
+
+            if (TOPOLOGY_POOL == topology && poolSize < 1)
+            {
+                throw new IllegalArgumentException("poolSize must be at least 1"); //$NON-NLS-1$
+            }
+        }
+
+        mTopology = topology;
+        mPoolSize = TOPOLOGY_POOL == topology ? poolSize : 1;
+    }
+
+    /**
+     * Obtains the looper of the thread assigned to {@code apiKey}, assigning and starting a thread if necessary.
+     *
+     * @param apiKey Localytics API key. Cannot be null.
+     * @return Looper for {@code apiKey}. Always the same looper for a given key.
+     */
+    public synchronized Looper getLooper(final String apiKey)
+    {
+        HandlerThread thread = mKeyThreads.get(apiKey);
+
+        if (null == thread)
+        {
+            switch (mTopology)
+            {
+                case TOPOLOGY_PER_KEY:
+                {
+                    thread = startThread(mThreads.isEmpty() ? mName : String.format("%s-%d", mName, Integer.valueOf(mThreads.size()))); //$NON-NLS-1$
+                    mThreads.add(thread);
+                    break;
+                }
+                case TOPOLOGY_POOL:
+                {
+                    final int index = mPoolAssignments++ % mPoolSize;
+                    while (mThreads.size() <= index)
+                    {
+                        mThreads.add(startThread(mThreads.isEmpty() ? mName : String.format("%s-%d", mName, Integer.valueOf(mThreads.size())))); //$NON-NLS-1$
+                    }
+                    thread = mThreads.get(index);
+                    break;
+                }
+                default:
+                {
+                    if (mThreads.isEmpty())
+                    {
+                        mThreads.add(startThread(mName));
+                    }
+                    thread = mThreads.get(0);
+                    break;
+                }
+            }
+
+            mKeyThreads.put(apiKey, thread);
+        }
+
+        return thread.getLooper();
+    }
+
+    /**
+     * Helper to obtain a new {@link HandlerThread}.
+     *
+     * @param name to give to the HandlerThread. Useful for debugging, as the thread name is shown in DDMS.
+     * @return HandlerThread whose {@link HandlerThread#start()} method has already been called.
+     */
+    private static HandlerThread startThread(final String name)
+    {
+        final HandlerThread thread = new HandlerThread(name, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+        thread.start();
+
+        /*
+         * Note: we tried setting an uncaught exception handler here. But for some reason it causes looper initialization to fail
+         * randomly.
+         */
+
+        return thread;
+    }
+}
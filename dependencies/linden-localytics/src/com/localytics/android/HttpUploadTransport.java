@@ -0,0 +1,22 @@
+// @formatter:off
+/*
+ * HttpUploadTransport.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import com.localytics.android.LocalyticsSession.UploadEngine;
+
+/**
+ * {@link UploadTransport} that posts to the webservice over HTTP.
+ */
+/* package */final class HttpUploadTransport implements UploadTransport
+{
+    public int upload(final String url, final byte[] data, final String installId)
+    {
+        return UploadEngine.uploadCompressed(url, data, installId);
+    }
+}
@@ -0,0 +1,316 @@
+// @formatter:off
+/*
+ * LocalyticsLog.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.util.Log;
+
+/**
+ * Runtime-configurable logging for the Localytics library.
+ * <p>
+ * Messages below the current level are discarded before they are formatted. Callers on hot paths should still guard their
+ * calls with {@link #isLoggable(int)}, so that the arguments are not computed or boxed when logging is off:
+ *
+ * <pre>
+ * if (LocalyticsLog.isLoggable(Log.VERBOSE))
+ * {
+ *     LocalyticsLog.v(&quot;Inserted row with new id %d&quot;, Long.valueOf(id));
+ * }
+ * </pre>
+ * <p>
+ * The initial level is {@link Log#VERBOSE} if {@link Constants#IS_LOGGABLE} is true, and {@link #LEVEL_NONE} otherwise. When
+ * logging is enabled, sensitive information such as the device ID may be printed to the log.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class LocalyticsLog
+{
+    /**
+     * Level that discards every message.
+     */
+    public static final int LEVEL_NONE = Log.ASSERT + 1;
+
+    /**
+     * Receives the messages that pass the current level.
+     */
+    public interface Sink
+    {
+        /**
+         * Writes a message. Called on the thread that logged the message.
+         *
+         * @param priority One of the {@link Log} priorities, such as {@link Log#VERBOSE}.
+         * @param tag Log tag.
+         * @param message Formatted message. Cannot be null.
+         * @param tr Throwable logged with the message, or null.
+         */
+        void println(int priority, String tag, String message, Throwable tr);
+    }
+
+    /**
+     * Sink that writes to logcat.
+     */
+    public static final Sink LOGCAT_SINK = new Sink()
+    {
+        public void println(final int priority, final String tag, final String message, final Throwable tr)
+        {
+            Log.println(priority, tag, null == tr ? message : message + '\n' + Log.getStackTraceString(tr));
+        }
+    };
+
+    /**
+     * Minimum priority of the messages that are written.
+     */
+    private static volatile int sLevel = Constants.IS_LOGGABLE ? Log.VERBOSE : LEVEL_NONE;
+
+    /**
+     * Sink the messages are written to.
+     */
+    private static volatile Sink sSink = LOGCAT_SINK;
+
+    /**
+     * True if query results are dumped to the log.
+     */
+    private static volatile boolean sIsCursorTraceEnabled;
+
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private LocalyticsLog()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Sets the minimum priority of the messages that are written.
+     *
+     * @param level One of the {@link Log} priorities, or {@link #LEVEL_NONE} to disable logging.
+     */
+    public static void setLevel(final int level)
+    {
+        sLevel = level;
+    }
+
+    /**
+     * @return The minimum priority of the messages that are written.
+     */
+    public static int getLevel()
+    {
+        return sLevel;
+    }
+
+    /**
+     * Sets the sink the messages are written to.
+     *
+     * @param sink Sink to write to, or null to restore {@link #LOGCAT_SINK}.
+     */
+    public static void setSink(final Sink sink)
+    {
+        sSink = null == sink ? LOGCAT_SINK : sink;
+    }
+
+    /**
+     * Enables dumping every query result to the log at {@link Log#VERBOSE}. Dumping a result reads all of its rows, so this is
+     * independent of the level and should only be enabled while diagnosing a problem.
+     *
+     * @param isEnabled True to dump query results.
+     */
+    public static void setCursorTraceEnabled(final boolean isEnabled)
+    {
+        sIsCursorTraceEnabled = isEnabled;
+    }
+
+    /**
+     * @return True if query results should be dumped, which requires both cursor tracing and {@link Log#VERBOSE}.
+     */
+    public static boolean isCursorTraceEnabled()
+    {
+        return sIsCursorTraceEnabled && isLoggable(Log.VERBOSE);
+    }
+
+    /**
+     * @param priority One of the {@link Log} priorities.
+     * @return True if messages with {@code priority} are written.
+     */
+    public static boolean isLoggable(final int priority)
+    {
+        return priority >= sLevel;
+    }
+
+    /**
+     * Logs {@code message} at {@link Log#VERBOSE}.
+     *
+     * @param message Message to log.
+     */
+    public static void v(final String message)
+    {
+        log(Log.VERBOSE, message, null);
+    }
+
+    /**
+     * Logs a message at {@link Log#VERBOSE}, formatting it only if it will be written.
+     *
+     * @param format Format string, as for {@link String#format(String, Object...)}.
+     * @param args Arguments for {@code format}.
+     */
+    public static void v(final String format, final Object... args)
+    {
+        log(Log.VERBOSE, format, args);
+    }
+
+    /**
+     * Logs {@code message} at {@link Log#DEBUG}.
+     *
+     * @param message Message to log.
+     */
+    public static void d(final String message)
+    {
+        log(Log.DEBUG, message, null);
+    }
+
+    /**
+     * Logs a message at {@link Log#DEBUG}, formatting it only if it will be written.
+     *
+     * @param format Format string, as for {@link String#format(String, Object...)}.
+     * @param args Arguments for {@code format}.
+     */
+    public static void d(final String format, final Object... args)
+    {
+        log(Log.DEBUG, format, args);
+    }
+
+    /**
+     * Logs {@code message} at {@link Log#INFO}.
+     *
+     * @param message Message to log.
+     */
+    public static void i(final String message)
+    {
+        log(Log.INFO, message, null);
+    }
+
+    /**
+     * Logs a message at {@link Log#INFO}, formatting it only if it will be written.
+     *
+     * @param format Format string, as for {@link String#format(String, Object...)}.
+     * @param args Arguments for {@code format}.
+     */
+    public static void i(final String format, final Object... args)
+    {
+        log(Log.INFO, format, args);
+    }
+
+    /**
+     * Logs {@code message} at {@link Log#WARN}.
+     *
+     * @param message Message to log.
+     */
+    public static void w(final String message)
+    {
+        log(Log.WARN, message, null);
+    }
+
+    /**
+     * Logs {@code message} and {@code tr} at {@link Log#WARN}.
+     *
+     * @param message Message to log.
+     * @param tr Throwable to log.
+     */
+    public static void w(final String message, final Throwable tr)
+    {
+        write(Log.WARN, message, tr);
+    }
+
+    /**
+     * Logs a message at {@link Log#WARN}, formatting it only if it will be written.
+     *
+     * @param format Format string, as for {@link String#format(String, Object...)}.
+     * @param args Arguments for {@code format}.
+     */
+    public static void w(final String format, final Object... args)
+    {
+        log(Log.WARN, format, args);
+    }
+
+    /**
+     * Logs {@code message} at {@link Log#ERROR}.
+     *
+     * @param message Message to log.
+     */
+    public static void e(final String message)
+    {
+        log(Log.ERROR, message, null);
+    }
+
+    /**
+     * Logs {@code message} and {@code tr} at {@link Log#ERROR}.
+     *
+     * @param message Message to log.
+     * @param tr Throwable to log.
+     */
+    public static void e(final String message, final Throwable tr)
+    {
+        write(Log.ERROR, message, tr);
+    }
+
+    /**
+     * Logs a message at {@link Log#ERROR}, formatting it only if it will be written.
+     *
+     * @param format Format string, as for {@link String#format(String, Object...)}.
+     * @param args Arguments for {@code format}.
+     */
+    public static void e(final String format, final Object... args)
+    {
+        log(Log.ERROR, format, args);
+    }
+
+    /**
+     * Formats and writes a message if {@code priority} passes the current level.
+     *
+     * @param priority One of the {@link Log} priorities.
+     * @param format Format string, or the message itself if {@code args} is null.
+     * @param args Arguments for {@code format}, or null if {@code format} is not to be formatted.
+     */
+    private static void log(final int priority, final String format, final Object[] args)
+    {
+        if (!isLoggable(priority))
+        {
+            return;
+        }
+
+        write(priority, null == args ? format : String.format(format, args), null);
+    }
+
+    /**
+     * Writes a message to the sink if {@code priority} passes the current level. A sink that throws is replaced by
+     * {@link #LOGCAT_SINK}, since logging must never break the caller.
+     *
+     * @param priority One of the {@link Log} priorities.
+     * @param message Message to write.
+     * @param tr Throwable to write, or null.
+     */
+    private static void write(final int priority, final String message, final Throwable tr)
+    {
+        if (!isLoggable(priority))
+        {
+            return;
+        }
+
+        final Sink sink = sSink;
+        try
+        {
+            sink.println(priority, Constants.LOG_TAG, String.valueOf(message), tr);
+        }
+        catch (final RuntimeException e)
+        {
+            sSink = LOGCAT_SINK;
+            LOGCAT_SINK.println(Log.WARN, Constants.LOG_TAG, "Log sink threw an exception", e); //$NON-NLS-1$
+        }
+    }
+}
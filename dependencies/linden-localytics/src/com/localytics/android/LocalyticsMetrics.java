@@ -0,0 +1,370 @@
+// @formatter:off
+/*
+ * LocalyticsMetrics.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Snapshot of the library's internal metrics for an API key, as returned by {@link LocalyticsSession#getMetrics()}. Counters
+ * are cumulative since the process started, so rates are obtained by comparing two snapshots.
+ * <p>
+ * This class is immutable and therefore thread-safe.
+ */
+public final class LocalyticsMetrics
+{
+    /**
+     * Index into {@link #getHttpStatusCount(int)} for upload requests that received no response.
+     */
+    public static final int HTTP_STATUS_NONE = 0;
+
+    private final long mEventsEnqueued;
+
+    private final long mEventsPersisted;
+
+    private final long mEventsDropped;
+
+    private final long mEventsEvicted;
+
+    private final int mQueueDepth;
+
+    private final int mMaxQueueDepth;
+
+    private final long mPreInitMessages;
+
+    private final long mStorageOpenMillis;
+
+    private final long mFirstEventMillis;
+
+    private final Histogram mInsertMicros;
+
+    private final Histogram mBlobBuildMillis;
+
+    private final long mUploadBytesUncompressed;
+
+    private final long mUploadBytesCompressed;
+
+    private final long mUploadBytesSent;
+
+    private final Histogram mUploadMillis;
+
+    private final long[] mHttpStatusClasses;
+
+    /**
+     * Constructs a new snapshot. See the getters for the meaning of the parameters.
+     */
+    /* package */LocalyticsMetrics(final long eventsEnqueued, final long eventsPersisted, final long eventsDropped, final long eventsEvicted, final int queueDepth, final int maxQueueDepth, final long preInitMessages, final long storageOpenMillis, final long firstEventMillis, final Histogram insertMicros, final Histogram blobBuildMillis, final long uploadBytesUncompressed, final long uploadBytesCompressed, final long uploadBytesSent, final Histogram uploadMillis, final long[] httpStatusClasses)
+    {
+        mEventsEnqueued = eventsEnqueued;
+        mEventsPersisted = eventsPersisted;
+        mEventsDropped = eventsDropped;
+        mEventsEvicted = eventsEvicted;
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = maxQueueDepth;
+        mPreInitMessages = preInitMessages;
+        mStorageOpenMillis = storageOpenMillis;
+        mFirstEventMillis = firstEventMillis;
+        mInsertMicros = insertMicros;
+        mBlobBuildMillis = blobBuildMillis;
+        mUploadBytesUncompressed = uploadBytesUncompressed;
+        mUploadBytesCompressed = uploadBytesCompressed;
+        mUploadBytesSent = uploadBytesSent;
+        mUploadMillis = uploadMillis;
+        mHttpStatusClasses = httpStatusClasses;
+    }
+
+    /**
+     * @return Number of events passed to {@code tagEvent} and handed to the background thread.
+     */
+    public long getEventsEnqueued()
+    {
+        return mEventsEnqueued;
+    }
+
+    /**
+     * @return Number of application events written to the database.
+     */
+    public long getEventsPersisted()
+    {
+        return mEventsPersisted;
+    }
+
+    /**
+     * @return Number of application events that were discarded, because the background thread rejected them, too many arrived
+     *         while the database was being opened, or no session was open.
+     */
+    public long getEventsDropped()
+    {
+        return mEventsDropped;
+    }
+
+    /**
+     * @return Number of events deleted before they were uploaded, to keep the stored data within the {@link StorageQuota}.
+     */
+    public long getEventsEvicted()
+    {
+        return mEventsEvicted;
+    }
+
+    /**
+     * @return Number of requests waiting for the background thread when the snapshot was taken.
+     */
+    public int getQueueDepth()
+    {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return Highest number of requests that were waiting for the background thread at once.
+     */
+    public int getMaxQueueDepth()
+    {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return Number of requests held in memory because they were made while the database was being opened.
+     */
+    public long getPreInitRequests()
+    {
+        return mPreInitMessages;
+    }
+
+    /**
+     * @return Time to open the database, including creating or upgrading it, in milliseconds, or -1 if it is not open yet.
+     */
+    public long getStorageOpenMillis()
+    {
+        return mStorageOpenMillis;
+    }
+
+    /**
+     * @return Time from the first {@link LocalyticsSession} for this API key until its first event was written to the database,
+     *         in milliseconds, or -1 if no event has been written yet.
+     */
+    public long getFirstEventMillis()
+    {
+        return mFirstEventMillis;
+    }
+
+    /**
+     * @return Time to write an event, its attributes, and its history to the database, in microseconds.
+     */
+    public Histogram getInsertLatencyMicros()
+    {
+        return mInsertMicros;
+    }
+
+    /**
+     * @return Time to group events into upload blobs, in milliseconds.
+     */
+    public Histogram getBlobBuildMillis()
+    {
+        return mBlobBuildMillis;
+    }
+
+    /**
+     * @return Upload bytes before compression. Blobs that were serialized when they were built are not included.
+     */
+    public long getUploadBytesUncompressed()
+    {
+        return mUploadBytesUncompressed;
+    }
+
+    /**
+     * @return Upload bytes after compression, for the same data as {@link #getUploadBytesUncompressed()}.
+     */
+    public long getUploadBytesCompressed()
+    {
+        return mUploadBytesCompressed;
+    }
+
+    /**
+     * @return Compressed bytes posted to the webservice, whatever the response.
+     */
+    public long getUploadBytesSent()
+    {
+        return mUploadBytesSent;
+    }
+
+    /**
+     * @return Duration of each upload request, in milliseconds.
+     */
+    public Histogram getUploadLatencyMillis()
+    {
+        return mUploadMillis;
+    }
+
+    /**
+     * @param statusClass {@link #HTTP_STATUS_NONE}, or the first digit of an HTTP status code, from 1 to 5.
+     * @return Number of upload requests whose response was in {@code statusClass}.
+     * @throws IllegalArgumentException if {@code statusClass} is not between 0 and 5.
+     */
+    public long getHttpStatusCount(final int statusClass)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (statusClass < 0 || statusClass >= mHttpStatusClasses.length)
+            {
+                throw new IllegalArgumentException(String.format("statusClass %d is not valid", Integer.valueOf(statusClass))); //$NON-NLS-1$
+            }
+        }
+
+        return mHttpStatusClasses[statusClass];
+    }
+
+    /**
+     * @return The metrics as a JSON object, for forwarding to another telemetry system.
+     */
+    public JSONObject toJson()
+    {
+        try
+        {
+            final JSONObject json = new JSONObject();
+            json.put("events_enqueued", mEventsEnqueued); //$NON-NLS-1$
+            json.put("events_persisted", mEventsPersisted); //$NON-NLS-1$
+            json.put("events_dropped", mEventsDropped); //$NON-NLS-1$
+            json.put("events_evicted", mEventsEvicted); //$NON-NLS-1$
+            json.put("queue_depth", mQueueDepth); //$NON-NLS-1$
+            json.put("max_queue_depth", mMaxQueueDepth); //$NON-NLS-1$
+            json.put("pre_init_messages", mPreInitMessages); //$NON-NLS-1$
+            json.put("storage_open_ms", mStorageOpenMillis); //$NON-NLS-1$
+            json.put("first_event_ms", mFirstEventMillis); //$NON-NLS-1$
+            json.put("insert_latency_us", mInsertMicros.toJson()); //$NON-NLS-1$
+            json.put("blob_build_ms", mBlobBuildMillis.toJson()); //$NON-NLS-1$
+            json.put("upload_bytes_uncompressed", mUploadBytesUncompressed); //$NON-NLS-1$
+            json.put("upload_bytes_compressed", mUploadBytesCompressed); //$NON-NLS-1$
+            json.put("upload_bytes_sent", mUploadBytesSent); //$NON-NLS-1$
+            json.put("upload_latency_ms", mUploadMillis.toJson()); //$NON-NLS-1$
+
+            final JSONObject statuses = new JSONObject();
+            statuses.put("none", mHttpStatusClasses[HTTP_STATUS_NONE]); //$NON-NLS-1$
+            for (int i = 1; i < mHttpStatusClasses.length; i++)
+            {
+                statuses.put(String.format("%dxx", Integer.valueOf(i)), mHttpStatusClasses[i]); //$NON-NLS-1$
+            }
+            json.put("http_status", statuses); //$NON-NLS-1$
+
+            return json;
+        }
+        catch (final JSONException e)
+        {
+            /*
+             * This should never happen, as all the values are finite numbers
+             */
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("LocalyticsMetrics %s", toJson()); //$NON-NLS-1$
+    }
+
+    /**
+     * Snapshot of a histogram with fixed buckets.
+     * <p>
+     * This class is immutable and therefore thread-safe.
+     */
+    public static final class Histogram
+    {
+        private final long[] mBounds;
+
+        private final long[] mCounts;
+
+        private final long mSum;
+
+        /**
+         * @param bounds Inclusive upper bounds of the buckets. Not copied.
+         * @param counts Number of values in each bucket, with one more element than {@code bounds}. Not copied.
+         * @param sum Sum of all values.
+         */
+        /* package */Histogram(final long[] bounds, final long[] counts, final long sum)
+        {
+            mBounds = bounds;
+            mCounts = counts;
+            mSum = sum;
+        }
+
+        /**
+         * @return Number of buckets. The last bucket has no upper bound.
+         */
+        public int getBucketCount()
+        {
+            return mCounts.length;
+        }
+
+        /**
+         * @param bucket Index of a bucket, less than {@link #getBucketCount()}.
+         * @return Inclusive upper bound of {@code bucket}, or {@link Long#MAX_VALUE} for the last bucket.
+         */
+        public long getBucketBound(final int bucket)
+        {
+            return bucket < mBounds.length ? mBounds[bucket] : Long.MAX_VALUE;
+        }
+
+        /**
+         * @param bucket Index of a bucket, less than {@link #getBucketCount()}.
+         * @return Number of values in {@code bucket}.
+         */
+        public long getBucketValueCount(final int bucket)
+        {
+            return mCounts[bucket];
+        }
+
+        /**
+         * @return Total number of values.
+         */
+        public long getCount()
+        {
+            long count = 0;
+            for (final long bucketCount : mCounts)
+            {
+                count += bucketCount;
+            }
+            return count;
+        }
+
+        /**
+         * @return Sum of all values.
+         */
+        public long getSum()
+        {
+            return mSum;
+        }
+
+        /**
+         * @return The histogram as a JSON object with {@code count}, {@code sum}, {@code bounds}, and {@code buckets}.
+         * @throws JSONException if the histogram cannot be converted.
+         */
+        /* package */JSONObject toJson() throws JSONException
+        {
+            final JSONArray bounds = new JSONArray();
+            for (final long bound : mBounds)
+            {
+                bounds.put(bound);
+            }
+
+            final JSONArray buckets = new JSONArray();
+            for (final long count : mCounts)
+            {
+                buckets.put(count);
+            }
+
+            final JSONObject json = new JSONObject();
+            json.put("count", getCount()); //$NON-NLS-1$
+            json.put("sum", mSum); //$NON-NLS-1$
+            json.put("bounds", bounds); //$NON-NLS-1$
+            json.put("buckets", buckets); //$NON-NLS-1$
+            return json;
+        }
+    }
+}
@@ -15,18 +15,24 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+
+import com.localytics.android.LocalyticsSession.SessionHandler;
 
 /**
  * Implements the storage mechanism for the Localytics library. The interface and implementation are similar to a ContentProvider
@@ -34,7 +40,7 @@ import java.util.Set;
  * <p>
  * This is not a public API.
  */
-/* package */final class LocalyticsProvider
+/* package */final class LocalyticsProvider implements LocalyticsStorage
 {
     /**
      * Name of the Localytics database, stored in the host application's {@link Context#getDatabasePath(String)}.
@@ -64,9 +70,28 @@ import java.util.Set;
      * <li>10: Add {@link InfoDbColumns#PLAY_ATTRIBUTION}</li>
      * <li>11: Add {@link InfoDbColumns#REGISTRATION_ID}</li>
      * <li>12: Add {@link InfoDbColumns#FIRST_ANDROID_ID} and {@link SessionsDbColumns#DEVICE_ANDROID_ID}</li>
+     * <li>13: Add {@link UploadBlobsDbColumns#PAYLOAD}</li>
+     * <li>14: Add {@link EventsDbColumns#PRIORITY} and {@link UploadBlobsDbColumns#PRIORITY}</li>
+     * <li>15: Add migrations table, so that data migrations run in the background in batches</li>
+     * <li>16: Add indexes on the references to events and upload blobs, so that storage quota eviction doesn't scan tables</li>
      * </ol>
      */
-    private static final int DATABASE_VERSION = 12;
+    private static final int DATABASE_VERSION = 16;
+
+    /**
+     * {@link MigrationsDbColumns#NAME} of the version 6 migration, which prefixes attribute keys with the package name.
+     */
+    private static final String MIGRATION_ATTRIBUTE_KEY_PREFIX = "attribute_key_prefix"; //$NON-NLS-1$
+
+    /**
+     * Maximum number of rows rewritten per transaction by {@link #runMigrationBatch(int)}.
+     */
+    /* package */static final int MIGRATION_BATCH_ROWS = 500;
+
+    /**
+     * Map of {@link MigrationsDbColumns#NAME} to the data migration recorded under that name.
+     */
+    private static final Map<String, DataMigration> sMigrations = Collections.unmodifiableMap(getMigrations());
 
     /**
      * Singleton instance of the {@link LocalyticsProvider}. Lazily initialized via {@link #getInstance(Context, String)}.
@@ -96,6 +121,18 @@ import java.util.Set;
      */
     private final SQLiteDatabase mDb;
 
+    /**
+     * Data migrations that have rows left to rewrite, in the order they were recorded. Replaced rather than modified, once the
+     * last batch of a migration is committed.
+     */
+    private volatile List<DataMigration> mPendingMigrations;
+
+    /**
+     * Map of table name to the table expression that {@link #query(String, String[], String, String[], String, String)} reads in
+     * its place while migrations of that table are pending. Replaced along with {@link #mPendingMigrations}.
+     */
+    private volatile Map<String, String> mCompatibilityTables;
+
     /**
      * Obtains an instance of the Localytics Provider. Since the provider is a singleton object, only a single instance will be
      * returned.
@@ -162,6 +199,8 @@ import java.util.Set;
          * multiple keys may have 2 or 3, so the risk of a collision there is also very low.
          */
         mDb = new DatabaseHelper(context, String.format(DATABASE_FILE, DatapointHelper.getSha256_buggy(apiKey)), DATABASE_VERSION).getWritableDatabase();
+
+        setPendingMigrations(loadPendingMigrations());
     }
 
     /**
@@ -190,16 +229,16 @@ import java.util.Set;
             }
         }
 
-        if (Constants.IS_LOGGABLE)
+        if (LocalyticsLog.isLoggable(Log.VERBOSE))
         {
-            Log.v(Constants.LOG_TAG, String.format("Insert table: %s, values: %s", tableName, values.toString())); //$NON-NLS-1$
+            LocalyticsLog.v("Insert table: %s, values: %s", tableName, values.toString()); //$NON-NLS-1$
         }
 
         final long result = mDb.insertOrThrow(tableName, null, values);
 
-        if (Constants.IS_LOGGABLE)
+        if (LocalyticsLog.isLoggable(Log.VERBOSE))
         {
-            Log.v(Constants.LOG_TAG, String.format("Inserted row with new id %d", Long.valueOf(result))); //$NON-NLS-1$
+            LocalyticsLog.v("Inserted row with new id %d", Long.valueOf(result)); //$NON-NLS-1$
         }
 
         return result;
@@ -220,6 +259,27 @@ import java.util.Set;
      * @throws IllegalArgumentException if tableName is null or not a valid table name.
      */
     public Cursor query(final String tableName, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder)
+    {
+        return query(tableName, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Performs a query that returns at most a given number of rows.
+     * <p>
+     * Note: this method may perform disk operations.
+     *
+     * @param tableName name of the table operate on. Must be one of the recognized tables. Cannot be null.
+     * @param projection The list of columns to include. If null, then all columns are included by default.
+     * @param selection A filter to apply to all rows, like the SQLite WHERE clause. Passing null will query all rows. This param
+     *            may contain ? symbols, which will be replaced by values from the {@code selectionArgs} param.
+     * @param selectionArgs An optional string array of replacements for ? symbols in {@code selection}. May be null.
+     * @param sortOrder How the rows in the cursor should be sorted. If null, then the sort order is undefined.
+     * @param limit Maximum number of rows, formatted like the SQLite LIMIT clause without the LIMIT keyword. Passing null
+     *            returns all rows.
+     * @return Cursor for the query. To the receiver: Don't forget to call .close() on the cursor when finished with it.
+     * @throws IllegalArgumentException if tableName is null or not a valid table name.
+     */
+    public Cursor query(final String tableName, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder, final String limit)
     {
         if (Constants.IS_PARAMETER_CHECKING_ENABLED)
         {
@@ -229,24 +289,28 @@ import java.util.Set;
             }
         }
 
-        if (Constants.IS_LOGGABLE)
+        if (LocalyticsLog.isLoggable(Log.VERBOSE))
         {
-            Log.v(Constants.LOG_TAG, String.format("Query table: %s, projection: %s, selection: %s, selectionArgs: %s", tableName, Arrays.toString(projection), selection, Arrays.toString(selectionArgs))); //$NON-NLS-1$
+            LocalyticsLog.v("Query table: %s, projection: %s, selection: %s, selectionArgs: %s, limit: %s", tableName, Arrays.toString(projection), selection, Arrays.toString(selectionArgs), limit); //$NON-NLS-1$
         }
 
         final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(tableName);
+        final String compatibilityTable = mCompatibilityTables.get(tableName);
+        qb.setTables(null == compatibilityTable ? tableName : compatibilityTable);
 
         if (projection != null && 1 == projection.length && BaseColumns._COUNT.equals(projection[0]))
         {
             qb.setProjectionMap(sCountProjectionMap);
         }
 
-        final Cursor result = qb.query(mDb, projection, selection, selectionArgs, null, null, sortOrder);
+        final Cursor result = qb.query(mDb, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
-        if (Constants.IS_LOGGABLE)
+        /*
+         * Dumping the cursor fills its window, so it is only done when cursor tracing was explicitly requested
+         */
+        if (LocalyticsLog.isCursorTraceEnabled())
         {
-            Log.v(Constants.LOG_TAG, "Query result is: " + DatabaseUtils.dumpCursorToString(result)); //$NON-NLS-1$
+            LocalyticsLog.v("Query result is: %s", DatabaseUtils.dumpCursorToString(result)); //$NON-NLS-1$
         }
 
         return result;
@@ -276,9 +340,9 @@ import java.util.Set;
             }
         }
 
-        if (Constants.IS_LOGGABLE)
+        if (LocalyticsLog.isLoggable(Log.VERBOSE))
         {
-            Log.v(Constants.LOG_TAG, String.format("Update table: %s, values: %s, selection: %s, selectionArgs: %s", tableName, values.toString(), selection, Arrays.toString(selectionArgs))); //$NON-NLS-1$
+            LocalyticsLog.v("Update table: %s, values: %s, selection: %s, selectionArgs: %s", tableName, values.toString(), selection, Arrays.toString(selectionArgs)); //$NON-NLS-1$
         }
 
         return mDb.update(tableName, values, selection, selectionArgs);
@@ -306,9 +370,9 @@ import java.util.Set;
             }
         }
 
-        if (Constants.IS_LOGGABLE)
+        if (LocalyticsLog.isLoggable(Log.VERBOSE))
         {
-            Log.v(Constants.LOG_TAG, String.format("Delete table: %s, selection: %s, selectionArgs: %s", tableName, selection, Arrays.toString(selectionArgs))); //$NON-NLS-1$
+            LocalyticsLog.v("Delete table: %s, selection: %s, selectionArgs: %s", tableName, selection, Arrays.toString(selectionArgs)); //$NON-NLS-1$
         }
 
         final int count;
@@ -321,9 +385,9 @@ import java.util.Set;
             count = mDb.delete(tableName, selection, selectionArgs);
         }
 
-        if (Constants.IS_LOGGABLE)
+        if (LocalyticsLog.isLoggable(Log.VERBOSE))
         {
-            Log.v(Constants.LOG_TAG, String.format("Deleted %d rows", Integer.valueOf(count))); //$NON-NLS-1$
+            LocalyticsLog.v("Deleted %d rows", Integer.valueOf(count)); //$NON-NLS-1$
         }
 
         return count;
@@ -364,6 +428,261 @@ import java.util.Set;
         }
     }
 
+    /**
+     * @return True if data migrations are waiting for {@link #runMigrationBatch(int)}.
+     */
+    /* package */boolean hasPendingMigrations()
+    {
+        return !mPendingMigrations.isEmpty();
+    }
+
+    /**
+     * Projection for {@link #loadPendingMigrations()}.
+     */
+    private static final String[] PROJECTION_MIGRATION_NAME = new String[]
+        { MigrationsDbColumns.NAME };
+
+    /**
+     * Reads the pending data migrations from the migrations table.
+     *
+     * @return The registered migrations that have a row in the migrations table, in the order they were recorded.
+     */
+    private List<DataMigration> loadPendingMigrations()
+    {
+        final List<DataMigration> migrations = new ArrayList<DataMigration>();
+
+        Cursor cursor = null;
+        try
+        {
+            cursor = mDb.query(MigrationsDbColumns.TABLE_NAME, PROJECTION_MIGRATION_NAME, null, null, null, null, MigrationsDbColumns._ID);
+
+            while (cursor.moveToNext())
+            {
+                final DataMigration migration = sMigrations.get(cursor.getString(0));
+                if (null != migration)
+                {
+                    migrations.add(migration);
+                }
+                else if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("Ignoring unknown migration %s", cursor.getString(0)); //$NON-NLS-1$
+                }
+            }
+        }
+        finally
+        {
+            if (null != cursor)
+            {
+                cursor.close();
+                cursor = null;
+            }
+        }
+
+        return migrations;
+    }
+
+    /**
+     * Replaces {@link #mPendingMigrations} and rebuilds {@link #mCompatibilityTables} from it. When several migrations of the
+     * same table are pending, their compatibility tables are nested in the order the migrations were recorded.
+     *
+     * @param migrations Pending data migrations, in the order they were recorded. Cannot be null.
+     */
+    private void setPendingMigrations(final List<DataMigration> migrations)
+    {
+        final Map<String, String> tables = new HashMap<String, String>();
+        for (final DataMigration migration : migrations)
+        {
+            final String table = migration.getTableName();
+            tables.put(table, migration.getCompatibilityTable(tables.containsKey(table) ? tables.get(table) : table));
+        }
+        for (final Entry<String, String> entry : tables.entrySet())
+        {
+            entry.setValue(String.format("%s AS %s", entry.getValue(), entry.getKey())); //$NON-NLS-1$
+        }
+
+        mCompatibilityTables = tables;
+        mPendingMigrations = migrations;
+    }
+
+    /**
+     * Selection for a migration by name.
+     */
+    private static final String SELECTION_MIGRATION_NAME = String.format("%s = ?", MigrationsDbColumns.NAME); //$NON-NLS-1$
+
+    /**
+     * Projection for {@link #runMigrationBatch(int)}.
+     */
+    private static final String[] PROJECTION_MIGRATION_PROGRESS = new String[]
+        {
+            MigrationsDbColumns.LAST_ID,
+            MigrationsDbColumns.MAX_ID,
+            MigrationsDbColumns.ARGUMENT };
+
+    /**
+     * Performs the next batch of the pending data migrations. Each batch rewrites at most {@code maxRows} rows of the oldest
+     * pending migration and advances its checkpoint in the same transaction, so a migration interrupted by the process dying
+     * resumes where it stopped. Until a migration completes, {@link #query(String, String[], String, String[], String, String)}
+     * presents the rows it has not reached yet in the new format.
+     * <p>
+     * Note: this method performs disk operations.
+     *
+     * @param maxRows Maximum number of rows to rewrite. Must be positive.
+     * @return True if rows are left for a later batch, false if all migrations are complete.
+     * @throws IllegalArgumentException if {@code maxRows} is not positive.
+     */
+    /* package */boolean runMigrationBatch(final int maxRows)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (maxRows <= 0)
+            {
+                throw new IllegalArgumentException("maxRows must be positive"); //$NON-NLS-1$
+            }
+        }
+
+        final List<DataMigration> pending = mPendingMigrations;
+        if (pending.isEmpty())
+        {
+            return false;
+        }
+
+        final DataMigration migration = pending.get(0);
+        final long startTime = SystemClock.elapsedRealtime();
+        final String[] selectionArgs = new String[]
+            { migration.getName() };
+
+        boolean isComplete = true;
+        long batchEnd = -1;
+
+        mDb.beginTransaction();
+        try
+        {
+            Cursor cursor = null;
+            try
+            {
+                cursor = mDb.query(MigrationsDbColumns.TABLE_NAME, PROJECTION_MIGRATION_PROGRESS, SELECTION_MIGRATION_NAME, selectionArgs, null, null, null);
+
+                if (cursor.moveToFirst())
+                {
+                    final long lastId = cursor.getLong(0);
+                    final long maxId = cursor.getLong(1);
+
+                    batchEnd = Math.min(maxId, lastId + maxRows);
+                    migration.migrateBatch(mDb, lastId, batchEnd, cursor.getString(2));
+
+                    isComplete = batchEnd >= maxId;
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            if (isComplete)
+            {
+                mDb.delete(MigrationsDbColumns.TABLE_NAME, SELECTION_MIGRATION_NAME, selectionArgs);
+            }
+            else
+            {
+                final ContentValues values = new ContentValues();
+                values.put(MigrationsDbColumns.LAST_ID, Long.valueOf(batchEnd));
+                mDb.update(MigrationsDbColumns.TABLE_NAME, values, SELECTION_MIGRATION_NAME, selectionArgs);
+            }
+
+            mDb.setTransactionSuccessful();
+        }
+        finally
+        {
+            mDb.endTransaction();
+        }
+
+        if (isComplete)
+        {
+            setPendingMigrations(new ArrayList<DataMigration>(pending.subList(1, pending.size())));
+        }
+
+        if (LocalyticsLog.isLoggable(Log.DEBUG))
+        {
+            LocalyticsLog.d("Migration %s reached id %d in %d ms; complete: %b", migration.getName(), Long.valueOf(batchEnd), Long.valueOf(SystemClock.elapsedRealtime() - startTime), Boolean.valueOf(isComplete)); //$NON-NLS-1$
+        }
+
+        return !mPendingMigrations.isEmpty();
+    }
+
+    /**
+     * The version 6 migration, which prefixes attribute keys with the package name. The prefix is the migration's
+     * {@link MigrationsDbColumns#ARGUMENT}.
+     */
+    private static final class AttributeKeyPrefixMigration implements DataMigration
+    {
+        /**
+         * Statement for {@link #migrateBatch(SQLiteDatabase, long, long, String)}.
+         */
+        private static final String UPDATE_ATTRIBUTE_KEYS = String.format("UPDATE %s SET %s = ? || %s WHERE %s > ? AND %s <= ?;", AttributesDbColumns.TABLE_NAME, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns._ID, AttributesDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Format of {@link #getCompatibilityTable(String)}, taking the source table. Rows that are not migrated yet are read
+         * with the prefix.
+         */
+        private static final String COMPATIBILITY_TABLE_FORMAT = String.format("(SELECT a.%s AS %s, a.%s AS %s, CASE WHEN a.%s > m.%s AND a.%s <= m.%s THEN m.%s || a.%s ELSE a.%s END AS %s, a.%s AS %s FROM %%s a LEFT JOIN %s m ON m.%s = '%s')", //$NON-NLS-1$
+                AttributesDbColumns._ID, AttributesDbColumns._ID, AttributesDbColumns.EVENTS_KEY_REF, AttributesDbColumns.EVENTS_KEY_REF, AttributesDbColumns._ID, MigrationsDbColumns.LAST_ID, AttributesDbColumns._ID, MigrationsDbColumns.MAX_ID, MigrationsDbColumns.ARGUMENT, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_VALUE, AttributesDbColumns.ATTRIBUTE_VALUE, MigrationsDbColumns.TABLE_NAME, MigrationsDbColumns.NAME, MIGRATION_ATTRIBUTE_KEY_PREFIX);
+
+        public String getName()
+        {
+            return MIGRATION_ATTRIBUTE_KEY_PREFIX;
+        }
+
+        public String getTableName()
+        {
+            return AttributesDbColumns.TABLE_NAME;
+        }
+
+        public void migrateBatch(final SQLiteDatabase db, final long lastId, final long batchEnd, final String argument)
+        {
+            db.execSQL(UPDATE_ATTRIBUTE_KEYS, new Object[]
+                {
+                    argument,
+                    Long.valueOf(lastId),
+                    Long.valueOf(batchEnd) });
+        }
+
+        public String getCompatibilityTable(final String source)
+        {
+            return String.format(COMPATIBILITY_TABLE_FORMAT, source);
+        }
+    }
+
+    /**
+     * Query for the oldest event in {@link #getStorageStats(long)}. Events are deleted once uploaded, so every event is pending.
+     * Events are written in time order, so the oldest is the first by {@link EventsDbColumns#_ID}, which is found without a
+     * scan.
+     */
+    /* package */static final String QUERY_OLDEST_EVENT = String.format("SELECT IFNULL((SELECT %s FROM %s ORDER BY %s LIMIT 1), -1);", EventsDbColumns.WALL_TIME, EventsDbColumns.TABLE_NAME, EventsDbColumns._ID); //$NON-NLS-1$
+
+    /**
+     * Computes a snapshot of the database from aggregate queries and SQLite pragmas. The row counts each walk their table, but
+     * no rows are loaded into memory.
+     * <p>
+     * Note: this method performs disk operations.
+     */
+    public StorageStats getStorageStats(final long estimatedUploadBytes)
+    {
+        final Map<String, Long> rowCounts = new TreeMap<String, Long>();
+        for (final String table : sValidTables)
+        {
+            rowCounts.put(table, Long.valueOf(DatabaseUtils.longForQuery(mDb, String.format("SELECT COUNT(*) FROM %s;", table), null))); //$NON-NLS-1$
+        }
+
+        final String path = mDb.getPath();
+        final long databaseBytes = new File(path).length() + new File(path + "-journal").length() + new File(path + "-wal").length(); //$NON-NLS-1$ //$NON-NLS-2$
+
+        return new StorageStats(rowCounts, databaseBytes, DatabaseUtils.longForQuery(mDb, "PRAGMA page_size;", null), DatabaseUtils.longForQuery(mDb, "PRAGMA page_count;", null), DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count;", null), DatabaseUtils.longForQuery(mDb, QUERY_OLDEST_EVENT, null), rowCounts.get(UploadBlobsDbColumns.TABLE_NAME).longValue(), estimatedUploadBytes); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
     /**
      * Closes the LocalyticsProvider object. Normally the provider is a long-lived object and should not be closed during normal
      * application use. This method is intended for unit testing purposes only, where a lot of temporary provider objects are
@@ -408,6 +727,21 @@ import java.util.Set;
         return sValidTables.contains(table);
     }
 
+    /**
+     * Private helper that knows all the data migrations that {@link LocalyticsProvider} can perform.
+     *
+     * @return Map of {@link MigrationsDbColumns#NAME} to migration.
+     */
+    private static Map<String, DataMigration> getMigrations()
+    {
+        final HashMap<String, DataMigration> migrations = new HashMap<String, DataMigration>();
+
+        final DataMigration attributeKeyPrefix = new AttributeKeyPrefixMigration();
+        migrations.put(attributeKeyPrefix.getName(), attributeKeyPrefix);
+
+        return migrations;
+    }
+
     /**
      * Private helper that knows all the tables that {@link LocalyticsProvider} can operate on.
      *
@@ -486,6 +820,80 @@ import java.util.Set;
         return directory.delete();
     }
 
+    /**
+     * Gets the statements that create the tables of the current {@link #DATABASE_VERSION}, in order.
+     * <p>
+     * Note: This is a private method that is only made package-accessible so that other storage implementations can create the
+     * same schema.
+     *
+     * @return The CREATE TABLE and CREATE INDEX statements.
+     */
+    /* package */static String[] getCreateStatements()
+    {
+        final String[] indexes = getCreateIndexStatements();
+        final String[] tables = new String[]
+            {
+            // api_keys table
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL, %s TEXT UNIQUE NOT NULL, %s INTEGER NOT NULL CHECK (%s >= 0), %s INTEGER NOT NULL CHECK(%s IN (%s, %s)));", ApiKeysDbColumns.TABLE_NAME, ApiKeysDbColumns._ID, ApiKeysDbColumns.API_KEY, ApiKeysDbColumns.UUID, ApiKeysDbColumns.CREATED_TIME, ApiKeysDbColumns.CREATED_TIME, ApiKeysDbColumns.OPT_OUT, ApiKeysDbColumns.OPT_OUT, DatabaseHelper.SQLITE_BOOLEAN_FALSE, DatabaseHelper.SQLITE_BOOLEAN_TRUE), //$NON-NLS-1$
+
+            // sessions table
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT UNIQUE NOT NULL, %s INTEGER NOT NULL CHECK (%s >= 0), %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s INTEGER NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT);", SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, SessionsDbColumns.API_KEY_REF, ApiKeysDbColumns.TABLE_NAME, ApiKeysDbColumns._ID, SessionsDbColumns.UUID, SessionsDbColumns.SESSION_START_WALL_TIME, SessionsDbColumns.SESSION_START_WALL_TIME, SessionsDbColumns.LOCALYTICS_LIBRARY_VERSION, SessionsDbColumns.LOCALYTICS_INSTALLATION_ID, SessionsDbColumns.APP_VERSION, SessionsDbColumns.ANDROID_VERSION, SessionsDbColumns.ANDROID_SDK, SessionsDbColumns.DEVICE_MODEL, SessionsDbColumns.DEVICE_MANUFACTURER, SessionsDbColumns.DEVICE_ANDROID_ID_HASH, SessionsDbColumns.DEVICE_TELEPHONY_ID, SessionsDbColumns.DEVICE_TELEPHONY_ID_HASH, SessionsDbColumns.DEVICE_SERIAL_NUMBER_HASH, SessionsDbColumns.DEVICE_WIFI_MAC_HASH, SessionsDbColumns.LOCALE_LANGUAGE, SessionsDbColumns.LOCALE_COUNTRY, SessionsDbColumns.NETWORK_CARRIER, SessionsDbColumns.NETWORK_COUNTRY, SessionsDbColumns.NETWORK_TYPE, SessionsDbColumns.DEVICE_COUNTRY, SessionsDbColumns.LATITUDE, SessionsDbColumns.LONGITUDE, SessionsDbColumns.DEVICE_ANDROID_ID), //$NON-NLS-1$
+
+            // events table
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT UNIQUE NOT NULL, %s TEXT NOT NULL, %s INTEGER NOT NULL CHECK (%s >= 0), %s INTEGER NOT NULL CHECK (%s >= 0), %s INTEGER NOT NULL DEFAULT 0, %s INTEGER NOT NULL DEFAULT %s CHECK (%s IN (%s, %s)));", EventsDbColumns.TABLE_NAME, EventsDbColumns._ID, EventsDbColumns.SESSION_KEY_REF, SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, EventsDbColumns.UUID, EventsDbColumns.EVENT_NAME, EventsDbColumns.REAL_TIME, EventsDbColumns.REAL_TIME, EventsDbColumns.WALL_TIME, EventsDbColumns.WALL_TIME, EventsDbColumns.CLV_INCREASE, EventsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL), EventsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL), Integer.valueOf(EventsDbColumns.PRIORITY_HIGH)), //$NON-NLS-1$
+
+            // event_history table
+            /*
+             * Note: the events history should be using foreign key constrains on the upload blobs table, but that is currently
+             * disabled to simplify the implementation of the upload processing.
+             */
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT NOT NULL CHECK(%s IN (%s, %s)), %s TEXT NOT NULL, %s INTEGER);", EventHistoryDbColumns.TABLE_NAME, EventHistoryDbColumns._ID, EventHistoryDbColumns.SESSION_KEY_REF, SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, EventHistoryDbColumns.TYPE, EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT), Integer.valueOf(EventHistoryDbColumns.TYPE_SCREEN), EventHistoryDbColumns.NAME, EventHistoryDbColumns.PROCESSED_IN_BLOB), //$NON-NLS-1$
+            //db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT NOT NULL CHECK(%s IN (%s, %s)), %s TEXT NOT NULL, %s INTEGER REFERENCES %s(%s));", EventHistoryDbColumns.TABLE_NAME, EventHistoryDbColumns._ID, EventHistoryDbColumns.SESSION_KEY_REF, SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, EventHistoryDbColumns.TYPE, EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT), Integer.valueOf(EventHistoryDbColumns.TYPE_SCREEN), EventHistoryDbColumns.NAME, EventHistoryDbColumns.PROCESSED_IN_BLOB, UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID)); //$NON-NLS-1$
+
+            // attributes table
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL);", AttributesDbColumns.TABLE_NAME, AttributesDbColumns._ID, AttributesDbColumns.EVENTS_KEY_REF, EventsDbColumns.TABLE_NAME, EventsDbColumns._ID, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_VALUE), //$NON-NLS-1$
+
+            // upload blobs
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL, %s BLOB, %s INTEGER NOT NULL DEFAULT %s);", UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID, UploadBlobsDbColumns.UUID, UploadBlobsDbColumns.PAYLOAD, UploadBlobsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL)), //$NON-NLS-1$
+
+            // upload events
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s INTEGER REFERENCES %s(%s) NOT NULL);", UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns._ID, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID, UploadBlobEventsDbColumns.EVENTS_KEY_REF, EventsDbColumns.TABLE_NAME, EventsDbColumns._ID), //$NON-NLS-1$
+
+            // info table
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s INTEGER);", InfoDbColumns.TABLE_NAME, InfoDbColumns._ID, InfoDbColumns.FB_ATTRIBUTION, InfoDbColumns.PLAY_ATTRIBUTION, InfoDbColumns.REGISTRATION_ID, InfoDbColumns.REGISTRATION_VERSION, InfoDbColumns.FIRST_ANDROID_ID, InfoDbColumns.FIRST_TELEPHONY_ID, InfoDbColumns.PACKAGE_NAME, InfoDbColumns.FIRST_RUN), //$NON-NLS-1$
+
+            // identifiers table
+            String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL, %s TEXT NOT NULL);", IdentifiersDbColumns.TABLE_NAME, IdentifiersDbColumns._ID, IdentifiersDbColumns.KEY, IdentifiersDbColumns.VALUE), //$NON-NLS-1$
+
+            // migrations table
+            getCreateMigrationsStatement() };
+
+        final String[] statements = new String[tables.length + indexes.length];
+        System.arraycopy(tables, 0, statements, 0, tables.length);
+        System.arraycopy(indexes, 0, statements, tables.length, indexes.length);
+        return statements;
+    }
+
+    /**
+     * @return The CREATE INDEX statements, which are also run by upgrades.
+     */
+    private static String[] getCreateIndexStatements()
+    {
+        return new String[]
+            {
+                String.format("CREATE INDEX %s_%s ON %s (%s);", AttributesDbColumns.TABLE_NAME, AttributesDbColumns.EVENTS_KEY_REF, AttributesDbColumns.TABLE_NAME, AttributesDbColumns.EVENTS_KEY_REF), //$NON-NLS-1$
+                String.format("CREATE INDEX %s_%s ON %s (%s);", UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.EVENTS_KEY_REF, UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.EVENTS_KEY_REF), //$NON-NLS-1$
+                String.format("CREATE INDEX %s_%s ON %s (%s);", UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF) }; //$NON-NLS-1$
+    }
+
+    /**
+     * @return The CREATE TABLE statement of the migrations table, which is also created by upgrades.
+     */
+    private static String getCreateMigrationsStatement()
+    {
+        return String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL, %s INTEGER NOT NULL, %s INTEGER NOT NULL, %s TEXT);", MigrationsDbColumns.TABLE_NAME, MigrationsDbColumns._ID, MigrationsDbColumns.NAME, MigrationsDbColumns.LAST_ID, MigrationsDbColumns.MAX_ID, MigrationsDbColumns.ARGUMENT); //$NON-NLS-1$
+    }
+
     /**
      * A private helper class to open and create the Localytics SQLite database.
      */
@@ -536,34 +944,11 @@ import java.util.Set;
                 throw new IllegalArgumentException("db cannot be null"); //$NON-NLS-1$
             }
 
-            // api_keys table
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL, %s TEXT UNIQUE NOT NULL, %s INTEGER NOT NULL CHECK (%s >= 0), %s INTEGER NOT NULL CHECK(%s IN (%s, %s)));", ApiKeysDbColumns.TABLE_NAME, ApiKeysDbColumns._ID, ApiKeysDbColumns.API_KEY, ApiKeysDbColumns.UUID, ApiKeysDbColumns.CREATED_TIME, ApiKeysDbColumns.CREATED_TIME, ApiKeysDbColumns.OPT_OUT, ApiKeysDbColumns.OPT_OUT, SQLITE_BOOLEAN_FALSE, SQLITE_BOOLEAN_TRUE)); //$NON-NLS-1$
-
-            // sessions table
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT UNIQUE NOT NULL, %s INTEGER NOT NULL CHECK (%s >= 0), %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s INTEGER NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT);", SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, SessionsDbColumns.API_KEY_REF, ApiKeysDbColumns.TABLE_NAME, ApiKeysDbColumns._ID, SessionsDbColumns.UUID, SessionsDbColumns.SESSION_START_WALL_TIME, SessionsDbColumns.SESSION_START_WALL_TIME, SessionsDbColumns.LOCALYTICS_LIBRARY_VERSION, SessionsDbColumns.LOCALYTICS_INSTALLATION_ID, SessionsDbColumns.APP_VERSION, SessionsDbColumns.ANDROID_VERSION, SessionsDbColumns.ANDROID_SDK, SessionsDbColumns.DEVICE_MODEL, SessionsDbColumns.DEVICE_MANUFACTURER, SessionsDbColumns.DEVICE_ANDROID_ID_HASH, SessionsDbColumns.DEVICE_TELEPHONY_ID, SessionsDbColumns.DEVICE_TELEPHONY_ID_HASH, SessionsDbColumns.DEVICE_SERIAL_NUMBER_HASH, SessionsDbColumns.DEVICE_WIFI_MAC_HASH, SessionsDbColumns.LOCALE_LANGUAGE, SessionsDbColumns.LOCALE_COUNTRY, SessionsDbColumns.NETWORK_CARRIER, SessionsDbColumns.NETWORK_COUNTRY, SessionsDbColumns.NETWORK_TYPE, SessionsDbColumns.DEVICE_COUNTRY, SessionsDbColumns.LATITUDE, SessionsDbColumns.LONGITUDE, SessionsDbColumns.DEVICE_ANDROID_ID)); //$NON-NLS-1$
-
-            // events table
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT UNIQUE NOT NULL, %s TEXT NOT NULL, %s INTEGER NOT NULL CHECK (%s >= 0), %s INTEGER NOT NULL CHECK (%s >= 0), %s INTEGER NOT NULL DEFAULT 0);", EventsDbColumns.TABLE_NAME, EventsDbColumns._ID, EventsDbColumns.SESSION_KEY_REF, SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, EventsDbColumns.UUID, EventsDbColumns.EVENT_NAME, EventsDbColumns.REAL_TIME, EventsDbColumns.REAL_TIME, EventsDbColumns.WALL_TIME, EventsDbColumns.WALL_TIME, EventsDbColumns.CLV_INCREASE)); //$NON-NLS-1$
-            
-            // event_history table
-            /*
-             * Note: the events history should be using foreign key constrains on the upload blobs table, but that is currently
-             * disabled to simplify the implementation of the upload processing.
-             */
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT NOT NULL CHECK(%s IN (%s, %s)), %s TEXT NOT NULL, %s INTEGER);", EventHistoryDbColumns.TABLE_NAME, EventHistoryDbColumns._ID, EventHistoryDbColumns.SESSION_KEY_REF, SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, EventHistoryDbColumns.TYPE, EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT), Integer.valueOf(EventHistoryDbColumns.TYPE_SCREEN), EventHistoryDbColumns.NAME, EventHistoryDbColumns.PROCESSED_IN_BLOB)); //$NON-NLS-1$
-            //db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT NOT NULL CHECK(%s IN (%s, %s)), %s TEXT NOT NULL, %s INTEGER REFERENCES %s(%s));", EventHistoryDbColumns.TABLE_NAME, EventHistoryDbColumns._ID, EventHistoryDbColumns.SESSION_KEY_REF, SessionsDbColumns.TABLE_NAME, SessionsDbColumns._ID, EventHistoryDbColumns.TYPE, EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT), Integer.valueOf(EventHistoryDbColumns.TYPE_SCREEN), EventHistoryDbColumns.NAME, EventHistoryDbColumns.PROCESSED_IN_BLOB, UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID)); //$NON-NLS-1$
-
-            // attributes table
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL);", AttributesDbColumns.TABLE_NAME, AttributesDbColumns._ID, AttributesDbColumns.EVENTS_KEY_REF, EventsDbColumns.TABLE_NAME, EventsDbColumns._ID, AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_VALUE)); //$NON-NLS-1$
-
-            // upload blobs
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL);", UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID, UploadBlobsDbColumns.UUID)); //$NON-NLS-1$
+            for (final String statement : getCreateStatements())
+            {
+                db.execSQL(statement);
+            }
 
-            // upload events
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s INTEGER REFERENCES %s(%s) NOT NULL, %s INTEGER REFERENCES %s(%s) NOT NULL);", UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns._ID, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID, UploadBlobEventsDbColumns.EVENTS_KEY_REF, EventsDbColumns.TABLE_NAME, EventsDbColumns._ID)); //$NON-NLS-1$
-        
-            // info table
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s TEXT, %s INTEGER);", InfoDbColumns.TABLE_NAME, InfoDbColumns._ID, InfoDbColumns.FB_ATTRIBUTION, InfoDbColumns.PLAY_ATTRIBUTION, InfoDbColumns.REGISTRATION_ID, InfoDbColumns.REGISTRATION_VERSION, InfoDbColumns.FIRST_ANDROID_ID, InfoDbColumns.FIRST_TELEPHONY_ID, InfoDbColumns.PACKAGE_NAME, InfoDbColumns.FIRST_RUN));
             final ContentValues values = new ContentValues();
             values.put(InfoDbColumns.FB_ATTRIBUTION, DatapointHelper.getFBAttribution(mContext));
             values.put(InfoDbColumns.FIRST_RUN, Boolean.TRUE);
@@ -571,9 +956,6 @@ import java.util.Set;
             values.put(InfoDbColumns.FIRST_TELEPHONY_ID, DatapointHelper.getTelephonyDeviceIdOrNull(mContext));
             values.put(InfoDbColumns.PACKAGE_NAME, mContext.getPackageName());
             db.insertOrThrow(InfoDbColumns.TABLE_NAME, null, values);
-            
-            // identifiers table
-            db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT UNIQUE NOT NULL, %s TEXT NOT NULL);", IdentifiersDbColumns.TABLE_NAME, IdentifiersDbColumns._ID, IdentifiersDbColumns.KEY, IdentifiersDbColumns.VALUE));	
         }
 
         @Override
@@ -581,9 +963,9 @@ import java.util.Set;
         {
             super.onOpen(db);
 
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
             {
-                Log.v(Constants.LOG_TAG, String.format("SQLite library version is: %s", DatabaseUtils.stringForQuery(db, "select sqlite_version()", null))); //$NON-NLS-1$//$NON-NLS-2$
+                LocalyticsLog.v("SQLite library version is: %s", DatabaseUtils.stringForQuery(db, "select sqlite_version()", null)); //$NON-NLS-1$//$NON-NLS-2$
             }
 
             if (!db.isReadOnly())
@@ -598,7 +980,7 @@ import java.util.Set;
                 // try
                 // {
                 //                        final String result1 = DatabaseUtils.stringForQuery(db, "PRAGMA foreign_keys;", null); //$NON-NLS-1$
-                //                        Log.v(Constants.LOG_TAG, String.format("Foreign keys support result was: %s", result1)); //$NON-NLS-1$
+                //                        LocalyticsLog.v("Foreign keys support result was: %s", result1); //$NON-NLS-1$
                 // }
                 // catch (final SQLiteDoneException e)
                 // {
@@ -608,9 +990,22 @@ import java.util.Set;
             }
         }
 
+        /**
+         * Upgrades the schema. Schema changes are made here, but data migrations that rewrite many rows are only recorded in the
+         * migrations table, to be performed in batches by {@link LocalyticsProvider#runMigrationBatch(int)} once the database is
+         * open.
+         */
         @Override
         public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion)
         {
+            /*
+             * The migrations table is created first, as the data migrations of earlier versions are recorded in it
+             */
+            if (oldVersion < 15)
+            {
+                db.execSQL(getCreateMigrationsStatement());
+            }
+
             /*
              * Delete all sessions in the database, in order to get the data back into a consistent state. This is necessary
              * because an Android bug that caused the database in older versions of the Localytics library to become corrupted.
@@ -639,39 +1034,20 @@ import java.util.Set;
 
             if (oldVersion < 6)
             {
-                Cursor attributesCursor = null;
-                try
-                {
-                    attributesCursor = db.query(AttributesDbColumns.TABLE_NAME, new String[]
-                        {
-                            AttributesDbColumns._ID,
-                            AttributesDbColumns.ATTRIBUTE_KEY }, null, null, null, null, null);
-
-                    final int idColumnIndex = attributesCursor.getColumnIndexOrThrow(AttributesDbColumns._ID);
-                    final int keyColumnIndex = attributesCursor.getColumnIndexOrThrow(AttributesDbColumns.ATTRIBUTE_KEY);
-
-                    final ContentValues tempValues = new ContentValues();
-                    final String whereClause = String.format("%s = ?", AttributesDbColumns._ID); //$NON-NLS-1$
-                    final String[] whereArgs = new String[1];
-
-                    attributesCursor.moveToPosition(-1);
-                    while (attributesCursor.moveToNext())
-                    {
-                        tempValues.put(AttributesDbColumns.ATTRIBUTE_KEY, String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, mContext.getPackageName(), attributesCursor.getString(keyColumnIndex)));
-
-                        whereArgs[0] = Long.toString(attributesCursor.getLong(idColumnIndex));
-                        db.update(AttributesDbColumns.TABLE_NAME, tempValues, whereClause, whereArgs);
+                /*
+                 * Every existing attribute key needs the package name prefix. Rows up to the current maximum id are rewritten in
+                 * the background; rows inserted after the upgrade already have the prefix.
+                 */
+                final long maxId = DatabaseUtils.longForQuery(db, String.format("SELECT IFNULL(MAX(%s), 0) FROM %s;", AttributesDbColumns._ID, AttributesDbColumns.TABLE_NAME), null); //$NON-NLS-1$
 
-                        tempValues.clear();
-                    }
-                }
-                finally
+                if (maxId > 0)
                 {
-                    if (null != attributesCursor)
-                    {
-                        attributesCursor.close();
-                        attributesCursor = null;
-                    }
+                    final ContentValues values = new ContentValues();
+                    values.put(MigrationsDbColumns.NAME, MIGRATION_ATTRIBUTE_KEY_PREFIX);
+                    values.put(MigrationsDbColumns.LAST_ID, Long.valueOf(0));
+                    values.put(MigrationsDbColumns.MAX_ID, Long.valueOf(maxId));
+                    values.put(MigrationsDbColumns.ARGUMENT, String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, mContext.getPackageName(), "")); //$NON-NLS-1$
+                    db.insertOrThrow(MigrationsDbColumns.TABLE_NAME, null, values);
                 }
             }
             
@@ -725,6 +1101,27 @@ import java.util.Set;
             	// add device_android_id to sessions table
             	db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s TEXT;", SessionsDbColumns.TABLE_NAME, SessionsDbColumns.DEVICE_ANDROID_ID)); //$NON-NLS-1$
             }
+
+            if (oldVersion < 13)
+            {
+                // add payload to upload_blobs table
+                db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s BLOB;", UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns.PAYLOAD)); //$NON-NLS-1$
+            }
+
+            if (oldVersion < 14)
+            {
+                // add priority to events and upload_blobs tables
+                db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT %s CHECK (%s IN (%s, %s));", EventsDbColumns.TABLE_NAME, EventsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL), EventsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL), Integer.valueOf(EventsDbColumns.PRIORITY_HIGH))); //$NON-NLS-1$
+                db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT %s;", UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_NORMAL))); //$NON-NLS-1$
+            }
+
+            if (oldVersion < 16)
+            {
+                for (final String statement : getCreateIndexStatements())
+                {
+                    db.execSQL(statement);
+                }
+            }
         }
         // @Override
         // public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion)
@@ -927,6 +1324,63 @@ import java.util.Set;
         public static final String VALUE = "value"; //$NON-NLS-1$
     }
 
+    /**
+     * Table of the data migrations that have not completed yet, with their progress.
+     * <p>
+     * This is not a public API.
+     */
+    public static final class MigrationsDbColumns implements BaseColumns
+    {
+        /**
+         * Private constructor prevents instantiation
+         *
+         * @throws UnsupportedOperationException because this class cannot be instantiated.
+         */
+        private MigrationsDbColumns()
+        {
+            throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+        }
+
+        /**
+         * SQLite table name
+         */
+        public static final String TABLE_NAME = "migrations"; //$NON-NLS-1$
+
+        /**
+         * TYPE: {@code String}
+         * <p>
+         * Name of the migration.
+         * <p>
+         * Constraints: This column is unique and cannot be null.
+         */
+        public static final String NAME = "name"; //$NON-NLS-1$
+
+        /**
+         * TYPE: {@code long}
+         * <p>
+         * Checkpoint of the migration: rows with a {@link BaseColumns#_ID} up to this value have been migrated.
+         * <p>
+         * Constraints: This column cannot be null.
+         */
+        public static final String LAST_ID = "last_id"; //$NON-NLS-1$
+
+        /**
+         * TYPE: {@code long}
+         * <p>
+         * Highest {@link BaseColumns#_ID} of the rows to migrate. Rows inserted after the upgrade are already in the new format.
+         * <p>
+         * Constraints: This column cannot be null.
+         */
+        public static final String MAX_ID = "max_id"; //$NON-NLS-1$
+
+        /**
+         * TYPE: {@code String}
+         * <p>
+         * Argument of the migration, such as the prefix to add to a column.
+         */
+        public static final String ARGUMENT = "argument"; //$NON-NLS-1$
+    }
+
     /**
      * Database table for the session attributes. There is a one-to-many relationship between one event in the
      * {@link EventsDbColumns} table and the many attributes associated with that event.
@@ -1107,6 +1561,26 @@ import java.util.Set;
          * A long representing the customer value increase
          */
         public static final String CLV_INCREASE = "clv_increase"; //$NON-NLS-1$
+
+        /**
+         * TYPE: {@code int}
+         * <p>
+         * Priority class of the event. High priority events are put into their own upload blobs, so that they can be uploaded
+         * ahead of the rest.
+         * <p>
+         * Constraints: Must be one of {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}. Defaults to {@link #PRIORITY_NORMAL}.
+         */
+        public static final String PRIORITY = "priority"; //$NON-NLS-1$
+
+        /**
+         * Priority value for {@link #PRIORITY} that indicates an event that is batched with other events.
+         */
+        public static final int PRIORITY_NORMAL = 0;
+
+        /**
+         * Priority value for {@link #PRIORITY} that indicates an event that is uploaded as soon as possible.
+         */
+        public static final int PRIORITY_HIGH = 1;
     }
 
     /**
@@ -1520,5 +1994,25 @@ import java.util.Set;
          */
         public static final String UUID = "uuid"; //$NON-NLS-1$
 
+        /**
+         * TYPE: {@code byte[]}
+         * <p>
+         * GZIP compressed upload body for the blob: the blob header followed by each event of the blob, as newline terminated
+         * JSON objects. The payload is written once when the blob is built, so that retrying a failed upload does not need to
+         * convert the same events to JSON again.
+         * <p>
+         * Constraints: This may be null, in which case the blob is converted to JSON at upload time.
+         */
+        public static final String PAYLOAD = "payload"; //$NON-NLS-1$
+
+        /**
+         * TYPE: {@code int}
+         * <p>
+         * Priority class of the events in the blob. A blob only contains events of a single priority.
+         * <p>
+         * Constraints: Must be one of {@link EventsDbColumns#PRIORITY_NORMAL} or {@link EventsDbColumns#PRIORITY_HIGH}.
+         */
+        public static final String PRIORITY = "priority"; //$NON-NLS-1$
+
     }
 }
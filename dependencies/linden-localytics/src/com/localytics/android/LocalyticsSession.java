@@ -20,7 +20,6 @@ import android.database.CursorJoiner;
 import android.os.Build;
 import android.os.Build.VERSION;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
@@ -36,6 +35,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,6 +47,11 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.http.HttpResponse;
@@ -139,19 +144,22 @@ public class LocalyticsSession
      *
      * The LocalyticsSession stores all of its state as a SQLite database in the parent application's private database storage
      * directory. Disk access is slow and can block the UI in Android, so the LocalyticsSession object is a wrapper around a pair
-     * of Handler objects, with each Handler object running on its own separate thread.
+     * of engines, with each engine running on its own separate thread.
      *
-     * All requests made of the LocalyticsSession are passed along to the mSessionHandler object, which does most of the work. The
-     * mSessionHandler will pass off upload requests to the mUploadHandler, to prevent the mSessionHandler from being blocked by
-     * network traffic.
+     * All requests made of the LocalyticsSession are passed along to the mSessionHandler object, which forwards them to a
+     * SessionEngine that does most of the work. The SessionEngine will pass off upload requests to an UploadEngine, to prevent the
+     * session thread from being blocked by network traffic. The engines only depend on the Android framework through small
+     * interfaces (TaskExecutor, Clock, LocalyticsStorage, UploadTransport), so that they can also run on a plain JVM.
      *
-     * If an upload request is made, the mSessionHandler will set a flag that an upload is in progress (this flag is important for
-     * thread-safety of the session data stored on disk). Then the upload request is passed to the mUploadHandler's queue. If a
-     * second upload request is made while the first one is underway, the mSessionHandler notifies the mUploadHandler, which will
-     * notify the mSessionHandler to retry that upload request when the first upload is completed.
+     * If an upload request is made, the SessionEngine will set a flag that an upload is in progress (this flag is important for
+     * thread-safety of the session data stored on disk). Then the upload request is passed to the UploadEngine's thread. If a
+     * second upload request is made while the first one is underway, the SessionEngine notifies the UploadEngine, which will
+     * notify the SessionEngine to retry that upload request when the first upload is completed.
      *
      * Although each LocalyticsSession object will have its own unique instance of mSessionHandler, thread-safety is handled by
-     * using a single sSessionHandlerThread.
+     * running all work for a given API key on a single thread. By default, all API keys share one session thread and one upload
+     * thread. Apps with several API keys can call setThreadTopology() so that keys don't stall each other; a key is bound to
+     * its threads once its first LocalyticsSession is created, which preserves the ordering of work within that key.
      */
 
     /**
@@ -198,46 +206,67 @@ public class LocalyticsSession
      * Creative ID attribute
      */
     /* package */static final String CREATIVE_ID_ATTRIBUTE = "Creative ID"; //$NON-NLS-1$    
+
+    /**
+     * Priority class for events that are batched with other events.
+     *
+     * @see #tagEvent(String, Map, List, long, int)
+     */
+    public static final int PRIORITY_NORMAL = EventsDbColumns.PRIORITY_NORMAL;
+
+    /**
+     * Priority class for events that are uploaded as soon as possible, such as purchases.
+     *
+     * @see #tagEvent(String, Map, List, long, int)
+     */
+    public static final int PRIORITY_HIGH = EventsDbColumns.PRIORITY_HIGH;
     
     /**
-     * Background thread used for all Localytics session processing. This thread is shared across all instances of
+     * Thread topology where all API keys share one session thread and one upload thread. This is the default.
+     *
+     * @see #setThreadTopology(int, int)
+     */
+    public static final int THREAD_TOPOLOGY_SHARED = HandlerThreadPool.TOPOLOGY_SHARED;
+
+    /**
+     * Thread topology where each API key gets its own session thread and upload thread.
+     *
+     * @see #setThreadTopology(int, int)
+     */
+    public static final int THREAD_TOPOLOGY_PER_KEY = HandlerThreadPool.TOPOLOGY_PER_KEY;
+
+    /**
+     * Thread topology where API keys are distributed over a bounded number of session threads and upload threads.
+     *
+     * @see #setThreadTopology(int, int)
+     */
+    public static final int THREAD_TOPOLOGY_POOL = HandlerThreadPool.TOPOLOGY_POOL;
+
+    /**
+     * Background threads used for Localytics session processing. These threads are shared across all instances of
      * LocalyticsSession within a process.
      */
     /*
      * By using the class name for the HandlerThread, obfuscation through Proguard is more effective: if Proguard changes the
      * class name, the thread name also changes.
      */
-    private static final HandlerThread sSessionHandlerThread = getHandlerThread(SessionHandler.class.getSimpleName());
+    private static final HandlerThreadPool sSessionHandlerThreads = new HandlerThreadPool(SessionHandler.class.getSimpleName());
 
     /**
-     * Background thread used for all Localytics upload processing. This thread is shared across all instances of
+     * Background threads used for Localytics upload processing. These threads are shared across all instances of
      * LocalyticsSession within a process.
      */
     /*
      * By using the class name for the HandlerThread, obfuscation through Proguard is more effective: if Proguard changes the
      * class name, the thread name also changes.
      */
-    protected static final HandlerThread sUploadHandlerThread = getHandlerThread(UploadHandler.class.getSimpleName());
+    protected static final HandlerThreadPool sUploadHandlerThreads = new HandlerThreadPool(UploadEngine.class.getSimpleName());
 
     /**
-     * Helper to obtain a new {@link HandlerThread}.
-     *
-     * @param name to give to the HandlerThread. Useful for debugging, as the thread name is shown in DDMS.
-     * @return HandlerThread whose {@link HandlerThread#start()} method has already been called.
+     * Background threads used for transmitting upload chunks while the next chunk is built. These threads are shared across all
+     * instances of LocalyticsSession within a process.
      */
-    private static HandlerThread getHandlerThread(final String name)
-    {
-        final HandlerThread thread = new HandlerThread(name, android.os.Process.THREAD_PRIORITY_BACKGROUND);
-
-        thread.start();
-
-        /*
-         * Note: we tried setting an uncaught exception handler here. But for some reason it causes looper initialization to fail
-         * randomly.
-         */
-
-        return thread;
-    }
+    /* package */static final HandlerThreadPool sUploadTransmitterThreads = new HandlerThreadPool(UploadPipeline.class.getSimpleName());
 
     /**
      * Maps an API key to a singleton instance of the {@link SessionHandler}. Lazily initialized during construction of the
@@ -255,7 +284,7 @@ public class LocalyticsSession
      * <p>
      * This Handler is the key thread synchronization point for all work inside the LocalyticsSession.
      * <p>
-     * This handler runs on {@link #sSessionHandlerThread}.
+     * This handler runs on a thread from {@link #sSessionHandlerThreads}.
      */
     private final Handler mSessionHandler;
 
@@ -263,15 +292,26 @@ public class LocalyticsSession
      * Application context
      */
     private final Context mContext;
-    
+
     /**
-     * Keeps track of which Localytics clients are currently uploading, in order to allow only one upload for a given key at a
-     * time.
-     * <p>
-     * This field can only be read/written to from the {@link #sSessionHandlerThread}. This invariant is maintained by only
-     * accessing this field from within the {@link #mSessionHandler}.
+     * Upload state for the API key of this session, shared with the session's handlers.
+     */
+    private final UploadState mUploadState;
+
+    /**
+     * Localytics API key of this session.
+     */
+    private final String mApiKey;
+
+    /**
+     * Metrics for the API key of this session, shared with the session's handlers.
+     */
+    private final MetricsRegistry mMetrics;
+
+    /**
+     * Event tracing for the API key of this session, shared with the session's handlers.
      */
-    protected static final Map<String, Boolean> sIsUploadingMap = new HashMap<String, Boolean>();
+    private final EventTracing mTracing;
     
     /**
      * Constructs a new {@link LocalyticsSession} object.
@@ -346,20 +386,68 @@ public class LocalyticsSession
 
             if (null == handler)
             {
-                handler = new SessionHandler(mContext, appKey, sSessionHandlerThread.getLooper());
+                handler = new SessionHandler(mContext, appKey, sSessionHandlerThreads.getLooper(appKey));
                 sLocalyticsSessionHandlerMap.put(appKey, handler);
 
                 /*
                  * Complete Handler initialization on a background thread. Note that this is not generally a good best practice,
                  * as the LocalyticsSession object (and its child objects) should be fully initialized by the time the constructor
                  * returns. However this implementation is safe, as the Handler will process this initialization message before
-                 * any other message.
+                 * any other message, and holds the messages that arrive while the database is being opened.
                  */
                 handler.sendMessage(handler.obtainMessage(SessionHandler.MESSAGE_INIT));
             }
 
             mSessionHandler = handler;
         }
+
+        mApiKey = appKey;
+        mUploadState = UploadState.getInstance(appKey);
+        mMetrics = MetricsRegistry.getInstance(appKey);
+        mTracing = EventTracing.getInstance(appKey);
+    }
+
+    /**
+     * Constructs a new {@link LocalyticsSession} object that sends its requests to {@code sessionHandler}.
+     * <p>
+     * Note: This constructor is a private implementation detail. It is only made package accessible for benchmarking the public
+     * API without a {@link SessionHandler}.
+     *
+     * @param context Application context. Cannot be null.
+     * @param key The key unique for each application generated at www.localytics.com. Cannot be null.
+     * @param sessionHandler Handler that receives the {@link SessionHandler} messages. Cannot be null.
+     */
+    /* package */LocalyticsSession(final Context context, final String key, final Handler sessionHandler)
+    {
+        mContext = context;
+        mSessionHandler = sessionHandler;
+        mApiKey = key;
+        mUploadState = UploadState.getInstance(key);
+        mMetrics = MetricsRegistry.getInstance(key);
+        mTracing = EventTracing.getInstance(key);
+    }
+
+    /**
+     * Sets how session and upload work is distributed over background threads when several API keys are used within the
+     * process. By default, all API keys share one session thread and one upload thread, so a slow open or a large upload for
+     * one key delays work for every other key.
+     * <p>
+     * The topology applies to API keys whose first {@link LocalyticsSession} is created after this call. Call this before
+     * constructing any {@link LocalyticsSession} for the topology to apply to every key. Work for a given API key is always
+     * processed in order, whatever the topology.
+     *
+     * @param topology One of {@link #THREAD_TOPOLOGY_SHARED}, {@link #THREAD_TOPOLOGY_PER_KEY}, or
+     *            {@link #THREAD_TOPOLOGY_POOL}.
+     * @param poolSize Maximum number of session threads, and of upload threads, for {@link #THREAD_TOPOLOGY_POOL}. Ignored for
+     *            the other topologies.
+     * @throws IllegalArgumentException if {@code topology} is not a valid topology.
+     * @throws IllegalArgumentException if {@code topology} is {@link #THREAD_TOPOLOGY_POOL} and {@code poolSize} is less than 1.
+     */
+    public static void setThreadTopology(final int topology, final int poolSize)
+    {
+        sSessionHandlerThreads.setTopology(topology, poolSize);
+        sUploadHandlerThreads.setTopology(topology, poolSize);
+        sUploadTransmitterThreads.setTopology(topology, poolSize);
     }
 
     /**
@@ -423,17 +511,17 @@ public class LocalyticsSession
                  */
                 if (customDimensions.isEmpty())
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "customDimensions is empty.  Did the caller make an error?"); //$NON-NLS-1$
+                        LocalyticsLog.w("customDimensions is empty.  Did the caller make an error?"); //$NON-NLS-1$
                     }
                 }
 
                 if (customDimensions.size() > Constants.MAX_CUSTOM_DIMENSIONS)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, String.format("customDimensions size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(customDimensions.size()), Integer.valueOf(Constants.MAX_CUSTOM_DIMENSIONS))); //$NON-NLS-1$
+                        LocalyticsLog.w("customDimensions size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(customDimensions.size()), Integer.valueOf(Constants.MAX_CUSTOM_DIMENSIONS)); //$NON-NLS-1$
                     }
                 }
 
@@ -498,17 +586,17 @@ public class LocalyticsSession
                  */
                 if (customDimensions.isEmpty())
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "customDimensions is empty.  Did the caller make an error?"); //$NON-NLS-1$
+                        LocalyticsLog.w("customDimensions is empty.  Did the caller make an error?"); //$NON-NLS-1$
                     }
                 }
 
                 if (customDimensions.size() > Constants.MAX_CUSTOM_DIMENSIONS)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, String.format("customDimensions size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(customDimensions.size()), Integer.valueOf(Constants.MAX_CUSTOM_DIMENSIONS))); //$NON-NLS-1$
+                        LocalyticsLog.w("customDimensions size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(customDimensions.size()), Integer.valueOf(Constants.MAX_CUSTOM_DIMENSIONS)); //$NON-NLS-1$
                     }
                 }
 
@@ -536,6 +624,45 @@ public class LocalyticsSession
         }
     }
 
+    /**
+     * Pauses the Localytics session, for example when the app goes to the background. This is a lightweight alternative to
+     * {@link #close()} for apps that are paused and resumed often.
+     * <p>
+     * The session stays open and is held by an in-memory lease for {@link Constants#SESSION_EXPIRATION}. If {@link #resume()} is
+     * called before the lease expires, the session simply continues and no database work is done for either call. Otherwise the
+     * session is closed as of the pause, or of the last event tagged while paused if that is later, and a lifecycle upload is
+     * requested, just as if {@link #close()} and {@link #uploadIfBatchReady()} had been called then.
+     * <p>
+     * The lease is not persisted. If the process is killed while the lease is held, the session is left unclosed, and the next
+     * {@link #open()} closes it as of its last event.
+     */
+    public void pause()
+    {
+        pause(null);
+    }
+
+    /**
+     * Behaves like {@link #pause()}, except that when the lease expires {@code onLeaseExpired} is run instead of requesting the
+     * lifecycle upload. This lets an app that coalesces its own lifecycle uploads, for example with a debounce window started
+     * by the pause, fold the upload of the closed session into the same window.
+     *
+     * @param onLeaseExpired Run on the session handler thread after the paused session is closed, and must therefore return
+     *            quickly, typically by handing off to the app's own thread. If null, {@link #uploadIfBatchReady()} is implied.
+     */
+    public void pause(final Runnable onLeaseExpired)
+    {
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_PAUSE, onLeaseExpired));
+    }
+
+    /**
+     * Resumes a session paused with {@link #pause()}. If the lease of the paused session has expired, this behaves like
+     * {@link #open()}.
+     */
+    public void resume()
+    {
+        mSessionHandler.sendEmptyMessage(SessionHandler.MESSAGE_RESUME);
+    }
+
     /**
      * Behaves identically to calling {@code tagEvent(event, null, null, 0)}.
      *
@@ -627,15 +754,46 @@ public class LocalyticsSession
      *            accounts. For non-enterprise accounts, custom dimensions will be uploaded but will not be accessible in reports
      *            until the account is upgraded to enterprise status.
      * @param customerValueIncrease Added to customer lifetime value. Try to use lowest possible unit, such as cents for US currency. 
+     *            An event with a non-zero customer value increase is tagged with {@link #PRIORITY_HIGH}, otherwise with
+     *            {@link #PRIORITY_NORMAL}.
      * @throws IllegalArgumentException if {@code event} is null.
      * @throws IllegalArgumentException if {@code event} is empty.
      * @throws IllegalArgumentException if {@code attributes} contains null keys, empty keys, null values, or empty values.
      * @throws IllegalArgumentException if {@code customDimensions} contains null or empty elements.
+     * @see #tagEvent(String, Map, List, long, int)
      */
     public void tagEvent(final String event, final Map<String, String> attributes, final List<String> customDimensions, final long customerValueIncrease)
+    {
+        tagEvent(event, attributes, customDimensions, customerValueIncrease, 0 != customerValueIncrease ? PRIORITY_HIGH : PRIORITY_NORMAL);
+    }
+
+    /**
+     * Behaves like {@link #tagEvent(String, Map, List, long)}, with an explicit priority class for the event.
+     * <p>
+     * {@link #PRIORITY_NORMAL} events are batched and uploaded according to the normal upload cadence. {@link #PRIORITY_HIGH}
+     * events, such as purchases, are put into their own upload blobs and trigger a small upload of just those blobs right away.
+     * Use high priority sparingly, since every high priority event may cause a network request.
+     *
+     * @param event The name of the event which occurred. Cannot be null or empty string.
+     * @param attributes The collection of attributes for this particular event. May be null.
+     * @param customDimensions A set of custom reporting dimensions. May be null.
+     * @param customerValueIncrease Added to customer lifetime value.
+     * @param priority Either {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+     * @throws IllegalArgumentException if {@code event} is null.
+     * @throws IllegalArgumentException if {@code event} is empty.
+     * @throws IllegalArgumentException if {@code attributes} contains null keys, empty keys, null values, or empty values.
+     * @throws IllegalArgumentException if {@code customDimensions} contains null or empty elements.
+     * @throws IllegalArgumentException if {@code priority} is not a valid priority.
+     */
+    public void tagEvent(final String event, final Map<String, String> attributes, final List<String> customDimensions, final long customerValueIncrease, final int priority)
     {
         if (Constants.IS_PARAMETER_CHECKING_ENABLED)
         {
+            if (PRIORITY_NORMAL != priority && PRIORITY_HIGH != priority)
+            {
+                throw new IllegalArgumentException(String.format("priority %d is invalid", Integer.valueOf(priority))); //$NON-NLS-1$
+            }
+
             if (null == event)
             {
                 throw new IllegalArgumentException("event cannot be null"); //$NON-NLS-1$
@@ -654,17 +812,17 @@ public class LocalyticsSession
                  */
                 if (attributes.isEmpty())
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "attributes is empty.  Did the caller make an error?"); //$NON-NLS-1$
+                        LocalyticsLog.w("attributes is empty.  Did the caller make an error?"); //$NON-NLS-1$
                     }
                 }
 
                 if (attributes.size() > Constants.MAX_NUM_ATTRIBUTES)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, String.format("attributes size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(attributes.size()), Integer.valueOf(Constants.MAX_NUM_ATTRIBUTES))); //$NON-NLS-1$
+                        LocalyticsLog.w("attributes size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(attributes.size()), Integer.valueOf(Constants.MAX_NUM_ATTRIBUTES)); //$NON-NLS-1$
                     }
                 }
 
@@ -700,17 +858,17 @@ public class LocalyticsSession
                  */
                 if (customDimensions.isEmpty())
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "customDimensions is empty.  Did the caller make an error?"); //$NON-NLS-1$
+                        LocalyticsLog.w("customDimensions is empty.  Did the caller make an error?"); //$NON-NLS-1$
                     }
                 }
 
                 if (customDimensions.size() > Constants.MAX_CUSTOM_DIMENSIONS)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, String.format("customDimensions size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(customDimensions.size()), Integer.valueOf(Constants.MAX_CUSTOM_DIMENSIONS))); //$NON-NLS-1$
+                        LocalyticsLog.w("customDimensions size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(customDimensions.size()), Integer.valueOf(Constants.MAX_CUSTOM_DIMENSIONS)); //$NON-NLS-1$
                     }
                 }
 
@@ -730,9 +888,15 @@ public class LocalyticsSession
 
         final String eventString = String.format(EVENT_FORMAT, mContext.getPackageName(), event);
 
+        final int traceId = mTracing.sample();
+        if (0 != traceId)
+        {
+            mTracing.report(traceId, event, LocalyticsTracer.STAGE_ENQUEUED, SystemClock.elapsedRealtime());
+        }
+
         if (null == attributes && null == customDimensions)
         {
-            mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_TAG_EVENT, new Triple<String, Map<String, String>, Long>(eventString, null, customerValueIncrease)));
+            onEventEnqueued(mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_TAG_EVENT, priority, traceId, new Triple<String, Map<String, String>, Long>(eventString, null, customerValueIncrease))), event, traceId);
         }
         else
         {
@@ -764,7 +928,82 @@ public class LocalyticsSession
              * maximum number of attributes is exceeded the entries that occur later alphabetically will be skipped consistently.
              */
 
-            mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_TAG_EVENT, new Triple<String, Map<String, String>, Long>(eventString, new TreeMap<String, String>(remappedAttributes), customerValueIncrease)));
+            onEventEnqueued(mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_TAG_EVENT, priority, traceId, new Triple<String, Map<String, String>, Long>(eventString, new TreeMap<String, String>(remappedAttributes), customerValueIncrease))), event, traceId);
+        }
+    }
+
+    /**
+     * Behaves like {@link #tagEvent(String, Map)}, with typed attributes. Numeric, boolean, and ranged values are converted to
+     * strings on the session's handler thread rather than on the calling thread, so this is the preferred way to tag numeric
+     * telemetry from a render loop.
+     *
+     * @param event The name of the event which occurred. Cannot be null or empty string.
+     * @param attributes The attributes for this event. If this parameter is null or empty, then calling this method has the same
+     *            effect as calling {@link #tagEvent(String)}. The attributes are copied, so the object may be reused.
+     * @throws IllegalArgumentException if {@code event} is null.
+     * @throws IllegalArgumentException if {@code event} is empty.
+     */
+    public void tagTypedEvent(final String event, final EventAttributes attributes)
+    {
+        if (null == attributes || 0 == attributes.size())
+        {
+            tagEvent(event);
+            return;
+        }
+
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == event)
+            {
+                throw new IllegalArgumentException("event cannot be null"); //$NON-NLS-1$
+            }
+
+            if (0 == event.length())
+            {
+                throw new IllegalArgumentException("event cannot be empty"); //$NON-NLS-1$
+            }
+
+            if (attributes.size() > Constants.MAX_NUM_ATTRIBUTES)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("attributes size is %d, exceeding the maximum size of %d.  Did the caller make an error?", Integer.valueOf(attributes.size()), Integer.valueOf(Constants.MAX_NUM_ATTRIBUTES)); //$NON-NLS-1$
+                }
+            }
+        }
+
+        final String packageName = mContext.getPackageName();
+        final String eventString = String.format(EVENT_FORMAT, packageName, event);
+
+        final int traceId = mTracing.sample();
+        if (0 != traceId)
+        {
+            mTracing.report(traceId, event, LocalyticsTracer.STAGE_ENQUEUED, SystemClock.elapsedRealtime());
+        }
+
+        onEventEnqueued(mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_TAG_EVENT, PRIORITY_NORMAL, traceId, new Triple<String, Map<String, String>, Long>(eventString, attributes.toAttributeMap(packageName), Long.valueOf(0)))), event, traceId);
+    }
+
+    /**
+     * Records the outcome of handing an event to the session handler.
+     *
+     * @param isQueued Result of {@link Handler#sendMessage(Message)}.
+     * @param event Name of the event, without the package prefix.
+     * @param traceId Trace ID of the event, or 0 if it is not traced.
+     */
+    private void onEventEnqueued(final boolean isQueued, final String event, final int traceId)
+    {
+        if (isQueued)
+        {
+            mMetrics.mEventsEnqueued.increment();
+        }
+        else
+        {
+            mMetrics.mEventsDropped.increment();
+            if (0 != traceId)
+            {
+                mTracing.report(traceId, event, LocalyticsTracer.STAGE_DROPPED, SystemClock.elapsedRealtime());
+            }
         }
     }
 
@@ -821,9 +1060,9 @@ public class LocalyticsSession
     {
     	if (DatapointHelper.getApiLevel() < 8)
     	{
-    		if (Constants.IS_LOGGABLE)
+    		if (LocalyticsLog.isLoggable(Log.WARN))
     		{
-    			Log.w(Constants.LOG_TAG, "GCM requires API level 8 or higher"); //$NON-NLS-1$
+    			LocalyticsLog.w("GCM requires API level 8 or higher"); //$NON-NLS-1$
     		}
     	}
 
@@ -862,9 +1101,9 @@ public class LocalyticsSession
         	}
         	catch (JSONException e)
         	{
-        		if (Constants.IS_LOGGABLE)
+        		if (LocalyticsLog.isLoggable(Log.WARN))
         		{
-        			Log.w(Constants.LOG_TAG, "Failed to get campaign id or creatve id from payload"); //$NON-NLS-1$
+        			LocalyticsLog.w("Failed to get campaign id or creatve id from payload"); //$NON-NLS-1$
         		}
         	}
         }        
@@ -884,92 +1123,358 @@ public class LocalyticsSession
     {
         mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_UPLOAD, null));
     }
-    
 
-    /*
-     * This is useful, but not necessarily needed for the public API. If so desired, someone can uncomment this out.
+    /**
+     * Behaves like {@link #upload()}, except that the upload is skipped while fewer events are pending than the minimum batch of
+     * the current {@link UploadPolicy}. This is intended for uploads triggered by lifecycle transitions, such as the app going
+     * into the background, so that frequent transitions do not produce many tiny uploads. Without an upload policy this is
+     * identical to {@link #upload()}.
+     *
+     * @see #setUploadPolicy(UploadPolicy)
      */
-    // /**
-    // * Initiates an upload of any Localytics data for this session's API key. This should be done early in the process life in
-    // * order to guarantee as much time as possible for slow connections to complete. It is necessary to do this even if the user
-    // * has opted out because this is how the opt out is transported to the webservice.
-    // *
-    // * @param callback a Runnable to execute when the upload completes. A typical use case would be to notify the caller that
-    // the
-    // * upload has completed. This runnable will be executed on an undefined thread, so the caller should anticipate
-    // * this runnable NOT executing on the main thread or the thread that calls {@link #upload}. This parameter may be
-    // * null.
-    // */
-    // public void upload(final Runnable callback)
-    // {
-    // mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_UPLOAD, callback));
-    // }
+    public void uploadIfBatchReady()
+    {
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_UPLOAD, SessionEngine.UPLOAD_REASON_LIFECYCLE, 0, null));
+    }
 
     /**
-     * Sorts an int value into a set of regular intervals as defined by the minimum, maximum, and step size. Both the min and max
-     * values are inclusive, and in the instance where (max - min + 1) is not evenly divisible by step size, the method guarantees
-     * only the minimum and the step size to be accurate to specification, with the new maximum will be moved to the next regular
-     * step.
+     * Sets the policy that starts uploads automatically when pending events cross a threshold of count, age, or estimated size.
+     * <p>
+     * By default there is no policy and uploads only happen when requested.
      *
-     * @param actualValue The int value to be sorted.
-     * @param minValue The int value representing the inclusive minimum interval.
-     * @param maxValue The int value representing the inclusive maximum interval.
-     * @param step The int value representing the increment of each interval.
-     * @return a ranged attribute suitable for passing as the argument to {@link #tagEvent(String)} or
-     *         {@link #tagEvent(String, Map)}.
+     * @param policy The policy to apply, or null to disable automatic uploads.
      */
-    public static String createRangedAttribute(final int actualValue, final int minValue, final int maxValue, final int step)
+    public void setUploadPolicy(final UploadPolicy policy)
     {
-        // Confirm there is at least one bucket
-        if (step < 1)
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_SET_UPLOAD_POLICY, policy));
+    }
+
+    /**
+     * Sets the quota on the data kept on disk for this API key while it waits to be uploaded. When the quota is exceeded, older
+     * data is evicted as new events are written, so new sessions are never refused.
+     * <p>
+     * By default {@link StorageQuota#DEFAULT} applies.
+     *
+     * @param quota The quota to apply, or null to restore {@link StorageQuota#DEFAULT}.
+     */
+    public void setStorageQuota(final StorageQuota quota)
+    {
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_SET_STORAGE_QUOTA, quota));
+    }
+
+    /**
+     * Sets the scheduler that decides whether uploads are sent now or held for better network or power conditions. Held uploads
+     * stay on disk and are sent by a later upload.
+     * <p>
+     * By default there is no scheduler and uploads are sent whenever a connection attempt can be made.
+     *
+     * @param scheduler The scheduler to consult before each upload, or null to always upload.
+     */
+    public void setUploadScheduler(final UploadScheduler scheduler)
+    {
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_SET_UPLOAD_SCHEDULER, scheduler));
+    }
+
+    /**
+     * Controls whether upload blobs are serialized when they are built. When enabled, each blob is converted to JSON and
+     * compressed once, and the stored bytes are sent on every upload attempt of that blob. This avoids converting the same
+     * events again each time a failed upload is retried, at the cost of keeping the compressed payload on disk until the upload
+     * succeeds. Blobs built while this is disabled are still converted at upload time.
+     * <p>
+     * This is disabled by default.
+     *
+     * @param isEnabled True to serialize upload blobs when they are built.
+     */
+    public void setUploadBlobSerializationEnabled(final boolean isEnabled)
+    {
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_SET_BLOB_SERIALIZATION, isEnabled ? 1 : 0, 0));
+    }
+
+    /**
+     * Gets the upload state of this session's API key. This is intended for diagnostics and can be called from any thread without
+     * blocking.
+     *
+     * @return One of {@link UploadState#IDLE}, {@link UploadState#BUILDING}, {@link UploadState#UPLOADING}, or
+     *         {@link UploadState#BACKOFF}.
+     */
+    public int getUploadState()
+    {
+        return mUploadState.get();
+    }
+
+    /**
+     * Gets a snapshot of the library's internal metrics for this session's API key: event counts, queue depth, database and
+     * upload latencies, and upload volume. The metrics are recorded even when logging is disabled, so that an app can forward
+     * them to its own telemetry. This can be called from any thread without blocking.
+     *
+     * @return Metrics accumulated since the process started, shared by all sessions for this API key.
+     */
+    public LocalyticsMetrics getMetrics()
+    {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * Gets a snapshot of the Localytics database for this session's API key: row counts, file size, free pages, the age of the
+     * oldest pending event, and the size of the pending upload. This is intended for monitoring the backlog on devices that
+     * don't upload often enough.
+     * <p>
+     * The snapshot is taken on the session handler thread once every call made on this session before this one has been
+     * processed, so this blocks the calling thread for up to {@code timeoutMillis}. Like {@link #flush(long, boolean)}, this
+     * method must not be called from an {@link UploadListener} or {@link LocalyticsTracer}.
+     *
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @return A snapshot of the database, or null if it wasn't taken before the deadline.
+     * @throws IllegalArgumentException if {@code timeoutMillis} is negative.
+     */
+    public StorageStats getStorageStats(final long timeoutMillis)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
         {
-            if (Constants.IS_LOGGABLE)
+            if (timeoutMillis < 0)
             {
-                Log.v(Constants.LOG_TAG, "Step must not be less than zero.  Returning null."); //$NON-NLS-1$
+                throw new IllegalArgumentException("timeoutMillis cannot be negative"); //$NON-NLS-1$
             }
-            return null;
         }
-        if (minValue >= maxValue)
+
+        final StorageStatsRequest request = new StorageStatsRequest();
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_GET_STORAGE_STATS, request));
+
+        try
         {
-            if (Constants.IS_LOGGABLE)
+            if (request.mDone.await(timeoutMillis, TimeUnit.MILLISECONDS))
             {
-                Log.v(Constants.LOG_TAG, "maxValue must not be less than minValue.  Returning null."); //$NON-NLS-1$
+                return request.mStats;
             }
-            return null;
         }
-
-        // Determine the number of steps, rounding up using int math
-        final int stepQuantity = (maxValue - minValue + step) / step;
-        final int[] steps = new int[stepQuantity + 1];
-        for (int currentStep = 0; currentStep <= stepQuantity; currentStep++)
+        catch (final InterruptedException e)
         {
-            steps[currentStep] = minValue + (currentStep) * step;
+            Thread.currentThread().interrupt();
         }
-        return createRangedAttribute(actualValue, steps);
+
+        return null;
     }
 
     /**
-     * Sorts an int value into a predefined, pre-sorted set of intervals, returning a string representing the new expected value.
-     * The array must be sorted in ascending order, with the first element representing the inclusive lower bound and the last
-     * element representing the exclusive upper bound. For instance, the array [0,1,3,10] will provide the following buckets: less
-     * than 0, 0, 1-2, 3-9, 10 or greater.
+     * Installs a tracer that follows a sample of the events tagged for this session's API key, from {@code tagEvent} until the
+     * server acknowledges them. When no tracer is installed, tracing adds no work beyond a single field read per event.
+     * <p>
+     * The tracer applies to all sessions for this API key. Installing a new tracer, or removing it, abandons the traces in
+     * progress.
      *
-     * @param actualValue The int value to be bucketed.
-     * @param steps The sorted int array representing the bucketing intervals.
-     * @return String representation of {@code actualValue} that has been bucketed into the range provided by {@code steps}.
-     * @throws IllegalArgumentException if {@code steps} is null.
-     * @throws IllegalArgumentException if {@code steps} has length 0.
+     * @param tracer Tracer to install, or null to stop tracing.
+     * @param sampleInterval One in this many events is traced. 1 traces every event.
+     * @throws IllegalArgumentException if {@code sampleInterval} is less than 1.
      */
-    public static String createRangedAttribute(final int actualValue, final int[] steps)
+    public void setTracer(final LocalyticsTracer tracer, final int sampleInterval)
     {
-        if (null == steps)
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
         {
-            throw new IllegalArgumentException("steps cannot be null"); //$NON-NLS-1$
+            if (sampleInterval < 1)
+            {
+                throw new IllegalArgumentException("sampleInterval must be at least 1"); //$NON-NLS-1$
+            }
         }
 
-        if (steps.length == 0)
+        mTracing.setTracer(tracer, sampleInterval);
+    }
+
+
+    /**
+     * Initiates an upload of any Localytics data for this session's API key. This should be done early in the process life in
+     * order to guarantee as much time as possible for slow connections to complete. It is necessary to do this even if the user
+     * has opted out because this is how the opt out is transported to the webservice.
+     *
+     * @param listener Notified when the upload completes, with the bytes sent, blobs uploaded, HTTP status and duration of the
+     *            attempt. The listener is invoked on a shared background thread, never on the main thread or the thread that
+     *            calls this method. This parameter may be null.
+     */
+    public void upload(final UploadListener listener)
+    {
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_UPLOAD, listener));
+    }
+
+    /**
+     * Behaves identically to calling {@code flush(timeoutMillis, false)}.
+     *
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @return How much of the queued work completed before the deadline.
+     * @see #flush(long, boolean)
+     */
+    public FlushResult flush(final long timeoutMillis)
+    {
+        return flush(timeoutMillis, false);
+    }
+
+    /**
+     * Blocks until every call made on this session before the flush has been written to the database and, optionally, until an
+     * upload of everything on disk has completed, or until {@code timeoutMillis} elapses. This lets an app trade shutdown latency
+     * for data completeness, for example after {@link #close()} when the app is about to exit.
+     * <p>
+     * The work continues in the background after a timeout; only the wait is bounded. This method must not be called from an
+     * {@link UploadListener} or {@link LocalyticsTracer}, since those may run on threads the flush waits for.
+     *
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @param isUploading True to also upload and wait for the upload to complete.
+     * @return How much of the queued work completed before the deadline.
+     * @throws IllegalArgumentException if {@code timeoutMillis} is negative.
+     */
+    public FlushResult flush(final long timeoutMillis, final boolean isUploading)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
         {
-            throw new IllegalArgumentException("steps length must be greater than 0"); //$NON-NLS-1$
+            if (timeoutMillis < 0)
+            {
+                throw new IllegalArgumentException("timeoutMillis cannot be negative"); //$NON-NLS-1$
+            }
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        final long deadline = start + timeoutMillis;
+
+        final FlushRequest request = new FlushRequest(isUploading);
+        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_FLUSH, request));
+
+        boolean isPersisted = false;
+        UploadResult uploadResult = null;
+        try
+        {
+            isPersisted = request.mPersisted.await(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+            if (isPersisted && isUploading && request.mUploaded.await(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS))
+            {
+                uploadResult = request.mUploadResult;
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return new FlushResult(isPersisted, isUploading, uploadResult, SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * {@link Message#obj} of {@link SessionHandler#MESSAGE_FLUSH}, through which the session handler signals the waiting caller.
+     */
+    /* package */static final class FlushRequest implements UploadListener
+    {
+        /**
+         * Released once the session handler processes the flush, meaning every earlier message was processed.
+         */
+        /* package */final CountDownLatch mPersisted = new CountDownLatch(1);
+
+        /**
+         * Released once the upload completes.
+         */
+        /* package */final CountDownLatch mUploaded = new CountDownLatch(1);
+
+        /**
+         * Whether to upload after the earlier messages are processed.
+         */
+        /* package */final boolean mIsUploading;
+
+        /**
+         * Result of the upload. Written before {@link #mUploaded} is released.
+         */
+        /* package */volatile UploadResult mUploadResult;
+
+        /**
+         * @param isUploading True to upload after the earlier messages are processed.
+         */
+        /* package */FlushRequest(final boolean isUploading)
+        {
+            mIsUploading = isUploading;
+        }
+
+        public void onUploadComplete(final UploadResult result)
+        {
+            mUploadResult = result;
+            mUploaded.countDown();
+        }
+    }
+
+    /**
+     * {@link Message#obj} of {@link SessionHandler#MESSAGE_GET_STORAGE_STATS}, through which the session handler returns the
+     * snapshot to the waiting caller.
+     */
+    /* package */static final class StorageStatsRequest
+    {
+        /**
+         * Released once the session handler has processed the request, whether or not the snapshot could be taken.
+         */
+        /* package */final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * The snapshot, or null if taking it failed. Written before {@link #mDone} is released.
+         */
+        /* package */volatile StorageStats mStats;
+    }
+
+    /**
+     * Sorts an int value into a set of regular intervals as defined by the minimum, maximum, and step size. Both the min and max
+     * values are inclusive, and in the instance where (max - min + 1) is not evenly divisible by step size, the method guarantees
+     * only the minimum and the step size to be accurate to specification, with the new maximum will be moved to the next regular
+     * step.
+     *
+     * @param actualValue The int value to be sorted.
+     * @param minValue The int value representing the inclusive minimum interval.
+     * @param maxValue The int value representing the inclusive maximum interval.
+     * @param step The int value representing the increment of each interval.
+     * @return a ranged attribute suitable for passing as the argument to {@link #tagEvent(String)} or
+     *         {@link #tagEvent(String, Map)}.
+     */
+    public static String createRangedAttribute(final int actualValue, final int minValue, final int maxValue, final int step)
+    {
+        // Confirm there is at least one bucket
+        if (step < 1)
+        {
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("Step must not be less than zero.  Returning null."); //$NON-NLS-1$
+            }
+            return null;
+        }
+        if (minValue >= maxValue)
+        {
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("maxValue must not be less than minValue.  Returning null."); //$NON-NLS-1$
+            }
+            return null;
+        }
+
+        // Determine the number of steps, rounding up using int math
+        final int stepQuantity = (maxValue - minValue + step) / step;
+        final int[] steps = new int[stepQuantity + 1];
+        for (int currentStep = 0; currentStep <= stepQuantity; currentStep++)
+        {
+            steps[currentStep] = minValue + (currentStep) * step;
+        }
+        return createRangedAttribute(actualValue, steps);
+    }
+
+    /**
+     * Sorts an int value into a predefined, pre-sorted set of intervals, returning a string representing the new expected value.
+     * The array must be sorted in ascending order, with the first element representing the inclusive lower bound and the last
+     * element representing the exclusive upper bound. For instance, the array [0,1,3,10] will provide the following buckets: less
+     * than 0, 0, 1-2, 3-9, 10 or greater.
+     *
+     * @param actualValue The int value to be bucketed.
+     * @param steps The sorted int array representing the bucketing intervals.
+     * @return String representation of {@code actualValue} that has been bucketed into the range provided by {@code steps}.
+     * @throws IllegalArgumentException if {@code steps} is null.
+     * @throws IllegalArgumentException if {@code steps} has length 0.
+     */
+    public static String createRangedAttribute(final int actualValue, final int[] steps)
+    {
+        if (null == steps)
+        {
+            throw new IllegalArgumentException("steps cannot be null"); //$NON-NLS-1$
+        }
+
+        if (steps.length == 0)
+        {
+            throw new IllegalArgumentException("steps length must be greater than 0"); //$NON-NLS-1$
         }
 
         String bucket = null;
@@ -1073,7 +1578,8 @@ public class LocalyticsSession
     }
 
     /**
-     * Helper class to handle session-related work on the {@link LocalyticsSession#sSessionHandlerThread}.
+     * Android adapter that runs a {@link SessionEngine} on a thread from {@link LocalyticsSession#sSessionHandlerThreads}. Each
+     * message is forwarded to the engine method that handles it.
      */
     /* package */static final class SessionHandler extends Handler
     {
@@ -1101,24 +1607,20 @@ public class LocalyticsSession
         /**
          * Handler message to tag an event.
          * <p>
-         * {@link Message#obj} is a {@link Pair} instance. This object cannot be null.
+         * {@link Message#obj} is a {@link Triple} instance. This object cannot be null. {@link Message#arg1} is the priority of
+         * the event.
          */
         public static final int MESSAGE_TAG_EVENT = 3;
 
         /**
          * Handler message to upload all data collected so far
          * <p>
-         * {@link Message#obj} is a {@code Runnable} to execute when upload is complete. The thread that this runnable will
-         * executed on is undefined.
+         * {@link Message#obj} is an {@link UploadListener} to notify when upload is complete, or null. The thread that the
+         * listener will be notified on is undefined. {@link Message#arg1} is the reason for the upload, such as
+         * {@link SessionEngine#UPLOAD_REASON_EXPLICIT}.
          */
         public static final int MESSAGE_UPLOAD = 4;
 
-        /**
-         * Empty Handler message indicating that a previously requested upload attempt was completed. This does not mean the
-         * attempt was successful. A callback occurs regardless of whether upload succeeded.
-         */
-        public static final int MESSAGE_UPLOAD_CALLBACK = 5;
-
         /**
          * Handler message indicating an opt-out choice.
          * <p>
@@ -1132,7 +1634,7 @@ public class LocalyticsSession
          * {@link Message#obj} is a string representing the screen visited.
          */
         public static final int MESSAGE_TAG_SCREEN = 7;
-        
+
         /**
          * Handler message indicating a set identifier action
          * <p>
@@ -1153,47 +1655,73 @@ public class LocalyticsSession
          * {@link Message#obj} is a string representing the push registration id.
          */
         public static final int MESSAGE_SET_PUSH_REGID = 10;
-        
+
         /**
-         * Sort order for the upload blobs.
+         * Handler message indicating whether upload blobs are serialized when they are built.
          * <p>
-         * This is a workaround for Android bug 3707 <http://code.google.com/p/android/issues/detail?id=3707>.
+         * {@link Message#arg1} == 1 for true (serialize blobs). 0 means blobs are converted at upload time.
          */
-        private static final String UPLOAD_BLOBS_EVENTS_SORT_ORDER = String.format("CAST(%s AS TEXT)", UploadBlobEventsDbColumns.EVENTS_KEY_REF); //$NON-NLS-1$
+        public static final int MESSAGE_SET_BLOB_SERIALIZATION = 11;
 
         /**
-         * Sort order for the events.
+         * Handler message to set the upload policy.
          * <p>
-         * This is a workaround for Android bug 3707 <http://code.google.com/p/android/issues/detail?id=3707>.
+         * {@link Message#obj} is an {@link UploadPolicy}, or null to disable automatic uploads.
          */
-        private static final String EVENTS_SORT_ORDER = String.format("CAST(%s as TEXT)", EventsDbColumns._ID); //$NON-NLS-1$
+        public static final int MESSAGE_SET_UPLOAD_POLICY = 12;
 
         /**
-         * Application context
+         * Handler message to set the upload scheduler. The scheduler is handed to the {@link UploadEngine}.
+         * <p>
+         * {@link Message#obj} is an {@link UploadScheduler}, or null to always upload.
          */
-        private final Context mContext;
+        public static final int MESSAGE_SET_UPLOAD_SCHEDULER = 14;
 
         /**
-         * Localytics database
+         * Handler message to pause the session. The session stays open until it is resumed, or until
+         * {@link Constants#SESSION_EXPIRATION} later.
+         * <p>
+         * {@link Message#obj} is a {@link Runnable} to run instead of the lifecycle upload when the lease expires, or null.
          */
-        protected LocalyticsProvider mProvider;
+        public static final int MESSAGE_PAUSE = 15;
 
         /**
-         * The Localytics API key for the session.
+         * Empty handler message to resume the session. If the session lease is still held, it is released without any database
+         * work. Otherwise this behaves like {@link #MESSAGE_OPEN}.
          */
-        private final String mApiKey;
+        public static final int MESSAGE_RESUME = 16;
 
         /**
-         * {@link ApiKeysDbColumns#_ID} for the API key used by this Localytics session handler.
+         * Handler message to signal a waiting {@link LocalyticsSession#flush(long, boolean)} that every earlier message was
+         * processed, and optionally to upload.
+         * <p>
+         * {@link Message#obj} is a {@link FlushRequest}. This object cannot be null.
          */
-        private long mApiKeyId;
+        public static final int MESSAGE_FLUSH = 18;
+
+        /**
+         * Handler message to set the storage quota.
+         * <p>
+         * {@link Message#obj} is a {@link StorageQuota}, or null for {@link StorageQuota#DEFAULT}.
+         */
+        public static final int MESSAGE_SET_STORAGE_QUOTA = 20;
 
         /**
-         * Handler object where all upload of this instance of LocalyticsSession are handed off to.
+         * Handler message to take a snapshot of the database for {@link LocalyticsSession#getStorageStats(long)}.
          * <p>
-         * This handler runs on {@link #sUploadHandlerThread}.
+         * {@link Message#obj} is a {@link StorageStatsRequest}. This object cannot be null.
+         */
+        public static final int MESSAGE_GET_STORAGE_STATS = 21;
+
+        /**
+         * Engine that the messages are forwarded to. It runs on this handler's looper.
+         */
+        private final SessionEngine mEngine;
+
+        /**
+         * Metrics for the API key of {@link #mEngine}.
          */
-        private Handler mUploadHandler;
+        private final MetricsRegistry mMetrics;
 
         /**
          * Constructs a new Handler that runs on the given looper.
@@ -1210,1116 +1738,3146 @@ public class LocalyticsSession
         {
             super(looper);
 
-            if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+            mEngine = new SessionEngine(context, key, new AndroidTaskExecutor(looper), new AndroidTaskExecutor(sUploadHandlerThreads.getLooper(key)), new AndroidTaskExecutor(sUploadTransmitterThreads.getLooper(key)), null, new AndroidClock(), new HttpUploadTransport());
+            mMetrics = MetricsRegistry.getInstance(key);
+        }
+
+        /**
+         * Tracks the depth of the queue in {@link #mMetrics}. The engine's timers are posted through its {@link TaskExecutor}
+         * and are not counted, as they may be cancelled without being handled.
+         */
+        @Override
+        public boolean sendMessageAtTime(final Message msg, final long uptimeMillis)
+        {
+            final boolean isQueued = super.sendMessageAtTime(msg, uptimeMillis);
+            if (isQueued)
             {
-                if (null == context)
-                {
-                    throw new IllegalArgumentException("context cannot be null"); //$NON-NLS-1$
-                }
-                if (TextUtils.isEmpty(key))
-                {
-                    throw new IllegalArgumentException("key cannot be null or empty"); //$NON-NLS-1$
-                }
+                mMetrics.onMessageQueued();
             }
-
-            mContext = context;
-            mApiKey = key;
+            return isQueued;
         }
 
         @Override
         public void handleMessage(final Message msg)
         {
-            try
+            mMetrics.onMessageDequeued();
+
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
             {
-                super.handleMessage(msg);
+                LocalyticsLog.v("Handler received %s", msg); //$NON-NLS-1$
+            }
 
-                if (Constants.IS_LOGGABLE)
+            switch (msg.what)
+            {
+                case MESSAGE_INIT:
                 {
-                    Log.v(Constants.LOG_TAG, String.format("Handler received %s", msg)); //$NON-NLS-1$
+                    mEngine.start();
+                    break;
                 }
-
-                switch (msg.what)
+                case MESSAGE_OPT_OUT:
                 {
-                    case MESSAGE_INIT:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.v(Constants.LOG_TAG, "Handler received MESSAGE_INIT"); //$NON-NLS-1$
-                        }
-
-                        SessionHandler.this.init();
+                    mEngine.handleOptOut(msg.arg1 == 0 ? false : true);
+                    break;
+                }
+                case MESSAGE_OPEN:
+                {
+                    @SuppressWarnings("unchecked")
+                    final Map<String, String> attributes = (Map<String, String>) msg.obj;
+                    mEngine.handleOpen(attributes);
+                    break;
+                }
+                case MESSAGE_CLOSE:
+                {
+                    @SuppressWarnings("unchecked")
+                    final Map<String, String> attributes = (Map<String, String>) msg.obj;
+                    mEngine.handleClose(attributes);
+                    break;
+                }
+                case MESSAGE_TAG_EVENT:
+                {
+                    @SuppressWarnings("unchecked")
+                    final Triple<String, Map<String, String>, Long> triple = (Triple<String, Map<String, String>, Long>) msg.obj;
+                    mEngine.handleTagEvent(triple.first, triple.second, triple.third, msg.arg1, msg.arg2);
+                    break;
+                }
+                case MESSAGE_TAG_SCREEN:
+                {
+                    mEngine.handleTagScreen((String) msg.obj);
+                    break;
+                }
+                case MESSAGE_SET_IDENTIFIER:
+                {
+                    @SuppressWarnings("unchecked")
+                    final Pair<String, String> pair = (Pair<String, String>) msg.obj;
+                    mEngine.handleSetIdentifier(pair.first, pair.second);
+                    break;
+                }
+                case MESSAGE_REGISTER_PUSH:
+                {
+                    mEngine.handleRegisterPush((String) msg.obj);
+                    break;
+                }
+                case MESSAGE_SET_PUSH_REGID:
+                {
+                    mEngine.handleSetPushRegistrationId((String) msg.obj);
+                    break;
+                }
+                case MESSAGE_UPLOAD:
+                {
+                    /*
+                     * Note that listener may be null
+                     */
+                    mEngine.handleUpload((UploadListener) msg.obj, msg.arg1);
+                    break;
+                }
+                case MESSAGE_SET_BLOB_SERIALIZATION:
+                {
+                    mEngine.handleSetBlobSerialization(msg.arg1 == 0 ? false : true);
+                    break;
+                }
+                case MESSAGE_SET_UPLOAD_POLICY:
+                {
+                    mEngine.handleSetUploadPolicy((UploadPolicy) msg.obj);
+                    break;
+                }
+                case MESSAGE_SET_STORAGE_QUOTA:
+                {
+                    mEngine.handleSetStorageQuota((StorageQuota) msg.obj);
+                    break;
+                }
+                case MESSAGE_SET_UPLOAD_SCHEDULER:
+                {
+                    mEngine.handleSetUploadScheduler((UploadScheduler) msg.obj);
+                    break;
+                }
+                case MESSAGE_PAUSE:
+                {
+                    mEngine.handlePause((Runnable) msg.obj);
+                    break;
+                }
+                case MESSAGE_RESUME:
+                {
+                    mEngine.handleResume();
+                    break;
+                }
+                case MESSAGE_FLUSH:
+                {
+                    mEngine.handleFlush((FlushRequest) msg.obj);
+                    break;
+                }
+                case MESSAGE_GET_STORAGE_STATS:
+                {
+                    mEngine.handleGetStorageStats((StorageStatsRequest) msg.obj);
+                    break;
+                }
+                default:
+                {
+                    /*
+                     * This should never happen
+                     */
+                    throw new RuntimeException("Fell through switch statement"); //$NON-NLS-1$
+                }
+            }
+        }
+    }
 
-                        break;
-                    }
-                    case MESSAGE_OPT_OUT:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.v(Constants.LOG_TAG, "Handler received MESSAGE_OPT_OUT"); //$NON-NLS-1$
-                        }
+    /**
+     * Session logic for an API key, independent of the Android message queue. The engine is driven by calling its
+     * {@code handle} methods, and schedules its own work through a {@link TaskExecutor}. On a device, {@link SessionHandler}
+     * forwards its messages to the engine.
+     * <p>
+     * The engine is not thread-safe. Its methods must be called from the thread of its {@link TaskExecutor}, which is called
+     * the session handler thread below.
+     */
+    /* package */static final class SessionEngine
+    {
+        /**
+         * {@link Message#arg1} of {@link SessionHandler#MESSAGE_UPLOAD} for an upload explicitly requested by the app.
+         */
+        public static final int UPLOAD_REASON_EXPLICIT = 0;
 
-                        final boolean isOptingOut = msg.arg1 == 0 ? false : true;
+        /**
+         * {@link Message#arg1} of {@link SessionHandler#MESSAGE_UPLOAD} for an upload requested on a lifecycle transition. This
+         * upload is skipped while the {@link UploadPolicy} minimum batch is not reached.
+         */
+        public static final int UPLOAD_REASON_LIFECYCLE = 1;
 
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            public void run()
-                            {
-                                SessionHandler.this.optOut(isOptingOut);
-                            }
-                        });
+        /**
+         * Reason for an upload started because the {@link UploadPolicy} thresholds were crossed.
+         */
+        public static final int UPLOAD_REASON_POLICY = 2;
 
-                        break;
-                    }
-                    case MESSAGE_OPEN:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.v(Constants.LOG_TAG, "Handler received MESSAGE_OPEN"); //$NON-NLS-1$
-                        }
+        /**
+         * Reason for an expedited upload of only the high priority events, started when a high priority event is tagged.
+         */
+        public static final int UPLOAD_REASON_PRIORITY = 3;
 
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            @SuppressWarnings("unchecked")
-                            public void run()
-                            {
-                                SessionHandler.this.open(false, (Map<String, String>) msg.obj);
-                            }
-                        });
+        /**
+         * Estimated size in bytes of an event once converted for upload, excluding its name and attributes.
+         */
+        /* package */static final long ESTIMATED_EVENT_BYTES = 256;
 
-                        break;
-                    }
-                    case MESSAGE_CLOSE:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_CLOSE"); //$NON-NLS-1$
-                        }
+        /**
+         * Estimated size in bytes of an attribute once converted for upload, excluding its key and value.
+         */
+        /* package */static final long ESTIMATED_ATTRIBUTE_BYTES = 8;
 
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            @SuppressWarnings("unchecked")
-                            public void run()
-                            {
-                                SessionHandler.this.close((Map<String, String>) msg.obj);
-                            }
-                        });
+        /**
+         * Minimum delay in milliseconds between two scheduled checks of the upload policy.
+         */
+        private static final long MIN_UPLOAD_POLICY_CHECK_DELAY = 10 * DateUtils.SECOND_IN_MILLIS;
+        
+        /**
+         * Sort order for the upload blobs.
+         * <p>
+         * This is a workaround for Android bug 3707 <http://code.google.com/p/android/issues/detail?id=3707>.
+         */
+        private static final String UPLOAD_BLOBS_EVENTS_SORT_ORDER = String.format("CAST(%s AS TEXT)", UploadBlobEventsDbColumns.EVENTS_KEY_REF); //$NON-NLS-1$
 
-                        break;
-                    }
-                    case MESSAGE_TAG_EVENT:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_TAG_EVENT"); //$NON-NLS-1$
-                        }
+        /**
+         * Sort order for the events.
+         * <p>
+         * This is a workaround for Android bug 3707 <http://code.google.com/p/android/issues/detail?id=3707>.
+         */
+        private static final String EVENTS_SORT_ORDER = String.format("CAST(%s as TEXT)", EventsDbColumns._ID); //$NON-NLS-1$
 
-                        @SuppressWarnings("unchecked")
-                        final Triple<String, Map<String, String>, Long> triple = (Triple<String, Map<String, String>, Long>) msg.obj;
- 
-                        final String event = triple.first;
-                        final Map<String, String> attributes = triple.second;
-                        final Long clv = triple.third;
+        /**
+         * Application context
+         */
+        private final Context mContext;
 
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            public void run()
-                            {
-                                if (null != getOpenSessionId(mProvider))
-                                {
-                                    tagEvent(event, attributes, clv);
-                                }
-                                else
-                                {
-                                    /*
-                                     * The open and close only care about custom dimensions
-                                     */
-                                    final Map<String, String> openCloseAttributes;
-                                    if (null == attributes)
-                                    {
-                                        openCloseAttributes = null;
-                                    }
-                                    else if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9)
-                                            || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10))
-                                    {
-                                        openCloseAttributes = new TreeMap<String, String>();
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9));
-                                        }
-                                        if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10))
-                                        {
-                                            openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10));
-                                        }
-                                    }
-                                    else
-                                    {
-                                        openCloseAttributes = null;
-                                    }
+        /**
+         * Localytics database
+         */
+        protected LocalyticsStorage mProvider;
 
-                                    open(false, openCloseAttributes);
-                                    tagEvent(event, attributes, clv);
-                                    close(openCloseAttributes);
-                                }
-                            }
-                        });
+        /**
+         * The Localytics API key for the session.
+         */
+        private final String mApiKey;
 
-                        break;
-                    }
-                    case MESSAGE_TAG_SCREEN:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_TAG_SCREEN"); //$NON-NLS-1$
-                        }
+        /**
+         * Upload state for {@link #mApiKey}. Only one upload for a given key can be in progress at a time.
+         */
+        private final UploadState mUploadState;
 
-                        final String screen = (String) msg.obj;
+        /**
+         * Metrics for {@link #mApiKey}.
+         */
+        private final MetricsRegistry mMetrics;
 
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            public void run()
-                            {
-                                SessionHandler.this.tagScreen(screen);
-                            }
-                        });
+        /**
+         * Event tracing for {@link #mApiKey}.
+         */
+        private final EventTracing mTracing;
 
-                        break;
-                    }
-                    case MESSAGE_SET_IDENTIFIER:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_SET_IDENTIFIER"); //$NON-NLS-1$
-                        }
+        /**
+         * Source of the current time.
+         */
+        private final Clock mClock;
 
-                        @SuppressWarnings("unchecked")
-                        final Pair<String, String> pair = (Pair<String, String>) msg.obj;
-                        final String key = pair.first;
-                        final String value = pair.second;
-                        
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            public void run()
-                            {
-                                SessionHandler.this.setIdentifier(key, value);
-                            }
-                        });
+        /**
+         * Executor for the session handler thread, which runs the engine's timers and the requests of the {@link UploadEngine}.
+         */
+        private final TaskExecutor mExecutor;
 
-                        break;
-                    }
-                    case MESSAGE_REGISTER_PUSH:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_REGISTER_PUSH"); //$NON-NLS-1$
-                        }
+        /**
+         * Executor for the upload thread, which opens the database before it runs the {@link UploadEngine}.
+         */
+        private final TaskExecutor mUploadExecutor;
 
-                        @SuppressWarnings("unchecked")
-                        final String senderId = (String) msg.obj;
-                        
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                        	public void run()
-                        	{
-		                        Cursor cursor = null;
-		                        
-		                        String pushRegId = null;
-		                        String pushRegVersion = null;
-		                        try
-		                        {
-		                            cursor = mProvider.query(InfoDbColumns.TABLE_NAME, null, null, null, null); //$NON-NLS-1$
-		
-		                            if (cursor.moveToFirst())
-		                            {           
-		                            	pushRegVersion = cursor.getString(cursor.getColumnIndexOrThrow(InfoDbColumns.REGISTRATION_VERSION));
-		                            	pushRegId = cursor.getString(cursor.getColumnIndexOrThrow(InfoDbColumns.REGISTRATION_ID));
-		                            }
-		                        }
-		                        finally
-		                        {
-		                            if (null != cursor)
-		                            {
-		                                cursor.close();
-		                                cursor = null;
-		                            }
-		                        }
-		                        
-		                        final String appVersion = DatapointHelper.getAppVersion(mContext);
-		                        		                        
-		                        // Only register if we don't have a registration id or if the app version has changed
-		                        if (pushRegId == null || TextUtils.isEmpty(pushRegId) || !appVersion.equals(pushRegVersion))
-		                        {
-			                        Intent registrationIntent = new Intent("com.google.android.c2dm.intent.REGISTER");
-			                        registrationIntent.putExtra("app", PendingIntent.getBroadcast(mContext, 0, new Intent(), 0));
-			                        registrationIntent.putExtra("sender", senderId);
-			                        mContext.startService(registrationIntent);
-		                        }
-                        	}
-                        });
-                        
-                        break;
-                    }                                        
-                    case MESSAGE_SET_PUSH_REGID:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_SET_PUSH_REGID"); //$NON-NLS-1$
-                        }
+        /**
+         * Executor that transmits upload chunks, handed to the {@link UploadEngine}.
+         */
+        private final TaskExecutor mTransmitter;
 
-                        @SuppressWarnings("unchecked")
-                        final String pushRegId = (String) msg.obj;
-                        
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            public void run()
-                            {
-                                SessionHandler.this.setPushRegistrationId(pushRegId);
-                            }
-                        });
+        /**
+         * Transport the upload chunks are sent with, handed to the {@link UploadEngine}.
+         */
+        private final UploadTransport mTransport;
 
-                        break;
-                    }     
-                    case MESSAGE_UPLOAD:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "SessionHandler received MESSAGE_UPLOAD"); //$NON-NLS-1$
-                        }
+        /**
+         * {@link ApiKeysDbColumns#_ID} for the API key used by this Localytics session handler.
+         */
+        private long mApiKeyId;
 
-                        /*
-                         * Note that callback may be null
-                         */
-                        final Runnable callback = (Runnable) msg.obj;
+        /**
+         * Engine that all uploads of this API key are handed off to. It runs on {@link #mUploadExecutor}.
+         */
+        private UploadEngine mUploadEngine;
 
-                        mProvider.runBatchTransaction(new Runnable()
-                        {
-                            public void run()
-                            {
-                                SessionHandler.this.upload(callback);
-                            }
-                        });
+        /**
+         * Whether {@link #preUploadBuildBlobs(LocalyticsStorage, Context, String, boolean, boolean)} stores a serialized payload
+         * for each blob it builds.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private boolean mIsSerializingBlobs;
 
-                        break;
-                    }
-                    case MESSAGE_UPLOAD_CALLBACK:
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.d(Constants.LOG_TAG, "Handler received MESSAGE_UPLOAD_CALLBACK"); //$NON-NLS-1$
-                        }
+        /**
+         * Policy for automatic uploads. Null if uploads only happen on request.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private UploadPolicy mUploadPolicy;
 
-                        sIsUploadingMap.put(mApiKey, Boolean.FALSE);
+        /**
+         * Number of events that are not yet part of an upload blob.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private long mPendingEventCount;
 
-                        break;
-                    }
-                    default:
-                    {
-                        /*
-                         * This should never happen
-                         */
-                        throw new RuntimeException("Fell through switch statement"); //$NON-NLS-1$
-                    }
-                }
-            }
-            catch (final Exception e)
-            {
-                if (Constants.IS_LOGGABLE)
-                {
-                    Log.e(Constants.LOG_TAG, "Localytics library threw an uncaught exception", e); //$NON-NLS-1$
-                }
+        /**
+         * Estimated size in bytes of the events that are not yet part of an upload blob.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private long mPendingEventBytes;
 
-                if (!Constants.IS_EXCEPTION_SUPPRESSION_ENABLED)
-                {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
+        /**
+         * {@link EventsDbColumns#WALL_TIME} of the oldest event that is not yet part of an upload blob. Only meaningful if
+         * {@link #mPendingEventCount} is greater than 0.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private long mOldestPendingEventWallTime;
 
         /**
-         * Projection for querying details of the current API key
+         * Quota on the data stored for this API key, enforced by {@link #enforceStorageQuota()}.
+         * <p>
+         * This is only accessed from the session handler thread.
          */
-        private static final String[] PROJECTION_INIT_API_KEY = new String[]
-            {
-                ApiKeysDbColumns._ID,
-                ApiKeysDbColumns.OPT_OUT,
-                ApiKeysDbColumns.UUID };
+        private StorageQuota mStorageQuota = StorageQuota.DEFAULT;
 
         /**
-         * Selection for a specific API key ID
+         * Number of events stored, including those that are part of an upload blob. Maintained as events are written, and
+         * reloaded by {@link #refreshStoredData()} when data is deleted.
+         * <p>
+         * This is only accessed from the session handler thread.
          */
-        private static final String SELECTION_INIT_API_KEY = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
+        private long mStoredEventCount;
 
         /**
-         * Initialize the handler post construction.
+         * Estimated size in bytes of the stored events, their attributes, and the serialized payloads of the upload blobs.
+         * Maintained like {@link #mStoredEventCount}.
          * <p>
-         * This method must only be called once.
+         * This is only accessed from the session handler thread.
+         */
+        private long mStoredBytes;
+
+        /**
+         * Whether a priority upload was requested while another upload was in progress.
          * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_INIT} to the Handler.
-         *
-         * @see #MESSAGE_INIT
+         * This is only accessed from the session handler thread.
          */
-        /* package */void init()
-        {
-            mProvider = LocalyticsProvider.getInstance(mContext, mApiKey);
+        private boolean mIsPriorityUploadPending;
 
-            Cursor cursor = null;
-            try
-            {
-                cursor = mProvider.query(ApiKeysDbColumns.TABLE_NAME, PROJECTION_INIT_API_KEY, SELECTION_INIT_API_KEY, new String[]
-                    { mApiKey }, null);
+        /**
+         * Whether the session is paused and its close is deferred until the lease expires.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private boolean mIsLeaseHeld;
 
-                if (cursor.moveToFirst())
-                {
-                    // API key was previously created
-                    if (Constants.IS_LOGGABLE)
-                    {
-                        Log.v(Constants.LOG_TAG, String.format("Loading details for API key %s", mApiKey)); //$NON-NLS-1$
-                    }
+        /**
+         * {@link EventsDbColumns#REAL_TIME} of the pause that acquired the lease. Only meaningful if {@link #mIsLeaseHeld}.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private long mLeaseRealTime;
 
-                    mApiKeyId = cursor.getLong(cursor.getColumnIndexOrThrow(ApiKeysDbColumns._ID));
-                }
-                else
-                {
-                    // perform first-time initialization of API key
-                    if (Constants.IS_LOGGABLE)
-                    {
-                        Log.v(Constants.LOG_TAG, String.format("Performing first-time initialization for new API key %s", mApiKey)); //$NON-NLS-1$
-                    }
+        /**
+         * {@link EventsDbColumns#REAL_TIME} the paused session is closed at: the later of the pause and the last event written
+         * while paused. Only meaningful if {@link #mIsLeaseHeld}.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private long mLeaseCloseRealTime;
 
-                    final ContentValues values = new ContentValues();
-                    values.put(ApiKeysDbColumns.API_KEY, mApiKey);
-                    values.put(ApiKeysDbColumns.UUID, UUID.randomUUID().toString());
-                    values.put(ApiKeysDbColumns.OPT_OUT, Boolean.FALSE);
-                    values.put(ApiKeysDbColumns.CREATED_TIME, Long.valueOf(System.currentTimeMillis()));
-                    
-                    mApiKeyId = mProvider.insert(ApiKeysDbColumns.TABLE_NAME, values);
-                }
-            }
-            finally
-            {
-                if (null != cursor)
-                {
-                    cursor.close();
-                    cursor = null;
-                }
-            }
+        /**
+         * {@link EventsDbColumns#WALL_TIME} the paused session is closed at, like {@link #mLeaseCloseRealTime}.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private long mLeaseCloseWallTime;
 
-            if (!sIsUploadingMap.containsKey(mApiKey))
-            {
-                sIsUploadingMap.put(mApiKey, Boolean.FALSE);
-            }
+        /**
+         * Run by {@link #expireLease()} instead of the lifecycle upload, as passed to {@link LocalyticsSession#pause(Runnable)} by
+         * the latest pause. Null to request the upload.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private Runnable mLeaseExpiredCallback;
 
-            /*
-             * Perform lazy initialization of the UploadHandler
-             */
-            mUploadHandler = new UploadHandler(mContext, this, mApiKey, getInstallationId(mProvider, mApiKey), sUploadHandlerThread.getLooper());
-        }
+        /**
+         * Incremented by {@link #releaseLease()}, so that the lease timer scheduled by a pause is ignored once its lease was
+         * released.
+         * <p>
+         * This is only accessed from the session handler thread.
+         */
+        private int mLeaseGeneration;
 
         /**
-         * Selection for {@link #optOut(boolean)}.
+         * Incremented by {@link #checkUploadPolicy()} and when the policy changes, so that only the latest scheduled check runs.
+         * <p>
+         * This is only accessed from the session handler thread.
          */
-        private static final String SELECTION_OPT_IN_OUT = String.format("%s = ?", ApiKeysDbColumns._ID); //$NON-NLS-1$
+        private int mUploadPolicyCheckGeneration;
 
         /**
-         * Set the opt-in/out-out state for all sessions using the current API key.
+         * Whether {@link #init()} has completed. Until then, requests are held in {@link #mPreInitRequests}.
          * <p>
-         * This method must only be called after {@link #init()} is called.
+         * This is only accessed from the session handler thread.
+         */
+        private boolean mIsStorageReady;
+
+        /**
+         * Requests received before the database was open, in the order they were received. Null once they have been handled.
          * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_OPT_OUT} to the Handler.
+         * This is only accessed from the session handler thread.
+         */
+        private List<BufferedRequest> mPreInitRequests = new ArrayList<BufferedRequest>();
+
+        /**
+         * Maximum number of events held in {@link #mPreInitRequests}. Further events are dropped until the database is open.
+         * Other requests are always held, as sessions depend on them and they are few.
+         */
+        private static final int MAX_PRE_INIT_EVENTS = 1000;
+
+        /**
+         * Number of events held in {@link #mPreInitRequests}.
          * <p>
-         * If a session is already open when an opt-out request is made, then data for the remainder of that session will be
-         * collected. For example, calls to {@link #tagEvent(String, Map)} and {@link #tagScreen(String)} will be recorded until
-         * {@link #close(Map)} is called.
+         * This is only accessed from the session handler thread.
+         */
+        private int mPreInitEventCount;
+
+        /**
+         * {@link Clock#elapsedRealtime()} when this engine was constructed, for {@link MetricsRegistry#mFirstEventMillis}.
+         */
+        private final long mCreatedRealTime;
+
+        /**
+         * Whether an application event has been written since this engine was constructed.
          * <p>
-         * If a session is not already open when an opt-out request is made, a new session is opened and closed by this method in
-         * order to cause the opt-out event to be uploaded.
+         * This is only accessed from the session handler thread.
+         */
+        private boolean mIsFirstEventPersisted;
+
+        /**
+         * Constructs a new engine with the given platform dependencies.
          *
-         * @param isOptingOut true if the user is opting out. False if the user is opting back in.
-         * @see #MESSAGE_OPT_OUT
+         * @param context The context used to access resources on behalf of the app. Cannot be null.
+         * @param key The key unique for each application generated at www.localytics.com. Cannot be null or empty.
+         * @param executor Executor for the session handler thread, which the engine's timers and callbacks are run on. Cannot
+         *            be null.
+         * @param uploadExecutor Executor for the upload thread. The database is also opened on it. Cannot be null.
+         * @param transmitter Executor that transmits upload chunks while the next chunk is built. Cannot be null.
+         * @param storage Storage to use instead of the {@link LocalyticsProvider} for {@code key}. May be null to use the
+         *            provider.
+         * @param clock Source of the current time. Cannot be null.
+         * @param transport Transport the upload chunks are sent with. Cannot be null.
+         * @throws IllegalArgumentException if {@code context} is null
+         * @throws IllegalArgumentException if {@code key} is null or empty
+         * @throws IllegalArgumentException if {@code executor}, {@code uploadExecutor}, {@code transmitter}, {@code clock}, or
+         *             {@code transport} is null
          */
-		/* package */void optOut(final boolean isOptingOut)
+        /* package */SessionEngine(final Context context, final String key, final TaskExecutor executor, final TaskExecutor uploadExecutor, final TaskExecutor transmitter, final LocalyticsStorage storage, final Clock clock, final UploadTransport transport)
         {
-            if (Constants.IS_LOGGABLE)
+            if (Constants.IS_PARAMETER_CHECKING_ENABLED)
             {
-                Log.v(Constants.LOG_TAG, String.format("Requested opt-out state is %b", Boolean.valueOf(isOptingOut))); //$NON-NLS-1$
+                if (null == context)
+                {
+                    throw new IllegalArgumentException("context cannot be null"); //$NON-NLS-1$
+                }
+                if (TextUtils.isEmpty(key))
+                {
+                    throw new IllegalArgumentException("key cannot be null or empty"); //$NON-NLS-1$
+                }
+                if (null == executor)
+                {
+                    throw new IllegalArgumentException("executor cannot be null"); //$NON-NLS-1$
+                }
+                if (null == uploadExecutor)
+                {
+                    throw new IllegalArgumentException("uploadExecutor cannot be null"); //$NON-NLS-1$
+                }
+                if (null == transmitter)
+                {
+                    throw new IllegalArgumentException("transmitter cannot be null"); //$NON-NLS-1$
+                }
+                if (null == clock)
+                {
+                    throw new IllegalArgumentException("clock cannot be null"); //$NON-NLS-1$
+                }
+                if (null == transport)
+                {
+                    throw new IllegalArgumentException("transport cannot be null"); //$NON-NLS-1$
+                }
             }
 
-            // Do nothing if opt-out is unchanged
-            if (isOptedOut(mProvider, mApiKey) == isOptingOut)
+            mContext = context;
+            mApiKey = key;
+            mUploadState = UploadState.getInstance(key);
+            mMetrics = MetricsRegistry.getInstance(key);
+            mTracing = EventTracing.getInstance(key);
+            mExecutor = executor;
+            mUploadExecutor = uploadExecutor;
+            mTransmitter = transmitter;
+            mProvider = storage;
+            mClock = clock;
+            mTransport = transport;
+            mCreatedRealTime = clock.elapsedRealtime();
+        }
+
+        /**
+         * Work requested of the engine, performed as of the time the request was received.
+         */
+        private interface Request
+        {
+            /**
+             * @param realTime {@link Clock#elapsedRealtime()} when the request was received.
+             * @param wallTime {@link Clock#currentTimeMillis()} when the request was received.
+             */
+            void run(long realTime, long wallTime);
+        }
+
+        /**
+         * Performs {@code request} now, or holds it in {@link #mPreInitRequests} with the time it was received if the database
+         * is still being opened.
+         *
+         * @param request Request to perform. Cannot be null.
+         */
+        private void submit(final Request request)
+        {
+            final long realTime = mClock.elapsedRealtime();
+            final long wallTime = mClock.currentTimeMillis();
+
+            if (!mIsStorageReady)
             {
+                mPreInitRequests.add(new BufferedRequest(request, realTime, wallTime));
+                mMetrics.mPreInitMessages.increment();
                 return;
             }
 
-            if (null == getOpenSessionId(mProvider))
+            perform(request, realTime, wallTime);
+        }
+
+        /**
+         * Performs a request as if it had been received at the given time. Sessions, events, and pauses are recorded as of that
+         * time, so that requests held while the database was being opened keep the time they were sent.
+         *
+         * @param request Request to perform. Cannot be null.
+         * @param realTime {@link Clock#elapsedRealtime()} when the request was received.
+         * @param wallTime {@link Clock#currentTimeMillis()} when the request was received.
+         */
+        private void perform(final Request request, final long realTime, final long wallTime)
+        {
+            try
             {
                 /*
-                 * Force a session to contain the opt event
+                 * The lease timer may be delayed by deep sleep, as Android times delayed tasks on uptime. A lease that is overdue
+                 * in real time expires before anything else is handled.
                  */
-                open(true, null);
-                tagEvent(isOptingOut ? OPT_OUT_EVENT : OPT_IN_EVENT, null);
-                close(null);
+                if (mIsLeaseHeld && realTime - mLeaseRealTime >= Constants.SESSION_EXPIRATION)
+                {
+                    expireLease();
+                }
+
+                request.run(realTime, wallTime);
             }
-            else
+            catch (final Exception e)
             {
-                tagEvent(isOptingOut ? OPT_OUT_EVENT : OPT_IN_EVENT, null);
-            }
+                if (LocalyticsLog.isLoggable(Log.ERROR))
+                {
+                    LocalyticsLog.e("Localytics library threw an uncaught exception", e); //$NON-NLS-1$
+                }
 
-            final ContentValues values = new ContentValues();
-            values.put(ApiKeysDbColumns.OPT_OUT, Boolean.valueOf(isOptingOut));
-            mProvider.update(ApiKeysDbColumns.TABLE_NAME, values, SELECTION_OPT_IN_OUT, new String[]
-                { Long.toString(mApiKeyId) });
+                if (!Constants.IS_EXCEPTION_SUPPRESSION_ENABLED)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
         }
 
         /**
-         * Projection for {@link #getOpenSessionId(LocalyticsProvider)}.
-         */
-        private static final String[] PROJECTION_GET_OPEN_SESSION_ID_SESSION_ID = new String[]
-            { SessionsDbColumns._ID };
-
-        /**
-         * Projection for getting the event count in {@link #getOpenSessionId(LocalyticsProvider)}.
-         */
-        private static final String[] PROJECTION_GET_OPEN_SESSION_ID_EVENT_COUNT = new String[]
-            { EventsDbColumns._COUNT };
-
-        /**
-         * Selection for {@link #getOpenSessionId(LocalyticsProvider)}.
+         * @param request Request to submit. Cannot be null.
+         * @return Task that submits {@code request} when {@link #mExecutor} runs it.
          */
-        private static final String SELECTION_GET_OPEN_SESSION_ID_EVENT_COUNT = String.format("%s = ? AND %s = ?", EventsDbColumns.SESSION_KEY_REF, EventsDbColumns.EVENT_NAME);
+        private Runnable newTask(final Request request)
+        {
+            return new Runnable()
+            {
+                public void run()
+                {
+                    submit(request);
+                }
+            };
+        }
 
         /**
-         * @param provider The database to query. Cannot be null.
-         * @return The {@link SessionsDbColumns#_ID} of the currently open session or {@code null} if no session is open. The
-         *         definition of "open" is whether a session has been opened without a corresponding close event.
+         * Initializes the engine. The database is opened in the background, and requests received meanwhile are held until it
+         * is open. Storage passed to the constructor is already open.
+         * <p>
+         * This must be called before any other method.
+         *
+         * @see SessionHandler#MESSAGE_INIT
          */
-        /* package */static Long getOpenSessionId(final LocalyticsProvider provider)
+        /* package */void start()
         {
-            /*
-             * Get the ID of the last session
-             */
-            final Long sessionId;
+            perform(new Request()
             {
-                Cursor sessionsCursor = null;
-                try
+                public void run(final long realTime, final long wallTime)
                 {
-
                     /*
-                     * Query all sessions sorted by session ID, which guarantees to obtain the last session regardless of whether
-                     * the system clock changed.
+                     * Opening the database may create or upgrade it, which can take seconds on a large backlog
                      */
-                    sessionsCursor = provider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_GET_OPEN_SESSION_ID_SESSION_ID, null, null, SessionsDbColumns._ID);
-
-                    if (sessionsCursor.moveToLast())
+                    if (null == mProvider)
                     {
-                        sessionId = Long.valueOf(sessionsCursor.getLong(sessionsCursor.getColumnIndexOrThrow(SessionsDbColumns._ID)));
+                        openStorage();
                     }
                     else
                     {
-                        return null;
-                    }
-                }
-                finally
-                {
-                    if (null != sessionsCursor)
-                    {
-                        sessionsCursor.close();
-                        sessionsCursor = null;
+                        init();
                     }
                 }
-            }
+            }, mClock.elapsedRealtime(), mClock.currentTimeMillis());
+        }
 
-            /*
-             * See if the session has a close event.
-             */
-            Cursor eventsCursor = null;
-            try
+        /**
+         * Completes the initialization once the database was opened in the background by {@link #openStorage()}, and handles the
+         * requests received in the meantime.
+         *
+         * @param provider The opened database, or null if opening it failed. In that case {@link #init()} retries it on this
+         *            thread.
+         */
+        private void onStorageReady(final LocalyticsStorage provider)
+        {
+            perform(new Request()
             {
-                eventsCursor = provider.query(EventsDbColumns.TABLE_NAME, PROJECTION_GET_OPEN_SESSION_ID_EVENT_COUNT, SELECTION_GET_OPEN_SESSION_ID_EVENT_COUNT, new String[]
-                    {
-                        sessionId.toString(),
-                        CLOSE_EVENT }, null);
-
-                if (eventsCursor.moveToFirst())
+                public void run(final long realTime, final long wallTime)
                 {
-                    if (0 == eventsCursor.getInt(0))
+                    mProvider = provider;
+
+                    try
                     {
-                        return sessionId;
+                        init();
+                    }
+                    finally
+                    {
+                        handlePreInitRequests();
                     }
                 }
-            }
-            finally
+            }, mClock.elapsedRealtime(), mClock.currentTimeMillis());
+        }
+
+        /**
+         * Sets the opt-out state.
+         *
+         * @param isOptingOut true if the user is opting out. False if the user is opting back in.
+         * @see SessionHandler#MESSAGE_OPT_OUT
+         */
+        /* package */void handleOptOut(final boolean isOptingOut)
+        {
+            submit(new Request()
             {
-                if (null != eventsCursor)
+                public void run(final long realTime, final long wallTime)
                 {
-                    eventsCursor.close();
-                    eventsCursor = null;
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            optOut(isOptingOut);
+                        }
+                    });
                 }
-            }
-
-            return null;
+            });
         }
 
         /**
-         * Projection for {@link #open(boolean, Map)}.
+         * Opens a session, or releases the lease of a paused session.
+         *
+         * @param attributes Attributes to attach to the open. May be null indicating no attributes.
+         * @see SessionHandler#MESSAGE_OPEN
          */
-        private static final String[] PROJECTION_OPEN_EVENT_ID = new String[]
-            { EventsDbColumns._ID };
+        /* package */void handleOpen(final Map<String, String> attributes)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    /*
+                     * A paused session is still open, so opening it only needs to release the lease
+                     */
+                    if (releaseLease())
+                    {
+                        return;
+                    }
 
-        /**
-         * Selection for {@link #open(boolean, Map)}.
-         */
-        private static final String SELECTION_OPEN = String.format("%s = ? AND %s >= ?", EventsDbColumns.EVENT_NAME, EventsDbColumns.WALL_TIME); //$NON-NLS-1$
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            open(attributes, realTime, wallTime);
+                        }
+                    });
 
-        /**
-         * Projection for {@link #open(boolean, Map)}.
-         */
-        private static final String[] PROJECTION_OPEN_BLOB_EVENTS = new String[]
-            { UploadBlobEventsDbColumns.EVENTS_KEY_REF };
+                    checkUploadPolicy();
+                }
+            });
+        }
 
         /**
-         * Projection for {@link #open(boolean, Map)}.
+         * Closes the session. A paused session is closed as of its last activity while paused.
+         *
+         * @param attributes Attributes to attach to the close. May be null indicating no attributes.
+         * @see SessionHandler#MESSAGE_CLOSE
          */
-        private static final String[] PROJECTION_OPEN_SESSIONS = new String[]
+        /* package */void handleClose(final Map<String, String> attributes)
+        {
+            submit(new Request()
             {
-                SessionsDbColumns._ID,
-                SessionsDbColumns.SESSION_START_WALL_TIME };
+                public void run(final long receivedRealTime, final long receivedWallTime)
+                {
+                    final boolean isLeaseReleased = releaseLease();
+                    final long realTime = isLeaseReleased ? mLeaseCloseRealTime : receivedRealTime;
+                    final long wallTime = isLeaseReleased ? mLeaseCloseWallTime : receivedWallTime;
 
-        /**
-         * Selection for {@link #openNewSession(Map)}.
-         */
-        private static final String SELECTION_OPEN_NEW_SESSION = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            close(attributes, realTime, wallTime);
+                        }
+                    });
 
-        /**
-         * Selection for {@link #open(boolean, Map)}.
-         */
-        private static final String SELECTION_OPEN_DELETE_EMPTIES_EVENT_HISTORY_SESSION_KEY_REF = String.format("%s = ?", EventHistoryDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+                    checkUploadPolicy();
+                }
+            });
+        }
 
         /**
-         * Selection for {@link #open(boolean, Map)}.
+         * Tags an event. If no session is open, the event is written within a session of its own.
+         *
+         * @param event The name of the event which occurred. Cannot be null.
+         * @param attributes The collection of attributes for this particular event. May be null.
+         * @param clv The customer value increase. May be null.
+         * @param priority Upload priority of the event.
+         * @param traceId Trace id of the event, or 0 if the event isn't traced.
+         * @see SessionHandler#MESSAGE_TAG_EVENT
          */
-        private static final String SELECTION_OPEN_DELETE_EMPTIES_EVENTS_SESSION_KEY_REF = String.format("%s = ?", EventsDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+        /* package */void handleTagEvent(final String event, final Map<String, String> attributes, final Long clv, final int priority, final int traceId)
+        {
+            if (!mIsStorageReady)
+            {
+                if (mPreInitEventCount >= MAX_PRE_INIT_EVENTS)
+                {
+                    dropPreInitEvent(event, traceId);
+                    return;
+                }
 
-        /**
-         * Projection for {@link #open(boolean, Map)}.
-         */
-        private static final String[] PROJECTION_OPEN_DELETE_EMPTIES_EVENT_ID = new String[]
-            { EventsDbColumns._ID };
+                mPreInitEventCount++;
+            }
 
-        /**
-         * Projection for {@link #open(boolean, Map)}.
-         */
-        private static final String[] PROJECTION_OPEN_DELETE_EMPTIES_PROCESSED_IN_BLOB = new String[]
-            { EventHistoryDbColumns.PROCESSED_IN_BLOB };
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    final long startNanos = System.nanoTime();
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if (null != getOpenSessionId(mProvider))
+                            {
+                                tagEvent(event, attributes, clv, priority, traceId, realTime, wallTime);
+                            }
+                            else
+                            {
+                                /*
+                                 * The open and close only care about custom dimensions
+                                 */
+                                final Map<String, String> openCloseAttributes;
+                                if (null == attributes)
+                                {
+                                    openCloseAttributes = null;
+                                }
+                                else if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9)
+                                        || attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10))
+                                {
+                                    openCloseAttributes = new TreeMap<String, String>();
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_1));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_2));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_3));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_4));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_5));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_6));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_7));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_8));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_9));
+                                    }
+                                    if (attributes.containsKey(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10))
+                                    {
+                                        openCloseAttributes.put(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10, attributes.get(AttributesDbColumns.ATTRIBUTE_CUSTOM_DIMENSION_10));
+                                    }
+                                }
+                                else
+                                {
+                                    openCloseAttributes = null;
+                                }
 
-        /**
-         * Selection for {@link #open(boolean, Map)}.
-         */
-        private static final String SELECTION_OPEN_DELETE_EMPTIES_UPLOAD_BLOBS_ID = String.format("%s = ?", UploadBlobsDbColumns._ID); //$NON-NLS-1$
+                                open(openCloseAttributes, realTime, wallTime);
+                                tagEvent(event, attributes, clv, priority, traceId, realTime, wallTime);
+                                close(openCloseAttributes, realTime, wallTime);
+                            }
+                        }
+                    });
+                    mMetrics.mInsertMicros.record((System.nanoTime() - startNanos) / 1000);
 
-        /**
-         * Selection for {@link #open(boolean, Map)}.
-         */
-        private static final String SELECTION_OPEN_DELETE_EMPTIES_SESSIONS_ID = String.format("%s = ?", SessionsDbColumns._ID); //$NON-NLS-1$
+                    if (EventsDbColumns.PRIORITY_HIGH == priority)
+                    {
+                        mProvider.runBatchTransaction(new Runnable()
+                        {
+                            public void run()
+                            {
+                                upload(null, UPLOAD_REASON_PRIORITY);
+                            }
+                        });
+                    }
+
+                    checkUploadPolicy();
+                }
+            });
+        }
 
         /**
-         * Open a session. While this method should only be called once without an intervening call to {@link #close(Map)},
-         * nothing bad will happen if it is called multiple times.
-         * <p>
-         * This method must only be called after {@link #init()} is called.
-         * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_OPEN} to the Handler.
+         * Drops an event received while {@link #mPreInitRequests} is full.
          *
-         * @param ignoreLimits true to ignore limits on the number of sessions. False to enforce limits.
-         * @param attributes Attributes to attach to the open. May be null indicating no attributes. Cannot contain null or empty
-         *            keys or values.
-         * @see #MESSAGE_OPEN
+         * @param event The name of the event. Cannot be null.
+         * @param traceId Trace id of the event, or 0 if the event isn't traced.
          */
-        /* package */void open(final boolean ignoreLimits, final Map<String, String> attributes)
+        private void dropPreInitEvent(final String event, final int traceId)
         {
-        	if (null != getOpenSessionId(mProvider))
-        	{
-        		if (Constants.IS_LOGGABLE)
-        		{
-        			Log.w(Constants.LOG_TAG, "Session was already open"); //$NON-NLS-1$
-        		}
-
-        		return;
-        	}
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Event not written because too many events arrived while the database was being opened"); //$NON-NLS-1$
+            }
 
-            if (isOptedOut(mProvider, mApiKey))
+            if (isApplicationEvent(event))
             {
-                if (Constants.IS_LOGGABLE)
+                mMetrics.mEventsDropped.increment();
+                if (0 != traceId)
                 {
-                    Log.d(Constants.LOG_TAG, "Data collection is opted out"); //$NON-NLS-1$
+                    mTracing.report(traceId, event.substring(mContext.getPackageName().length() + 1), LocalyticsTracer.STAGE_DROPPED, mClock.elapsedRealtime());
                 }
-                return;
             }
+        }
 
-            /*
-             * There are two cases: 1. New session and 2. Re-connect to old session. There are two ways to reconnect to an old
-             * session. One is by the age of the close event, and the other is by the age of the open event.
-             */
-
-            long closeEventId = -1; // sentinel value
-
+        /**
+         * Tags a screen.
+         *
+         * @param screen Name of the screen. Cannot be null.
+         * @see SessionHandler#MESSAGE_TAG_SCREEN
+         */
+        /* package */void handleTagScreen(final String screen)
+        {
+            submit(new Request()
             {
-                Cursor eventsCursor = null;
-                Cursor blob_eventsCursor = null;
-                try
+                public void run(final long realTime, final long wallTime)
                 {
-                    eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_OPEN_EVENT_ID, SELECTION_OPEN, new String[]
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
                         {
-                            CLOSE_EVENT,
-                            Long.toString(System.currentTimeMillis() - Constants.SESSION_EXPIRATION) }, EVENTS_SORT_ORDER);
-                    blob_eventsCursor = mProvider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_OPEN_BLOB_EVENTS, null, null, UPLOAD_BLOBS_EVENTS_SORT_ORDER);
-
-                    final int idColumn = eventsCursor.getColumnIndexOrThrow(EventsDbColumns._ID);
-                    final CursorJoiner joiner = new CursorJoiner(eventsCursor, PROJECTION_OPEN_EVENT_ID, blob_eventsCursor, PROJECTION_OPEN_BLOB_EVENTS);
+                            tagScreen(screen);
+                        }
+                    });
+                }
+            });
+        }
 
-                    for (final CursorJoiner.Result joinerResult : joiner)
+        /**
+         * Sets a customer identifier.
+         *
+         * @param key Name of the identifier. Cannot be null.
+         * @param value Value of the identifier. May be null to remove it.
+         * @see SessionHandler#MESSAGE_SET_IDENTIFIER
+         */
+        /* package */void handleSetIdentifier(final String key, final String value)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mProvider.runBatchTransaction(new Runnable()
                     {
-                        switch (joinerResult)
+                        public void run()
                         {
-                            case LEFT:
-                            {
-
-                                if (-1 != closeEventId)
-                                {
-                                    /*
-                                     * This should never happen
-                                     */
-                                    if (Constants.IS_LOGGABLE)
-                                    {
-                                        Log.w(Constants.LOG_TAG, "There were multiple close events within SESSION_EXPIRATION"); //$NON-NLS-1$
-                                    }
-
-                                    final long newClose = eventsCursor.getLong(eventsCursor.getColumnIndexOrThrow(EventsDbColumns._ID));
-                                    if (newClose > closeEventId)
-                                    {
-                                        closeEventId = newClose;
-                                    }
-                                }
-
-                                if (-1 == closeEventId)
-                                {
-                                    closeEventId = eventsCursor.getLong(idColumn);
-                                }
-
-                                break;
-                            }
-                            case BOTH:
-                                break;
-                            case RIGHT:
-                                break;
+                            setIdentifier(key, value);
                         }
-                    }
-                    /*
-                     * Verify that the session hasn't already been flagged for upload. That could happen if
-                     */
+                    });
                 }
-                finally
+            });
+        }
+
+        /**
+         * Registers with GCM, unless a registration id was already received for the current app version.
+         *
+         * @param senderId GCM sender id.
+         * @see SessionHandler#MESSAGE_REGISTER_PUSH
+         */
+        /* package */void handleRegisterPush(final String senderId)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
                 {
-                    if (null != eventsCursor)
+                    mProvider.runBatchTransaction(new Runnable()
                     {
-                        eventsCursor.close();
-                        eventsCursor = null;
-                    }
-                    if (null != blob_eventsCursor)
+                    	public void run()
+                    	{
+		                        Cursor cursor = null;
+		                        
+		                        String pushRegId = null;
+		                        String pushRegVersion = null;
+		                        try
+		                        {
+		                            cursor = mProvider.query(InfoDbColumns.TABLE_NAME, null, null, null, null); //$NON-NLS-1$
+		
+		                            if (cursor.moveToFirst())
+		                            {           
+		                            	pushRegVersion = cursor.getString(cursor.getColumnIndexOrThrow(InfoDbColumns.REGISTRATION_VERSION));
+		                            	pushRegId = cursor.getString(cursor.getColumnIndexOrThrow(InfoDbColumns.REGISTRATION_ID));
+		                            }
+		                        }
+		                        finally
+		                        {
+		                            if (null != cursor)
+		                            {
+		                                cursor.close();
+		                                cursor = null;
+		                            }
+		                        }
+		                        
+		                        final String appVersion = DatapointHelper.getAppVersion(mContext);
+		                        		                        
+		                        // Only register if we don't have a registration id or if the app version has changed
+		                        if (pushRegId == null || TextUtils.isEmpty(pushRegId) || !appVersion.equals(pushRegVersion))
+		                        {
+			                        Intent registrationIntent = new Intent("com.google.android.c2dm.intent.REGISTER");
+			                        registrationIntent.putExtra("app", PendingIntent.getBroadcast(mContext, 0, new Intent(), 0));
+			                        registrationIntent.putExtra("sender", senderId);
+			                        mContext.startService(registrationIntent);
+		                        }
+                    	}
+                    });
+                }
+            });
+        }
+
+        /**
+         * Sets the GCM registration id.
+         *
+         * @param pushRegId GCM registration id.
+         * @see SessionHandler#MESSAGE_SET_PUSH_REGID
+         */
+        /* package */void handleSetPushRegistrationId(final String pushRegId)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mProvider.runBatchTransaction(new Runnable()
                     {
-                        blob_eventsCursor.close();
-                        blob_eventsCursor = null;
-                    }
+                        public void run()
+                        {
+                            setPushRegistrationId(pushRegId);
+                        }
+                    });
                 }
-            }
+            });
+        }
 
-            if (-1 != closeEventId)
+        /**
+         * Initiates an upload.
+         *
+         * @param listener An optional listener to notify once the upload completes. May be null for no notification.
+         * @param reason One of {@link #UPLOAD_REASON_EXPLICIT}, {@link #UPLOAD_REASON_LIFECYCLE}, {@link #UPLOAD_REASON_POLICY},
+         *            or {@link #UPLOAD_REASON_PRIORITY}.
+         * @see SessionHandler#MESSAGE_UPLOAD
+         */
+        /* package */void handleUpload(final UploadListener listener, final int reason)
+        {
+            submit(new Request()
             {
-                if (Constants.IS_LOGGABLE)
+                public void run(final long realTime, final long wallTime)
                 {
-                    Log.v(Constants.LOG_TAG, "Opening old closed session and reconnecting"); //$NON-NLS-1$
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            upload(listener, reason);
+                        }
+                    });
                 }
+            });
+        }
 
-                openClosedSession(closeEventId);
-            }
-            else
+        /**
+         * Called by the {@link UploadEngine} on the session handler thread when an upload attempt was completed. This does not
+         * mean the attempt was successful.
+         */
+        /* package */void handleUploadComplete()
+        {
+            submit(new Request()
             {
-                Cursor sessionsCursor = null;
-                try
+                public void run(final long realTime, final long wallTime)
                 {
-                    sessionsCursor = mProvider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_OPEN_SESSIONS, null, null, SessionsDbColumns._ID);
+                    /*
+                     * The upload deleted the data it sent
+                     */
+                    refreshStoredData();
 
-                    if (sessionsCursor.moveToLast())
+                    if (mIsPriorityUploadPending)
                     {
-                        if (sessionsCursor.getLong(sessionsCursor.getColumnIndexOrThrow(SessionsDbColumns.SESSION_START_WALL_TIME)) >= System.currentTimeMillis()
-                                - Constants.SESSION_EXPIRATION)
+                        mIsPriorityUploadPending = false;
+
+                        mProvider.runBatchTransaction(new Runnable()
                         {
-                            // reconnect
-                            if (Constants.IS_LOGGABLE)
+                            public void run()
                             {
-                                Log.v(Constants.LOG_TAG, "Opening old unclosed session and reconnecting"); //$NON-NLS-1$
+                                upload(null, UPLOAD_REASON_PRIORITY);
                             }
-                            return;
-                        }
-
-                        // delete empties
-                        Cursor eventsCursor = null;
-                        try
-                        {
-                            final String sessionId = Long.toString(sessionsCursor.getLong(sessionsCursor.getColumnIndexOrThrow(SessionsDbColumns._ID)));
-                            final String[] sessionIdSelection = new String[]
-                                { sessionId };
-                            eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_OPEN_DELETE_EMPTIES_EVENT_ID, SELECTION_OPEN_DELETE_EMPTIES_EVENTS_SESSION_KEY_REF, sessionIdSelection, null);
+                        });
+                    }
 
-                            if (eventsCursor.getCount() == 0)
-                            {
-                                final List<Long> blobsToDelete = new LinkedList<Long>();
+                    checkUploadPolicy();
+                }
+            });
+        }
 
-                                // delete all event history and the upload blob
-                                Cursor eventHistory = null;
-                                try
-                                {
-                                    eventHistory = mProvider.query(EventHistoryDbColumns.TABLE_NAME, PROJECTION_OPEN_DELETE_EMPTIES_PROCESSED_IN_BLOB, SELECTION_OPEN_DELETE_EMPTIES_EVENT_HISTORY_SESSION_KEY_REF, sessionIdSelection, null);
-                                    while (eventHistory.moveToNext())
-                                    {
-                                        blobsToDelete.add(Long.valueOf(eventHistory.getLong(eventHistory.getColumnIndexOrThrow(EventHistoryDbColumns.PROCESSED_IN_BLOB))));
-                                    }
-                                }
-                                finally
-                                {
-                                    if (null != eventHistory)
-                                    {
-                                        eventHistory.close();
-                                        eventHistory = null;
-                                    }
-                                }
+        /**
+         * Sets whether upload blobs are serialized when they are built.
+         *
+         * @param isSerializing True to serialize blobs. False to convert them at upload time.
+         * @see SessionHandler#MESSAGE_SET_BLOB_SERIALIZATION
+         */
+        /* package */void handleSetBlobSerialization(final boolean isSerializing)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mIsSerializingBlobs = isSerializing;
+                }
+            });
+        }
 
-                                mProvider.delete(EventHistoryDbColumns.TABLE_NAME, SELECTION_OPEN_DELETE_EMPTIES_EVENT_HISTORY_SESSION_KEY_REF, sessionIdSelection);
-                                for (final long blobId : blobsToDelete)
+        /**
+         * Sets the upload policy.
+         *
+         * @param policy Policy for automatic uploads, or null to disable them.
+         * @see SessionHandler#MESSAGE_SET_UPLOAD_POLICY
+         */
+        /* package */void handleSetUploadPolicy(final UploadPolicy policy)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mUploadPolicy = policy;
+
+                    mUploadPolicyCheckGeneration++;
+                    checkUploadPolicy();
+                }
+            });
+        }
+
+        /**
+         * Sets the storage quota and enforces it.
+         *
+         * @param quota Quota on the stored data, or null for {@link StorageQuota#DEFAULT}.
+         * @see SessionHandler#MESSAGE_SET_STORAGE_QUOTA
+         */
+        /* package */void handleSetStorageQuota(final StorageQuota quota)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mStorageQuota = null == quota ? StorageQuota.DEFAULT : quota;
+
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            enforceStorageQuota();
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Hands the upload scheduler to the {@link UploadEngine}.
+         *
+         * @param scheduler Scheduler consulted before each upload, or null to always upload.
+         * @see SessionHandler#MESSAGE_SET_UPLOAD_SCHEDULER
+         */
+        /* package */void handleSetUploadScheduler(final UploadScheduler scheduler)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mUploadEngine.setScheduler(scheduler);
+                }
+            });
+        }
+
+        /**
+         * Pauses the session. The session stays open, and its lease expires {@link Constants#SESSION_EXPIRATION} later unless
+         * the session is resumed, opened, or closed before then.
+         *
+         * @param onLeaseExpired Run instead of the lifecycle upload when the lease expires. May be null.
+         * @see SessionHandler#MESSAGE_PAUSE
+         */
+        /* package */void handlePause(final Runnable onLeaseExpired)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    mLeaseExpiredCallback = onLeaseExpired;
+
+                    if (!mIsLeaseHeld)
+                    {
+                        mIsLeaseHeld = true;
+                        mLeaseRealTime = realTime;
+                        mLeaseCloseRealTime = realTime;
+                        mLeaseCloseWallTime = wallTime;
+
+                        /*
+                         * A pause held while the database was being opened has already used part of its lease
+                         */
+                        final int generation = mLeaseGeneration;
+                        mExecutor.executeDelayed(newTask(new Request()
+                        {
+                            public void run(final long expiredRealTime, final long expiredWallTime)
+                            {
+                                if (mIsLeaseHeld && generation == mLeaseGeneration)
                                 {
-                                    mProvider.delete(UploadBlobsDbColumns.TABLE_NAME, SELECTION_OPEN_DELETE_EMPTIES_UPLOAD_BLOBS_ID, new String[]
-                                        { Long.toString(blobId) });
+                                    expireLease();
                                 }
-                                // mProvider.delete(AttributesDbColumns.TABLE_NAME, String.format("%s = ?",
-                                // AttributesDbColumns.EVENTS_KEY_REF), selectionArgs)
-                                mProvider.delete(SessionsDbColumns.TABLE_NAME, SELECTION_OPEN_DELETE_EMPTIES_SESSIONS_ID, sessionIdSelection);
                             }
+                        }), Math.max(0, Constants.SESSION_EXPIRATION - (mClock.elapsedRealtime() - realTime)));
+                    }
+                }
+            });
+        }
+
+        /**
+         * Resumes the session. If the session lease is still held, it is released without any database work. Otherwise this
+         * opens a session.
+         *
+         * @see SessionHandler#MESSAGE_RESUME
+         */
+        /* package */void handleResume()
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    if (releaseLease())
+                    {
+                        return;
+                    }
+
+                    mProvider.runBatchTransaction(new Runnable()
+                    {
+                        public void run()
+                        {
+                            open(null, realTime, wallTime);
                         }
-                        finally
+                    });
+
+                    checkUploadPolicy();
+                }
+            });
+        }
+
+        /**
+         * Signals a waiting {@link LocalyticsSession#flush(long, boolean)} that every earlier request was performed, and
+         * optionally uploads.
+         *
+         * @param request Request of the waiting caller. Cannot be null.
+         * @see SessionHandler#MESSAGE_FLUSH
+         */
+        /* package */void handleFlush(final FlushRequest request)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
+                {
+                    request.mPersisted.countDown();
+
+                    if (request.mIsUploading)
+                    {
+                        mProvider.runBatchTransaction(new Runnable()
                         {
-                            if (null != eventsCursor)
+                            public void run()
                             {
-                                eventsCursor.close();
-                                eventsCursor = null;
+                                upload(request, UPLOAD_REASON_EXPLICIT);
                             }
-                        }
+                        });
                     }
                 }
-                finally
+            });
+        }
+
+        /**
+         * Takes a snapshot of the database for a waiting {@link LocalyticsSession#getStorageStats(long)}.
+         *
+         * @param request Request of the waiting caller. Cannot be null.
+         * @see SessionHandler#MESSAGE_GET_STORAGE_STATS
+         */
+        /* package */void handleGetStorageStats(final StorageStatsRequest request)
+        {
+            submit(new Request()
+            {
+                public void run(final long realTime, final long wallTime)
                 {
-                    if (null != sessionsCursor)
+                    try
                     {
-                        sessionsCursor.close();
-                        sessionsCursor = null;
+                        request.mStats = mProvider.getStorageStats(mStoredBytes);
+                    }
+                    finally
+                    {
+                        request.mDone.countDown();
                     }
                 }
+            });
+        }
 
-                /*
-                 * Check that the maximum number of sessions hasn't been exceeded
-                 */
-                if (!ignoreLimits && getNumberOfSessions(mProvider) >= Constants.MAX_NUM_SESSIONS)
+        /**
+         * Projection for querying details of the current API key
+         */
+        private static final String[] PROJECTION_INIT_API_KEY = new String[]
+            {
+                ApiKeysDbColumns._ID,
+                ApiKeysDbColumns.OPT_OUT,
+                ApiKeysDbColumns.UUID };
+
+        /**
+         * Selection for a specific API key ID
+         */
+        private static final String SELECTION_INIT_API_KEY = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
+
+        /**
+         * Initialize the engine post construction.
+         * <p>
+         * This method must only be called once.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is {@link #start()}.
+         */
+        /* package */void init()
+        {
+            if (null == mProvider)
+            {
+                mProvider = LocalyticsProvider.getInstance(mContext, mApiKey);
+            }
+
+            Cursor cursor = null;
+            try
+            {
+                cursor = mProvider.query(ApiKeysDbColumns.TABLE_NAME, PROJECTION_INIT_API_KEY, SELECTION_INIT_API_KEY, new String[]
+                    { mApiKey }, null);
+
+                if (cursor.moveToFirst())
+                {
+                    // API key was previously created
+                    if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                    {
+                        LocalyticsLog.v("Loading details for API key %s", mApiKey); //$NON-NLS-1$
+                    }
+
+                    mApiKeyId = cursor.getLong(cursor.getColumnIndexOrThrow(ApiKeysDbColumns._ID));
+                }
+                else
+                {
+                    // perform first-time initialization of API key
+                    if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                    {
+                        LocalyticsLog.v("Performing first-time initialization for new API key %s", mApiKey); //$NON-NLS-1$
+                    }
+
+                    final ContentValues values = new ContentValues();
+                    values.put(ApiKeysDbColumns.API_KEY, mApiKey);
+                    values.put(ApiKeysDbColumns.UUID, UUID.randomUUID().toString());
+                    values.put(ApiKeysDbColumns.OPT_OUT, Boolean.FALSE);
+                    values.put(ApiKeysDbColumns.CREATED_TIME, Long.valueOf(mClock.currentTimeMillis()));
+                    
+                    mApiKeyId = mProvider.insert(ApiKeysDbColumns.TABLE_NAME, values);
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            /*
+             * Perform lazy initialization of the UploadEngine
+             */
+            mUploadEngine = new UploadEngine(mContext, this, mExecutor, mProvider, mApiKey, getInstallationId(mProvider, mApiKey), mUploadExecutor, mClock, mTransmitter, mTransport);
+
+            refreshPendingEvents();
+            refreshStoredData();
+
+            mIsStorageReady = true;
+        }
+
+        /**
+         * Opens the {@link LocalyticsProvider} on the upload thread, which is idle until {@link #init()} creates the
+         * {@link UploadEngine}, and calls {@link #onStorageReady(LocalyticsStorage)} back when done. Meanwhile this thread stays
+         * free for other API keys, and requests for this key are held in {@link #mPreInitRequests}.
+         * <p>
+         * Data migrations left by the upgrade are then performed in batches on the same thread, interleaved with uploads.
+         */
+        private void openStorage()
+        {
+            final long startTime = mClock.elapsedRealtime();
+
+            mUploadExecutor.execute(new Runnable()
+            {
+                public void run()
                 {
-                    if (Constants.IS_LOGGABLE)
+                    LocalyticsProvider provider = null;
+                    try
+                    {
+                        provider = LocalyticsProvider.getInstance(mContext, mApiKey);
+                    }
+                    catch (final RuntimeException e)
+                    {
+                        if (LocalyticsLog.isLoggable(Log.ERROR))
+                        {
+                            LocalyticsLog.e("Opening the database failed", e); //$NON-NLS-1$
+                        }
+                    }
+
+                    final long elapsed = mClock.elapsedRealtime() - startTime;
+                    mMetrics.mStorageOpenMillis = elapsed;
+
+                    if (LocalyticsLog.isLoggable(Log.DEBUG))
+                    {
+                        LocalyticsLog.d("Opened the database in %d ms", Long.valueOf(elapsed)); //$NON-NLS-1$
+                    }
+
+                    final LocalyticsProvider openedProvider = provider;
+                    mExecutor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            onStorageReady(openedProvider);
+                        }
+                    });
+
+                    if (null != openedProvider && openedProvider.hasPendingMigrations())
                     {
-                        Log.w(Constants.LOG_TAG, "Maximum number of sessions are already on disk--not writing any new sessions until old sessions are cleared out.  Try calling upload() to store more sessions."); //$NON-NLS-1$
+                        mUploadExecutor.execute(new Runnable()
+                        {
+                            public void run()
+                            {
+                                try
+                                {
+                                    if (openedProvider.runMigrationBatch(LocalyticsProvider.MIGRATION_BATCH_ROWS))
+                                    {
+                                        mUploadExecutor.execute(this);
+                                    }
+                                }
+                                catch (final RuntimeException e)
+                                {
+                                    /*
+                                     * The checkpoint is only advanced by committed batches, so the migration resumes on the
+                                     * next launch
+                                     */
+                                    if (LocalyticsLog.isLoggable(Log.ERROR))
+                                    {
+                                        LocalyticsLog.e("Data migration failed", e); //$NON-NLS-1$
+                                    }
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        /**
+         * Performs the requests held in {@link #mPreInitRequests}, in order and as of the time they were received, and stops
+         * holding new requests.
+         */
+        private void handlePreInitRequests()
+        {
+            mIsStorageReady = true;
+
+            final List<BufferedRequest> requests = mPreInitRequests;
+            mPreInitRequests = null;
+
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("Handling %d requests received before the database was open", Integer.valueOf(requests.size())); //$NON-NLS-1$
+            }
+
+            for (final BufferedRequest buffered : requests)
+            {
+                perform(buffered.mRequest, buffered.mRealTime, buffered.mWallTime);
+            }
+        }
+
+        /**
+         * A request received before the database was open, with the time it was received.
+         */
+        private static final class BufferedRequest
+        {
+            /**
+             * The request.
+             */
+            /* package */final Request mRequest;
+
+            /**
+             * {@link Clock#elapsedRealtime()} when the request was received.
+             */
+            /* package */final long mRealTime;
+
+            /**
+             * {@link Clock#currentTimeMillis()} when the request was received.
+             */
+            /* package */final long mWallTime;
+
+            /**
+             * @param request The request. Cannot be null.
+             * @param realTime {@link Clock#elapsedRealtime()} when the request was received.
+             * @param wallTime {@link Clock#currentTimeMillis()} when the request was received.
+             */
+            /* package */BufferedRequest(final Request request, final long realTime, final long wallTime)
+            {
+                mRequest = request;
+                mRealTime = realTime;
+                mWallTime = wallTime;
+            }
+        }
+
+        /**
+         * Selection for {@link #optOut(boolean)}.
+         */
+        private static final String SELECTION_OPT_IN_OUT = String.format("%s = ?", ApiKeysDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Set the opt-in/out-out state for all sessions using the current API key.
+         * <p>
+         * This method must only be called after {@link #init()} is called.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_OPT_OUT} to the Handler.
+         * <p>
+         * If a session is already open when an opt-out request is made, then data for the remainder of that session will be
+         * collected. For example, calls to {@link #tagEvent(String, Map)} and {@link #tagScreen(String)} will be recorded until
+         * {@link #close(Map)} is called.
+         * <p>
+         * If a session is not already open when an opt-out request is made, a new session is opened and closed by this method in
+         * order to cause the opt-out event to be uploaded.
+         *
+         * @param isOptingOut true if the user is opting out. False if the user is opting back in.
+         * @see SessionHandler#MESSAGE_OPT_OUT
+         */
+		/* package */void optOut(final boolean isOptingOut)
+        {
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("Requested opt-out state is %b", Boolean.valueOf(isOptingOut)); //$NON-NLS-1$
+            }
+
+            // Do nothing if opt-out is unchanged
+            if (isOptedOut(mProvider, mApiKey) == isOptingOut)
+            {
+                return;
+            }
+
+            if (null == getOpenSessionId(mProvider))
+            {
+                /*
+                 * Force a session to contain the opt event
+                 */
+                open(null);
+                tagEvent(isOptingOut ? OPT_OUT_EVENT : OPT_IN_EVENT, null);
+                close(null);
+            }
+            else
+            {
+                tagEvent(isOptingOut ? OPT_OUT_EVENT : OPT_IN_EVENT, null);
+            }
+
+            final ContentValues values = new ContentValues();
+            values.put(ApiKeysDbColumns.OPT_OUT, Boolean.valueOf(isOptingOut));
+            mProvider.update(ApiKeysDbColumns.TABLE_NAME, values, SELECTION_OPT_IN_OUT, new String[]
+                { Long.toString(mApiKeyId) });
+        }
+
+        /**
+         * Projection for {@link #getOpenSessionId(LocalyticsStorage)}.
+         */
+        private static final String[] PROJECTION_GET_OPEN_SESSION_ID_SESSION_ID = new String[]
+            { SessionsDbColumns._ID };
+
+        /**
+         * Projection for getting the event count in {@link #getOpenSessionId(LocalyticsStorage)}.
+         */
+        private static final String[] PROJECTION_GET_OPEN_SESSION_ID_EVENT_COUNT = new String[]
+            { EventsDbColumns._COUNT };
+
+        /**
+         * Selection for {@link #getOpenSessionId(LocalyticsStorage)}.
+         */
+        private static final String SELECTION_GET_OPEN_SESSION_ID_EVENT_COUNT = String.format("%s = ? AND %s = ?", EventsDbColumns.SESSION_KEY_REF, EventsDbColumns.EVENT_NAME);
+
+        /**
+         * @param provider The database to query. Cannot be null.
+         * @return The {@link SessionsDbColumns#_ID} of the currently open session or {@code null} if no session is open. The
+         *         definition of "open" is whether a session has been opened without a corresponding close event.
+         */
+        /* package */static Long getOpenSessionId(final LocalyticsStorage provider)
+        {
+            /*
+             * Get the ID of the last session
+             */
+            final Long sessionId;
+            {
+                Cursor sessionsCursor = null;
+                try
+                {
+
+                    /*
+                     * Query all sessions sorted by session ID, which guarantees to obtain the last session regardless of whether
+                     * the system clock changed.
+                     */
+                    sessionsCursor = provider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_GET_OPEN_SESSION_ID_SESSION_ID, null, null, SessionsDbColumns._ID);
+
+                    if (sessionsCursor.moveToLast())
+                    {
+                        sessionId = Long.valueOf(sessionsCursor.getLong(sessionsCursor.getColumnIndexOrThrow(SessionsDbColumns._ID)));
+                    }
+                    else
+                    {
+                        return null;
+                    }
+                }
+                finally
+                {
+                    if (null != sessionsCursor)
+                    {
+                        sessionsCursor.close();
+                        sessionsCursor = null;
+                    }
+                }
+            }
+
+            /*
+             * See if the session has a close event.
+             */
+            Cursor eventsCursor = null;
+            try
+            {
+                eventsCursor = provider.query(EventsDbColumns.TABLE_NAME, PROJECTION_GET_OPEN_SESSION_ID_EVENT_COUNT, SELECTION_GET_OPEN_SESSION_ID_EVENT_COUNT, new String[]
+                    {
+                        sessionId.toString(),
+                        CLOSE_EVENT }, null);
+
+                if (eventsCursor.moveToFirst())
+                {
+                    if (0 == eventsCursor.getInt(0))
+                    {
+                        return sessionId;
+                    }
+                }
+            }
+            finally
+            {
+                if (null != eventsCursor)
+                {
+                    eventsCursor.close();
+                    eventsCursor = null;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Projection for {@link #open(Map)}.
+         */
+        private static final String[] PROJECTION_OPEN_EVENT_ID = new String[]
+            { EventsDbColumns._ID };
+
+        /**
+         * Selection for {@link #open(Map)}.
+         */
+        private static final String SELECTION_OPEN = String.format("%s = ? AND %s >= ?", EventsDbColumns.EVENT_NAME, EventsDbColumns.WALL_TIME); //$NON-NLS-1$
+
+        /**
+         * Projection for {@link #open(Map)}.
+         */
+        private static final String[] PROJECTION_OPEN_BLOB_EVENTS = new String[]
+            { UploadBlobEventsDbColumns.EVENTS_KEY_REF };
+
+        /**
+         * Projection for {@link #open(Map)}.
+         */
+        private static final String[] PROJECTION_OPEN_SESSIONS = new String[]
+            {
+                SessionsDbColumns._ID,
+                SessionsDbColumns.SESSION_START_WALL_TIME };
+
+        /**
+         * Selection for {@link #openNewSession(Map, long, long)}.
+         */
+        private static final String SELECTION_OPEN_NEW_SESSION = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
+
+        /**
+         * Selection for {@link #open(Map)}.
+         */
+        private static final String SELECTION_OPEN_DELETE_EMPTIES_EVENT_HISTORY_SESSION_KEY_REF = String.format("%s = ?", EventHistoryDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+
+        /**
+         * Selection for {@link #open(Map)}.
+         */
+        private static final String SELECTION_OPEN_DELETE_EMPTIES_EVENTS_SESSION_KEY_REF = String.format("%s = ?", EventsDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+
+        /**
+         * Projection for {@link #open(Map)}.
+         */
+        private static final String[] PROJECTION_OPEN_DELETE_EMPTIES_EVENT_ID = new String[]
+            { EventsDbColumns._ID };
+
+        /**
+         * Projection for {@link #open(Map)}.
+         */
+        private static final String[] PROJECTION_OPEN_DELETE_EMPTIES_PROCESSED_IN_BLOB = new String[]
+            { EventHistoryDbColumns.PROCESSED_IN_BLOB };
+
+        /**
+         * Selection for {@link #open(Map)}.
+         */
+        private static final String SELECTION_OPEN_DELETE_EMPTIES_UPLOAD_BLOBS_ID = String.format("%s = ?", UploadBlobsDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Selection for {@link #open(Map)}.
+         */
+        private static final String SELECTION_OPEN_DELETE_EMPTIES_SESSIONS_ID = String.format("%s = ?", SessionsDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Open a session. While this method should only be called once without an intervening call to {@link #close(Map)},
+         * nothing bad will happen if it is called multiple times.
+         * <p>
+         * This method must only be called after {@link #init()} is called.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_OPEN} to the Handler.
+         *
+         * @param attributes Attributes to attach to the open. May be null indicating no attributes. Cannot contain null or empty
+         *            keys or values.
+         * @see SessionHandler#MESSAGE_OPEN
+         */
+        /* package */void open(final Map<String, String> attributes)
+        {
+            open(attributes, mClock.elapsedRealtime(), mClock.currentTimeMillis());
+        }
+
+        /**
+         * Open a session as of the given time, which may be in the past. This is used for opens requested before the database
+         * was open.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_OPEN} to the Handler.
+         *
+         * @param attributes Attributes to attach to the open. May be null indicating no attributes.
+         * @param realTime {@link EventsDbColumns#REAL_TIME} of the open.
+         * @param wallTime {@link EventsDbColumns#WALL_TIME} of the open.
+         */
+        /* package */void open(final Map<String, String> attributes, final long realTime, final long wallTime)
+        {
+        	final Long openSessionId = getOpenSessionId(mProvider);
+        	if (null != openSessionId && !closeExpiredSession(openSessionId.longValue(), wallTime))
+        	{
+        		if (LocalyticsLog.isLoggable(Log.WARN))
+        		{
+        			LocalyticsLog.w("Session was already open"); //$NON-NLS-1$
+        		}
+
+        		return;
+        	}
+
+            if (isOptedOut(mProvider, mApiKey))
+            {
+                if (LocalyticsLog.isLoggable(Log.DEBUG))
+                {
+                    LocalyticsLog.d("Data collection is opted out"); //$NON-NLS-1$
+                }
+                return;
+            }
+
+            /*
+             * There are two cases: 1. New session and 2. Re-connect to old session. There are two ways to reconnect to an old
+             * session. One is by the age of the close event, and the other is by the age of the open event.
+             */
+
+            long closeEventId = -1; // sentinel value
+
+            {
+                Cursor eventsCursor = null;
+                Cursor blob_eventsCursor = null;
+                try
+                {
+                    eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_OPEN_EVENT_ID, SELECTION_OPEN, new String[]
+                        {
+                            CLOSE_EVENT,
+                            Long.toString(wallTime - Constants.SESSION_EXPIRATION) }, EVENTS_SORT_ORDER);
+                    blob_eventsCursor = mProvider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_OPEN_BLOB_EVENTS, null, null, UPLOAD_BLOBS_EVENTS_SORT_ORDER);
+
+                    final int idColumn = eventsCursor.getColumnIndexOrThrow(EventsDbColumns._ID);
+                    final CursorJoiner joiner = new CursorJoiner(eventsCursor, PROJECTION_OPEN_EVENT_ID, blob_eventsCursor, PROJECTION_OPEN_BLOB_EVENTS);
+
+                    for (final CursorJoiner.Result joinerResult : joiner)
+                    {
+                        switch (joinerResult)
+                        {
+                            case LEFT:
+                            {
+
+                                if (-1 != closeEventId)
+                                {
+                                    /*
+                                     * This should never happen
+                                     */
+                                    if (LocalyticsLog.isLoggable(Log.WARN))
+                                    {
+                                        LocalyticsLog.w("There were multiple close events within SESSION_EXPIRATION"); //$NON-NLS-1$
+                                    }
+
+                                    final long newClose = eventsCursor.getLong(eventsCursor.getColumnIndexOrThrow(EventsDbColumns._ID));
+                                    if (newClose > closeEventId)
+                                    {
+                                        closeEventId = newClose;
+                                    }
+                                }
+
+                                if (-1 == closeEventId)
+                                {
+                                    closeEventId = eventsCursor.getLong(idColumn);
+                                }
+
+                                break;
+                            }
+                            case BOTH:
+                                break;
+                            case RIGHT:
+                                break;
+                        }
+                    }
+                    /*
+                     * Verify that the session hasn't already been flagged for upload. That could happen if
+                     */
+                }
+                finally
+                {
+                    if (null != eventsCursor)
+                    {
+                        eventsCursor.close();
+                        eventsCursor = null;
+                    }
+                    if (null != blob_eventsCursor)
+                    {
+                        blob_eventsCursor.close();
+                        blob_eventsCursor = null;
+                    }
+                }
+            }
+
+            if (-1 != closeEventId)
+            {
+                if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                {
+                    LocalyticsLog.v("Opening old closed session and reconnecting"); //$NON-NLS-1$
+                }
+
+                openClosedSession(closeEventId);
+            }
+            else
+            {
+                Cursor sessionsCursor = null;
+                try
+                {
+                    sessionsCursor = mProvider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_OPEN_SESSIONS, null, null, SessionsDbColumns._ID);
+
+                    if (sessionsCursor.moveToLast())
+                    {
+                        if (sessionsCursor.getLong(sessionsCursor.getColumnIndexOrThrow(SessionsDbColumns.SESSION_START_WALL_TIME)) >= wallTime
+                                - Constants.SESSION_EXPIRATION)
+                        {
+                            // reconnect
+                            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                            {
+                                LocalyticsLog.v("Opening old unclosed session and reconnecting"); //$NON-NLS-1$
+                            }
+                            return;
+                        }
+
+                        // delete empties
+                        Cursor eventsCursor = null;
+                        try
+                        {
+                            final String sessionId = Long.toString(sessionsCursor.getLong(sessionsCursor.getColumnIndexOrThrow(SessionsDbColumns._ID)));
+                            final String[] sessionIdSelection = new String[]
+                                { sessionId };
+                            eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_OPEN_DELETE_EMPTIES_EVENT_ID, SELECTION_OPEN_DELETE_EMPTIES_EVENTS_SESSION_KEY_REF, sessionIdSelection, null);
+
+                            if (eventsCursor.getCount() == 0)
+                            {
+                                final List<Long> blobsToDelete = new LinkedList<Long>();
+
+                                // delete all event history and the upload blob
+                                Cursor eventHistory = null;
+                                try
+                                {
+                                    eventHistory = mProvider.query(EventHistoryDbColumns.TABLE_NAME, PROJECTION_OPEN_DELETE_EMPTIES_PROCESSED_IN_BLOB, SELECTION_OPEN_DELETE_EMPTIES_EVENT_HISTORY_SESSION_KEY_REF, sessionIdSelection, null);
+                                    while (eventHistory.moveToNext())
+                                    {
+                                        blobsToDelete.add(Long.valueOf(eventHistory.getLong(eventHistory.getColumnIndexOrThrow(EventHistoryDbColumns.PROCESSED_IN_BLOB))));
+                                    }
+                                }
+                                finally
+                                {
+                                    if (null != eventHistory)
+                                    {
+                                        eventHistory.close();
+                                        eventHistory = null;
+                                    }
+                                }
+
+                                mProvider.delete(EventHistoryDbColumns.TABLE_NAME, SELECTION_OPEN_DELETE_EMPTIES_EVENT_HISTORY_SESSION_KEY_REF, sessionIdSelection);
+                                for (final long blobId : blobsToDelete)
+                                {
+                                    mProvider.delete(UploadBlobsDbColumns.TABLE_NAME, SELECTION_OPEN_DELETE_EMPTIES_UPLOAD_BLOBS_ID, new String[]
+                                        { Long.toString(blobId) });
+                                }
+                                // mProvider.delete(AttributesDbColumns.TABLE_NAME, String.format("%s = ?",
+                                // AttributesDbColumns.EVENTS_KEY_REF), selectionArgs)
+                                mProvider.delete(SessionsDbColumns.TABLE_NAME, SELECTION_OPEN_DELETE_EMPTIES_SESSIONS_ID, sessionIdSelection);
+                            }
+                        }
+                        finally
+                        {
+                            if (null != eventsCursor)
+                            {
+                                eventsCursor.close();
+                                eventsCursor = null;
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    if (null != sessionsCursor)
+                    {
+                        sessionsCursor.close();
+                        sessionsCursor = null;
+                    }
+                }
+
+                /*
+                 * New sessions are always opened. The storage quota makes room for them by evicting older data as events are
+                 * written.
+                 */
+                if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                {
+                    LocalyticsLog.v("Opening new session"); //$NON-NLS-1$
+                }
+
+                openNewSession(attributes, realTime, wallTime);
+            }
+        }
+
+        /**
+         * Opens a new session. This is a helper method to {@link #open(Map)}.
+         *
+         * @effects Updates the database by creating a new entry in the {@link SessionsDbColumns} table.
+         * @param attributes Attributes to attach to the session. May be null. Cannot contain null or empty keys or values.
+         * @param realTime {@link EventsDbColumns#REAL_TIME} of the open.
+         * @param wallTime {@link EventsDbColumns#WALL_TIME} of the open.
+         */
+        private void openNewSession(final Map<String, String> attributes, final long realTime, final long wallTime)
+        {
+            final TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+
+            final ContentValues values = new ContentValues();
+            values.put(SessionsDbColumns.API_KEY_REF, Long.valueOf(mApiKeyId));
+            values.put(SessionsDbColumns.SESSION_START_WALL_TIME, Long.valueOf(wallTime));
+            values.put(SessionsDbColumns.UUID, UUID.randomUUID().toString());
+            values.put(SessionsDbColumns.APP_VERSION, DatapointHelper.getAppVersion(mContext));
+            values.put(SessionsDbColumns.ANDROID_SDK, Integer.valueOf(Constants.CURRENT_API_LEVEL));
+            values.put(SessionsDbColumns.ANDROID_VERSION, VERSION.RELEASE);
+
+            // Try and get the deviceId. If it is unavailable (or invalid) use the installation ID instead.
+            String deviceId = DatapointHelper.getAndroidIdHashOrNull(mContext);
+            if (null == deviceId)
+            {
+                Cursor cursor = null;
+                try
+                {
+                    cursor = mProvider.query(ApiKeysDbColumns.TABLE_NAME, null, SELECTION_OPEN_NEW_SESSION, new String[]
+                        { mApiKey }, null);
+                    if (cursor.moveToFirst())
+                    {
+                        deviceId = cursor.getString(cursor.getColumnIndexOrThrow(ApiKeysDbColumns.UUID));
+                    }
+                }
+                finally
+                {
+                    if (null != cursor)
+                    {
+                        cursor.close();
+                        cursor = null;
+                    }
+                }
+            }
+
+            values.put(SessionsDbColumns.DEVICE_ANDROID_ID_HASH, deviceId);
+            values.put(SessionsDbColumns.DEVICE_ANDROID_ID, DatapointHelper.getAndroidIdOrNull(mContext));
+            values.put(SessionsDbColumns.DEVICE_COUNTRY, telephonyManager.getSimCountryIso());
+            values.put(SessionsDbColumns.DEVICE_MANUFACTURER, DatapointHelper.getManufacturer());
+            values.put(SessionsDbColumns.DEVICE_MODEL, Build.MODEL);
+            values.put(SessionsDbColumns.DEVICE_SERIAL_NUMBER_HASH, DatapointHelper.getSerialNumberHashOrNull());
+            values.put(SessionsDbColumns.DEVICE_TELEPHONY_ID, DatapointHelper.getTelephonyDeviceIdOrNull(mContext));
+            values.putNull(SessionsDbColumns.DEVICE_TELEPHONY_ID_HASH);
+            values.put(SessionsDbColumns.DEVICE_WIFI_MAC_HASH, DatapointHelper.getWifiMacHashOrNull(mContext));
+            values.put(SessionsDbColumns.LOCALE_COUNTRY, Locale.getDefault().getCountry());
+            values.put(SessionsDbColumns.LOCALE_LANGUAGE, Locale.getDefault().getLanguage());
+            values.put(SessionsDbColumns.LOCALYTICS_LIBRARY_VERSION, Constants.LOCALYTICS_CLIENT_LIBRARY_VERSION);
+            values.put(SessionsDbColumns.LOCALYTICS_INSTALLATION_ID, getInstallationId(mProvider, mApiKey));
+
+            values.putNull(SessionsDbColumns.LATITUDE);
+            values.putNull(SessionsDbColumns.LONGITUDE);
+            values.put(SessionsDbColumns.NETWORK_CARRIER, telephonyManager.getNetworkOperatorName());
+            values.put(SessionsDbColumns.NETWORK_COUNTRY, telephonyManager.getNetworkCountryIso());
+            values.put(SessionsDbColumns.NETWORK_TYPE, DatapointHelper.getNetworkType(mContext, telephonyManager));
+
+            long sessionId = mProvider.insert(SessionsDbColumns.TABLE_NAME, values);
+            if (sessionId == -1)
+            {
+                throw new AssertionError("session insert failed"); //$NON-NLS-1$
+            }
+
+            tagEvent(OPEN_EVENT, attributes, null, EventsDbColumns.PRIORITY_NORMAL, 0, realTime, wallTime);
+
+            /*
+             * This is placed here so that the DatapointHelper has a chance to retrieve the old UUID before it is deleted.
+             */
+            LocalyticsProvider.deleteOldFiles(mContext);
+        }
+
+        /**
+         * Projection for getting the installation ID. Used by {@link #getInstallationId(LocalyticsStorage, String)}.
+         */
+        private static final String[] PROJECTION_GET_INSTALLATION_ID = new String[]
+            { ApiKeysDbColumns.UUID };
+
+        /**
+         * Selection for a specific API key ID. Used by {@link #getInstallationId(LocalyticsStorage, String)}.
+         */
+        private static final String SELECTION_GET_INSTALLATION_ID = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
+
+        /**
+         * Gets the installation ID of the API key.
+         */
+        /* package */ static String getInstallationId(final LocalyticsStorage provider, final String apiKey)
+        {
+            Cursor cursor = null;
+            try
+            {
+                cursor = provider.query(ApiKeysDbColumns.TABLE_NAME, PROJECTION_GET_INSTALLATION_ID, SELECTION_GET_INSTALLATION_ID, new String[]
+                    { apiKey }, null);
+
+                if (cursor.moveToFirst())
+                {
+                    return cursor.getString(cursor.getColumnIndexOrThrow(ApiKeysDbColumns.UUID));
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            /*
+             * This error case shouldn't normally happen
+             */
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Installation ID couldn't be found"); //$NON-NLS-1$
+            }
+            return null;
+        }
+        
+        /**
+         * Gets Facebook attributon cookie for an app key
+         *
+         * @param provider Localytics database provider. Cannot be null.
+         * @return The FB attribution cookie.
+         */
+        /* package */static String getFBAttribution(final LocalyticsStorage provider)
+        {
+            Cursor cursor = null;
+            try
+            {
+                cursor = provider.query(InfoDbColumns.TABLE_NAME, null, null, null, null); //$NON-NLS-1$
+
+                if (cursor.moveToFirst())
+                {
+                    return cursor.getString(cursor.getColumnIndexOrThrow(InfoDbColumns.FB_ATTRIBUTION));
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+            
+            return null;
+        }
+
+        /**
+         * Projection for {@link #openClosedSession(long)}.
+         */
+        private static final String[] PROJECTION_OPEN_CLOSED_SESSION = new String[]
+            { EventsDbColumns.SESSION_KEY_REF };
+
+        /**
+         * Selection for {@link #openClosedSession(long)}.
+         */
+        private static final String SELECTION_OPEN_CLOSED_SESSION = String.format("%s = ?", EventsDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Selection for {@link #openClosedSession(long)}.
+         */
+        private static final String SELECTION_OPEN_CLOSED_SESSION_ATTRIBUTES = String.format("%s = ?", AttributesDbColumns.EVENTS_KEY_REF); //$NON-NLS-1$
+
+        /**
+         * Reopens a previous session. This is a helper method to {@link #open(Map)}.
+         *
+         * @param closeEventId The last close event which is to be deleted so that the old session can be reopened
+         * @effects Updates the database by deleting the last close event.
+         */
+        private void openClosedSession(final long closeEventId)
+        {
+            final String[] selectionArgs = new String[]
+                { Long.toString(closeEventId) };
+
+            Cursor cursor = null;
+            try
+            {
+                cursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_OPEN_CLOSED_SESSION, SELECTION_OPEN_CLOSED_SESSION, selectionArgs, null);
+
+                if (cursor.moveToFirst())
+                {
+                    mProvider.delete(AttributesDbColumns.TABLE_NAME, SELECTION_OPEN_CLOSED_SESSION_ATTRIBUTES, selectionArgs);
+                    mProvider.delete(EventsDbColumns.TABLE_NAME, SELECTION_OPEN_CLOSED_SESSION, selectionArgs);
+                }
+                else
+                {
+                    /*
+                     * This should never happen
+                     */
+
+                    if (LocalyticsLog.isLoggable(Log.ERROR))
+                    {
+                        LocalyticsLog.e("Event no longer exists"); //$NON-NLS-1$
+                    }
+
+                    openNewSession(null, mClock.elapsedRealtime(), mClock.currentTimeMillis());
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+        }
+
+        /**
+         * Projection for {@link #closeExpiredSession(long, long)}.
+         */
+        private static final String[] PROJECTION_CLOSE_EXPIRED_SESSION = new String[]
+            {
+                EventsDbColumns.REAL_TIME,
+                EventsDbColumns.WALL_TIME };
+
+        /**
+         * Selection for {@link #closeExpiredSession(long, long)}: the last event of a session.
+         */
+        private static final String SELECTION_CLOSE_EXPIRED_SESSION = String.format("%s = (SELECT MAX(%s) FROM %s WHERE %s = ?)", EventsDbColumns._ID, EventsDbColumns._ID, EventsDbColumns.TABLE_NAME, EventsDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+
+        /**
+         * Closes an open session whose last event is older than {@link Constants#SESSION_EXPIRATION}, as of that event. This
+         * happens when the process was killed before the session was closed, for example while it was paused.
+         *
+         * @param sessionId {@link SessionsDbColumns#_ID} of the open session.
+         * @param wallTime {@link EventsDbColumns#WALL_TIME} of the open that found the session.
+         * @return True if the session was closed.
+         */
+        private boolean closeExpiredSession(final long sessionId, final long wallTime)
+        {
+            long lastRealTime = 0;
+            long lastWallTime = 0;
+
+            Cursor cursor = null;
+            try
+            {
+                cursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_CLOSE_EXPIRED_SESSION, SELECTION_CLOSE_EXPIRED_SESSION, new String[]
+                    { Long.toString(sessionId) }, null);
+
+                if (!cursor.moveToFirst())
+                {
+                    return false;
+                }
+
+                lastRealTime = cursor.getLong(cursor.getColumnIndexOrThrow(EventsDbColumns.REAL_TIME));
+                lastWallTime = cursor.getLong(cursor.getColumnIndexOrThrow(EventsDbColumns.WALL_TIME));
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            if (wallTime - lastWallTime <= Constants.SESSION_EXPIRATION)
+            {
+                return false;
+            }
+
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("Closing expired session as of its last event"); //$NON-NLS-1$
+            }
+
+            close(null, lastRealTime, lastWallTime);
+            return true;
+        }
+
+        /**
+         * Close a session. While this method should only be called after {@link #open(Map)}, nothing bad will happen if
+         * it is called and {@link #open(Map)} wasn't called. Similarly, nothing bad will happen if close is called
+         * multiple times.
+         * <p>
+         * This method must only be called after {@link #init()} is called.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_CLOSE} to the Handler.
+         *
+         * @param attributes Set of attributes to attach to the close. May be null indicating no attributes. Cannot contain null
+         *            or empty keys or values.
+         * @see SessionHandler#MESSAGE_OPEN
+         */
+        /* package */void close(final Map<String, String> attributes)
+        {
+            close(attributes, mClock.elapsedRealtime(), mClock.currentTimeMillis());
+        }
+
+        /**
+         * Close a session as of the given time, which may be in the past. This is used to close a paused session as of its last activity.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_CLOSE} to the Handler.
+         *
+         * @param attributes Set of attributes to attach to the close. May be null indicating no attributes.
+         * @param realTime {@link EventsDbColumns#REAL_TIME} of the close.
+         * @param wallTime {@link EventsDbColumns#WALL_TIME} of the close.
+         */
+        /* package */void close(final Map<String, String> attributes, final long realTime, final long wallTime)
+        {
+            if (null == getOpenSessionId(mProvider)) // do nothing if session is not open
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("Session was not open, so close is not possible."); //$NON-NLS-1$
+                }
+                return;
+            }
+
+            tagEvent(CLOSE_EVENT, attributes, null, EventsDbColumns.PRIORITY_NORMAL, 0, realTime, wallTime);
+        }
+
+        /**
+         * Releases the session lease acquired by {@link #handlePause(Runnable)}, if any, cancelling its timer.
+         * The close time of the paused session stays in {@link #mLeaseCloseRealTime} and {@link #mLeaseCloseWallTime}.
+         *
+         * @return True if a lease was held.
+         */
+        private boolean releaseLease()
+        {
+            if (!mIsLeaseHeld)
+            {
+                return false;
+            }
+
+            mIsLeaseHeld = false;
+            mLeaseGeneration++;
+            return true;
+        }
+
+        /**
+         * Closes the paused session as of its last activity and requests a lifecycle upload, or runs
+         * {@link #mLeaseExpiredCallback} in its place, as the lease expired.
+         */
+        private void expireLease()
+        {
+            releaseLease();
+
+            mProvider.runBatchTransaction(new Runnable()
+            {
+                public void run()
+                {
+                    SessionEngine.this.close(null, mLeaseCloseRealTime, mLeaseCloseWallTime);
+                }
+            });
+
+            final Runnable callback = mLeaseExpiredCallback;
+            mLeaseExpiredCallback = null;
+            if (null == callback)
+            {
+                mExecutor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        handleUpload(null, UPLOAD_REASON_LIFECYCLE);
+                    }
+                });
+            }
+            else
+            {
+                callback.run();
+            }
+        }
+
+        /**
+         * Projection for {@link #tagEvent(String, Map)}.
+         */
+        private static final String[] PROJECTION_TAG_EVENT = new String[]
+            { SessionsDbColumns.SESSION_START_WALL_TIME };
+
+        /**
+         * Selection for {@link #tagEvent(String, Map)}.
+         */
+        private static final String SELECTION_TAG_EVENT = String.format("%s = ?", SessionsDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Tag an event in a session. Although this method SHOULD NOT be called unless a session is open, actually doing so will
+         * have no effect.
+         * <p>
+         * This method must only be called after {@link #init()} is called.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_TAG_EVENT} to the Handler.
+         *
+         * @param event The name of the event which occurred. Cannot be null.
+         * @param attributes The collection of attributes for this particular event. May be null.
+         * @see SessionHandler#MESSAGE_TAG_EVENT
+         */
+        /* package */void tagEvent(final String event, final Map<String, String> attributes)
+        {
+        	tagEvent(event, attributes, null);
+        }
+        
+        /**
+         * Tag an event in a session. Although this method SHOULD NOT be called unless a session is open, actually doing so will
+         * have no effect.
+         * <p>
+         * This method must only be called after {@link #init()} is called.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_TAG_EVENT} to the Handler.
+         *
+         * @param event The name of the event which occurred. Cannot be null.
+         * @param attributes The collection of attributes for this particular event. May be null.
+         * @param clv The customer value increase.
+         * @see SessionHandler#MESSAGE_TAG_EVENT
+         */
+        /* package */void tagEvent(final String event, final Map<String, String> attributes, final Long clv)
+        {
+            tagEvent(event, attributes, clv, EventsDbColumns.PRIORITY_NORMAL);
+        }
+
+        /**
+         * Tag an event in a session with a priority class.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_TAG_EVENT} to the Handler.
+         *
+         * @param event The name of the event which occurred.
+         * @param attributes The collection of attributes for this particular event. May be null.
+         * @param clv The customer value increase. May be null.
+         * @param priority {@link EventsDbColumns#PRIORITY} of the event.
+         * @see SessionHandler#MESSAGE_TAG_EVENT
+         */
+        /* package */void tagEvent(final String event, final Map<String, String> attributes, final Long clv, final int priority)
+        {
+            tagEvent(event, attributes, clv, priority, 0);
+        }
+
+        /**
+         * Tag an event in a session with a priority class, reporting it to the tracer if it is traced.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_TAG_EVENT} to the Handler.
+         *
+         * @param event The name of the event which occurred.
+         * @param attributes The collection of attributes for this particular event. May be null.
+         * @param clv The customer value increase. May be null.
+         * @param priority {@link EventsDbColumns#PRIORITY} of the event.
+         * @param traceId Trace ID from {@link EventTracing#sample()}, or 0 if the event is not traced.
+         * @see SessionHandler#MESSAGE_TAG_EVENT
+         */
+        /* package */void tagEvent(final String event, final Map<String, String> attributes, final Long clv, final int priority, final int traceId)
+        {
+            tagEvent(event, attributes, clv, priority, traceId, mClock.elapsedRealtime(), mClock.currentTimeMillis());
+        }
+
+        /**
+         * Tag an event in a session as of the given time.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_TAG_EVENT} to the Handler.
+         *
+         * @param event The name of the event which occurred.
+         * @param attributes The collection of attributes for this particular event. May be null.
+         * @param clv The customer value increase. May be null.
+         * @param priority {@link EventsDbColumns#PRIORITY} of the event.
+         * @param traceId Trace ID from {@link EventTracing#sample()}, or 0 if the event is not traced.
+         * @param realTime {@link EventsDbColumns#REAL_TIME} of the event.
+         * @param wallTime {@link EventsDbColumns#WALL_TIME} of the event.
+         * @see SessionHandler#MESSAGE_TAG_EVENT
+         */
+        /* package */void tagEvent(final String event, final Map<String, String> attributes, final Long clv, final int priority, final int traceId, final long realTime, final long wallTime)
+        {
+            final Long openSessionId = getOpenSessionId(mProvider);
+            if (null == openSessionId)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("Event not written because a session is not open"); //$NON-NLS-1$
+                }
+
+                if (isApplicationEvent(event))
+                {
+                    mMetrics.mEventsDropped.increment();
+                    if (0 != traceId)
+                    {
+                        mTracing.report(traceId, event.substring(mContext.getPackageName().length() + 1), LocalyticsTracer.STAGE_DROPPED, mClock.elapsedRealtime());
+                    }
+                }
+                return;
+            }
+
+            /*
+             * Insert the event and get the event's database ID
+             */
+            final long eventId;
+            {
+                final ContentValues values = new ContentValues();
+                values.put(EventsDbColumns.SESSION_KEY_REF, openSessionId);
+                values.put(EventsDbColumns.UUID, UUID.randomUUID().toString());
+                values.put(EventsDbColumns.EVENT_NAME, event);
+                values.put(EventsDbColumns.REAL_TIME, Long.valueOf(realTime));
+                values.put(EventsDbColumns.WALL_TIME, Long.valueOf(wallTime));
+                
+                if (null != clv)
+                {
+                	values.put(EventsDbColumns.CLV_INCREASE, clv);
+                }
+                else
+                {
+                	values.put(EventsDbColumns.CLV_INCREASE, 0);
+                }
+
+                values.put(EventsDbColumns.PRIORITY, Integer.valueOf(priority));
+                
+                /*
+                 * Special case for open event: keep the start time in sync with the start time put into the sessions table.
+                 */
+                if (OPEN_EVENT.equals(event))
+                {
+                    Cursor cursor = null;
+                    try
+                    {
+                        cursor = mProvider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_TAG_EVENT, SELECTION_TAG_EVENT, new String[]
+                            { openSessionId.toString() }, null);
+
+                        if (cursor.moveToFirst())
+                        {
+                            values.put(EventsDbColumns.WALL_TIME, Long.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(SessionsDbColumns.SESSION_START_WALL_TIME))));
+                        }
+                        else
+                        {
+                            // this should never happen
+                            throw new AssertionError("During tag of open event, session didn't exist"); //$NON-NLS-1$
+                        }
+                    }
+                    finally
+                    {
+                        if (null != cursor)
+                        {
+                            cursor.close();
+                            cursor = null;
+                        }
+                    }
+                }
+
+                eventId = mProvider.insert(EventsDbColumns.TABLE_NAME, values);
+
+                if (-1 == eventId)
+                {
+                    throw new RuntimeException("Inserting event failed"); //$NON-NLS-1$
+                }
+
+                if (0 == mPendingEventCount)
+                {
+                    mOldestPendingEventWallTime = values.getAsLong(EventsDbColumns.WALL_TIME).longValue();
+                }
+                mPendingEventCount++;
+                mPendingEventBytes += ESTIMATED_EVENT_BYTES + event.length();
+                mStoredEventCount++;
+                mStoredBytes += ESTIMATED_EVENT_BYTES + event.length();
+
+                /*
+                 * Events tagged while paused are part of the session, so it must not close before them
+                 */
+                if (mIsLeaseHeld)
+                {
+                    mLeaseCloseRealTime = Math.max(mLeaseCloseRealTime, realTime);
+                    mLeaseCloseWallTime = Math.max(mLeaseCloseWallTime, wallTime);
+                }
+            }
+
+            /*
+             * If attributes exist, insert them as well
+             */
+            if (null != attributes)
+            {
+                // reusable object
+                final ContentValues values = new ContentValues();
+
+                final String applicationAttributePrefix = String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, mContext.getPackageName(), ""); //$NON-NLS-1$
+                int applicationAttributeCount = 0;
+
+                for (final Entry<String, String> entry : attributes.entrySet())
+                {
+                    /*
+                     * Detect excess application events
+                     */
+                    if (entry.getKey().startsWith(applicationAttributePrefix))
+                    {
+                        applicationAttributeCount++;
+                        if (applicationAttributeCount > Constants.MAX_NUM_ATTRIBUTES)
+                        {
+                            continue;
+                        }
+                    }
+
+                    values.put(AttributesDbColumns.EVENTS_KEY_REF, Long.valueOf(eventId));
+                    values.put(AttributesDbColumns.ATTRIBUTE_KEY, entry.getKey());
+                    values.put(AttributesDbColumns.ATTRIBUTE_VALUE, entry.getValue());
+
+                    final long id = mProvider.insert(AttributesDbColumns.TABLE_NAME, values);
+
+                    if (-1 == id)
+                    {
+                        throw new AssertionError("Inserting attribute failed"); //$NON-NLS-1$
+                    }
+
+                    final long attributeBytes = ESTIMATED_ATTRIBUTE_BYTES + entry.getKey().length() + entry.getValue().length();
+                    mPendingEventBytes += attributeBytes;
+                    mStoredBytes += attributeBytes;
+
+                    values.clear();
+                }
+            }
+
+            /*
+             * Insert the event into the history, only for application events
+             */
+            if (isApplicationEvent(event))
+            {
+                final String name = event.substring(mContext.getPackageName().length() + 1, event.length());
+
+                final ContentValues values = new ContentValues();
+                values.put(EventHistoryDbColumns.NAME, name);
+                values.put(EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT));
+                values.put(EventHistoryDbColumns.SESSION_KEY_REF, openSessionId);
+                values.putNull(EventHistoryDbColumns.PROCESSED_IN_BLOB);
+                mProvider.insert(EventHistoryDbColumns.TABLE_NAME, values);
+
+                conditionallyAddFlowEvent();
+
+                mMetrics.mEventsPersisted.increment();
+                if (0 != traceId)
+                {
+                    mTracing.onPersisted(traceId, name, eventId, mClock.elapsedRealtime());
+                }
+
+                if (!mIsFirstEventPersisted)
+                {
+                    mIsFirstEventPersisted = true;
+                    mMetrics.mFirstEventMillis = mClock.elapsedRealtime() - mCreatedRealTime;
+                }
+            }
+
+            enforceStorageQuota();
+        }
+
+        /**
+         * @param event Name of an event, including the package prefix. Cannot be null.
+         * @return True if {@code event} was tagged by the app, false if it is one of the library's own events.
+         */
+        private static boolean isApplicationEvent(final String event)
+        {
+            return !OPEN_EVENT.equals(event) && !CLOSE_EVENT.equals(event) && !OPT_IN_EVENT.equals(event) && !OPT_OUT_EVENT.equals(event) && !FLOW_EVENT.equals(event);
+        }
+
+        /**
+         * Projection for {@link #tagScreen(String)}.
+         */
+        private static final String[] PROJECTION_TAG_SCREEN = new String[]
+            { EventHistoryDbColumns.NAME };
+
+        /**
+         * Selection for {@link #tagScreen(String)}.
+         */
+        private static final String SELECTION_TAG_SCREEN = String.format("%s = ? AND %s = ?", EventHistoryDbColumns.TYPE, EventHistoryDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+
+        /**
+         * Sort order for {@link #tagScreen(String)}.
+         */
+        private static final String SORT_ORDER_TAG_SCREEN = String.format("%s DESC", EventHistoryDbColumns._ID); //$NON-NLS-1$
+
+        /**
+         * Tag a screen in a session. While this method shouldn't be called unless {@link #open(Map)} is called first,
+         * this method will simply do nothing if {@link #open(Map)} hasn't been called.
+         * <p>
+         * This method performs duplicate suppression, preventing multiple screens with the same value in a row within a given
+         * session.
+         * <p>
+         * This method must only be called after {@link #init()} is called.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made public for unit testing purposes. The public
+         * interface is to send {@link SessionHandler#MESSAGE_TAG_SCREEN} to the Handler.
+         *
+         * @param screen The name of the screen which occurred. Cannot be null or empty.
+         * @see SessionHandler#MESSAGE_TAG_SCREEN
+         */
+        /* package */void tagScreen(final String screen)
+        {
+            final Long openSessionId = getOpenSessionId(mProvider);
+            if (null == openSessionId)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("Tag not written because the session was not open"); //$NON-NLS-1$
+                }
+                return;
+            }
+
+            /*
+             * Do duplicate suppression
+             */
+            Cursor cursor = null;
+            try
+            {
+                cursor = mProvider.query(EventHistoryDbColumns.TABLE_NAME, PROJECTION_TAG_SCREEN, SELECTION_TAG_SCREEN, new String[]
+                    {
+                        Integer.toString(EventHistoryDbColumns.TYPE_SCREEN),
+                        openSessionId.toString() }, SORT_ORDER_TAG_SCREEN);
+
+                if (cursor.moveToFirst())
+                {
+                    if (screen.equals(cursor.getString(cursor.getColumnIndexOrThrow(EventHistoryDbColumns.NAME))))
+                    {
+                        if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                        {
+                            LocalyticsLog.v("Suppressed duplicate screen %s", screen); //$NON-NLS-1$
+                        }
+                        return;
+                    }
+                }
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            /*
+             * Write the screen to the database
+             */
+            final ContentValues values = new ContentValues();
+            values.put(EventHistoryDbColumns.NAME, screen);
+            values.put(EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_SCREEN));
+            values.put(EventHistoryDbColumns.SESSION_KEY_REF, openSessionId);
+            values.putNull(EventHistoryDbColumns.PROCESSED_IN_BLOB);
+            mProvider.insert(EventHistoryDbColumns.TABLE_NAME, values);
+
+            conditionallyAddFlowEvent();
+        }
+        
+        /**
+         * Projection for {@link #tagScreen(String)}.
+         */
+        private static final String[] PROJECTION_SET_IDENTIFIER = new String[]
+            { IdentifiersDbColumns.VALUE };
+
+        /**
+         * Selection for {@link #tagScreen(String)}.
+         */
+        private static final String SELECTION_SET_IDENTIFIER = String.format("%s = ?", IdentifiersDbColumns.KEY); //$NON-NLS-1$
+
+        
+        /* package */void setIdentifier(final String key, final String value)
+        {
+            Cursor cursor = null;
+            try
+            {
+                cursor = mProvider.query(IdentifiersDbColumns.TABLE_NAME, PROJECTION_SET_IDENTIFIER, SELECTION_SET_IDENTIFIER, new String[] { key }, null);
+
+                if (cursor.moveToFirst())
+                {
+                	if (null == value)
+                	{
+                		mProvider.delete(IdentifiersDbColumns.TABLE_NAME, String.format("%s = ?", IdentifiersDbColumns.KEY), new String[] { cursor.getString(cursor.getColumnIndexOrThrow(IdentifiersDbColumns.KEY)) }); //$NON-NLS-1$
+                	}
+                	else
+                	{
+                    	final ContentValues values = new ContentValues();
+                    	values.put(IdentifiersDbColumns.KEY, key);
+                    	values.put(IdentifiersDbColumns.VALUE, value); 
+                    	mProvider.update(IdentifiersDbColumns.TABLE_NAME, values, SELECTION_SET_IDENTIFIER, new String[] { key }); 
+                	}
+                }
+                else
+                {
+                	if (value != null)
+                	{
+                		final ContentValues values = new ContentValues();
+                		values.put(IdentifiersDbColumns.KEY, key);
+                		values.put(IdentifiersDbColumns.VALUE, value);                       
+                		mProvider.insert(IdentifiersDbColumns.TABLE_NAME, values);
+                	}
+                }
+                
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+        }
+
+        /* package */void setPushRegistrationId(final String pushRegId)
+        {
+            final ContentValues values = new ContentValues();
+            values.put(InfoDbColumns.REGISTRATION_ID, pushRegId == null ? "" : pushRegId);
+            values.put(InfoDbColumns.REGISTRATION_VERSION, DatapointHelper.getAppVersion(mContext));
+            mProvider.update(InfoDbColumns.TABLE_NAME, values, null, null);
+        }
+        
+        /**
+         * Projection for {@link #conditionallyAddFlowEvent()}.
+         */
+        private static final String[] PROJECTION_FLOW_EVENTS = new String[]
+            { EventsDbColumns._ID };
+
+        /**
+         * Selection for {@link #conditionallyAddFlowEvent()}.
+         */
+        private static final String SELECTION_FLOW_EVENTS = String.format("%s = ?", EventsDbColumns.EVENT_NAME); //$NON-NLS-1$
+
+        /**
+         * Selection arguments for {@link #SELECTION_FLOW_EVENTS} in {@link #conditionallyAddFlowEvent()}.
+         */
+        private static final String[] SELECTION_ARGS_FLOW_EVENTS = new String[]
+            { FLOW_EVENT };
+
+        /**
+         * Projection for {@link #conditionallyAddFlowEvent()}.
+         */
+        private static final String[] PROJECTION_FLOW_BLOBS = new String[]
+            { UploadBlobEventsDbColumns.EVENTS_KEY_REF };
+
+        /**
+         * Conditionally adds a flow event if no flow event exists in the current upload blob.
+         */
+        private void conditionallyAddFlowEvent()
+        {
+            /*
+             * Creating a flow "event" is required to act as a placeholder so that the uploader will know that an upload needs to
+             * occur. A flow event should only be created if there isn't already a flow event that hasn't been associated with an
+             * upload blob.
+             */
+            boolean foundUnassociatedFlowEvent = false;
+
+            Cursor eventsCursor = null;
+            Cursor blob_eventsCursor = null;
+            try
+            {
+                eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_FLOW_EVENTS, SELECTION_FLOW_EVENTS, SELECTION_ARGS_FLOW_EVENTS, EVENTS_SORT_ORDER);
+
+                blob_eventsCursor = mProvider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_FLOW_BLOBS, null, null, UPLOAD_BLOBS_EVENTS_SORT_ORDER);
+
+                final CursorJoiner joiner = new CursorJoiner(eventsCursor, PROJECTION_FLOW_EVENTS, blob_eventsCursor, PROJECTION_FLOW_BLOBS);
+                for (final CursorJoiner.Result joinerResult : joiner)
+                {
+                    switch (joinerResult)
+                    {
+                        case LEFT:
+                        {
+                            foundUnassociatedFlowEvent = true;
+                            break;
+                        }
+                        case BOTH:
+                            break;
+                        case RIGHT:
+                            break;
                     }
                 }
-                else
+            }
+            finally
+            {
+                if (null != eventsCursor)
                 {
-                    if (Constants.IS_LOGGABLE)
-                    {
-                        Log.v(Constants.LOG_TAG, "Opening new session"); //$NON-NLS-1$
-                    }
+                    eventsCursor.close();
+                    eventsCursor = null;
+                }
 
-                    openNewSession(attributes);
+                if (null != blob_eventsCursor)
+                {
+                    blob_eventsCursor.close();
+                    blob_eventsCursor = null;
                 }
             }
+
+            if (!foundUnassociatedFlowEvent)
+            {
+                tagEvent(FLOW_EVENT, null);
+            }
         }
 
         /**
-         * Opens a new session. This is a helper method to {@link #open(boolean, Map)}.
-         *
-         * @effects Updates the database by creating a new entry in the {@link SessionsDbColumns} table.
-         * @param attributes Attributes to attach to the session. May be null. Cannot contain null or empty keys or values.
+         * Projection for {@link #preUploadBuildBlobs(LocalyticsStorage)}.
          */
-        private void openNewSession(final Map<String, String> attributes)
-        {
-            final TelephonyManager telephonyManager = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-
-            final ContentValues values = new ContentValues();
-            values.put(SessionsDbColumns.API_KEY_REF, Long.valueOf(mApiKeyId));
-            values.put(SessionsDbColumns.SESSION_START_WALL_TIME, Long.valueOf(System.currentTimeMillis()));
-            values.put(SessionsDbColumns.UUID, UUID.randomUUID().toString());
-            values.put(SessionsDbColumns.APP_VERSION, DatapointHelper.getAppVersion(mContext));
-            values.put(SessionsDbColumns.ANDROID_SDK, Integer.valueOf(Constants.CURRENT_API_LEVEL));
-            values.put(SessionsDbColumns.ANDROID_VERSION, VERSION.RELEASE);
-
-            // Try and get the deviceId. If it is unavailable (or invalid) use the installation ID instead.
-            String deviceId = DatapointHelper.getAndroidIdHashOrNull(mContext);
-            if (null == deviceId)
+        private static final String[] PROJECTION_UPLOAD_EVENTS = new String[]
             {
-                Cursor cursor = null;
-                try
-                {
-                    cursor = mProvider.query(ApiKeysDbColumns.TABLE_NAME, null, SELECTION_OPEN_NEW_SESSION, new String[]
-                        { mApiKey }, null);
-                    if (cursor.moveToFirst())
-                    {
-                        deviceId = cursor.getString(cursor.getColumnIndexOrThrow(ApiKeysDbColumns.UUID));
-                    }
-                }
-                finally
-                {
-                    if (null != cursor)
-                    {
-                        cursor.close();
-                        cursor = null;
-                    }
-                }
-            }
-
-            values.put(SessionsDbColumns.DEVICE_ANDROID_ID_HASH, deviceId);
-            values.put(SessionsDbColumns.DEVICE_ANDROID_ID, DatapointHelper.getAndroidIdOrNull(mContext));
-            values.put(SessionsDbColumns.DEVICE_COUNTRY, telephonyManager.getSimCountryIso());
-            values.put(SessionsDbColumns.DEVICE_MANUFACTURER, DatapointHelper.getManufacturer());
-            values.put(SessionsDbColumns.DEVICE_MODEL, Build.MODEL);
-            values.put(SessionsDbColumns.DEVICE_SERIAL_NUMBER_HASH, DatapointHelper.getSerialNumberHashOrNull());
-            values.put(SessionsDbColumns.DEVICE_TELEPHONY_ID, DatapointHelper.getTelephonyDeviceIdOrNull(mContext));
-            values.putNull(SessionsDbColumns.DEVICE_TELEPHONY_ID_HASH);
-            values.put(SessionsDbColumns.DEVICE_WIFI_MAC_HASH, DatapointHelper.getWifiMacHashOrNull(mContext));
-            values.put(SessionsDbColumns.LOCALE_COUNTRY, Locale.getDefault().getCountry());
-            values.put(SessionsDbColumns.LOCALE_LANGUAGE, Locale.getDefault().getLanguage());
-            values.put(SessionsDbColumns.LOCALYTICS_LIBRARY_VERSION, Constants.LOCALYTICS_CLIENT_LIBRARY_VERSION);
-            values.put(SessionsDbColumns.LOCALYTICS_INSTALLATION_ID, getInstallationId(mProvider, mApiKey));
+                EventsDbColumns._ID,
+                EventsDbColumns.EVENT_NAME,
+                EventsDbColumns.WALL_TIME,
+                EventsDbColumns.PRIORITY };
 
-            values.putNull(SessionsDbColumns.LATITUDE);
-            values.putNull(SessionsDbColumns.LONGITUDE);
-            values.put(SessionsDbColumns.NETWORK_CARRIER, telephonyManager.getNetworkOperatorName());
-            values.put(SessionsDbColumns.NETWORK_COUNTRY, telephonyManager.getNetworkCountryIso());
-            values.put(SessionsDbColumns.NETWORK_TYPE, DatapointHelper.getNetworkType(mContext, telephonyManager));
+        /**
+         * Projection for {@link #preUploadBuildBlobs(LocalyticsStorage)}.
+         */
+        private static final String[] PROJECTION_UPLOAD_BLOBS = new String[]
+            { UploadBlobEventsDbColumns.EVENTS_KEY_REF };
 
-            long sessionId = mProvider.insert(SessionsDbColumns.TABLE_NAME, values);
-            if (sessionId == -1)
-            {
-                throw new AssertionError("session insert failed"); //$NON-NLS-1$
-            }
+        /**
+         * Projection for {@link #preUploadBuildBlobs(LocalyticsStorage)}.
+         */
+        private static final String SELECTION_UPLOAD_NULL_BLOBS = String.format("%s IS NULL", EventHistoryDbColumns.PROCESSED_IN_BLOB); //$NON-NLS-1$
 
-            tagEvent(OPEN_EVENT, attributes);
+        /**
+         * Selection for storing the payload in {@link #buildBlob(LocalyticsStorage, Context, String, boolean, Set, int, boolean)}.
+         * <p>
+         * The selection argument is the {@link UploadBlobsDbColumns#_ID}.
+         */
+        private static final String SELECTION_UPLOAD_BLOB_ID = String.format("%s = ?", UploadBlobsDbColumns._ID); //$NON-NLS-1$
 
-            /*
-             * This is placed here so that the DatapointHelper has a chance to retrieve the old UUID before it is deleted.
-             */
-            LocalyticsProvider.deleteOldFiles(mContext);
-        }
+        /**
+         * Columns to join in {@link #preUploadBuildBlobs(LocalyticsStorage)}.
+         */
+        private static final String[] JOINER_ARG_UPLOAD_EVENTS_COLUMNS = new String[]
+            { EventsDbColumns._ID };
 
         /**
-         * Projection for getting the installation ID. Used by {@link #getInstallationId(LocalyticsProvider, String)}.
+         * Builds upload blobs for all events.
+         *
+         * @param provider Instance of {@link LocalyticsStorage}. Cannot be null.
+         * @effects Mutates the database by creating a new upload blob for all events that are unassociated at the time this
+         *          method is called.
          */
-        private static final String[] PROJECTION_GET_INSTALLATION_ID = new String[]
-            { ApiKeysDbColumns.UUID };
+        /* package */static void preUploadBuildBlobs(final LocalyticsStorage provider)
+        {
+            preUploadBuildBlobs(provider, null, null, false);
+        }
 
         /**
-         * Selection for a specific API key ID. Used by {@link #getInstallationId(LocalyticsProvider, String)}.
+         * Builds upload blobs for all events, optionally serializing the new blobs into {@link UploadBlobsDbColumns#PAYLOAD}.
+         *
+         * @param provider Instance of {@link LocalyticsStorage}. Cannot be null.
+         * @param context Application context. Cannot be null if {@code isSerializing} is true.
+         * @param apiKey Localytics API key. Cannot be null if {@code isSerializing} is true.
+         * @param isSerializing True to convert the new blobs to JSON and store their compressed payload.
+         * @effects Mutates the database by creating new upload blobs for all events that are unassociated at the time this
+         *          method is called.
          */
-        private static final String SELECTION_GET_INSTALLATION_ID = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
+        /* package */static void preUploadBuildBlobs(final LocalyticsStorage provider, final Context context, final String apiKey, final boolean isSerializing)
+        {
+            preUploadBuildBlobs(provider, context, apiKey, isSerializing, false);
+        }
 
         /**
-         * Gets the installation ID of the API key.
+         * Builds upload blobs for events. Events of each priority are grouped into separate blobs, so that high priority blobs can
+         * be uploaded on their own.
+         *
+         * @param provider Instance of {@link LocalyticsStorage}. Cannot be null.
+         * @param context Application context. Cannot be null if {@code isSerializing} is true.
+         * @param apiKey Localytics API key. Cannot be null if {@code isSerializing} is true.
+         * @param isSerializing True to convert the new blobs to JSON and store their compressed payload.
+         * @param isPriorityOnly True to only build a blob for {@link EventsDbColumns#PRIORITY_HIGH} events. The event history is
+         *            then left for the next full build.
+         * @effects Mutates the database by creating new upload blobs for the events that are unassociated at the time this
+         *          method is called.
          */
-        /* package */ static String getInstallationId(final LocalyticsProvider provider, final String apiKey)
+        /* package */static void preUploadBuildBlobs(final LocalyticsStorage provider, final Context context, final String apiKey, final boolean isSerializing, final boolean isPriorityOnly)
         {
-            Cursor cursor = null;
+            /*
+             * Group all events that aren't part of an upload blob into a new blob. While this process is a linear algorithm that
+             * requires scanning two database tables, the performance won't be a problem for two reasons: 1. This process happens
+             * frequently so the number of events to group will always be low. 2. There is a maximum number of events, keeping the
+             * overall size low. Note that close events that are younger than SESSION_EXPIRATION will be skipped to allow session
+             * reconnects.
+             */
+
+            // temporary sets of event ids that aren't in a blob
+            final Set<Long> eventIds = new HashSet<Long>();
+            final Set<Long> priorityEventIds = new HashSet<Long>();
+
+            Cursor eventsCursor = null;
+            Cursor blob_eventsCursor = null;
             try
             {
-                cursor = provider.query(ApiKeysDbColumns.TABLE_NAME, PROJECTION_GET_INSTALLATION_ID, SELECTION_GET_INSTALLATION_ID, new String[]
-                    { apiKey }, null);
+                eventsCursor = provider.query(EventsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_EVENTS, null, null, EVENTS_SORT_ORDER);
 
-                if (cursor.moveToFirst())
+                blob_eventsCursor = provider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_BLOBS, null, null, UPLOAD_BLOBS_EVENTS_SORT_ORDER);
+
+                final int idColumn = eventsCursor.getColumnIndexOrThrow(EventsDbColumns._ID);
+                final int priorityColumn = eventsCursor.getColumnIndexOrThrow(EventsDbColumns.PRIORITY);
+                final CursorJoiner joiner = new CursorJoiner(eventsCursor, JOINER_ARG_UPLOAD_EVENTS_COLUMNS, blob_eventsCursor, PROJECTION_UPLOAD_BLOBS);
+                for (final CursorJoiner.Result joinerResult : joiner)
                 {
-                    return cursor.getString(cursor.getColumnIndexOrThrow(ApiKeysDbColumns.UUID));
+                    switch (joinerResult)
+                    {
+                        case LEFT:
+                        {
+                            if (EventsDbColumns.PRIORITY_HIGH == eventsCursor.getInt(priorityColumn))
+                            {
+                                priorityEventIds.add(Long.valueOf(eventsCursor.getLong(idColumn)));
+                                break;
+                            }
+
+                            if (isPriorityOnly)
+                            {
+                                break;
+                            }
+
+                            if (CLOSE_EVENT.equals(eventsCursor.getString(eventsCursor.getColumnIndexOrThrow(EventsDbColumns.EVENT_NAME))))
+                            {
+                                if (System.currentTimeMillis() - eventsCursor.getLong(eventsCursor.getColumnIndexOrThrow(EventsDbColumns.WALL_TIME)) < Constants.SESSION_EXPIRATION)
+                                {
+                                    break;
+                                }
+                            }
+                            eventIds.add(Long.valueOf(eventsCursor.getLong(idColumn)));
+                            break;
+                        }
+                        case BOTH:
+                            break;
+                        case RIGHT:
+                            break;
+                    }
                 }
             }
             finally
             {
-                if (null != cursor)
+                if (null != eventsCursor)
                 {
-                    cursor.close();
-                    cursor = null;
+                    eventsCursor.close();
+                    eventsCursor = null;
+                }
+
+                if (null != blob_eventsCursor)
+                {
+                    blob_eventsCursor.close();
+                    blob_eventsCursor = null;
                 }
             }
 
             /*
-             * This error case shouldn't normally happen
+             * The event history is assigned to the last blob built, because the flow of a close event includes all history
+             * processed in blobs up to and including the close event's blob.
              */
-            if (Constants.IS_LOGGABLE)
+            if (priorityEventIds.size() > 0)
             {
-                Log.w(Constants.LOG_TAG, "Installation ID couldn't be found"); //$NON-NLS-1$
+                buildBlob(provider, context, apiKey, isSerializing, priorityEventIds, EventsDbColumns.PRIORITY_HIGH, !isPriorityOnly && eventIds.isEmpty());
+            }
+
+            if (eventIds.size() > 0)
+            {
+                buildBlob(provider, context, apiKey, isSerializing, eventIds, EventsDbColumns.PRIORITY_NORMAL, true);
             }
-            return null;
         }
-        
+
         /**
-         * Gets Facebook attributon cookie for an app key
+         * Creates a single upload blob.
          *
-         * @param provider Localytics database provider. Cannot be null.
-         * @return The FB attribution cookie.
+         * @param provider Instance of {@link LocalyticsStorage}. Cannot be null.
+         * @param context Application context. Cannot be null if {@code isSerializing} is true.
+         * @param apiKey Localytics API key. Cannot be null if {@code isSerializing} is true.
+         * @param isSerializing True to convert the new blob to JSON and store its compressed payload.
+         * @param eventIds {@link EventsDbColumns#_ID} of the events to put into the blob. Cannot be null or empty.
+         * @param priority {@link UploadBlobsDbColumns#PRIORITY} of the blob.
+         * @param isAssigningHistory True to assign all unprocessed event history to the blob.
          */
-        /* package */static String getFBAttribution(final LocalyticsProvider provider)
+        private static void buildBlob(final LocalyticsStorage provider, final Context context, final String apiKey, final boolean isSerializing, final Set<Long> eventIds, final int priority, final boolean isAssigningHistory)
         {
-            Cursor cursor = null;
-            try
+            // reusable object
+            final ContentValues values = new ContentValues();
+
+            final String blobUuid = UUID.randomUUID().toString();
+            final Long blobId;
             {
-                cursor = provider.query(InfoDbColumns.TABLE_NAME, null, null, null, null); //$NON-NLS-1$
+                values.put(UploadBlobsDbColumns.UUID, blobUuid);
+                values.put(UploadBlobsDbColumns.PRIORITY, Integer.valueOf(priority));
+                blobId = Long.valueOf(provider.insert(UploadBlobsDbColumns.TABLE_NAME, values));
+                values.clear();
+            }
 
-                if (cursor.moveToFirst())
-                {
-                    return cursor.getString(cursor.getColumnIndexOrThrow(InfoDbColumns.FB_ATTRIBUTION));
-                }
+            for (final Long x : eventIds)
+            {
+                values.put(UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, blobId);
+                values.put(UploadBlobEventsDbColumns.EVENTS_KEY_REF, x);
+
+                provider.insert(UploadBlobEventsDbColumns.TABLE_NAME, values);
+
+                values.clear();
             }
-            finally
+
+            if (isAssigningHistory)
             {
-                if (null != cursor)
+                values.put(EventHistoryDbColumns.PROCESSED_IN_BLOB, blobId);
+                provider.update(EventHistoryDbColumns.TABLE_NAME, values, SELECTION_UPLOAD_NULL_BLOBS, null);
+                values.clear();
+            }
+
+            /*
+             * Serialization must happen after the event history has been assigned to the blob, because the flow of a close event
+             * is built from the history processed in this blob.
+             */
+            if (isSerializing)
+            {
+                final byte[] payload = UploadEngine.serializeBlob(context, provider, apiKey, blobId.longValue(), blobUuid);
+                if (null != payload)
                 {
-                    cursor.close();
-                    cursor = null;
+                    values.put(UploadBlobsDbColumns.PAYLOAD, payload);
+                    provider.update(UploadBlobsDbColumns.TABLE_NAME, values, SELECTION_UPLOAD_BLOB_ID, new String[]
+                        { blobId.toString() });
+                    values.clear();
                 }
             }
-            
-            return null;
         }
 
         /**
-         * Projection for {@link #openClosedSession(long)}.
-         */
-        private static final String[] PROJECTION_OPEN_CLOSED_SESSION = new String[]
-            { EventsDbColumns.SESSION_KEY_REF };
-
-        /**
-         * Selection for {@link #openClosedSession(long)}.
-         */
-        private static final String SELECTION_OPEN_CLOSED_SESSION = String.format("%s = ?", EventsDbColumns._ID); //$NON-NLS-1$
-
-        /**
-         * Selection for {@link #openClosedSession(long)}.
+         * Initiate upload of all session data currently stored on disk.
+         * <p>
+         * This method must only be called after {@link #init()} is called. The session does not need to be open for an upload to
+         * occur.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_UPLOAD} to the Handler.
+         *
+         * @param listener An optional listener to notify once the upload completes. May be null for no notification.
+         * @see SessionHandler#MESSAGE_UPLOAD
          */
-        private static final String SELECTION_OPEN_CLOSED_SESSION_ATTRIBUTES = String.format("%s = ?", AttributesDbColumns.EVENTS_KEY_REF); //$NON-NLS-1$
+        /* package */void upload(final UploadListener listener)
+        {
+            upload(listener, UPLOAD_REASON_EXPLICIT);
+        }
 
         /**
-         * Reopens a previous session. This is a helper method to {@link #open(boolean, Map)}.
+         * Initiate upload of all session data currently stored on disk, subject to the reason for the upload.
+         * <p>
+         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
+         * public interface is to send {@link SessionHandler#MESSAGE_UPLOAD} to the Handler.
          *
-         * @param closeEventId The last close event which is to be deleted so that the old session can be reopened
-         * @effects Updates the database by deleting the last close event.
+         * @param listener An optional listener to notify once the upload completes. May be null for no notification.
+         * @param reason One of {@link #UPLOAD_REASON_EXPLICIT}, {@link #UPLOAD_REASON_LIFECYCLE}, {@link #UPLOAD_REASON_POLICY},
+         *            or {@link #UPLOAD_REASON_PRIORITY}.
+         * @see SessionHandler#MESSAGE_UPLOAD
          */
-        private void openClosedSession(final long closeEventId)
+        /* package */void upload(final UploadListener listener, final int reason)
         {
-            final String[] selectionArgs = new String[]
-                { Long.toString(closeEventId) };
+            final boolean isPriorityOnly = UPLOAD_REASON_PRIORITY == reason;
+
+            if (UPLOAD_REASON_LIFECYCLE == reason && null != mUploadPolicy && !mUploadPolicy.isBatchReady(mPendingEventCount))
+            {
+                if (LocalyticsLog.isLoggable(Log.DEBUG))
+                {
+                    LocalyticsLog.d("Skipping upload, only %d events are pending", Long.valueOf(mPendingEventCount)); //$NON-NLS-1$
+                }
 
-            Cursor cursor = null;
-            try
+                UploadEngine.deliverResult(listener, new UploadResult(true, 0, 0, UploadResult.NO_STATUS, 0));
+                return;
+            }
+
+            if (!mUploadState.beginBuilding())
             {
-                cursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_OPEN_CLOSED_SESSION, SELECTION_OPEN_CLOSED_SESSION, selectionArgs, null);
+                if (LocalyticsLog.isLoggable(Log.DEBUG))
+                {
+                    LocalyticsLog.d("Already uploading"); //$NON-NLS-1$
+                }
 
-                if (cursor.moveToFirst())
+                /*
+                 * A policy upload doesn't need to be retried, because the policy is checked again after the current upload. Only one
+                 * priority upload is queued, no matter how many priority events arrive meanwhile.
+                 */
+                if (isPriorityOnly)
                 {
-                    mProvider.delete(AttributesDbColumns.TABLE_NAME, SELECTION_OPEN_CLOSED_SESSION_ATTRIBUTES, selectionArgs);
-                    mProvider.delete(EventsDbColumns.TABLE_NAME, SELECTION_OPEN_CLOSED_SESSION, selectionArgs);
+                    mIsPriorityUploadPending = true;
                 }
-                else
+                else if (UPLOAD_REASON_POLICY != reason)
                 {
-                    /*
-                     * This should never happen
-                     */
-
-                    if (Constants.IS_LOGGABLE)
-                    {
-                        Log.e(Constants.LOG_TAG, "Event no longer exists"); //$NON-NLS-1$
-                    }
-
-                    openNewSession(null);
+                    mUploadEngine.retryUploadRequest(listener, reason);
                 }
+                return;
             }
-            finally
+
+            try
             {
-                if (null != cursor)
+                final long buildStart = mClock.elapsedRealtime();
+                preUploadBuildBlobs(mProvider, mContext, mApiKey, mIsSerializingBlobs, isPriorityOnly);
+                mMetrics.mBlobBuildMillis.record(mClock.elapsedRealtime() - buildStart);
+                mTracing.onBlobsBuilt(mProvider, mClock.elapsedRealtime());
+                refreshPendingEvents();
+
+                mUploadState.beginUploading();
+                mUploadEngine.upload(listener, isPriorityOnly);
+            }
+            catch (final Exception e)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    cursor.close();
-                    cursor = null;
+                    LocalyticsLog.w("Error occurred during upload", e); //$NON-NLS-1$
                 }
+
+                mUploadState.finish(false);
+
+                // Notify the caller the upload is "complete"
+                UploadEngine.deliverResult(listener, new UploadResult(false, 0, 0, UploadResult.NO_STATUS, 0));
             }
         }
 
         /**
-         * Projection for {@link #getNumberOfSessions(LocalyticsProvider)}.
+         * Projection for {@link #refreshPendingEvents()}.
          */
-        private static final String[] PROJECTION_GET_NUMBER_OF_SESSIONS = new String[]
-            { SessionsDbColumns._ID };
+        private static final String[] PROJECTION_PENDING_EVENTS = new String[]
+            {
+                "COUNT(*)", //$NON-NLS-1$
+                String.format("MIN(%s)", EventsDbColumns.WALL_TIME), //$NON-NLS-1$
+                String.format("SUM(LENGTH(%s))", EventsDbColumns.EVENT_NAME) }; //$NON-NLS-1$
 
         /**
-         * Helper method to get the number of sessions currently in the database.
-         *
-         * @param provider Instance of {@link LocalyticsProvider}. Cannot be null.
-         * @return The number of sessions on disk.
+         * Selection for {@link #refreshPendingEvents()}.
+         */
+        private static final String SELECTION_PENDING_EVENTS = String.format("%s NOT IN (SELECT %s FROM %s)", EventsDbColumns._ID, UploadBlobEventsDbColumns.EVENTS_KEY_REF, UploadBlobEventsDbColumns.TABLE_NAME); //$NON-NLS-1$
+
+        /**
+         * Reloads the counters of events that are not yet part of an upload blob from the database.
+         * <p>
+         * The size estimate only accounts for event names, since the attributes are not loaded.
          */
-        /* package */static long getNumberOfSessions(final LocalyticsProvider provider)
+        private void refreshPendingEvents()
         {
             Cursor cursor = null;
             try
             {
-                cursor = provider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_GET_NUMBER_OF_SESSIONS, null, null, null);
+                cursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_PENDING_EVENTS, SELECTION_PENDING_EVENTS, null, null);
 
-                return cursor.getCount();
+                if (cursor.moveToFirst())
+                {
+                    mPendingEventCount = cursor.getLong(0);
+                    mOldestPendingEventWallTime = cursor.getLong(1);
+                    mPendingEventBytes = mPendingEventCount * ESTIMATED_EVENT_BYTES + cursor.getLong(2);
+                }
             }
             finally
             {
@@ -2332,336 +4890,262 @@ public class LocalyticsSession
         }
 
         /**
-         * Close a session. While this method should only be called after {@link #open(boolean, Map)}, nothing bad will happen if
-         * it is called and {@link #open(boolean, Map)} wasn't called. Similarly, nothing bad will happen if close is called
-         * multiple times.
-         * <p>
-         * This method must only be called after {@link #init()} is called.
-         * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_CLOSE} to the Handler.
-         *
-         * @param attributes Set of attributes to attach to the close. May be null indicating no attributes. Cannot contain null
-         *            or empty keys or values.
-         * @see #MESSAGE_OPEN
+         * Projection for the events in {@link #refreshStoredData()}.
          */
-        /* package */void close(final Map<String, String> attributes)
-        {
-            if (null == getOpenSessionId(mProvider)) // do nothing if session is not open
+        private static final String[] PROJECTION_STORED_EVENTS = new String[]
             {
-                if (Constants.IS_LOGGABLE)
-                {
-                    Log.w(Constants.LOG_TAG, "Session was not open, so close is not possible."); //$NON-NLS-1$
-                }
-                return;
-            }
-
-            tagEvent(CLOSE_EVENT, attributes);
-        }
+                "COUNT(*)", //$NON-NLS-1$
+                String.format("IFNULL(SUM(LENGTH(%s)), 0)", EventsDbColumns.EVENT_NAME) }; //$NON-NLS-1$
 
         /**
-         * Projection for {@link #tagEvent(String, Map)}.
+         * Projection for the attributes in {@link #refreshStoredData()}.
          */
-        private static final String[] PROJECTION_TAG_EVENT = new String[]
-            { SessionsDbColumns.SESSION_START_WALL_TIME };
+        private static final String[] PROJECTION_STORED_ATTRIBUTES = new String[]
+            {
+                "COUNT(*)", //$NON-NLS-1$
+                String.format("IFNULL(SUM(LENGTH(%s) + LENGTH(%s)), 0)", AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_VALUE) }; //$NON-NLS-1$
 
         /**
-         * Selection for {@link #tagEvent(String, Map)}.
+         * Projection for the upload blobs in {@link #refreshStoredData()}.
          */
-        private static final String SELECTION_TAG_EVENT = String.format("%s = ?", SessionsDbColumns._ID); //$NON-NLS-1$
+        private static final String[] PROJECTION_STORED_BLOBS = new String[]
+            { String.format("IFNULL(SUM(LENGTH(%s)), 0)", UploadBlobsDbColumns.PAYLOAD) }; //$NON-NLS-1$
 
         /**
-         * Tag an event in a session. Although this method SHOULD NOT be called unless a session is open, actually doing so will
-         * have no effect.
-         * <p>
-         * This method must only be called after {@link #init()} is called.
-         * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_TAG_EVENT} to the Handler.
-         *
-         * @param event The name of the event which occurred. Cannot be null.
-         * @param attributes The collection of attributes for this particular event. May be null.
-         * @see #MESSAGE_TAG_EVENT
+         * Reloads {@link #mStoredEventCount} and {@link #mStoredBytes} from the database. This scans the tables, so it is only done
+         * when the database is opened and after uploads. Writes and evictions update the counters directly.
          */
-        /* package */void tagEvent(final String event, final Map<String, String> attributes)
+        private void refreshStoredData()
         {
-        	tagEvent(event, attributes, null);
+            final long[] events = queryLongs(mProvider, EventsDbColumns.TABLE_NAME, PROJECTION_STORED_EVENTS, null, null);
+            final long[] attributes = queryLongs(mProvider, AttributesDbColumns.TABLE_NAME, PROJECTION_STORED_ATTRIBUTES, null, null);
+            final long[] blobs = queryLongs(mProvider, UploadBlobsDbColumns.TABLE_NAME, PROJECTION_STORED_BLOBS, null, null);
+
+            mStoredEventCount = events[0];
+            mStoredBytes = events[0] * ESTIMATED_EVENT_BYTES + events[1] + attributes[0] * ESTIMATED_ATTRIBUTE_BYTES + attributes[1] + blobs[0];
         }
-        
+
         /**
-         * Tag an event in a session. Although this method SHOULD NOT be called unless a session is open, actually doing so will
-         * have no effect.
-         * <p>
-         * This method must only be called after {@link #init()} is called.
-         * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_TAG_EVENT} to the Handler.
-         *
-         * @param event The name of the event which occurred. Cannot be null.
-         * @param attributes The collection of attributes for this particular event. May be null.
-         * @param clv The customer value increase.
-         * @see #MESSAGE_TAG_EVENT
+         * @param provider Localytics database provider. Cannot be null.
+         * @param tableName Table to query. Cannot be null.
+         * @param projection Aggregate expressions that return a single row. Cannot be null.
+         * @param selection Filter on the rows, or null for all rows.
+         * @param selectionArgs Replacements for ? symbols in {@code selection}. May be null.
+         * @return The values of {@code projection}, or zeros if the query returned no row.
          */
-        /* package */void tagEvent(final String event, final Map<String, String> attributes, final Long clv)
+        private static long[] queryLongs(final LocalyticsStorage provider, final String tableName, final String[] projection, final String selection, final String[] selectionArgs)
         {
-            final Long openSessionId = getOpenSessionId(mProvider);
-            if (null == openSessionId)
+            final long[] result = new long[projection.length];
+
+            Cursor cursor = null;
+            try
             {
-                if (Constants.IS_LOGGABLE)
+                cursor = provider.query(tableName, projection, selection, selectionArgs, null);
+
+                if (cursor.moveToFirst())
                 {
-                    Log.w(Constants.LOG_TAG, "Event not written because a session is not open"); //$NON-NLS-1$
+                    for (int i = 0; i < result.length; i++)
+                    {
+                        result[i] = cursor.getLong(i);
+                    }
                 }
-                return;
             }
-
-            /*
-             * Insert the event and get the event's database ID
-             */
-            final long eventId;
+            finally
             {
-                final ContentValues values = new ContentValues();
-                values.put(EventsDbColumns.SESSION_KEY_REF, openSessionId);
-                values.put(EventsDbColumns.UUID, UUID.randomUUID().toString());
-                values.put(EventsDbColumns.EVENT_NAME, event);
-                values.put(EventsDbColumns.REAL_TIME, Long.valueOf(SystemClock.elapsedRealtime()));
-                values.put(EventsDbColumns.WALL_TIME, Long.valueOf(System.currentTimeMillis()));
-                
-                if (null != clv)
-                {
-                	values.put(EventsDbColumns.CLV_INCREASE, clv);
-                }
-                else
+                if (null != cursor)
                 {
-                	values.put(EventsDbColumns.CLV_INCREASE, 0);
+                    cursor.close();
+                    cursor = null;
                 }
-                
-                /*
-                 * Special case for open event: keep the start time in sync with the start time put into the sessions table.
-                 */
-                if (OPEN_EVENT.equals(event))
-                {
-                    Cursor cursor = null;
-                    try
-                    {
-                        cursor = mProvider.query(SessionsDbColumns.TABLE_NAME, PROJECTION_TAG_EVENT, SELECTION_TAG_EVENT, new String[]
-                            { openSessionId.toString() }, null);
+            }
 
-                        if (cursor.moveToFirst())
-                        {
-                            values.put(EventsDbColumns.WALL_TIME, Long.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(SessionsDbColumns.SESSION_START_WALL_TIME))));
-                        }
-                        else
-                        {
-                            // this should never happen
-                            throw new AssertionError("During tag of open event, session didn't exist"); //$NON-NLS-1$
-                        }
-                    }
-                    finally
-                    {
-                        if (null != cursor)
-                        {
-                            cursor.close();
-                            cursor = null;
-                        }
-                    }
-                }
+            return result;
+        }
 
-                eventId = mProvider.insert(EventsDbColumns.TABLE_NAME, values);
+        /**
+         * Maximum number of events evicted by one call to {@link #enforceStorageQuota()}, so that the cost of a single write stays
+         * bounded even when the quota is lowered far below the stored data. The remaining excess is evicted by later writes.
+         */
+        private static final int MAX_EVICTED_EVENTS_PER_WRITE = 100;
 
-                if (-1 == eventId)
-                {
-                    throw new RuntimeException("Inserting event failed"); //$NON-NLS-1$
-                }
+        /**
+         * Evicts stored data in the order of the {@link StorageQuota} if the quota is exceeded, up to
+         * {@link #MAX_EVICTED_EVENTS_PER_WRITE} events.
+         * <p>
+         * This method must be called within a transaction.
+         */
+        private void enforceStorageQuota()
+        {
+            if (!mStorageQuota.isExceeded(mStoredEventCount, mStoredBytes))
+            {
+                return;
             }
 
             /*
-             * If attributes exist, insert them as well
+             * Estimate how many events need to go, based on the average size of the stored events
              */
-            if (null != attributes)
+            long excess = 0;
+            if (0 != mStorageQuota.getMaxEvents())
             {
-                // reusable object
-                final ContentValues values = new ContentValues();
-
-                final String applicationAttributePrefix = String.format(AttributesDbColumns.ATTRIBUTE_FORMAT, mContext.getPackageName(), ""); //$NON-NLS-1$
-                int applicationAttributeCount = 0;
-
-                for (final Entry<String, String> entry : attributes.entrySet())
-                {
-                    /*
-                     * Detect excess application events
-                     */
-                    if (entry.getKey().startsWith(applicationAttributePrefix))
-                    {
-                        applicationAttributeCount++;
-                        if (applicationAttributeCount > Constants.MAX_NUM_ATTRIBUTES)
-                        {
-                            continue;
-                        }
-                    }
-
-                    values.put(AttributesDbColumns.EVENTS_KEY_REF, Long.valueOf(eventId));
-                    values.put(AttributesDbColumns.ATTRIBUTE_KEY, entry.getKey());
-                    values.put(AttributesDbColumns.ATTRIBUTE_VALUE, entry.getValue());
-
-                    final long id = mProvider.insert(AttributesDbColumns.TABLE_NAME, values);
-
-                    if (-1 == id)
-                    {
-                        throw new AssertionError("Inserting attribute failed"); //$NON-NLS-1$
-                    }
-
-                    values.clear();
-                }
+                excess = mStoredEventCount - mStorageQuota.getMaxEvents();
             }
+            if (0 != mStorageQuota.getMaxBytes() && mStoredBytes > mStorageQuota.getMaxBytes() && 0 != mStoredEventCount)
+            {
+                final long averageBytes = Math.max(1, mStoredBytes / mStoredEventCount);
+                excess = Math.max(excess, (mStoredBytes - mStorageQuota.getMaxBytes() + averageBytes - 1) / averageBytes);
+            }
+            final int limit = (int) Math.max(1, Math.min(excess, MAX_EVICTED_EVENTS_PER_WRITE));
 
-            /*
-             * Insert the event into the history, only for application events
-             */
-            if (!OPEN_EVENT.equals(event) && !CLOSE_EVENT.equals(event) && !OPT_IN_EVENT.equals(event) && !OPT_OUT_EVENT.equals(event) && !FLOW_EVENT.equals(event))
+            int evicted = 0;
+            if (StorageQuota.EVICT_LOW_PRIORITY_FIRST == mStorageQuota.getEvictionOrder())
             {
-                final ContentValues values = new ContentValues();
-                values.put(EventHistoryDbColumns.NAME, event.substring(mContext.getPackageName().length() + 1, event.length()));
-                values.put(EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_EVENT));
-                values.put(EventHistoryDbColumns.SESSION_KEY_REF, openSessionId);
-                values.putNull(EventHistoryDbColumns.PROCESSED_IN_BLOB);
-                mProvider.insert(EventHistoryDbColumns.TABLE_NAME, values);
+                evicted += evictPendingEvents(EventsDbColumns.PRIORITY_NORMAL, limit - evicted);
+                evicted += evictBlobs(limit - evicted);
+            }
+            else
+            {
+                evicted += evictBlobs(limit);
+                evicted += evictPendingEvents(EventsDbColumns.PRIORITY_NORMAL, limit - evicted);
+            }
+            evicted += evictPendingEvents(EventsDbColumns.PRIORITY_HIGH, limit - evicted);
 
-                conditionallyAddFlowEvent();
+            if (0 == evicted)
+            {
+                return;
             }
-        }
 
-        /**
-         * Projection for {@link #tagScreen(String)}.
-         */
-        private static final String[] PROJECTION_TAG_SCREEN = new String[]
-            { EventHistoryDbColumns.NAME };
+            mMetrics.mEventsEvicted.add(evicted);
 
-        /**
-         * Selection for {@link #tagScreen(String)}.
-         */
-        private static final String SELECTION_TAG_SCREEN = String.format("%s = ? AND %s = ?", EventHistoryDbColumns.TYPE, EventHistoryDbColumns.SESSION_KEY_REF); //$NON-NLS-1$
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Storage quota exceeded; evicted %d events, leaving %d events and %d bytes", Integer.valueOf(evicted), Long.valueOf(mStoredEventCount), Long.valueOf(mStoredBytes)); //$NON-NLS-1$
+            }
+        }
 
         /**
-         * Sort order for {@link #tagScreen(String)}.
+         * Projection for {@link #evictBlobs(int)}: the ID of each blob and its number of events.
          */
-        private static final String SORT_ORDER_TAG_SCREEN = String.format("%s DESC", EventHistoryDbColumns._ID); //$NON-NLS-1$
+        private static final String[] PROJECTION_EVICT_BLOBS = new String[]
+            {
+                UploadBlobsDbColumns._ID,
+                String.format("(SELECT COUNT(*) FROM %s WHERE %s = %s.%s)", UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID) }; //$NON-NLS-1$
 
         /**
-         * Tag a screen in a session. While this method shouldn't be called unless {@link #open(boolean, Map)} is called first,
-         * this method will simply do nothing if {@link #open(boolean, Map)} hasn't been called.
-         * <p>
-         * This method performs duplicate suppression, preventing multiple screens with the same value in a row within a given
-         * session.
-         * <p>
-         * This method must only be called after {@link #init()} is called.
-         * <p>
-         * Note: This method is a private implementation detail. It is only made public for unit testing purposes. The public
-         * interface is to send {@link #MESSAGE_TAG_SCREEN} to the Handler.
+         * Evicts the oldest upload blobs with their events, holding no more than {@code limit} events in total. When the next blob
+         * holds more events than remain in the limit, only its oldest events are evicted, so that a blob holding a large backlog
+         * is worn down over several writes rather than thrown away to make room for a few events. Blobs are not evicted while an
+         * upload is in progress, as the upload may be sending them.
          *
-         * @param screen The name of the screen which occurred. Cannot be null or empty.
-         * @see #MESSAGE_TAG_SCREEN
+         * @param limit Maximum number of events to evict.
+         * @return Number of events evicted.
          */
-        /* package */void tagScreen(final String screen)
+        private int evictBlobs(final int limit)
         {
-            final Long openSessionId = getOpenSessionId(mProvider);
-            if (null == openSessionId)
+            if (limit <= 0 || UploadState.IDLE != mUploadState.get())
             {
-                if (Constants.IS_LOGGABLE)
-                {
-                    Log.w(Constants.LOG_TAG, "Tag not written because the session was not open"); //$NON-NLS-1$
-                }
-                return;
+                return 0;
             }
-
-            /*
-             * Do duplicate suppression
-             */
-            Cursor cursor = null;
+
+            final List<Long> blobIds = new ArrayList<Long>();
+            int evicted = 0;
+            long partialBlobId = -1;
+
+            Cursor blobsCursor = null;
             try
             {
-                cursor = mProvider.query(EventHistoryDbColumns.TABLE_NAME, PROJECTION_TAG_SCREEN, SELECTION_TAG_SCREEN, new String[]
-                    {
-                        Integer.toString(EventHistoryDbColumns.TYPE_SCREEN),
-                        openSessionId.toString() }, SORT_ORDER_TAG_SCREEN);
+                blobsCursor = mProvider.query(UploadBlobsDbColumns.TABLE_NAME, PROJECTION_EVICT_BLOBS, null, null, UploadBlobsDbColumns._ID);
 
-                if (cursor.moveToFirst())
+                while (evicted < limit && blobsCursor.moveToNext())
                 {
-                    if (screen.equals(cursor.getString(cursor.getColumnIndexOrThrow(EventHistoryDbColumns.NAME))))
+                    final long blobEvents = blobsCursor.getLong(1);
+                    if (evicted + blobEvents > limit)
                     {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.v(Constants.LOG_TAG, String.format("Suppressed duplicate screen %s", screen)); //$NON-NLS-1$
-                        }
-                        return;
+                        partialBlobId = blobsCursor.getLong(0);
+                        break;
                     }
+
+                    blobIds.add(Long.valueOf(blobsCursor.getLong(0)));
+                    evicted += (int) blobEvents;
                 }
             }
             finally
             {
-                if (null != cursor)
+                if (null != blobsCursor)
                 {
-                    cursor.close();
-                    cursor = null;
+                    blobsCursor.close();
+                    blobsCursor = null;
                 }
             }
 
-            /*
-             * Write the screen to the database
-             */
-            final ContentValues values = new ContentValues();
-            values.put(EventHistoryDbColumns.NAME, screen);
-            values.put(EventHistoryDbColumns.TYPE, Integer.valueOf(EventHistoryDbColumns.TYPE_SCREEN));
-            values.put(EventHistoryDbColumns.SESSION_KEY_REF, openSessionId);
-            values.putNull(EventHistoryDbColumns.PROCESSED_IN_BLOB);
-            mProvider.insert(EventHistoryDbColumns.TABLE_NAME, values);
+            if (!blobIds.isEmpty())
+            {
+                /*
+                 * Measure the blobs before they are deleted, so the counters don't need to be reloaded
+                 */
+                final String ids = TextUtils.join(",", blobIds); //$NON-NLS-1$
+                final String blobEventIds = String.format("SELECT %s FROM %s WHERE %s IN (%s)", UploadBlobEventsDbColumns.EVENTS_KEY_REF, UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, ids); //$NON-NLS-1$
+                final long[] events = queryLongs(mProvider, EventsDbColumns.TABLE_NAME, PROJECTION_STORED_EVENTS, String.format("%s IN (%s)", EventsDbColumns._ID, blobEventIds), null); //$NON-NLS-1$
+                final long[] attributes = queryLongs(mProvider, AttributesDbColumns.TABLE_NAME, PROJECTION_STORED_ATTRIBUTES, String.format("%s IN (%s)", AttributesDbColumns.EVENTS_KEY_REF, blobEventIds), null); //$NON-NLS-1$
+                final long[] blobs = queryLongs(mProvider, UploadBlobsDbColumns.TABLE_NAME, PROJECTION_STORED_BLOBS, String.format("%s IN (%s)", UploadBlobsDbColumns._ID, ids), null); //$NON-NLS-1$
 
-            conditionallyAddFlowEvent();
+                UploadEngine.deleteBlobsAndSessions(mProvider, blobIds);
+                mTracing.onBlobsEvicted(blobIds, mClock.elapsedRealtime());
+
+                mStoredEventCount = Math.max(0, mStoredEventCount - events[0]);
+                mStoredBytes = Math.max(0, mStoredBytes - (events[0] * ESTIMATED_EVENT_BYTES + events[1] + attributes[0] * ESTIMATED_ATTRIBUTE_BYTES + attributes[1] + blobs[0]));
+            }
+
+            if (-1 != partialBlobId)
+            {
+                evicted += evictBlobEvents(partialBlobId, limit - evicted);
+            }
+
+            return evicted;
         }
-        
+
         /**
-         * Projection for {@link #tagScreen(String)}.
+         * Projection for {@link #evictBlobEvents(long, int)}.
          */
-        private static final String[] PROJECTION_SET_IDENTIFIER = new String[]
-            { IdentifiersDbColumns.VALUE };
+        private static final String[] PROJECTION_EVICT_BLOB_EVENTS = new String[]
+            {
+                UploadBlobEventsDbColumns._ID,
+                UploadBlobEventsDbColumns.EVENTS_KEY_REF };
 
         /**
-         * Selection for {@link #tagScreen(String)}.
+         * Selection for {@link #evictBlobEvents(long, int)}.
          */
-        private static final String SELECTION_SET_IDENTIFIER = String.format("%s = ?", IdentifiersDbColumns.KEY); //$NON-NLS-1$
+        private static final String SELECTION_EVICT_BLOB_EVENTS = String.format("%s = ?", UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF); //$NON-NLS-1$
 
-        
-        /* package */void setIdentifier(final String key, final String value)
+        /**
+         * Evicts the oldest events of an upload blob, with their attributes, and keeps the rest of the blob. The serialized
+         * {@link UploadBlobsDbColumns#PAYLOAD} of the blob still holds the evicted events, so it is cleared and the blob is
+         * converted again when it is uploaded. Sessions whose close event is evicted are deleted, as when a blob is uploaded.
+         *
+         * @param blobId {@link UploadBlobsDbColumns#_ID} of the blob.
+         * @param limit Maximum number of events to evict. Must be less than the number of events in the blob.
+         * @return Number of events evicted.
+         */
+        private int evictBlobEvents(final long blobId, final int limit)
         {
+            if (limit <= 0)
+            {
+                return 0;
+            }
+
+            final List<Long> blobEventIds = new ArrayList<Long>();
+            final List<Long> eventIds = new ArrayList<Long>();
+
             Cursor cursor = null;
             try
             {
-                cursor = mProvider.query(IdentifiersDbColumns.TABLE_NAME, PROJECTION_SET_IDENTIFIER, SELECTION_SET_IDENTIFIER, new String[] { key }, null);
+                cursor = mProvider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_EVICT_BLOB_EVENTS, SELECTION_EVICT_BLOB_EVENTS, new String[]
+                    { Long.toString(blobId) }, UploadBlobEventsDbColumns.EVENTS_KEY_REF, Integer.toString(limit));
 
-                if (cursor.moveToFirst())
-                {
-                	if (null == value)
-                	{
-                		mProvider.delete(IdentifiersDbColumns.TABLE_NAME, String.format("%s = ?", IdentifiersDbColumns.KEY), new String[] { cursor.getString(cursor.getColumnIndexOrThrow(IdentifiersDbColumns.KEY)) }); //$NON-NLS-1$
-                	}
-                	else
-                	{
-                    	final ContentValues values = new ContentValues();
-                    	values.put(IdentifiersDbColumns.KEY, key);
-                    	values.put(IdentifiersDbColumns.VALUE, value); 
-                    	mProvider.update(IdentifiersDbColumns.TABLE_NAME, values, SELECTION_SET_IDENTIFIER, new String[] { key }); 
-                	}
-                }
-                else
+                while (cursor.moveToNext())
                 {
-                	if (value != null)
-                	{
-                		final ContentValues values = new ContentValues();
-                		values.put(IdentifiersDbColumns.KEY, key);
-                		values.put(IdentifiersDbColumns.VALUE, value);                       
-                		mProvider.insert(IdentifiersDbColumns.TABLE_NAME, values);
-                	}
+                    blobEventIds.add(Long.valueOf(cursor.getLong(0)));
+                    eventIds.add(Long.valueOf(cursor.getLong(1)));
                 }
-                
             }
             finally
             {
@@ -2671,174 +5155,121 @@ public class LocalyticsSession
                     cursor = null;
                 }
             }
-        }
-
-        /* package */void setPushRegistrationId(final String pushRegId)
-        {
-            final ContentValues values = new ContentValues();
-            values.put(InfoDbColumns.REGISTRATION_ID, pushRegId == null ? "" : pushRegId);
-            values.put(InfoDbColumns.REGISTRATION_VERSION, DatapointHelper.getAppVersion(mContext));
-            mProvider.update(InfoDbColumns.TABLE_NAME, values, null, null);
-        }
-        
-        /**
-         * Projection for {@link #conditionallyAddFlowEvent()}.
-         */
-        private static final String[] PROJECTION_FLOW_EVENTS = new String[]
-            { EventsDbColumns._ID };
-
-        /**
-         * Selection for {@link #conditionallyAddFlowEvent()}.
-         */
-        private static final String SELECTION_FLOW_EVENTS = String.format("%s = ?", EventsDbColumns.EVENT_NAME); //$NON-NLS-1$
 
-        /**
-         * Selection arguments for {@link #SELECTION_FLOW_EVENTS} in {@link #conditionallyAddFlowEvent()}.
-         */
-        private static final String[] SELECTION_ARGS_FLOW_EVENTS = new String[]
-            { FLOW_EVENT };
+            if (eventIds.isEmpty())
+            {
+                return 0;
+            }
 
-        /**
-         * Projection for {@link #conditionallyAddFlowEvent()}.
-         */
-        private static final String[] PROJECTION_FLOW_BLOBS = new String[]
-            { UploadBlobEventsDbColumns.EVENTS_KEY_REF };
+            final String ids = TextUtils.join(",", eventIds); //$NON-NLS-1$
+            final String eventSelection = String.format("%s IN (%s)", EventsDbColumns._ID, ids); //$NON-NLS-1$
+            final String blobSelection = String.format("%s = %d", UploadBlobsDbColumns._ID, Long.valueOf(blobId)); //$NON-NLS-1$
 
-        /**
-         * Conditionally adds a flow event if no flow event exists in the current upload blob.
-         */
-        private void conditionallyAddFlowEvent()
-        {
             /*
-             * Creating a flow "event" is required to act as a placeholder so that the uploader will know that an upload needs to
-             * occur. A flow event should only be created if there isn't already a flow event that hasn't been associated with an
-             * upload blob.
+             * Measure the events and the payload before they are deleted, so the counters don't need to be reloaded
              */
-            boolean foundUnassociatedFlowEvent = false;
+            final long[] events = queryLongs(mProvider, EventsDbColumns.TABLE_NAME, PROJECTION_STORED_EVENTS, eventSelection, null);
+            final long[] attributes = queryLongs(mProvider, AttributesDbColumns.TABLE_NAME, PROJECTION_STORED_ATTRIBUTES, String.format("%s IN (%s)", AttributesDbColumns.EVENTS_KEY_REF, ids), null); //$NON-NLS-1$
+            final long[] blobs = queryLongs(mProvider, UploadBlobsDbColumns.TABLE_NAME, PROJECTION_STORED_BLOBS, blobSelection, null);
 
-            Cursor eventsCursor = null;
-            Cursor blob_eventsCursor = null;
+            final List<Long> sessionIds = new ArrayList<Long>();
             try
             {
-                eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_FLOW_EVENTS, SELECTION_FLOW_EVENTS, SELECTION_ARGS_FLOW_EVENTS, EVENTS_SORT_ORDER);
-
-                blob_eventsCursor = mProvider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_FLOW_BLOBS, null, null, UPLOAD_BLOBS_EVENTS_SORT_ORDER);
+                cursor = mProvider.query(EventsDbColumns.TABLE_NAME, new String[]
+                    { EventsDbColumns.SESSION_KEY_REF }, String.format("%s AND %s = ?", eventSelection, EventsDbColumns.EVENT_NAME), new String[] //$NON-NLS-1$
+                    { CLOSE_EVENT }, null);
 
-                final CursorJoiner joiner = new CursorJoiner(eventsCursor, PROJECTION_FLOW_EVENTS, blob_eventsCursor, PROJECTION_FLOW_BLOBS);
-                for (final CursorJoiner.Result joinerResult : joiner)
+                while (cursor.moveToNext())
                 {
-                    switch (joinerResult)
-                    {
-                        case LEFT:
-                        {
-                            foundUnassociatedFlowEvent = true;
-                            break;
-                        }
-                        case BOTH:
-                            break;
-                        case RIGHT:
-                            break;
-                    }
+                    sessionIds.add(Long.valueOf(cursor.getLong(0)));
                 }
             }
             finally
             {
-                if (null != eventsCursor)
-                {
-                    eventsCursor.close();
-                    eventsCursor = null;
-                }
-
-                if (null != blob_eventsCursor)
+                if (null != cursor)
                 {
-                    blob_eventsCursor.close();
-                    blob_eventsCursor = null;
+                    cursor.close();
+                    cursor = null;
                 }
             }
 
-            if (!foundUnassociatedFlowEvent)
+            /*
+             * Same order as UploadEngine.deleteBlobsAndSessions(), due to the database constraints
+             */
+            mProvider.delete(UploadBlobEventsDbColumns.TABLE_NAME, String.format("%s IN (%s)", UploadBlobEventsDbColumns._ID, TextUtils.join(",", blobEventIds)), null); //$NON-NLS-1$ //$NON-NLS-2$
+            mProvider.delete(AttributesDbColumns.TABLE_NAME, String.format("%s IN (%s)", AttributesDbColumns.EVENTS_KEY_REF, ids), null); //$NON-NLS-1$
+            mProvider.delete(EventsDbColumns.TABLE_NAME, eventSelection, null);
+            if (!sessionIds.isEmpty())
             {
-                tagEvent(FLOW_EVENT, null);
+                final String sessions = TextUtils.join(",", sessionIds); //$NON-NLS-1$
+                mProvider.delete(EventHistoryDbColumns.TABLE_NAME, String.format("%s IN (%s)", EventHistoryDbColumns.SESSION_KEY_REF, sessions), null); //$NON-NLS-1$
+                mProvider.delete(SessionsDbColumns.TABLE_NAME, String.format("%s IN (%s)", SessionsDbColumns._ID, sessions), null); //$NON-NLS-1$
             }
-        }
 
-        /**
-         * Projection for {@link #preUploadBuildBlobs(LocalyticsProvider)}.
-         */
-        private static final String[] PROJECTION_UPLOAD_EVENTS = new String[]
-            {
-                EventsDbColumns._ID,
-                EventsDbColumns.EVENT_NAME,
-                EventsDbColumns.WALL_TIME };
+            final ContentValues values = new ContentValues();
+            values.putNull(UploadBlobsDbColumns.PAYLOAD);
+            mProvider.update(UploadBlobsDbColumns.TABLE_NAME, values, blobSelection, null);
 
-        /**
-         * Projection for {@link #preUploadBuildBlobs(LocalyticsProvider)}.
-         */
-        private static final String[] PROJECTION_UPLOAD_BLOBS = new String[]
-            { UploadBlobEventsDbColumns.EVENTS_KEY_REF };
+            mTracing.onEventsEvicted(eventIds, mClock.elapsedRealtime());
+
+            mStoredEventCount = Math.max(0, mStoredEventCount - events[0]);
+            mStoredBytes = Math.max(0, mStoredBytes - (events[0] * ESTIMATED_EVENT_BYTES + events[1] + attributes[0] * ESTIMATED_ATTRIBUTE_BYTES + attributes[1] + blobs[0]));
+
+            return eventIds.size();
+        }
 
         /**
-         * Projection for {@link #preUploadBuildBlobs(LocalyticsProvider)}.
+         * Selection for {@link #evictPendingEvents(int, int)}: events of a given priority that are not part of an upload blob,
+         * except the library's own events, which sessions and opt-outs depend on.
          */
-        private static final String SELECTION_UPLOAD_NULL_BLOBS = String.format("%s IS NULL", EventHistoryDbColumns.PROCESSED_IN_BLOB); //$NON-NLS-1$
+        private static final String SELECTION_EVICT_PENDING_EVENTS = String.format("%s = ? AND %s NOT IN (?, ?, ?, ?, ?) AND %s", EventsDbColumns.PRIORITY, EventsDbColumns.EVENT_NAME, SELECTION_PENDING_EVENTS); //$NON-NLS-1$
 
         /**
-         * Columns to join in {@link #preUploadBuildBlobs(LocalyticsProvider)}.
+         * Projection for {@link #evictPendingEvents(int, int)}: the ID of each event and the estimated size of the event with its
+         * attributes.
          */
-        private static final String[] JOINER_ARG_UPLOAD_EVENTS_COLUMNS = new String[]
-            { EventsDbColumns._ID };
+        private static final String[] PROJECTION_EVICT_PENDING_EVENTS = new String[]
+            {
+                EventsDbColumns._ID,
+                String.format("%d + LENGTH(%s) + (SELECT COUNT(*) * %d + IFNULL(SUM(LENGTH(%s) + LENGTH(%s)), 0) FROM %s WHERE %s = %s.%s)", Long.valueOf(ESTIMATED_EVENT_BYTES), EventsDbColumns.EVENT_NAME, Long.valueOf(ESTIMATED_ATTRIBUTE_BYTES), AttributesDbColumns.ATTRIBUTE_KEY, AttributesDbColumns.ATTRIBUTE_VALUE, AttributesDbColumns.TABLE_NAME, AttributesDbColumns.EVENTS_KEY_REF, EventsDbColumns.TABLE_NAME, EventsDbColumns._ID) }; //$NON-NLS-1$
 
         /**
-         * Builds upload blobs for all events.
+         * Evicts the oldest application events of the given priority that are not part of an upload blob yet, with their
+         * attributes.
          *
-         * @param provider Instance of {@link LocalyticsProvider}. Cannot be null.
-         * @effects Mutates the database by creating a new upload blob for all events that are unassociated at the time this
-         *          method is called.
+         * @param priority {@link EventsDbColumns#PRIORITY} of the events to evict.
+         * @param limit Maximum number of events to evict.
+         * @return Number of events evicted.
          */
-        /* package */static void preUploadBuildBlobs(final LocalyticsProvider provider)
+        private int evictPendingEvents(final int priority, final int limit)
         {
-            /*
-             * Group all events that aren't part of an upload blob into a new blob. While this process is a linear algorithm that
-             * requires scanning two database tables, the performance won't be a problem for two reasons: 1. This process happens
-             * frequently so the number of events to group will always be low. 2. There is a maximum number of events, keeping the
-             * overall size low. Note that close events that are younger than SESSION_EXPIRATION will be skipped to allow session
-             * reconnects.
-             */
+            if (limit <= 0)
+            {
+                return 0;
+            }
 
-            // temporary set of event ids that aren't in a blob
-            final Set<Long> eventIds = new HashSet<Long>();
+            final List<Long> eventIds = new ArrayList<Long>();
+            long evictedBytes = 0;
 
             Cursor eventsCursor = null;
-            Cursor blob_eventsCursor = null;
             try
             {
-                eventsCursor = provider.query(EventsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_EVENTS, null, null, EVENTS_SORT_ORDER);
-
-                blob_eventsCursor = provider.query(UploadBlobEventsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_BLOBS, null, null, UPLOAD_BLOBS_EVENTS_SORT_ORDER);
-
-                final int idColumn = eventsCursor.getColumnIndexOrThrow(EventsDbColumns._ID);
-                final CursorJoiner joiner = new CursorJoiner(eventsCursor, JOINER_ARG_UPLOAD_EVENTS_COLUMNS, blob_eventsCursor, PROJECTION_UPLOAD_BLOBS);
-                for (final CursorJoiner.Result joinerResult : joiner)
-                {
-                    switch (joinerResult)
+                /*
+                 * The limit lets the scan stop at the oldest events instead of reading every pending event
+                 */
+                eventsCursor = mProvider.query(EventsDbColumns.TABLE_NAME, PROJECTION_EVICT_PENDING_EVENTS, SELECTION_EVICT_PENDING_EVENTS, new String[]
                     {
-                        case LEFT:
-                        {
-                            if (CLOSE_EVENT.equals(eventsCursor.getString(eventsCursor.getColumnIndexOrThrow(EventsDbColumns.EVENT_NAME))))
-                            {
-                                if (System.currentTimeMillis() - eventsCursor.getLong(eventsCursor.getColumnIndexOrThrow(EventsDbColumns.WALL_TIME)) < Constants.SESSION_EXPIRATION)
-                                {
-                                    break;
-                                }
-                            }
-                            eventIds.add(Long.valueOf(eventsCursor.getLong(idColumn)));
-                            break;
-                        }
-                        case BOTH:
-                            break;
-                        case RIGHT:
-                            break;
-                    }
+                        Integer.toString(priority),
+                        OPEN_EVENT,
+                        CLOSE_EVENT,
+                        OPT_IN_EVENT,
+                        OPT_OUT_EVENT,
+                        FLOW_EVENT }, EventsDbColumns._ID, Integer.toString(limit));
+
+                while (eventsCursor.moveToNext())
+                {
+                    eventIds.add(Long.valueOf(eventsCursor.getLong(0)));
+                    evictedBytes += eventsCursor.getLong(1);
                 }
             }
             finally
@@ -2848,117 +5279,97 @@ public class LocalyticsSession
                     eventsCursor.close();
                     eventsCursor = null;
                 }
-
-                if (null != blob_eventsCursor)
-                {
-                    blob_eventsCursor.close();
-                    blob_eventsCursor = null;
-                }
             }
 
-            if (eventIds.size() > 0)
+            if (eventIds.isEmpty())
             {
-                // reusable object
-                final ContentValues values = new ContentValues();
-
-                final Long blobId;
-                {
-                    values.put(UploadBlobsDbColumns.UUID, UUID.randomUUID().toString());
-                    blobId = Long.valueOf(provider.insert(UploadBlobsDbColumns.TABLE_NAME, values));
-                    values.clear();
-                }
-
-                for (final Long x : eventIds)
-                {
-                    values.put(UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, blobId);
-                    values.put(UploadBlobEventsDbColumns.EVENTS_KEY_REF, x);
+                return 0;
+            }
 
-                    provider.insert(UploadBlobEventsDbColumns.TABLE_NAME, values);
+            final String ids = TextUtils.join(",", eventIds); //$NON-NLS-1$
+            mProvider.delete(AttributesDbColumns.TABLE_NAME, String.format("%s IN (%s)", AttributesDbColumns.EVENTS_KEY_REF, ids), null); //$NON-NLS-1$
+            mProvider.delete(EventsDbColumns.TABLE_NAME, String.format("%s IN (%s)", EventsDbColumns._ID, ids), null); //$NON-NLS-1$
+            mTracing.onEventsEvicted(eventIds, mClock.elapsedRealtime());
 
-                    values.clear();
-                }
+            /*
+             * mOldestPendingEventWallTime is left as is. It may now be older than the oldest pending event, which at worst starts an
+             * age-based upload early, and the upload reloads it.
+             */
+            mStoredEventCount = Math.max(0, mStoredEventCount - eventIds.size());
+            mStoredBytes = Math.max(0, mStoredBytes - evictedBytes);
+            mPendingEventCount = Math.max(0, mPendingEventCount - eventIds.size());
+            mPendingEventBytes = Math.max(0, mPendingEventBytes - evictedBytes);
 
-                values.put(EventHistoryDbColumns.PROCESSED_IN_BLOB, blobId);
-                provider.update(EventHistoryDbColumns.TABLE_NAME, values, SELECTION_UPLOAD_NULL_BLOBS, null);
-                values.clear();
-            }
+            return eventIds.size();
         }
 
         /**
-         * Initiate upload of all session data currently stored on disk.
-         * <p>
-         * This method must only be called after {@link #init()} is called. The session does not need to be open for an upload to
-         * occur.
-         * <p>
-         * Note: This method is a private implementation detail. It is only made package accessible for unit testing purposes. The
-         * public interface is to send {@link #MESSAGE_UPLOAD} to the Handler.
-         *
-         * @param callback An optional callback to perform once the upload completes. May be null for no callback.
-         * @see #MESSAGE_UPLOAD
+         * Starts an upload if the pending events cross a threshold of the {@link UploadPolicy}, and schedules the next check of
+         * the age threshold.
          */
-        /* package */void upload(final Runnable callback)
+        private void checkUploadPolicy()
         {
-            if (sIsUploadingMap.get(mApiKey).booleanValue())
+            if (null == mUploadPolicy)
             {
-                if (Constants.IS_LOGGABLE)
-                {
-                    Log.d(Constants.LOG_TAG, "Already uploading"); //$NON-NLS-1$
-                }
-
-                mUploadHandler.sendMessage(mUploadHandler.obtainMessage(UploadHandler.MESSAGE_RETRY_UPLOAD_REQUEST, callback));
                 return;
             }
 
-            try
-            {
-                preUploadBuildBlobs(mProvider);
+            final int generation = ++mUploadPolicyCheckGeneration;
 
-                sIsUploadingMap.put(mApiKey, Boolean.TRUE);
-                mUploadHandler.sendMessage(mUploadHandler.obtainMessage(UploadHandler.MESSAGE_UPLOAD, callback));
-            }
-            catch (final Exception e)
+            if (mUploadPolicy.isUploadDue(mPendingEventCount, mClock.currentTimeMillis() - mOldestPendingEventWallTime, mPendingEventBytes))
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.DEBUG))
                 {
-                    Log.w(Constants.LOG_TAG, "Error occurred during upload", e); //$NON-NLS-1$
+                    LocalyticsLog.d("Upload policy reached with %d pending events", Long.valueOf(mPendingEventCount)); //$NON-NLS-1$
                 }
 
-                sIsUploadingMap.put(mApiKey, Boolean.FALSE);
+                mProvider.runBatchTransaction(new Runnable()
+                {
+                    public void run()
+                    {
+                        upload(null, UPLOAD_REASON_POLICY);
+                    }
+                });
+            }
 
-                // Notify the caller the upload is "complete"
-                if (null != callback)
+            if (0 != mUploadPolicy.getMaxEventAgeMillis() && 0 != mPendingEventCount)
+            {
+                final long delay = mUploadPolicy.getMaxEventAgeMillis() - (mClock.currentTimeMillis() - mOldestPendingEventWallTime);
+                mExecutor.executeDelayed(newTask(new Request()
                 {
-                    /*
-                     * Note that a new thread is created for the callback. This ensures that client code can't affect the
-                     * performance of the SessionHandler's thread.
-                     */
-                    new Thread(callback, UploadHandler.UPLOAD_CALLBACK_THREAD_NAME).start();
-                }
+                    public void run(final long realTime, final long wallTime)
+                    {
+                        if (generation == mUploadPolicyCheckGeneration)
+                        {
+                            checkUploadPolicy();
+                        }
+                    }
+                }), Math.max(delay, MIN_UPLOAD_POLICY_CHECK_DELAY));
             }
         }
 
         /**
-         * Projection for {@link #isOptedOut(LocalyticsProvider, String)}.
+         * Projection for {@link #isOptedOut(LocalyticsStorage, String)}.
          */
         private static final String[] PROJECTION_IS_OPTED_OUT = new String[]
             { ApiKeysDbColumns.OPT_OUT };
 
         /**
-         * Selection for {@link #isOptedOut(LocalyticsProvider, String)}.
+         * Selection for {@link #isOptedOut(LocalyticsStorage, String)}.
          * <p>
          * The selection argument is the {@link ApiKeysDbColumns#API_KEY}.
          */
         private static final String SELECTION_IS_OPTED_OUT = String.format("%s = ?", ApiKeysDbColumns.API_KEY); //$NON-NLS-1$
 
         /**
-         * @param provider Instance of {@link LocalyticsProvider}. Cannot be null.
+         * @param provider Instance of {@link LocalyticsStorage}. Cannot be null.
          * @param apiKey Api key to test whether it is opted out. Cannot be null.
          * @return true if data collection has been opted out. Returns false if data collection is opted-in or if {@code apiKey}
          *         doesn't exist in the database.
          * @throws IllegalArgumentException if {@code provider} is null.
          * @throws IllegalArgumentException if {@code apiKey} is null.
          */
-        /* package */static boolean isOptedOut(final LocalyticsProvider provider, final String apiKey)
+        /* package */static boolean isOptedOut(final LocalyticsStorage provider, final String apiKey)
         {
             if (Constants.IS_PARAMETER_CHECKING_ENABLED)
             {
@@ -2998,42 +5409,107 @@ public class LocalyticsSession
     }
 
     /**
-     * Helper object to the {@link SessionHandler} which helps process upload requests.
+     * Upload logic for an API key, independent of the Android message queue. Uploads are requested by the {@link SessionEngine}
+     * and run on the thread of the engine's {@link TaskExecutor}, which is called the upload thread below.
      */
-    /* package */static final class UploadHandler extends Handler
+    /* package */static final class UploadEngine
     {
-
         /**
-         * Thread name that the upload callback runnable is executed on.
+         * Thread name that the upload listeners are notified on.
          */
         private static final String UPLOAD_CALLBACK_THREAD_NAME = "upload_callback"; //$NON-NLS-1$
 
+        /**
+         * Maximum number of threads notifying upload listeners.
+         */
+        private static final int MAX_CALLBACK_THREADS = 2;
+
+        /**
+         * Time in seconds after which an idle callback thread is terminated.
+         */
+        private static final long CALLBACK_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+        /**
+         * Executor that notifies upload listeners for all sessions. Notifying listeners on separate threads ensures that client
+         * code can't affect the performance of the handler threads, and the pool bounds the number of threads regardless of how
+         * often uploads are requested.
+         */
+        private static final ThreadPoolExecutor sCallbackExecutor = createCallbackExecutor();
+
+        /**
+         * @return A new executor for {@link #sCallbackExecutor}.
+         */
+        private static ThreadPoolExecutor createCallbackExecutor()
+        {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CALLBACK_THREADS, MAX_CALLBACK_THREADS, CALLBACK_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread thread = new Thread(r, UPLOAD_CALLBACK_THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            /*
+             * Idle core threads are only allowed to time out on API 9 and greater. On older platforms the pool simply keeps its
+             * threads.
+             */
+            if (Constants.CURRENT_API_LEVEL >= 9)
+            {
+                executor.allowCoreThreadTimeOut(true);
+            }
+
+            return executor;
+        }
+
+        /**
+         * Notifies {@code listener} of {@code result} on {@link #sCallbackExecutor}.
+         *
+         * @param listener Listener to notify. May be null, in which case this method does nothing.
+         * @param result Result to deliver. Cannot be null.
+         */
+        /* package */static void deliverResult(final UploadListener listener, final UploadResult result)
+        {
+            if (null == listener)
+            {
+                return;
+            }
+
+            sCallbackExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    listener.onUploadComplete(result);
+                }
+            });
+        }
+
         /**
          * Localytics upload URL, as a format string that contains a format for the API key.
          */
         private final static String ANALYTICS_URL = "http://analytics.localytics.com/api/v2/applications/%s/uploads"; //$NON-NLS-1$
         
         /**
-         * Handler message to upload all data collected so far
-         * <p>
-         * {@link Message#obj} is a {@code Runnable} to execute when upload is complete. The thread that this runnable will
-         * executed on is undefined.
+         * Minimum delay in milliseconds before a held upload is attempted again.
          */
-        public static final int MESSAGE_UPLOAD = 1;
+        private static final long MIN_HELD_UPLOAD_DELAY = DateUtils.MINUTE_IN_MILLIS;
 
         /**
-         * Handler message indicating that there is a queued upload request. When this message is processed, this handler simply
-         * forwards the request back to {@link LocalyticsSession#mSessionHandler} with {@link SessionHandler#MESSAGE_UPLOAD}.
-         * <p>
-         * {@link Message#obj} is a {@code Runnable} to execute when upload is complete. The thread that this runnable will
-         * executed on is undefined.
+         * Approximate size in bytes from which no more blobs are added to an upload chunk. Stored payloads count with their
+         * compressed size and other blobs with the length of their JSON.
+         */
+        /* package */static final int MAX_UPLOAD_CHUNK_BYTES = 256 * 1024;
+
+        /**
+         * Number of built chunks that may wait for transmission.
          */
-        public static final int MESSAGE_RETRY_UPLOAD_REQUEST = 2;
+        /* package */static final int UPLOAD_PIPELINE_DEPTH = 2;
 
         /**
          * Reference to the Localytics database
          */
-        protected final LocalyticsProvider mProvider;
+        protected final LocalyticsStorage mProvider;
 
         /**
          * Application context
@@ -3044,148 +5520,428 @@ public class LocalyticsSession
          * The Localytics API key
          */
         private final String mApiKey;
-        
+
         /**
          * The Localytics Install ID
          */
         private final String mInstallId;
-        
+
+        /**
+         * Upload state for {@link #mApiKey}, moved out of {@link UploadState#UPLOADING} when an upload completes.
+         */
+        private final UploadState mUploadState;
+
+        /**
+         * Metrics for {@link #mApiKey}.
+         */
+        private final MetricsRegistry mMetrics;
+
+        /**
+         * Event tracing for {@link #mApiKey}.
+         */
+        private final EventTracing mTracing;
+
+        /**
+         * Parent session engine to notify when an upload completes.
+         */
+        private final SessionEngine mSession;
+
         /**
-         * Parent session handler to notify when an upload completes.
+         * Executor for the session handler thread of {@link #mSession}.
          */
-        private final Handler mSessionHandler;
+        private final TaskExecutor mSessionExecutor;
 
         /**
-         * Constructs a new Handler that runs on {@code looper}.
+         * Executor for the upload thread.
+         */
+        private final TaskExecutor mExecutor;
+
+        /**
+         * Scheduler consulted before each upload. Null to always upload.
+         * <p>
+         * This is only accessed from the upload thread.
+         */
+        private UploadScheduler mScheduler;
+
+        /**
+         * Incremented whenever a held upload is scheduled or the scheduler is removed, so that only the latest scheduled retry of
+         * a held upload runs.
          * <p>
-         * Note: This constructor may perform disk access.
+         * This is only accessed from the upload thread.
+         */
+        private int mHeldUploadGeneration;
+
+        /**
+         * Transmits the chunks built on the upload thread.
+         */
+        private final UploadPipeline mPipeline;
+
+        /**
+         * Source of the current time.
+         */
+        private final Clock mClock;
+
+        /**
+         * Constructs a new engine with the given platform dependencies.
          *
          * @param context Application context. Cannot be null.
-         * @param sessionHandler Parent {@link SessionHandler} object to notify when uploads are completed. Cannot be null.
+         * @param session Parent {@link SessionEngine} object to notify when uploads are completed. Cannot be null.
+         * @param sessionExecutor Executor for the session handler thread of {@code session}. Cannot be null.
+         * @param storage Storage holding the blobs to upload. Cannot be null.
          * @param apiKey Localytics API key. Cannot be null.
          * @param installId Localytics install ID.
-         * @param looper to run the Handler on. Cannot be null.
+         * @param executor Executor for the upload thread. Cannot be null.
+         * @param clock Source of the current time. Cannot be null.
+         * @param transmitter Executor that transmits upload chunks while the next chunk is built. Cannot be null.
+         * @param transport Transport the upload chunks are sent with. Cannot be null.
          */
-        public UploadHandler(final Context context, final Handler sessionHandler, final String apiKey, final String installId, final Looper looper)
+        /* package */UploadEngine(final Context context, final SessionEngine session, final TaskExecutor sessionExecutor, final LocalyticsStorage storage, final String apiKey, final String installId, final TaskExecutor executor, final Clock clock, final TaskExecutor transmitter, final UploadTransport transport)
         {
-            super(looper);
-
             mContext = context;
-            mProvider = LocalyticsProvider.getInstance(context, apiKey);
-            mSessionHandler = sessionHandler;
+            mProvider = storage;
+            mSession = session;
+            mSessionExecutor = sessionExecutor;
             mApiKey = apiKey;
             mInstallId = installId;
+            mUploadState = UploadState.getInstance(apiKey);
+            mMetrics = MetricsRegistry.getInstance(apiKey);
+            mTracing = EventTracing.getInstance(apiKey);
+            mExecutor = executor;
+            mClock = clock;
+            mPipeline = new UploadPipeline(UPLOAD_PIPELINE_DEPTH, transmitter, new MeteredUploadTransport(transport, mMetrics));
         }
 
-        @Override
-        public void handleMessage(final Message msg)
+        /**
+         * Uploads the blobs built so far on the upload thread, then notifies the {@link SessionEngine}. This may be called from
+         * any thread.
+         *
+         * @param listener Listener to notify when upload is complete, or null. The thread that the listener will be notified on
+         *            is undefined.
+         * @param isPriorityOnly True to only upload {@link EventsDbColumns#PRIORITY_HIGH} blobs.
+         */
+        /* package */void upload(final UploadListener listener, final boolean isPriorityOnly)
         {
-            try
+            mExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        performUpload(listener, isPriorityOnly);
+                    }
+                    catch (final Exception e)
+                    {
+                        if (LocalyticsLog.isLoggable(Log.ERROR))
+                        {
+                            LocalyticsLog.e("Localytics library threw an uncaught exception", e); //$NON-NLS-1$
+                        }
+
+                        if (!Constants.IS_EXCEPTION_SUPPRESSION_ENABLED)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Requests an upload from the {@link SessionEngine} again once the uploads queued on the upload thread are done. This
+         * may be called from any thread.
+         *
+         * @param listener Listener to notify when upload is complete, or null.
+         * @param reason Reason for the upload, such as {@link SessionEngine#UPLOAD_REASON_EXPLICIT}.
+         */
+        /* package */void retryUploadRequest(final UploadListener listener, final int reason)
+        {
+            mExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    if (LocalyticsLog.isLoggable(Log.DEBUG))
+                    {
+                        LocalyticsLog.d("Retrying upload request"); //$NON-NLS-1$
+                    }
+
+                    requestUpload(listener, reason);
+                }
+            });
+        }
+
+        /**
+         * Sets the upload scheduler. This may be called from any thread.
+         *
+         * @param scheduler Scheduler consulted before each upload, or null to always upload.
+         */
+        /* package */void setScheduler(final UploadScheduler scheduler)
+        {
+            mExecutor.execute(new Runnable()
             {
-                super.handleMessage(msg);
+                public void run()
+                {
+                    mScheduler = scheduler;
+
+                    if (null == mScheduler)
+                    {
+                        mHeldUploadGeneration++;
+                    }
+                }
+            });
+        }
 
-                switch (msg.what)
+        /**
+         * Requests a new upload from the {@link SessionEngine} after {@code delayMillis}, for an upload held by the
+         * {@link UploadScheduler} that reaches its maximum hold time. This replaces the previously scheduled request, if any.
+         *
+         * @param delayMillis Delay in milliseconds before the upload is requested.
+         */
+        private void scheduleHeldUpload(final long delayMillis)
+        {
+            final int generation = ++mHeldUploadGeneration;
+            mExecutor.executeDelayed(new Runnable()
+            {
+                public void run()
                 {
-                    case MESSAGE_UPLOAD:
+                    if (generation == mHeldUploadGeneration)
                     {
-                        if (Constants.IS_LOGGABLE)
+                        if (LocalyticsLog.isLoggable(Log.DEBUG))
                         {
-                            Log.d(Constants.LOG_TAG, "UploadHandler received MESSAGE_UPLOAD"); //$NON-NLS-1$
+                            LocalyticsLog.d("Held upload reached its maximum hold time"); //$NON-NLS-1$
                         }
 
-                        /*
-                         * Note that callback may be null
-                         */
-                        final Runnable callback = (Runnable) msg.obj;
+                        requestUpload(null, SessionEngine.UPLOAD_REASON_EXPLICIT);
+                    }
+                }
+            }, delayMillis);
+        }
 
-                        try
-                        {                            
-                            final List<JSONObject> toUpload = convertDatabaseToJson(mContext, mProvider, mApiKey);
+        /**
+         * Requests an upload from the {@link SessionEngine} on its thread.
+         *
+         * @param listener Listener to notify when upload is complete, or null.
+         * @param reason Reason for the upload, such as {@link SessionEngine#UPLOAD_REASON_EXPLICIT}.
+         */
+        private void requestUpload(final UploadListener listener, final int reason)
+        {
+            mSessionExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    mSession.handleUpload(listener, reason);
+                }
+            });
+        }
+
+        /**
+         * Uploads the blobs built so far. This must be called on the upload thread.
+         *
+         * @param listener Listener to notify when upload is complete, or null.
+         * @param isPriorityOnly True to only upload {@link EventsDbColumns#PRIORITY_HIGH} blobs.
+         * @throws IOException if a chunk could not be built.
+         * @throws InterruptedException if the thread was interrupted while waiting for the transmission.
+         */
+        private void performUpload(final UploadListener listener, final boolean isPriorityOnly) throws IOException, InterruptedException
+        {
+            if (LocalyticsLog.isLoggable(Log.DEBUG))
+            {
+                LocalyticsLog.d("UploadEngine uploading"); //$NON-NLS-1$
+            }
 
-                            if (!toUpload.isEmpty())
+            final long startTime = mClock.elapsedRealtime();
+            boolean isSuccess = false;
+            long bytesSent = 0;
+            int blobsUploaded = 0;
+            int httpStatus = UploadResult.NO_STATUS;
+            try
+            {
+                String apiKey = mApiKey;
+                String rollupKey = DatapointHelper.getLocalyticsRollupKeyOrNull(mContext);          
+                if (rollupKey != null && !TextUtils.isEmpty(rollupKey))
+                {
+                	apiKey = rollupKey;
+                }
+
+                /*
+                 * Chunks are built on this thread while the pipeline transmits the previous chunk. Blobs are only
+                 * deleted once the pipeline has drained, whether or not building failed.
+                 */
+                final UploadPipeline.Batch batch = mPipeline.begin(String.format(ANALYTICS_URL, apiKey), mInstallId);
+                boolean isHeld = false;
+                Cursor cursor = null;
+                try
+                {
+                    /*
+                     * The scheduler is asked once with the size of the whole upload, before any chunk is sent, so
+                     * that a large backlog is held as a whole even though it is sent in chunks.
+                     */
+                    if (null != mScheduler)
+                    {
+                        final long uploadBytes = getUploadSize(mProvider, isPriorityOnly);
+                        final long now = mClock.currentTimeMillis();
+                        if (0 != uploadBytes && !mScheduler.shouldUpload(uploadBytes, now))
+                        {
+                            if (LocalyticsLog.isLoggable(Log.DEBUG))
                             {
-                                final StringBuilder builder = new StringBuilder();
-                                for (final JSONObject json : toUpload)
-                                {
-                                    builder.append(json.toString());
-                                    builder.append('\n');
-                                }
-                                
-                                String apiKey = mApiKey;
-                                String rollupKey = DatapointHelper.getLocalyticsRollupKeyOrNull(mContext);          
-                                if (rollupKey != null && !TextUtils.isEmpty(rollupKey))
-                                {
-                                	apiKey = rollupKey;
-                                }
-                                                                
-                                if (uploadSessions(String.format(ANALYTICS_URL, apiKey), builder.toString(), mInstallId))
-                                {
-                                    mProvider.runBatchTransaction(new Runnable()
-                                    {
-                                        public void run()
-                                        {
-                                            deleteBlobsAndSessions(mProvider);
-                                        }
-                                    });
-                                }
+                                LocalyticsLog.d("Upload of %d bytes held by the scheduler", Long.valueOf(uploadBytes)); //$NON-NLS-1$
+                            }
+
+                            isHeld = true;
+
+                            final long remaining = mScheduler.getRemainingHoldMillis(now);
+                            if (-1 != remaining)
+                            {
+                                scheduleHeldUpload(Math.max(remaining, MIN_HELD_UPLOAD_DELAY));
                             }
                         }
-                        finally
+                    }
+
+                    if (!isHeld)
+                    {
+                        cursor = mProvider.query(UploadBlobsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_BODY, isPriorityOnly ? SELECTION_UPLOAD_BODY_PRIORITY : null, null, null);
+
+                        final long creationTime = getApiKeyCreationTime(mProvider, mApiKey);
+                        while (true)
                         {
-                            if (null != callback)
+                            final List<Long> blobIds = new LinkedList<Long>();
+                            final byte[] chunk = buildUploadChunk(mContext, mProvider, mApiKey, creationTime, cursor, blobIds, mMetrics);
+                            if (null == chunk)
                             {
-                                /*
-                                 * Execute the callback on a separate thread, to avoid exposing this thread to the client of the
-                                 * library
-                                 */
-                                new Thread(callback, UPLOAD_CALLBACK_THREAD_NAME).start();
+                                break;
                             }
 
-                            mSessionHandler.sendEmptyMessage(SessionHandler.MESSAGE_UPLOAD_CALLBACK);
+                            if (!mPipeline.submit(batch, chunk, blobIds))
+                            {
+                                break;
+                            }
                         }
-                        break;
                     }
-                    case MESSAGE_RETRY_UPLOAD_REQUEST:
+                }
+                finally
+                {
+                    if (null != cursor)
+                    {
+                        cursor.close();
+                        cursor = null;
+                    }
+
+                    mPipeline.await(batch);
+
+                    final List<Long> sentBlobIds = batch.getSentBlobIds();
+                    if (!sentBlobIds.isEmpty())
                     {
-                        if (Constants.IS_LOGGABLE)
+                        mProvider.runBatchTransaction(new Runnable()
                         {
-                            Log.d(Constants.LOG_TAG, "Received MESSAGE_RETRY_UPLOAD_REQUEST"); //$NON-NLS-1$
-                        }
+                            public void run()
+                            {
+                                deleteBlobsAndSessions(mProvider, sentBlobIds);
+                            }
+                        });
 
-                        mSessionHandler.sendMessage(mSessionHandler.obtainMessage(SessionHandler.MESSAGE_UPLOAD, msg.obj));
-                        break;
+                        mTracing.onBlobsAcknowledged(sentBlobIds, mClock.elapsedRealtime());
                     }
-                    default:
+                }
+
+                isSuccess = !isHeld && batch.isSuccess();
+                bytesSent = batch.getBytesSent();
+                blobsUploaded = batch.getSentBlobIds().size();
+                httpStatus = batch.getHttpStatus();
+
+                /*
+                 * A held upload sent nothing and must not end the hold, which would restart the maximum hold time
+                 */
+                if (null != mScheduler && !isHeld && 0 != bytesSent)
+                {
+                    mScheduler.onUploaded(bytesSent, mClock.currentTimeMillis());
+                }
+            }
+            finally
+            {
+                mUploadState.finish(isSuccess);
+                deliverResult(listener, new UploadResult(isSuccess, bytesSent, blobsUploaded, httpStatus, mClock.elapsedRealtime() - startTime));
+
+                mSessionExecutor.execute(new Runnable()
+                {
+                    public void run()
                     {
-                        /*
-                         * This should never happen
-                         */
-                        throw new RuntimeException("Fell through switch statement"); //$NON-NLS-1$
+                        mSession.handleUploadComplete();
                     }
+                });
+            }
+        }
+
+        /**
+         * Uploads the post Body to the webservice
+         *
+         * @param url where {@code body} will be posted to. Cannot be null.
+         * @param body upload body as a string. This should be a plain old string. Cannot be null.
+         * @return True on success, false on failure.
+         */
+		/* package */static boolean uploadSessions(final String url, final String body, final String installId)
+        {
+            if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+            {
+                if (null == url)
+                {
+                    throw new IllegalArgumentException("url cannot be null"); //$NON-NLS-1$
+                }
+
+                if (null == body)
+                {
+                    throw new IllegalArgumentException("body cannot be null"); //$NON-NLS-1$
                 }
             }
-            catch (final Exception e)
+
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("Upload body before compression is: %s", body); //$NON-NLS-1$
+            }
+
+            /*
+             * GZIP the data to upload
+             */
+            final byte[] data;
+            try
+            {
+                data = gzip(body.getBytes("UTF-8")); //$NON-NLS-1$
+            }
+            catch (final UnsupportedEncodingException e)
             {
-                if (Constants.IS_LOGGABLE)
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    Log.e(Constants.LOG_TAG, "Localytics library threw an uncaught exception", e); //$NON-NLS-1$
+                    LocalyticsLog.w("UnsupportedEncodingException", e); //$NON-NLS-1$
                 }
-
-                if (!Constants.IS_EXCEPTION_SUPPRESSION_ENABLED)
+                return false;
+            }
+            catch (final IOException e)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
                 {
-                    throw new RuntimeException(e);
+                    LocalyticsLog.w("IOException", e); //$NON-NLS-1$
                 }
+                return false;
             }
+
+            return isSuccessfulStatus(uploadCompressed(url, data, installId));
         }
 
         /**
-         * Uploads the post Body to the webservice
+         * @param httpStatus HTTP status code returned by {@link #uploadCompressed(String, byte[], String)}.
+         * @return True if the upload was accepted. 5xx status codes indicate a server error, so the upload should be reattempted.
+         */
+        /* package */static boolean isSuccessfulStatus(final int httpStatus)
+        {
+            return UploadResult.NO_STATUS != httpStatus && (httpStatus < 500 || httpStatus > 599);
+        }
+
+        /**
+         * Uploads an already compressed post body to the webservice
          *
-         * @param url where {@code body} will be posted to. Cannot be null.
-         * @param body upload body as a string. This should be a plain old string. Cannot be null.
-         * @return True on success, false on failure.
+         * @param url where {@code data} will be posted to. Cannot be null.
+         * @param data GZIP compressed upload body. This may consist of several GZIP members, as produced by
+         *            {@link #buildUploadChunk(Context, LocalyticsStorage, String, long, Cursor, List, MetricsRegistry)}. Cannot be null.
+         * @return The HTTP status code of the response, or {@link UploadResult#NO_STATUS} if the request failed.
          */
-		/* package */static boolean uploadSessions(final String url, final String body, final String installId)
+        /* package */static int uploadCompressed(final String url, final byte[] data, final String installId)
         {
             if (Constants.IS_PARAMETER_CHECKING_ENABLED)
             {
@@ -3194,17 +5950,12 @@ public class LocalyticsSession
                     throw new IllegalArgumentException("url cannot be null"); //$NON-NLS-1$
                 }
 
-                if (null == body)
+                if (null == data)
                 {
-                    throw new IllegalArgumentException("body cannot be null"); //$NON-NLS-1$
+                    throw new IllegalArgumentException("data cannot be null"); //$NON-NLS-1$
                 }
             }
 
-            if (Constants.IS_LOGGABLE)
-            {
-                Log.v(Constants.LOG_TAG, String.format("Upload body before compression is: %s", body)); //$NON-NLS-1$
-            }
-
             /*
              * As per Google's documentation, use HttpURLConnection for API 9 and greater and DefaultHttpClient for API 8 and
              * lower. <http://android-developers.blogspot.com/2011/09/androids-http-clients.html>. HTTP library.
@@ -3214,61 +5965,6 @@ public class LocalyticsSession
              */
             if (DatapointHelper.getApiLevel() >= 9)
             {
-                /*
-                 * GZIP the data to upload
-                 */
-                byte[] data;
-                {
-                    GZIPOutputStream gos = null;
-                    try
-                    {
-                        final byte[] originalBytes = body.getBytes("UTF-8"); //$NON-NLS-1$
-                        final ByteArrayOutputStream baos = new ByteArrayOutputStream(originalBytes.length);
-                        gos = new GZIPOutputStream(baos);
-                        gos.write(originalBytes);
-                        gos.finish();
-                        gos.flush();
-
-                        data = baos.toByteArray();
-                    }
-                    catch (final UnsupportedEncodingException e)
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.w(Constants.LOG_TAG, "UnsupportedEncodingException", e); //$NON-NLS-1$
-                        }
-                        return false;
-                    }
-                    catch (final IOException e)
-                    {
-                        if (Constants.IS_LOGGABLE)
-                        {
-                            Log.w(Constants.LOG_TAG, "IOException", e); //$NON-NLS-1$
-                        }
-                        return false;
-                    }
-                    finally
-                    {
-                        if (null != gos)
-                        {
-                            try
-                            {
-                                gos.close();
-                                gos = null;
-                            }
-                            catch (final IOException e)
-                            {
-                                if (Constants.IS_LOGGABLE)
-                                {
-                                    Log.w(Constants.LOG_TAG, "Caught exception", e); //$NON-NLS-1$
-                                }
-
-                                return false;
-                            }
-                        }
-                    }
-                }
-
                 HttpURLConnection connection = null;
                 try
                 {
@@ -3301,36 +5997,30 @@ public class LocalyticsSession
                     }
 
                     final int responseCode = connection.getResponseCode();
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.VERBOSE))
                     {
-                        Log.v(Constants.LOG_TAG, String.format("Upload complete with status %d", Integer.valueOf(responseCode))); //$NON-NLS-1$
+                        LocalyticsLog.v("Upload complete with status %d", Integer.valueOf(responseCode)); //$NON-NLS-1$
                     }
 
-                    /*
-                     * 5xx status codes indicate a server error, so upload should be reattempted
-                     */
-                    if (responseCode >= 500 && responseCode <= 599)
-                    {
-                        return false;
-                    }
+                    return responseCode;
                 }
                 catch (final MalformedURLException e)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "ClientProtocolException", e); //$NON-NLS-1$
+                        LocalyticsLog.w("ClientProtocolException", e); //$NON-NLS-1$
                     }
 
-                    return false;
+                    return UploadResult.NO_STATUS;
                 }
                 catch (final IOException e)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "ClientProtocolException", e); //$NON-NLS-1$
+                        LocalyticsLog.w("ClientProtocolException", e); //$NON-NLS-1$
                     }
 
-                    return false;
+                    return UploadResult.NO_STATUS;
                 }
 
                 finally
@@ -3357,90 +6047,257 @@ public class LocalyticsSession
                                                           / DateUtils.SECOND_IN_MILLIS))); //$NON-NLS-1$//$NON-NLS-2$
                 method.addHeader("x-install-id", installId); //$NON-NLS-1$
                 method.addHeader("x-client-version", Constants.LOCALYTICS_CLIENT_LIBRARY_VERSION); //$NON-NLS-1$
-                
-                GZIPOutputStream gos = null;
+
                 try
                 {
-                    final byte[] originalBytes = body.getBytes("UTF-8"); //$NON-NLS-1$
-                    final ByteArrayOutputStream baos = new ByteArrayOutputStream(originalBytes.length);
-                    gos = new GZIPOutputStream(baos);
-                    gos.write(originalBytes);
-                    gos.finish();
-                    gos.flush();
-
-                    final ByteArrayEntity postBody = new ByteArrayEntity(baos.toByteArray());
+                    final ByteArrayEntity postBody = new ByteArrayEntity(data);
                     method.setEntity(postBody);
 
                     final HttpResponse response = client.execute(method);
 
                     final StatusLine status = response.getStatusLine();
                     final int statusCode = status.getStatusCode();
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.VERBOSE))
                     {
-                        Log.v(Constants.LOG_TAG, String.format("Upload complete with status %d", Integer.valueOf(statusCode))); //$NON-NLS-1$
+                        LocalyticsLog.v("Upload complete with status %d", Integer.valueOf(statusCode)); //$NON-NLS-1$
                     }
 
-                    /*
-                     * 5xx status codes indicate a server error, so upload should be reattempted
-                     */
-                    if (statusCode >= 500 && statusCode <= 599)
-                    {
-                        return false;
-                    }
+                    return statusCode;
                 }
-                catch (final UnsupportedEncodingException e)
+                catch (final ClientProtocolException e)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "UnsupportedEncodingException", e); //$NON-NLS-1$
+                        LocalyticsLog.w("ClientProtocolException", e); //$NON-NLS-1$
                     }
-                    return false;
+                    return UploadResult.NO_STATUS;
                 }
-                catch (final ClientProtocolException e)
+                catch (final IOException e)
                 {
-                    if (Constants.IS_LOGGABLE)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        Log.w(Constants.LOG_TAG, "ClientProtocolException", e); //$NON-NLS-1$
+                        LocalyticsLog.w("IOException", e); //$NON-NLS-1$
                     }
-                    return false;
+                    return UploadResult.NO_STATUS;
                 }
-                catch (final IOException e)
+            }
+        }
+
+        /**
+         * GZIP compresses {@code bytes} into a single GZIP member.
+         *
+         * @param bytes Bytes to compress. Cannot be null.
+         * @return The compressed bytes.
+         * @throws IOException if compression fails.
+         */
+        /* package */static byte[] gzip(final byte[] bytes) throws IOException
+        {
+            GZIPOutputStream gos = null;
+            try
+            {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length);
+                gos = new GZIPOutputStream(baos);
+                gos.write(bytes);
+                gos.finish();
+                gos.flush();
+
+                return baos.toByteArray();
+            }
+            finally
+            {
+                if (null != gos)
+                {
+                    gos.close();
+                    gos = null;
+                }
+            }
+        }
+
+        /**
+         * Projection for the cursor passed to {@link #buildUploadChunk(Context, LocalyticsStorage, String, long, Cursor, List, MetricsRegistry)}.
+         */
+        private static final String[] PROJECTION_UPLOAD_BODY = new String[]
+            {
+                UploadBlobsDbColumns._ID,
+                UploadBlobsDbColumns.UUID,
+                UploadBlobsDbColumns.PAYLOAD };
+
+        /**
+         * Selection for the cursor passed to {@link #buildUploadChunk(Context, LocalyticsStorage, String, long, Cursor, List, MetricsRegistry)}
+         * when only priority blobs are uploaded.
+         */
+        private static final String SELECTION_UPLOAD_BODY_PRIORITY = String.format("%s = %d", UploadBlobsDbColumns.PRIORITY, Integer.valueOf(EventsDbColumns.PRIORITY_HIGH)); //$NON-NLS-1$
+
+        /**
+         * Projection for {@link #getUploadSize(LocalyticsStorage, boolean)}. Serialized blobs count with the size of their payload,
+         * and the other blobs with {@link SessionEngine#ESTIMATED_EVENT_BYTES} per event, as they are only serialized while
+         * uploading.
+         */
+        private static final String[] PROJECTION_UPLOAD_SIZE = new String[]
+            { String.format("IFNULL(SUM(IFNULL(LENGTH(%s), %d * (SELECT COUNT(*) FROM %s WHERE %s = %s.%s))), 0)", UploadBlobsDbColumns.PAYLOAD, Long.valueOf(SessionEngine.ESTIMATED_EVENT_BYTES), UploadBlobEventsDbColumns.TABLE_NAME, UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, UploadBlobsDbColumns.TABLE_NAME, UploadBlobsDbColumns._ID) }; //$NON-NLS-1$
+
+        /**
+         * Estimates the size of an upload, for the {@link UploadScheduler}.
+         *
+         * @param provider Localytics database provider. Cannot be null.
+         * @param isPriorityOnly True if only {@link EventsDbColumns#PRIORITY_HIGH} blobs are uploaded.
+         * @return Estimated size in bytes of the blobs to upload, or 0 if there are none.
+         */
+        /* package */static long getUploadSize(final LocalyticsStorage provider, final boolean isPriorityOnly)
+        {
+            Cursor cursor = null;
+            try
+            {
+                cursor = provider.query(UploadBlobsDbColumns.TABLE_NAME, PROJECTION_UPLOAD_SIZE, isPriorityOnly ? SELECTION_UPLOAD_BODY_PRIORITY : null, null, null);
+
+                if (cursor.moveToFirst())
+                {
+                    return cursor.getLong(0);
+                }
+
+                return 0;
+            }
+            finally
+            {
+                if (null != cursor)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+        }
+
+        /**
+         * Builds the next compressed upload chunk from the blobs under {@code cursor}.
+         * <p>
+         * Blobs are added to the chunk until its approximate size reaches {@link #MAX_UPLOAD_CHUNK_BYTES}, so a chunk always
+         * contains at least one blob. Blobs that were serialized when they were built contribute their stored
+         * {@link UploadBlobsDbColumns#PAYLOAD} as is. The remaining blobs are converted to JSON and compressed together. The result
+         * is a sequence of GZIP members, which decompresses to the concatenation of their contents (RFC 1952, section 2.2). Since
+         * every blob starts with its own header, each chunk can be uploaded independently.
+         *
+         * @param context Application context. Cannot be null.
+         * @param provider Localytics database provider. Cannot be null.
+         * @param apiKey Localytics API key. Cannot be null.
+         * @param creationTime Creation time of the API key, as returned by
+         *            {@link #getApiKeyCreationTime(LocalyticsStorage, String)}.
+         * @param cursor Cursor over {@link UploadBlobsDbColumns#TABLE_NAME} with {@link #PROJECTION_UPLOAD_BODY}. The cursor is
+         *            advanced past the blobs included in the chunk. Cannot be null.
+         * @param blobIds Output list that receives the {@link UploadBlobsDbColumns#_ID} of every blob included in the chunk.
+         *            Cannot be null.
+         * @param metrics Metrics to record the compression ratio in. May be null.
+         * @return The upload chunk, or null if {@code cursor} has no more blobs.
+         * @throws IOException if compression fails.
+         */
+        /* package */static byte[] buildUploadChunk(final Context context, final LocalyticsStorage provider, final String apiKey, final long creationTime, final Cursor cursor, final List<Long> blobIds, final MetricsRegistry metrics) throws IOException
+        {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final StringBuilder builder = new StringBuilder();
+
+            final int idColumn = cursor.getColumnIndexOrThrow(UploadBlobsDbColumns._ID);
+            final int uuidColumn = cursor.getColumnIndexOrThrow(UploadBlobsDbColumns.UUID);
+            final int payloadColumn = cursor.getColumnIndexOrThrow(UploadBlobsDbColumns.PAYLOAD);
+            while (result.size() + builder.length() < MAX_UPLOAD_CHUNK_BYTES && cursor.moveToNext())
+            {
+                blobIds.add(Long.valueOf(cursor.getLong(idColumn)));
+
+                if (!cursor.isNull(payloadColumn))
                 {
-                    if (Constants.IS_LOGGABLE)
+                    result.write(cursor.getBlob(payloadColumn));
+                    continue;
+                }
+
+                try
+                {
+                    for (final JSONObject json : convertBlobToJson(context, provider, apiKey, creationTime, cursor.getLong(idColumn), cursor.getString(uuidColumn)))
                     {
-                        Log.w(Constants.LOG_TAG, "IOException", e); //$NON-NLS-1$
+                        builder.append(json.toString());
+                        builder.append('\n');
                     }
-                    return false;
                 }
-                finally
+                catch (final JSONException e)
                 {
-                    if (null != gos)
+                    if (LocalyticsLog.isLoggable(Log.WARN))
                     {
-                        try
-                        {
-                            gos.close();
-                            gos = null;
-                        }
-                        catch (final IOException e)
-                        {
-                            if (Constants.IS_LOGGABLE)
-                            {
-                                Log.w(Constants.LOG_TAG, "Caught exception", e); //$NON-NLS-1$
-                            }
-                        }
+                        LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
                     }
                 }
             }
 
-            return true;
+            if (builder.length() > 0)
+            {
+                if (LocalyticsLog.isLoggable(Log.VERBOSE))
+                {
+                    LocalyticsLog.v("Upload chunk before compression is: %s", builder.toString()); //$NON-NLS-1$
+                }
+
+                final byte[] uncompressed = builder.toString().getBytes("UTF-8"); //$NON-NLS-1$
+                final byte[] compressed = gzip(uncompressed);
+                result.write(compressed);
+
+                if (null != metrics)
+                {
+                    metrics.mUploadBytesUncompressed.add(uncompressed.length);
+                    metrics.mUploadBytesCompressed.add(compressed.length);
+                }
+            }
+
+            if (0 == result.size())
+            {
+                return null;
+            }
+
+            return result.toByteArray();
         }
-        
+
+        /**
+         * Converts a single blob to JSON and compresses it, for storage in {@link UploadBlobsDbColumns#PAYLOAD}.
+         *
+         * @param context Application context. Cannot be null.
+         * @param provider Localytics database provider. Cannot be null.
+         * @param apiKey Localytics API key. Cannot be null.
+         * @param blobId {@link UploadBlobsDbColumns#_ID} of the blob.
+         * @param uuid {@link UploadBlobsDbColumns#UUID} of the blob.
+         * @return The compressed payload, or null if the blob could not be serialized. A null payload means the blob will be
+         *         converted at upload time instead.
+         */
+        /* package */static byte[] serializeBlob(final Context context, final LocalyticsStorage provider, final String apiKey, final long blobId, final String uuid)
+        {
+            try
+            {
+                final StringBuilder builder = new StringBuilder();
+                for (final JSONObject json : convertBlobToJson(context, provider, apiKey, getApiKeyCreationTime(provider, apiKey), blobId, uuid))
+                {
+                    builder.append(json.toString());
+                    builder.append('\n');
+                }
+
+                return gzip(builder.toString().getBytes("UTF-8")); //$NON-NLS-1$
+            }
+            catch (final JSONException e)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
+                }
+            }
+            catch (final IOException e)
+            {
+                if (LocalyticsLog.isLoggable(Log.WARN))
+                {
+                    LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
+                }
+            }
+
+            return null;
+        }
+
         /**
          * Helper that converts blobs in the database into a JSON representation for upload.
          *
          * @return A list of JSON objects to upload to the server
          */
-        /* package */static List<JSONObject> convertDatabaseToJson(final Context context, final LocalyticsProvider provider, final String apiKey)
+        /* package */static List<JSONObject> convertDatabaseToJson(final Context context, final LocalyticsStorage provider, final String apiKey)
         {
             final List<JSONObject> result = new LinkedList<JSONObject>();
             Cursor cursor = null;
@@ -3456,53 +6313,13 @@ public class LocalyticsSession
                 {
                     try
                     {
-                        final JSONObject blobHeader = new JSONObject();
-
-                        blobHeader.put(JsonObjects.BlobHeader.KEY_DATA_TYPE, BlobHeader.VALUE_DATA_TYPE);
-                        blobHeader.put(JsonObjects.BlobHeader.KEY_PERSISTENT_STORAGE_CREATION_TIME_SECONDS, creationTime);
-                        blobHeader.put(JsonObjects.BlobHeader.KEY_SEQUENCE_NUMBER, cursor.getLong(idColumn));
-                        blobHeader.put(JsonObjects.BlobHeader.KEY_UNIQUE_ID, cursor.getString(uuidColumn));
-                        blobHeader.put(JsonObjects.BlobHeader.KEY_ATTRIBUTES, getAttributesFromSession(provider, apiKey, getSessionIdForBlobId(provider, cursor.getLong(idColumn))));
-                        
-                        final JSONObject identifiers = getIdentifiers(provider);
-                        if (null != identifiers)
-                        {
-                        	blobHeader.put(JsonObjects.BlobHeader.KEY_IDENTIFIERS, identifiers);
-                        }
-                        
-                        result.add(blobHeader);
-                        
-                        if (Constants.IS_LOGGABLE)
-                        {
-                        	Log.w(Constants.LOG_TAG, result.toString());
-                        }
-
-                        Cursor blobEvents = null;
-                        try
-                        {
-                            blobEvents = provider.query(UploadBlobEventsDbColumns.TABLE_NAME, new String[]
-                                { UploadBlobEventsDbColumns.EVENTS_KEY_REF }, String.format("%s = ?", UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF), new String[] //$NON-NLS-1$
-                                { Long.toString(cursor.getLong(idColumn)) }, UploadBlobEventsDbColumns.EVENTS_KEY_REF);
-
-                            final int eventIdColumn = blobEvents.getColumnIndexOrThrow(UploadBlobEventsDbColumns.EVENTS_KEY_REF);
-                            while (blobEvents.moveToNext())
-                            {
-                                result.add(convertEventToJson(provider, context, blobEvents.getLong(eventIdColumn), cursor.getLong(idColumn), apiKey));
-                            }
-                        }
-                        finally
-                        {
-                            if (null != blobEvents)
-                            {
-                                blobEvents.close();
-                            }
-                        }
+                        result.addAll(convertBlobToJson(context, provider, apiKey, creationTime, cursor.getLong(idColumn), cursor.getString(uuidColumn)));
                     }
                     catch (final JSONException e)
                     {
-                        if (Constants.IS_LOGGABLE)
+                        if (LocalyticsLog.isLoggable(Log.WARN))
                         {
-                            Log.w(Constants.LOG_TAG, "Caught exception", e); //$NON-NLS-1$
+                            LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
                         }
                     }
                 }
@@ -3516,9 +6333,71 @@ public class LocalyticsSession
                 }
             }
 
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
+            {
+                LocalyticsLog.v("JSON result is %s", result.toString()); //$NON-NLS-1$
+            }
+
+            return result;
+        }
+
+        /**
+         * Helper that converts a single blob into its header followed by its events.
+         *
+         * @param context Application context. Cannot be null.
+         * @param provider Localytics database provider. Cannot be null.
+         * @param apiKey Localytics API key. Cannot be null.
+         * @param creationTime Creation time of the API key, as returned by
+         *            {@link #getApiKeyCreationTime(LocalyticsStorage, String)}.
+         * @param blobId {@link UploadBlobsDbColumns#_ID} of the blob.
+         * @param uuid {@link UploadBlobsDbColumns#UUID} of the blob.
+         * @return A list of JSON objects for the blob.
+         * @throws JSONException if the blob header cannot be built.
+         */
+        /* package */static List<JSONObject> convertBlobToJson(final Context context, final LocalyticsStorage provider, final String apiKey, final long creationTime, final long blobId, final String uuid) throws JSONException
+        {
+            final List<JSONObject> result = new LinkedList<JSONObject>();
+
+            final JSONObject blobHeader = new JSONObject();
+
+            blobHeader.put(JsonObjects.BlobHeader.KEY_DATA_TYPE, BlobHeader.VALUE_DATA_TYPE);
+            blobHeader.put(JsonObjects.BlobHeader.KEY_PERSISTENT_STORAGE_CREATION_TIME_SECONDS, creationTime);
+            blobHeader.put(JsonObjects.BlobHeader.KEY_SEQUENCE_NUMBER, blobId);
+            blobHeader.put(JsonObjects.BlobHeader.KEY_UNIQUE_ID, uuid);
+            blobHeader.put(JsonObjects.BlobHeader.KEY_ATTRIBUTES, getAttributesFromSession(provider, apiKey, getSessionIdForBlobId(provider, blobId)));
+
+            final JSONObject identifiers = getIdentifiers(provider);
+            if (null != identifiers)
+            {
+            	blobHeader.put(JsonObjects.BlobHeader.KEY_IDENTIFIERS, identifiers);
+            }
+
+            result.add(blobHeader);
+
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+            	LocalyticsLog.w(result.toString());
+            }
+
+            Cursor blobEvents = null;
+            try
+            {
+                blobEvents = provider.query(UploadBlobEventsDbColumns.TABLE_NAME, new String[]
+                    { UploadBlobEventsDbColumns.EVENTS_KEY_REF }, String.format("%s = ?", UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF), new String[] //$NON-NLS-1$
+                    { Long.toString(blobId) }, UploadBlobEventsDbColumns.EVENTS_KEY_REF);
+
+                final int eventIdColumn = blobEvents.getColumnIndexOrThrow(UploadBlobEventsDbColumns.EVENTS_KEY_REF);
+                while (blobEvents.moveToNext())
+                {
+                    result.add(convertEventToJson(provider, context, blobEvents.getLong(eventIdColumn), blobId, apiKey));
+                }
+            }
+            finally
             {
-                Log.v(Constants.LOG_TAG, String.format("JSON result is %s", result.toString())); //$NON-NLS-1$
+                if (null != blobEvents)
+                {
+                    blobEvents.close();
+                }
             }
 
             return result;
@@ -3531,7 +6410,20 @@ public class LocalyticsSession
          *
          * @param provider Localytics database provider. Cannot be null.
          */
-        /* package */static void deleteBlobsAndSessions(final LocalyticsProvider provider)
+        /* package */static void deleteBlobsAndSessions(final LocalyticsStorage provider)
+        {
+            deleteBlobsAndSessions(provider, null);
+        }
+
+        /**
+         * Deletes the given blobs and the sessions/events/attributes associated with those blobs.
+         * <p>
+         * This should be called after a successful upload of those blobs completes.
+         *
+         * @param provider Localytics database provider. Cannot be null.
+         * @param blobIds {@link UploadBlobsDbColumns#_ID} of the blobs to delete, or null to delete all blobs.
+         */
+        /* package */static void deleteBlobsAndSessions(final LocalyticsStorage provider, final List<Long> blobIds)
         {
             /*
              * Deletion needs to occur in a specific order due to database constraints. Specifically, blobevents need to be
@@ -3549,7 +6441,7 @@ public class LocalyticsSession
                     {
                         UploadBlobEventsDbColumns._ID,
                         UploadBlobEventsDbColumns.EVENTS_KEY_REF,
-                        UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF }, null, null, null);
+                        UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF }, null == blobIds ? null : String.format("%s IN (%s)", UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF, TextUtils.join(",", blobIds)), null, null); //$NON-NLS-1$ //$NON-NLS-2$
 
                 final int uploadBlobIdColumn = blobEvents.getColumnIndexOrThrow(UploadBlobEventsDbColumns.UPLOAD_BLOBS_KEY_REF);
                 final int blobEventIdColumn = blobEvents.getColumnIndexOrThrow(UploadBlobEventsDbColumns._ID);
@@ -3636,7 +6528,7 @@ public class LocalyticsSession
          * @return The time in seconds since the Unix Epoch when the API key entry was created in the database.
          * @throws RuntimeException if the API key entry doesn't exist in the database.
          */
-        /* package */static long getApiKeyCreationTime(final LocalyticsProvider provider, final String key)
+        /* package */static long getApiKeyCreationTime(final LocalyticsStorage provider, final String key)
         {
             Cursor cursor = null;
             try
@@ -3673,7 +6565,7 @@ public class LocalyticsSession
          * @return a JSONObject representation of the session attributes
          * @throws JSONException if a problem occurred converting the element to JSON.
          */
-        /* package */static JSONObject getAttributesFromSession(final LocalyticsProvider provider, final String apiKey, final long sessionId) throws JSONException
+        /* package */static JSONObject getAttributesFromSession(final LocalyticsStorage provider, final String apiKey, final long sessionId) throws JSONException
         {
             Cursor cursor = null;
             try
@@ -3778,7 +6670,7 @@ public class LocalyticsSession
          * @return a JSONObject representation of the session attributes
          * @throws JSONException if a problem occurred converting the element to JSON.
          */
-        /* package */static JSONObject getIdentifiers(final LocalyticsProvider provider) throws JSONException
+        /* package */static JSONObject getIdentifiers(final LocalyticsStorage provider) throws JSONException
         {
             Cursor cursor = null;
             try
@@ -3824,7 +6716,7 @@ public class LocalyticsSession
          * @return JSON representation of the event.
          * @throws JSONException if a problem occurred converting the element to JSON.
          */
-        /* package */static JSONObject convertEventToJson(final LocalyticsProvider provider, final Context context, final long eventId, final long blobId, final String apiKey)
+        /* package */static JSONObject convertEventToJson(final LocalyticsStorage provider, final Context context, final long eventId, final long blobId, final String apiKey)
                                                                                                                                                                                throws JSONException
         {
             final JSONObject result = new JSONObject();
@@ -4246,7 +7138,7 @@ public class LocalyticsSession
          * @param eventId {@link EventsDbColumns#_ID} of the event to look up
          * @return The {@link SessionsDbColumns#_ID} of the session that owns the event.
          */
-        /* package */static long getSessionIdForEventId(final LocalyticsProvider provider, final long eventId)
+        /* package */static long getSessionIdForEventId(final LocalyticsStorage provider, final long eventId)
         {
             Cursor cursor = null;
             try
@@ -4281,7 +7173,7 @@ public class LocalyticsSession
          * @param sessionId {@link SessionsDbColumns#_ID} of the event to look up
          * @return The {@link SessionsDbColumns#UUID} of the session.
          */
-        /* package */static String getSessionUuid(final LocalyticsProvider provider, final long sessionId)
+        /* package */static String getSessionUuid(final LocalyticsStorage provider, final long sessionId)
         {
             Cursor cursor = null;
             try
@@ -4316,7 +7208,7 @@ public class LocalyticsSession
          * @param Database key. Cannot be null.
          * @return The requested string
          */
-        /* package */static String getStringFromAppInfo(final LocalyticsProvider provider, final String key)
+        /* package */static String getStringFromAppInfo(final LocalyticsStorage provider, final String key)
         {
             Cursor cursor = null;
             
@@ -4349,7 +7241,7 @@ public class LocalyticsSession
          * @param sessionId {@link SessionsDbColumns#_ID} of the event to look up
          * @return The {@link SessionsDbColumns#SESSION_START_WALL_TIME} of the session.
          */
-        /* package */static long getSessionStartTime(final LocalyticsProvider provider, final long sessionId)
+        /* package */static long getSessionStartTime(final LocalyticsStorage provider, final long sessionId)
         {
             Cursor cursor = null;
             try
@@ -4387,7 +7279,7 @@ public class LocalyticsSession
          *         change from call to call of this method. If the event has no attributes, returns null.
          * @throws JSONException if an error occurs converting the attributes to JSON
          */
-        /* package */static JSONObject convertAttributesToJson(final LocalyticsProvider provider, final Context context, final long eventId) throws JSONException
+        /* package */static JSONObject convertAttributesToJson(final LocalyticsStorage provider, final Context context, final long eventId) throws JSONException
         {
             Cursor cursor = null;
             try
@@ -4429,7 +7321,7 @@ public class LocalyticsSession
          * @param blobId {@link UploadBlobsDbColumns#_ID} of the upload blob.
          * @return id of the parent session.
          */
-        /* package */static long getSessionIdForBlobId(final LocalyticsProvider provider, final long blobId)
+        /* package */static long getSessionIdForBlobId(final LocalyticsStorage provider, final long blobId)
         {
             /*
              * This implementation needs to walk up the tree of database elements.
@@ -0,0 +1,98 @@
+// @formatter:off
+/*
+ * LocalyticsStorage.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Table storage used by the session and upload engine.
+ * <p>
+ * {@link LocalyticsProvider} stores the tables in the app's SQLite database. Other implementations can keep the same tables
+ * elsewhere, which allows the engine to run off the device.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+/* package */interface LocalyticsStorage
+{
+    /**
+     * Inserts a new record.
+     *
+     * @param tableName name of the table operate on. Cannot be null.
+     * @param values ContentValues to insert. Cannot be null.
+     * @return the {@link android.provider.BaseColumns#_ID} of the inserted row or -1 if an error occurred.
+     */
+    long insert(String tableName, ContentValues values);
+
+    /**
+     * Performs a query.
+     *
+     * @param tableName name of the table operate on. Cannot be null.
+     * @param projection The list of columns to include. If null, then all columns are included by default.
+     * @param selection A filter to apply to all rows, like the SQLite WHERE clause. Passing null will query all rows. This param
+     *            may contain ? symbols, which will be replaced by values from the {@code selectionArgs} param.
+     * @param selectionArgs An optional string array of replacements for ? symbols in {@code selection}. May be null.
+     * @param sortOrder How the rows in the cursor should be sorted. If null, then the sort order is undefined.
+     * @return Cursor for the query. To the receiver: Don't forget to call .close() on the cursor when finished with it.
+     */
+    Cursor query(String tableName, String[] projection, String selection, String[] selectionArgs, String sortOrder);
+
+    /**
+     * Performs a query that returns at most a given number of rows.
+     *
+     * @param tableName name of the table operate on. Cannot be null.
+     * @param projection The list of columns to include. If null, then all columns are included by default.
+     * @param selection A filter to apply to all rows, like the SQLite WHERE clause. Passing null will query all rows. This param
+     *            may contain ? symbols, which will be replaced by values from the {@code selectionArgs} param.
+     * @param selectionArgs An optional string array of replacements for ? symbols in {@code selection}. May be null.
+     * @param sortOrder How the rows in the cursor should be sorted. If null, then the sort order is undefined.
+     * @param limit Maximum number of rows, formatted like the SQLite LIMIT clause without the LIMIT keyword. Passing null
+     *            returns all rows.
+     * @return Cursor for the query. To the receiver: Don't forget to call .close() on the cursor when finished with it.
+     */
+    Cursor query(String tableName, String[] projection, String selection, String[] selectionArgs, String sortOrder, String limit);
+
+    /**
+     * Updates existing records.
+     *
+     * @param tableName name of the table operate on. Cannot be null.
+     * @param values A ContentValues mapping from column names to new column values. Cannot be null.
+     * @param selection A filter to apply to all rows, like the SQLite WHERE clause. Passing null will update all rows.
+     * @param selectionArgs An optional string array of replacements for ? symbols in {@code selection}. May be null.
+     * @return The number of rows affected.
+     */
+    int update(String tableName, ContentValues values, String selection, String[] selectionArgs);
+
+    /**
+     * Deletes records.
+     *
+     * @param tableName name of the table operate on. Cannot be null.
+     * @param selection A filter to apply to all rows, like the SQLite WHERE clause. Passing null will delete all rows.
+     * @param selectionArgs An optional string array of replacements for ? symbols in {@code selection}. May be null.
+     * @return The number of rows affected.
+     */
+    int delete(String tableName, String selection, String[] selectionArgs);
+
+    /**
+     * Executes an arbitrary runnable with exclusive access to the storage, essentially allowing an atomic transaction.
+     *
+     * @param runnable Runnable to execute. Cannot be null.
+     */
+    void runBatchTransaction(Runnable runnable);
+
+    /**
+     * Computes a snapshot of the storage for {@link LocalyticsSession#getStorageStats(long)}, without loading rows into memory.
+     * <p>
+     * Note: this method performs disk operations.
+     *
+     * @param estimatedUploadBytes Estimated size of the pending upload, as maintained by the caller. Reported as is.
+     * @return A snapshot of the storage.
+     */
+    StorageStats getStorageStats(long estimatedUploadBytes);
+}
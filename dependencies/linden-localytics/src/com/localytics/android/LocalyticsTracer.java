@@ -0,0 +1,61 @@
+// @formatter:off
+/*
+ * LocalyticsTracer.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Receives the delivery stages of sampled events, installed with {@link LocalyticsSession#setTracer(LocalyticsTracer, int)}.
+ * <p>
+ * A traced event goes through {@link #STAGE_ENQUEUED}, {@link #STAGE_PERSISTED}, {@link #STAGE_BATCHED}, and finally
+ * {@link #STAGE_ACKNOWLEDGED}, unless it ends with {@link #STAGE_DROPPED}. The difference between the timestamps of two stages
+ * of the same trace is the time the event spent between them. Traces are kept in memory only, so an event whose process dies
+ * before it is acknowledged is never reported again.
+ * <p>
+ * The tracer is called synchronously on the thread that tags the event and on the library's background threads. It must be
+ * thread-safe and return quickly, for example by appending to a buffer.
+ */
+public interface LocalyticsTracer
+{
+    /**
+     * The event was handed to the background thread by {@code tagEvent}.
+     */
+    int STAGE_ENQUEUED = 0;
+
+    /**
+     * The event was written to the database.
+     */
+    int STAGE_PERSISTED = 1;
+
+    /**
+     * The event was assigned to an upload blob.
+     */
+    int STAGE_BATCHED = 2;
+
+    /**
+     * The blob containing the event was accepted by the server.
+     */
+    int STAGE_ACKNOWLEDGED = 3;
+
+    /**
+     * The event was discarded and will not be uploaded. This may happen after {@link #STAGE_PERSISTED} or
+     * {@link #STAGE_BATCHED} if the event is evicted to keep the stored data within the {@link StorageQuota}.
+     */
+    int STAGE_DROPPED = 4;
+
+    /**
+     * Called when a traced event reaches a stage.
+     *
+     * @param traceId Identifies the event across stages. Positive, and unique among the traces in progress for an API key.
+     * @param event Name of the event, as passed to {@code tagEvent}.
+     * @param stage One of {@link #STAGE_ENQUEUED}, {@link #STAGE_PERSISTED}, {@link #STAGE_BATCHED},
+     *            {@link #STAGE_ACKNOWLEDGED}, or {@link #STAGE_DROPPED}.
+     * @param elapsedRealtime Time at which the stage was reached, in milliseconds of
+     *            {@link android.os.SystemClock#elapsedRealtime()}.
+     */
+    void onEventStage(int traceId, String event, int stage, long elapsedRealtime);
+}
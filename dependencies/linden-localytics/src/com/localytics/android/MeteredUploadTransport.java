@@ -0,0 +1,44 @@
+// @formatter:off
+/*
+ * MeteredUploadTransport.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * {@link UploadTransport} that records every request in a {@link MetricsRegistry} before returning its result.
+ */
+/* package */final class MeteredUploadTransport implements UploadTransport
+{
+    private final UploadTransport mTransport;
+
+    private final MetricsRegistry mMetrics;
+
+    /**
+     * @param transport Transport that sends the requests. Cannot be null.
+     * @param metrics Metrics to record the requests in. Cannot be null.
+     */
+    public MeteredUploadTransport(final UploadTransport transport, final MetricsRegistry metrics)
+    {
+        mTransport = transport;
+        mMetrics = metrics;
+    }
+
+    public int upload(final String url, final byte[] data, final String installId)
+    {
+        final long start = System.nanoTime();
+        int status = UploadResult.NO_STATUS;
+        try
+        {
+            status = mTransport.upload(url, data, installId);
+            return status;
+        }
+        finally
+        {
+            mMetrics.onUploadRequest(status, data.length, (System.nanoTime() - start) / 1000000);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+// @formatter:off
+/*
+ * MetricsRegistry.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters and histograms that describe the work done for a single API key. Metrics are recorded whether or not logging is
+ * enabled, and can be read through {@link LocalyticsSession#getMetrics()}.
+ * <p>
+ * The metrics live for the life of the process and are never reset. This class is thread-safe.
+ */
+/* package */final class MetricsRegistry
+{
+    /**
+     * Bucket bounds of {@link #mInsertMicros}, in microseconds.
+     */
+    private static final long[] INSERT_BOUNDS_MICROS = new long[]
+        { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000 };
+
+    /**
+     * Bucket bounds of {@link #mBlobBuildMillis}, in milliseconds.
+     */
+    private static final long[] BLOB_BUILD_BOUNDS_MILLIS = new long[]
+        { 5, 10, 25, 50, 100, 250, 500, 1000, 5000, 10000 };
+
+    /**
+     * Bucket bounds of {@link #mUploadMillis}, in milliseconds.
+     */
+    private static final long[] UPLOAD_BOUNDS_MILLIS = new long[]
+        { 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    /**
+     * Map of API key to {@link MetricsRegistry}.
+     */
+    private static final ConcurrentMap<String, MetricsRegistry> sRegistries = new ConcurrentHashMap<String, MetricsRegistry>();
+
+    /**
+     * Events handed to the session handler by {@link LocalyticsSession#tagEvent(String)}.
+     */
+    /* package */final StripedCounter mEventsEnqueued = new StripedCounter();
+
+    /**
+     * Application events written to the database.
+     */
+    /* package */final StripedCounter mEventsPersisted = new StripedCounter();
+
+    /**
+     * Application events that were not written, because the session handler rejected them, too many arrived while the database
+     * was being opened, or no session was open.
+     */
+    /* package */final StripedCounter mEventsDropped = new StripedCounter();
+
+    /**
+     * Events deleted before they were uploaded to keep the stored data within the {@link StorageQuota}.
+     */
+    /* package */final StripedCounter mEventsEvicted = new StripedCounter();
+
+    /**
+     * Messages waiting in the session handler's queue. Delayed timer messages are not counted.
+     */
+    /* package */final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    /**
+     * Highest value of {@link #mQueueDepth} so far.
+     */
+    /* package */final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    /**
+     * Messages the session handler held in memory because they arrived while the database was being opened.
+     */
+    /* package */final StripedCounter mPreInitMessages = new StripedCounter();
+
+    /**
+     * Time to open the database in milliseconds, including creating or upgrading it, or -1 if it has not been opened yet.
+     */
+    /* package */volatile long mStorageOpenMillis = -1;
+
+    /**
+     * Time from the creation of the session handler until the first application event was written to the database, in
+     * milliseconds, or -1 if no event has been written yet.
+     */
+    /* package */volatile long mFirstEventMillis = -1;
+
+    /**
+     * Time to write an event with its attributes and history, including the transaction commit, in microseconds.
+     */
+    /* package */final FixedHistogram mInsertMicros = new FixedHistogram(INSERT_BOUNDS_MICROS);
+
+    /**
+     * Time to build upload blobs, in milliseconds.
+     */
+    /* package */final FixedHistogram mBlobBuildMillis = new FixedHistogram(BLOB_BUILD_BOUNDS_MILLIS);
+
+    /**
+     * Upload body bytes before compression. Only counts JSON compressed at upload time.
+     */
+    /* package */final StripedCounter mUploadBytesUncompressed = new StripedCounter();
+
+    /**
+     * Upload body bytes after compression, for the same data as {@link #mUploadBytesUncompressed}.
+     */
+    /* package */final StripedCounter mUploadBytesCompressed = new StripedCounter();
+
+    /**
+     * Compressed bytes posted to the webservice, whatever the response.
+     */
+    /* package */final StripedCounter mUploadBytesSent = new StripedCounter();
+
+    /**
+     * Duration of each upload request, in milliseconds.
+     */
+    /* package */final FixedHistogram mUploadMillis = new FixedHistogram(UPLOAD_BOUNDS_MILLIS);
+
+    /**
+     * Upload responses by status class: index 0 for requests without a response, 1 to 5 for 1xx to 5xx.
+     */
+    /* package */final StripedCounter[] mHttpStatusClasses = new StripedCounter[]
+        {
+            new StripedCounter(),
+            new StripedCounter(),
+            new StripedCounter(),
+            new StripedCounter(),
+            new StripedCounter(),
+            new StripedCounter() };
+
+    /**
+     * Use {@link #getInstance(String)}.
+     */
+    private MetricsRegistry()
+    {
+        /*
+         * Private constructor prevents direct instantiation
+         */
+    }
+
+    /**
+     * Obtains the metrics for {@code apiKey}, creating them if necessary.
+     *
+     * @param apiKey Localytics API key. Cannot be null.
+     * @return The metrics shared by all sessions for {@code apiKey}.
+     * @throws IllegalArgumentException if {@code apiKey} is null.
+     */
+    public static MetricsRegistry getInstance(final String apiKey)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == apiKey)
+            {
+                throw new IllegalArgumentException("apiKey cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        final MetricsRegistry registry = sRegistries.get(apiKey);
+        if (null != registry)
+        {
+            return registry;
+        }
+
+        final MetricsRegistry newRegistry = new MetricsRegistry();
+        final MetricsRegistry existingRegistry = sRegistries.putIfAbsent(apiKey, newRegistry);
+
+        return null == existingRegistry ? newRegistry : existingRegistry;
+    }
+
+    /**
+     * Records that a message was added to the session handler's queue.
+     */
+    public void onMessageQueued()
+    {
+        final int depth = mQueueDepth.incrementAndGet();
+
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth))
+        {
+            max = mMaxQueueDepth.get();
+        }
+    }
+
+    /**
+     * Records that the session handler took a message off its queue.
+     */
+    public void onMessageDequeued()
+    {
+        mQueueDepth.decrementAndGet();
+    }
+
+    /**
+     * Records the response to an upload request.
+     *
+     * @param httpStatus HTTP status code, or {@link UploadResult#NO_STATUS} if no response was received.
+     * @param bytes Compressed bytes posted.
+     * @param durationMillis Duration of the request in milliseconds.
+     */
+    public void onUploadRequest(final int httpStatus, final long bytes, final long durationMillis)
+    {
+        final int statusClass = httpStatus / 100;
+        mHttpStatusClasses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+        mUploadBytesSent.add(bytes);
+        mUploadMillis.record(durationMillis);
+    }
+
+    /**
+     * @return A copy of the current metrics.
+     */
+    public LocalyticsMetrics snapshot()
+    {
+        final long[] statusClasses = new long[mHttpStatusClasses.length];
+        for (int i = 0; i < statusClasses.length; i++)
+        {
+            statusClasses[i] = mHttpStatusClasses[i].get();
+        }
+
+        return new LocalyticsMetrics(mEventsEnqueued.get(), mEventsPersisted.get(), mEventsDropped.get(), mEventsEvicted.get(), mQueueDepth.get(), mMaxQueueDepth.get(), mPreInitMessages.get(), mStorageOpenMillis, mFirstEventMillis, mInsertMicros.snapshot(), mBlobBuildMillis.snapshot(), mUploadBytesUncompressed.get(), mUploadBytesCompressed.get(), mUploadBytesSent.get(), mUploadMillis.snapshot(), statusClasses);
+    }
+}
@@ -39,17 +39,17 @@ public class PushReceiver extends BroadcastReceiver
 		// Failed?
 		if (intent.getStringExtra("error") != null) 
 		{
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
             {
-                Log.v(Constants.LOG_TAG, "GCM registration failed"); //$NON-NLS-1$
+                LocalyticsLog.v("GCM registration failed"); //$NON-NLS-1$
             }
 	    } 
 		// Unregistered?
 	    else if (intent.getStringExtra("unregistered") != null) 
 	    {
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
             {
-                Log.v(Constants.LOG_TAG, "GCM unregistered: removing id"); //$NON-NLS-1$
+                LocalyticsLog.v("GCM unregistered: removing id"); //$NON-NLS-1$
             }
             
 	    	setRegistrationId(context, null);
@@ -57,9 +57,9 @@ public class PushReceiver extends BroadcastReceiver
 		// Success
 	    else if (registrationId != null) 
 	    {
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.VERBOSE))
             {
-                Log.v(Constants.LOG_TAG, String.format("GCM registered, new id: %s", registrationId)); //$NON-NLS-1$
+                LocalyticsLog.v("GCM registered, new id: %s", registrationId); //$NON-NLS-1$
             }	    	
             
 	    	setRegistrationId(context, registrationId);
@@ -82,9 +82,9 @@ public class PushReceiver extends BroadcastReceiver
 	    } 
 		catch (NameNotFoundException e) 
 		{
-            if (Constants.IS_LOGGABLE)
+            if (LocalyticsLog.isLoggable(Log.WARN))
             {
-                Log.w(Constants.LOG_TAG, "Failed to get application name or icon"); //$NON-NLS-1$
+                LocalyticsLog.w("Failed to get application name or icon"); //$NON-NLS-1$
             }	    	
 	    }
 						
@@ -118,9 +118,9 @@ public class PushReceiver extends BroadcastReceiver
         	}
         	catch (JSONException e)
         	{
-        		if (Constants.IS_LOGGABLE)
+        		if (LocalyticsLog.isLoggable(Log.WARN))
         		{
-        			Log.w(Constants.LOG_TAG, "Failed to get campaign id from payload"); //$NON-NLS-1$
+        			LocalyticsLog.w("Failed to get campaign id from payload"); //$NON-NLS-1$
         		}
         	}
         }        
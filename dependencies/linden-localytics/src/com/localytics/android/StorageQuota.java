@@ -0,0 +1,141 @@
+// @formatter:off
+/*
+ * StorageQuota.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Limits on the data a {@link LocalyticsSession} keeps on disk while it waits to be uploaded.
+ * <p>
+ * The quota bounds the number of stored events and their estimated size, including events already built into upload blobs and
+ * the serialized payloads of those blobs. It is enforced as events are written: when a limit is exceeded, stored data is evicted
+ * in the configured order until the data is within the quota again, a bounded amount per write. Sessions are never refused, and
+ * the library's own open, close, and opt-out events are only evicted as part of the upload blob that contains them.
+ * <p>
+ * A limit of 0 disables that limit.
+ * <p>
+ * This class is immutable and therefore thread-safe.
+ */
+public final class StorageQuota
+{
+    /**
+     * Eviction order that deletes the oldest upload blobs first, then the oldest events that are not in a blob yet, normal
+     * priority before high priority. A blob holding more events than a single write may evict loses its oldest events over
+     * several writes.
+     */
+    public static final int EVICT_OLDEST_BLOBS_FIRST = 0;
+
+    /**
+     * Eviction order that deletes the oldest normal priority events that are not in a blob yet first, then the oldest upload
+     * blobs, then the oldest high priority events.
+     */
+    public static final int EVICT_LOW_PRIORITY_FIRST = 1;
+
+    /**
+     * Quota used until {@link LocalyticsSession#setStorageQuota(StorageQuota)} is called.
+     */
+    public static final StorageQuota DEFAULT = new StorageQuota(Constants.DEFAULT_STORAGE_QUOTA_BYTES, Constants.DEFAULT_STORAGE_QUOTA_EVENTS, EVICT_OLDEST_BLOBS_FIRST);
+
+    /**
+     * Maximum estimated size in bytes of the stored data. 0 if disabled.
+     */
+    private final long mMaxBytes;
+
+    /**
+     * Maximum number of stored events. 0 if disabled.
+     */
+    private final int mMaxEvents;
+
+    /**
+     * One of {@link #EVICT_OLDEST_BLOBS_FIRST} or {@link #EVICT_LOW_PRIORITY_FIRST}.
+     */
+    private final int mEvictionOrder;
+
+    /**
+     * Constructs a new storage quota.
+     *
+     * @param maxBytes Maximum estimated size in bytes of the stored data. 0 to disable.
+     * @param maxEvents Maximum number of stored events. 0 to disable.
+     * @param evictionOrder One of {@link #EVICT_OLDEST_BLOBS_FIRST} or {@link #EVICT_LOW_PRIORITY_FIRST}.
+     * @throws IllegalArgumentException if {@code maxBytes} or {@code maxEvents} is negative.
+     * @throws IllegalArgumentException if {@code evictionOrder} is not a valid eviction order.
+     */
+    public StorageQuota(final long maxBytes, final int maxEvents, final int evictionOrder)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (maxBytes < 0)
+            {
+                throw new IllegalArgumentException("maxBytes cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (maxEvents < 0)
+            {
+                throw new IllegalArgumentException("maxEvents cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (EVICT_OLDEST_BLOBS_FIRST != evictionOrder && EVICT_LOW_PRIORITY_FIRST != evictionOrder)
+            {
+                throw new IllegalArgumentException(String.format("evictionOrder %d is not valid", Integer.valueOf(evictionOrder))); //$NON-NLS-1$
+            }
+        }
+
+        mMaxBytes = maxBytes;
+        mMaxEvents = maxEvents;
+        mEvictionOrder = evictionOrder;
+    }
+
+    /**
+     * @return Maximum estimated size in bytes of the stored data. 0 if disabled.
+     */
+    public long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return Maximum number of stored events. 0 if disabled.
+     */
+    public int getMaxEvents()
+    {
+        return mMaxEvents;
+    }
+
+    /**
+     * @return One of {@link #EVICT_OLDEST_BLOBS_FIRST} or {@link #EVICT_LOW_PRIORITY_FIRST}.
+     */
+    public int getEvictionOrder()
+    {
+        return mEvictionOrder;
+    }
+
+    /**
+     * @param storedEvents Number of stored events.
+     * @param storedBytes Estimated size in bytes of the stored data.
+     * @return True if any enabled limit is exceeded.
+     */
+    /* package */boolean isExceeded(final long storedEvents, final long storedBytes)
+    {
+        if (0 != mMaxEvents && storedEvents > mMaxEvents)
+        {
+            return true;
+        }
+
+        if (0 != mMaxBytes && storedBytes > mMaxBytes)
+        {
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("StorageQuota [maxBytes=%d, maxEvents=%d, evictionOrder=%d]", Long.valueOf(mMaxBytes), Integer.valueOf(mMaxEvents), Integer.valueOf(mEvictionOrder)); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,160 @@
+// @formatter:off
+/*
+ * StorageStats.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Snapshot of the Localytics database for an API key, as returned by {@link LocalyticsSession#getStorageStats(long)}.
+ * <p>
+ * This class is immutable and therefore thread-safe.
+ */
+public final class StorageStats
+{
+    private final Map<String, Long> mRowCounts;
+
+    private final long mDatabaseBytes;
+
+    private final long mPageSize;
+
+    private final long mPageCount;
+
+    private final long mFreelistPages;
+
+    private final long mOldestPendingEventWallTime;
+
+    private final long mPendingBlobCount;
+
+    private final long mEstimatedUploadBytes;
+
+    /**
+     * Constructs a new snapshot. See the getters for the meaning of the parameters.
+     */
+    /* package */StorageStats(final Map<String, Long> rowCounts, final long databaseBytes, final long pageSize, final long pageCount, final long freelistPages, final long oldestPendingEventWallTime, final long pendingBlobCount, final long estimatedUploadBytes)
+    {
+        mRowCounts = Collections.unmodifiableMap(rowCounts);
+        mDatabaseBytes = databaseBytes;
+        mPageSize = pageSize;
+        mPageCount = pageCount;
+        mFreelistPages = freelistPages;
+        mOldestPendingEventWallTime = oldestPendingEventWallTime;
+        mPendingBlobCount = pendingBlobCount;
+        mEstimatedUploadBytes = estimatedUploadBytes;
+    }
+
+    /**
+     * @return Unmodifiable map of table name to number of rows. The table names are an implementation detail and may change
+     *         between versions of the library.
+     */
+    public Map<String, Long> getRowCounts()
+    {
+        return mRowCounts;
+    }
+
+    /**
+     * @return Size of the database file and its journal on disk, in bytes.
+     */
+    public long getDatabaseBytes()
+    {
+        return mDatabaseBytes;
+    }
+
+    /**
+     * @return SQLite page size, in bytes.
+     */
+    public long getPageSize()
+    {
+        return mPageSize;
+    }
+
+    /**
+     * @return Number of pages in the database, including free pages.
+     */
+    public long getPageCount()
+    {
+        return mPageCount;
+    }
+
+    /**
+     * @return Number of unused pages in the database. Free pages are reused before the file grows, but the file doesn't shrink.
+     */
+    public long getFreelistPages()
+    {
+        return mFreelistPages;
+    }
+
+    /**
+     * @return Wall time of the oldest event that hasn't been uploaded yet, in milliseconds since the epoch, or -1 if every
+     *         event has been uploaded.
+     */
+    public long getOldestPendingEventWallTime()
+    {
+        return mOldestPendingEventWallTime;
+    }
+
+    /**
+     * @return Number of upload blobs built and waiting for upload.
+     */
+    public long getPendingBlobCount()
+    {
+        return mPendingBlobCount;
+    }
+
+    /**
+     * @return Estimated size of the pending events and their attributes once converted to JSON, plus the upload blobs already
+     *         serialized, before compression, in bytes. This is the size that {@link StorageQuota#getMaxBytes()} limits.
+     */
+    public long getEstimatedUploadBytes()
+    {
+        return mEstimatedUploadBytes;
+    }
+
+    /**
+     * @return The snapshot as a JSON object, for forwarding to another telemetry system.
+     */
+    public JSONObject toJson()
+    {
+        try
+        {
+            final JSONObject rowCounts = new JSONObject();
+            for (final Map.Entry<String, Long> entry : mRowCounts.entrySet())
+            {
+                rowCounts.put(entry.getKey(), entry.getValue().longValue());
+            }
+
+            final JSONObject json = new JSONObject();
+            json.put("row_counts", rowCounts); //$NON-NLS-1$
+            json.put("database_bytes", mDatabaseBytes); //$NON-NLS-1$
+            json.put("page_size", mPageSize); //$NON-NLS-1$
+            json.put("page_count", mPageCount); //$NON-NLS-1$
+            json.put("freelist_pages", mFreelistPages); //$NON-NLS-1$
+            json.put("oldest_pending_event_wall_time", mOldestPendingEventWallTime); //$NON-NLS-1$
+            json.put("pending_blob_count", mPendingBlobCount); //$NON-NLS-1$
+            json.put("estimated_upload_bytes", mEstimatedUploadBytes); //$NON-NLS-1$
+            return json;
+        }
+        catch (final JSONException e)
+        {
+            /*
+             * This should never happen, as all the values are finite numbers
+             */
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("StorageStats %s", toJson()); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,85 @@
+// @formatter:off
+/*
+ * StripedCounter.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads increments over several cells, so that threads incrementing it concurrently rarely contend on the same
+ * cache line. Reads sum the cells and are therefore more expensive than increments.
+ * <p>
+ * This class is thread-safe.
+ */
+/* package */final class StripedCounter
+{
+    /**
+     * Number of array elements per cell. Keeps each cell on its own 64 byte cache line.
+     */
+    private static final int CELL_STRIDE = 8;
+
+    /**
+     * Number of cells, the smallest power of two that is at least twice the number of processors, capped at 16.
+     */
+    private static final int CELL_COUNT = getCellCount();
+
+    /**
+     * Cells, {@link #CELL_STRIDE} elements apart.
+     */
+    private final AtomicLongArray mCells = new AtomicLongArray(CELL_COUNT * CELL_STRIDE);
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment()
+    {
+        add(1);
+    }
+
+    /**
+     * Adds {@code delta} to the counter.
+     *
+     * @param delta Amount to add.
+     */
+    public void add(final long delta)
+    {
+        /*
+         * Thread IDs are stable for the life of a thread, so a thread always hits the same cell
+         */
+        final int cell = (int) (Thread.currentThread().getId() & (CELL_COUNT - 1));
+        mCells.addAndGet(cell * CELL_STRIDE, delta);
+    }
+
+    /**
+     * @return Sum of all increments. Increments made concurrently with this call may or may not be included.
+     */
+    public long get()
+    {
+        long sum = 0;
+        for (int i = 0; i < CELL_COUNT; i++)
+        {
+            sum += mCells.get(i * CELL_STRIDE);
+        }
+        return sum;
+    }
+
+    /**
+     * @return Number of cells for {@link #CELL_COUNT}.
+     */
+    private static int getCellCount()
+    {
+        final int limit = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+
+        int count = 1;
+        while (count < limit)
+        {
+            count <<= 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,35 @@
+// @formatter:off
+/*
+ * TaskExecutor.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Runs tasks for the session and upload engine.
+ * <p>
+ * {@link AndroidTaskExecutor} posts tasks to a {@link android.os.Looper}. Other implementations can run tasks on a plain
+ * {@link java.util.concurrent.Executor}, which allows the engine to run off the device.
+ * <p>
+ * Implementations must run tasks one at a time, in the order they were submitted, and must be thread-safe.
+ */
+/* package */interface TaskExecutor
+{
+    /**
+     * Runs {@code task} asynchronously.
+     *
+     * @param task Task to run. Cannot be null.
+     */
+    void execute(Runnable task);
+
+    /**
+     * Runs {@code task} asynchronously, after at least {@code delayMillis} have elapsed.
+     *
+     * @param task Task to run. Cannot be null.
+     * @param delayMillis Delay in milliseconds before {@code task} runs.
+     */
+    void executeDelayed(Runnable task, long delayMillis);
+}
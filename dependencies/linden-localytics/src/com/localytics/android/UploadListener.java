@@ -0,0 +1,25 @@
+// @formatter:off
+/*
+ * UploadListener.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Receives the outcome of an upload requested with {@link LocalyticsSession#upload(UploadListener)}.
+ * <p>
+ * Listeners are invoked on a small pool of threads shared by all sessions, never on the main thread. A listener that blocks
+ * delays the delivery of other upload results, so long running work should be handed off elsewhere.
+ */
+public interface UploadListener
+{
+    /**
+     * Called once the upload attempt has completed, regardless of whether it succeeded.
+     *
+     * @param result Details of the upload attempt. Never null.
+     */
+    void onUploadComplete(UploadResult result);
+}
@@ -0,0 +1,294 @@
+// @formatter:off
+/*
+ * UploadPipeline.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import com.localytics.android.LocalyticsSession.UploadEngine;
+
+/**
+ * Second stage of the upload pipeline: transmits compressed upload chunks on a separate executor, so that the upload handler
+ * thread can build chunk N+1 while chunk N is being sent.
+ * <p>
+ * Chunks are handed off through a bounded queue. When the queue is full, {@link #submit(Batch, byte[], List)} blocks, so the
+ * builder never gets more than {@link #mQueue}'s capacity ahead of the network. Once a chunk of a batch fails, the remaining
+ * chunks of that batch are discarded and stay in the database for the next upload.
+ * <p>
+ * Batches must be started, submitted, and awaited from a single producer thread.
+ */
+/* package */final class UploadPipeline
+{
+    /**
+     * Queue of chunks waiting to be transmitted.
+     */
+    private final BlockingQueue<Chunk> mQueue;
+
+    /**
+     * Executor that transmits the chunks, one at a time.
+     */
+    private final TaskExecutor mTransmitter;
+
+    /**
+     * Transport the chunks are sent with.
+     */
+    private final UploadTransport mTransport;
+
+    /**
+     * Task that transmits the chunk at the head of {@link #mQueue}. One task is executed for every chunk put on the queue.
+     */
+    private final Runnable mTransmitTask = new Runnable()
+    {
+        public void run()
+        {
+            final Chunk chunk = mQueue.poll();
+            if (null != chunk)
+            {
+                transmit(mTransport, chunk);
+            }
+        }
+    };
+
+    /**
+     * Constructs a new pipeline.
+     *
+     * @param depth Number of chunks that may wait for transmission. Must be at least 1.
+     * @param transmitter Executor that transmits the chunks. Must run tasks one at a time. Cannot be null.
+     * @param transport Transport the chunks are sent with. Cannot be null.
+     */
+    public UploadPipeline(final int depth, final TaskExecutor transmitter, final UploadTransport transport)
+    {
+        mQueue = new ArrayBlockingQueue<Chunk>(depth);
+        mTransmitter = transmitter;
+        mTransport = transport;
+    }
+
+    /**
+     * Starts a new batch of chunks.
+     *
+     * @param url where the chunks will be posted to. Cannot be null.
+     * @param installId Localytics install ID.
+     * @return A new batch to submit chunks to.
+     */
+    public Batch begin(final String url, final String installId)
+    {
+        return new Batch(url, installId);
+    }
+
+    /**
+     * Hands off a chunk for transmission, blocking while the queue is full.
+     *
+     * @param batch Batch the chunk belongs to. Cannot be null.
+     * @param data GZIP compressed chunk. Cannot be null.
+     * @param blobIds {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the blobs in {@code data}. Cannot be null.
+     * @return True if the chunk was queued, false if an earlier chunk of the batch failed and the batch should stop.
+     * @throws InterruptedException if interrupted while waiting for space in the queue.
+     */
+    public boolean submit(final Batch batch, final byte[] data, final List<Long> blobIds) throws InterruptedException
+    {
+        if (batch.mIsFailed)
+        {
+            return false;
+        }
+
+        mQueue.put(new Chunk(batch, data, blobIds));
+        mTransmitter.execute(mTransmitTask);
+        return true;
+    }
+
+    /**
+     * Waits until every chunk submitted to {@code batch} has been transmitted or discarded. After this returns, the results of
+     * {@code batch} are final.
+     *
+     * @param batch Batch to wait for. Cannot be null.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void await(final Batch batch) throws InterruptedException
+    {
+        mQueue.put(new Chunk(batch, null, null));
+        mTransmitter.execute(mTransmitTask);
+        batch.mDone.await();
+    }
+
+    /**
+     * Transmits a single chunk. Called on {@link #mTransmitter}.
+     *
+     * @param transport Transport to send the chunk with. Cannot be null.
+     * @param chunk Chunk to transmit. Cannot be null.
+     */
+    /* package */static void transmit(final UploadTransport transport, final Chunk chunk)
+    {
+        final Batch batch = chunk.mBatch;
+
+        /*
+         * A null chunk marks the end of the batch
+         */
+        if (null == chunk.mData)
+        {
+            batch.mDone.countDown();
+            return;
+        }
+
+        if (batch.mIsFailed)
+        {
+            return;
+        }
+
+        int status = UploadResult.NO_STATUS;
+        try
+        {
+            status = transport.upload(batch.mUrl, chunk.mData, batch.mInstallId);
+        }
+        catch (final RuntimeException e)
+        {
+            if (LocalyticsLog.isLoggable(Log.WARN))
+            {
+                LocalyticsLog.w("Caught exception", e); //$NON-NLS-1$
+            }
+        }
+
+        if (UploadResult.NO_STATUS != status)
+        {
+            batch.mHttpStatus = status;
+            batch.mBytesSent += chunk.mData.length;
+        }
+
+        if (UploadEngine.isSuccessfulStatus(status))
+        {
+            batch.mSentBlobIds.addAll(chunk.mBlobIds);
+        }
+        else
+        {
+            batch.mIsFailed = true;
+        }
+    }
+
+    /**
+     * A set of chunks uploaded together, and the outcome of their transmission.
+     * <p>
+     * The results are written by the transmitter thread and must only be read after {@link UploadPipeline#await(Batch)} returns.
+     */
+    /* package */static final class Batch
+    {
+        /**
+         * URL the chunks are posted to.
+         */
+        /* package */final String mUrl;
+
+        /**
+         * Localytics install ID.
+         */
+        /* package */final String mInstallId;
+
+        /**
+         * Released once the end of the batch has been reached.
+         */
+        /* package */final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the blobs that were accepted by the webservice.
+         */
+        /* package */final List<Long> mSentBlobIds = new ArrayList<Long>();
+
+        /**
+         * True once a chunk of this batch failed.
+         */
+        /* package */volatile boolean mIsFailed;
+
+        /**
+         * HTTP status of the last response, or {@link UploadResult#NO_STATUS} if no response was received.
+         */
+        /* package */int mHttpStatus = UploadResult.NO_STATUS;
+
+        /**
+         * Number of compressed bytes for which a response was received.
+         */
+        /* package */long mBytesSent;
+
+        /**
+         * @param url where the chunks will be posted to.
+         * @param installId Localytics install ID.
+         */
+        /* package */Batch(final String url, final String installId)
+        {
+            mUrl = url;
+            mInstallId = installId;
+        }
+
+        /**
+         * @return True if every submitted chunk was accepted by the webservice.
+         */
+        public boolean isSuccess()
+        {
+            return !mIsFailed;
+        }
+
+        /**
+         * @return {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the blobs that were accepted by the webservice.
+         */
+        public List<Long> getSentBlobIds()
+        {
+            return mSentBlobIds;
+        }
+
+        /**
+         * @return HTTP status of the last response, or {@link UploadResult#NO_STATUS} if no response was received.
+         */
+        public int getHttpStatus()
+        {
+            return mHttpStatus;
+        }
+
+        /**
+         * @return Number of compressed bytes for which a response was received.
+         */
+        public long getBytesSent()
+        {
+            return mBytesSent;
+        }
+    }
+
+    /**
+     * A compressed chunk waiting to be transmitted.
+     */
+    /* package */static final class Chunk
+    {
+        /**
+         * Batch the chunk belongs to.
+         */
+        /* package */final Batch mBatch;
+
+        /**
+         * GZIP compressed chunk, or null to mark the end of {@link #mBatch}.
+         */
+        /* package */final byte[] mData;
+
+        /**
+         * {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the blobs in {@link #mData}.
+         */
+        /* package */final List<Long> mBlobIds;
+
+        /**
+         * @param batch Batch the chunk belongs to.
+         * @param data GZIP compressed chunk, or null to mark the end of {@code batch}.
+         * @param blobIds {@link LocalyticsProvider.UploadBlobsDbColumns#_ID} of the blobs in {@code data}.
+         */
+        /* package */Chunk(final Batch batch, final byte[] data, final List<Long> blobIds)
+        {
+            mBatch = batch;
+            mData = data;
+            mBlobIds = blobIds;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+// @formatter:off
+/*
+ * UploadPolicy.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Thresholds that control when a {@link LocalyticsSession} uploads automatically.
+ * <p>
+ * Events that are not yet part of an upload are considered pending. An upload is started as soon as any enabled threshold is
+ * crossed: the number of pending events, the age of the oldest pending event, or the estimated size of the pending events once
+ * converted for upload. In addition, uploads requested with {@link LocalyticsSession#uploadIfBatchReady()} are skipped while
+ * fewer than the minimum batch of events are pending, so that pausing the app does not produce many tiny uploads.
+ * <p>
+ * A threshold of 0 disables that threshold.
+ * <p>
+ * This class is immutable and therefore thread-safe.
+ */
+public final class UploadPolicy
+{
+    /**
+     * Maximum number of pending events before an upload is started. 0 if disabled.
+     */
+    private final int mMaxPendingEvents;
+
+    /**
+     * Maximum age in milliseconds of the oldest pending event before an upload is started. 0 if disabled.
+     */
+    private final long mMaxEventAgeMillis;
+
+    /**
+     * Maximum estimated size in bytes of the pending events before an upload is started. 0 if disabled.
+     */
+    private final long mMaxPendingBytes;
+
+    /**
+     * Minimum number of pending events for {@link LocalyticsSession#uploadIfBatchReady()} to upload. 0 if disabled.
+     */
+    private final int mMinBatchEvents;
+
+    /**
+     * Constructs a new upload policy.
+     *
+     * @param maxPendingEvents Number of pending events that starts an upload. 0 to disable.
+     * @param maxEventAgeMillis Age in milliseconds of the oldest pending event that starts an upload. 0 to disable.
+     * @param maxPendingBytes Estimated size in bytes of the pending events that starts an upload. 0 to disable.
+     * @param minBatchEvents Minimum number of pending events for {@link LocalyticsSession#uploadIfBatchReady()} to upload. 0 to
+     *            disable.
+     * @throws IllegalArgumentException if any argument is negative.
+     */
+    public UploadPolicy(final int maxPendingEvents, final long maxEventAgeMillis, final long maxPendingBytes, final int minBatchEvents)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (maxPendingEvents < 0)
+            {
+                throw new IllegalArgumentException("maxPendingEvents cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (maxEventAgeMillis < 0)
+            {
+                throw new IllegalArgumentException("maxEventAgeMillis cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (maxPendingBytes < 0)
+            {
+                throw new IllegalArgumentException("maxPendingBytes cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (minBatchEvents < 0)
+            {
+                throw new IllegalArgumentException("minBatchEvents cannot be negative"); //$NON-NLS-1$
+            }
+        }
+
+        mMaxPendingEvents = maxPendingEvents;
+        mMaxEventAgeMillis = maxEventAgeMillis;
+        mMaxPendingBytes = maxPendingBytes;
+        mMinBatchEvents = minBatchEvents;
+    }
+
+    /**
+     * @return Number of pending events that starts an upload. 0 if disabled.
+     */
+    public int getMaxPendingEvents()
+    {
+        return mMaxPendingEvents;
+    }
+
+    /**
+     * @return Age in milliseconds of the oldest pending event that starts an upload. 0 if disabled.
+     */
+    public long getMaxEventAgeMillis()
+    {
+        return mMaxEventAgeMillis;
+    }
+
+    /**
+     * @return Estimated size in bytes of the pending events that starts an upload. 0 if disabled.
+     */
+    public long getMaxPendingBytes()
+    {
+        return mMaxPendingBytes;
+    }
+
+    /**
+     * @return Minimum number of pending events for {@link LocalyticsSession#uploadIfBatchReady()} to upload. 0 if disabled.
+     */
+    public int getMinBatchEvents()
+    {
+        return mMinBatchEvents;
+    }
+
+    /**
+     * @param pendingEvents Number of pending events.
+     * @param oldestEventAgeMillis Age in milliseconds of the oldest pending event. Ignored if {@code pendingEvents} is 0.
+     * @param pendingBytes Estimated size in bytes of the pending events.
+     * @return True if any enabled threshold has been crossed.
+     */
+    /* package */boolean isUploadDue(final long pendingEvents, final long oldestEventAgeMillis, final long pendingBytes)
+    {
+        if (0 == pendingEvents)
+        {
+            return false;
+        }
+
+        if (0 != mMaxPendingEvents && pendingEvents >= mMaxPendingEvents)
+        {
+            return true;
+        }
+
+        if (0 != mMaxEventAgeMillis && oldestEventAgeMillis >= mMaxEventAgeMillis)
+        {
+            return true;
+        }
+
+        if (0 != mMaxPendingBytes && pendingBytes >= mMaxPendingBytes)
+        {
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param pendingEvents Number of pending events.
+     * @return True if an upload requested on a lifecycle transition should proceed.
+     */
+    /* package */boolean isBatchReady(final long pendingEvents)
+    {
+        return pendingEvents >= mMinBatchEvents;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("UploadPolicy [maxPendingEvents=%d, maxEventAgeMillis=%d, maxPendingBytes=%d, minBatchEvents=%d]", Integer.valueOf(mMaxPendingEvents), Long.valueOf(mMaxEventAgeMillis), Long.valueOf(mMaxPendingBytes), Integer.valueOf(mMinBatchEvents)); //$NON-NLS-1$
+    }
+}
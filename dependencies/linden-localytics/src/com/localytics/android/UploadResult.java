@@ -0,0 +1,113 @@
+// @formatter:off
+/*
+ * UploadResult.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Outcome of a single upload attempt, delivered to an {@link UploadListener}.
+ * <p>
+ * This class is immutable and therefore thread-safe.
+ */
+public final class UploadResult
+{
+    /**
+     * Value of {@link #getHttpStatus()} when no HTTP response was received, either because nothing was sent or because the
+     * request failed.
+     */
+    public static final int NO_STATUS = -1;
+
+    /**
+     * Whether the upload succeeded.
+     */
+    private final boolean mIsSuccess;
+
+    /**
+     * Number of compressed bytes sent.
+     */
+    private final long mBytesSent;
+
+    /**
+     * Number of upload blobs sent.
+     */
+    private final int mBlobsUploaded;
+
+    /**
+     * HTTP status code of the response.
+     */
+    private final int mHttpStatus;
+
+    /**
+     * Duration of the upload attempt in milliseconds.
+     */
+    private final long mDurationMillis;
+
+    /**
+     * Constructs a new result.
+     *
+     * @param isSuccess True if the data was accepted or there was nothing to upload.
+     * @param bytesSent Number of compressed bytes sent.
+     * @param blobsUploaded Number of upload blobs sent.
+     * @param httpStatus HTTP status code of the response, or {@link #NO_STATUS}.
+     * @param durationMillis Duration of the upload attempt in milliseconds.
+     */
+    /* package */UploadResult(final boolean isSuccess, final long bytesSent, final int blobsUploaded, final int httpStatus, final long durationMillis)
+    {
+        mIsSuccess = isSuccess;
+        mBytesSent = bytesSent;
+        mBlobsUploaded = blobsUploaded;
+        mHttpStatus = httpStatus;
+        mDurationMillis = durationMillis;
+    }
+
+    /**
+     * @return True if the data was accepted by the server or there was nothing to upload. False if the upload failed or was
+     *         held, in which case the data remains on disk for a later upload.
+     */
+    public boolean isSuccess()
+    {
+        return mIsSuccess;
+    }
+
+    /**
+     * @return Number of compressed bytes sent, or 0 if nothing was sent.
+     */
+    public long getBytesSent()
+    {
+        return mBytesSent;
+    }
+
+    /**
+     * @return Number of upload blobs sent, or 0 if nothing was sent.
+     */
+    public int getBlobsUploaded()
+    {
+        return mBlobsUploaded;
+    }
+
+    /**
+     * @return HTTP status code of the response, or {@link #NO_STATUS} if no response was received.
+     */
+    public int getHttpStatus()
+    {
+        return mHttpStatus;
+    }
+
+    /**
+     * @return Duration of the upload attempt in milliseconds, including building the upload body.
+     */
+    public long getDurationMillis()
+    {
+        return mDurationMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("UploadResult [success=%b, bytesSent=%d, blobsUploaded=%d, httpStatus=%d, durationMillis=%d]", Boolean.valueOf(mIsSuccess), Long.valueOf(mBytesSent), Integer.valueOf(mBlobsUploaded), Integer.valueOf(mHttpStatus), Long.valueOf(mDurationMillis)); //$NON-NLS-1$
+    }
+}
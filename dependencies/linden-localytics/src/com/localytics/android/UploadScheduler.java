@@ -0,0 +1,212 @@
+// @formatter:off
+/*
+ * UploadScheduler.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Decides whether an upload may be sent now, given the current connectivity and power conditions.
+ * <p>
+ * Uploads smaller than the large backlog threshold are sent whenever a connection is available. Larger uploads are held until
+ * the device is on an unmetered network or is charging. In addition, uploads over a metered network are limited to a number of
+ * bytes per day. An upload that has been held for longer than the maximum hold time is sent as soon as a connection is
+ * available, regardless of the other conditions.
+ * <p>
+ * This class doesn't depend on the Android framework; the conditions are supplied by a {@link DeviceConditions} and the current
+ * time is passed in by the caller.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class UploadScheduler
+{
+    /**
+     * Length of the window for {@link #mMaxMeteredBytesPerDay}.
+     */
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Source of connectivity and power signals.
+     */
+    private final DeviceConditions mConditions;
+
+    /**
+     * Upload size in bytes from which uploads are held until unmetered or charging. 0 if disabled.
+     */
+    private final long mLargeBacklogBytes;
+
+    /**
+     * Maximum number of bytes uploaded over metered networks per day. 0 if unlimited.
+     */
+    private final long mMaxMeteredBytesPerDay;
+
+    /**
+     * Maximum time in milliseconds an upload is held. 0 if uploads may be held indefinitely.
+     */
+    private final long mMaxHoldMillis;
+
+    /**
+     * Start of the current metered window, or -1 if no metered upload happened yet.
+     */
+    private long mMeteredWindowStartMillis = -1;
+
+    /**
+     * Bytes uploaded over metered networks in the current window.
+     */
+    private long mMeteredBytes;
+
+    /**
+     * Time at which the first held upload was held, or -1 if no upload is held.
+     */
+    private long mHoldStartMillis = -1;
+
+    /**
+     * Constructs a new scheduler.
+     *
+     * @param conditions Source of connectivity and power signals. Cannot be null.
+     * @param largeBacklogBytes Upload size in bytes from which uploads are held until the device is on an unmetered network or
+     *            charging. 0 to disable.
+     * @param maxMeteredBytesPerDay Maximum number of bytes uploaded over metered networks per day. 0 for no limit.
+     * @param maxHoldMillis Maximum time in milliseconds an upload is held before it is sent anyway. 0 for no limit.
+     * @throws IllegalArgumentException if {@code conditions} is null.
+     * @throws IllegalArgumentException if any other argument is negative.
+     */
+    public UploadScheduler(final DeviceConditions conditions, final long largeBacklogBytes, final long maxMeteredBytesPerDay, final long maxHoldMillis)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == conditions)
+            {
+                throw new IllegalArgumentException("conditions cannot be null"); //$NON-NLS-1$
+            }
+
+            if (largeBacklogBytes < 0)
+            {
+                throw new IllegalArgumentException("largeBacklogBytes cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (maxMeteredBytesPerDay < 0)
+            {
+                throw new IllegalArgumentException("maxMeteredBytesPerDay cannot be negative"); //$NON-NLS-1$
+            }
+
+            if (maxHoldMillis < 0)
+            {
+                throw new IllegalArgumentException("maxHoldMillis cannot be negative"); //$NON-NLS-1$
+            }
+        }
+
+        mConditions = conditions;
+        mLargeBacklogBytes = largeBacklogBytes;
+        mMaxMeteredBytesPerDay = maxMeteredBytesPerDay;
+        mMaxHoldMillis = maxHoldMillis;
+    }
+
+    /**
+     * Decides whether an upload of {@code bytes} may be sent now. If not, the upload is considered held from this moment, unless
+     * it was already held.
+     *
+     * @param bytes Size in bytes of the upload.
+     * @param nowMillis Current wall time in milliseconds.
+     * @return True if the upload should be sent now.
+     */
+    public synchronized boolean shouldUpload(final long bytes, final long nowMillis)
+    {
+        if (!mConditions.isConnected())
+        {
+            hold(nowMillis);
+            return false;
+        }
+
+        if (mConditions.isUnmetered())
+        {
+            return true;
+        }
+
+        if (0 != mMaxHoldMillis && -1 != mHoldStartMillis && nowMillis - mHoldStartMillis >= mMaxHoldMillis)
+        {
+            return true;
+        }
+
+        if (0 != mMaxMeteredBytesPerDay && getMeteredBytes(nowMillis) + bytes > mMaxMeteredBytesPerDay)
+        {
+            hold(nowMillis);
+            return false;
+        }
+
+        if (0 != mLargeBacklogBytes && bytes >= mLargeBacklogBytes && !mConditions.isCharging())
+        {
+            hold(nowMillis);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records a completed upload. This ends any hold and, if the upload went over a metered network, counts it against the daily
+     * limit.
+     *
+     * @param bytes Size in bytes of the upload.
+     * @param nowMillis Current wall time in milliseconds.
+     */
+    public synchronized void onUploaded(final long bytes, final long nowMillis)
+    {
+        mHoldStartMillis = -1;
+
+        if (!mConditions.isUnmetered())
+        {
+            mMeteredBytes = getMeteredBytes(nowMillis) + bytes;
+            if (-1 == mMeteredWindowStartMillis)
+            {
+                mMeteredWindowStartMillis = nowMillis;
+            }
+        }
+    }
+
+    /**
+     * @param nowMillis Current wall time in milliseconds.
+     * @return Milliseconds until a held upload must be sent regardless of conditions, or -1 if no upload is held or there is no
+     *         maximum hold time.
+     */
+    public synchronized long getRemainingHoldMillis(final long nowMillis)
+    {
+        if (0 == mMaxHoldMillis || -1 == mHoldStartMillis)
+        {
+            return -1;
+        }
+
+        return Math.max(0, mMaxHoldMillis - (nowMillis - mHoldStartMillis));
+    }
+
+    /**
+     * @param nowMillis Current wall time in milliseconds.
+     * @return Bytes uploaded over metered networks in the window containing {@code nowMillis}.
+     */
+    private long getMeteredBytes(final long nowMillis)
+    {
+        if (-1 != mMeteredWindowStartMillis && nowMillis - mMeteredWindowStartMillis >= DAY_MILLIS)
+        {
+            mMeteredWindowStartMillis = -1;
+            mMeteredBytes = 0;
+        }
+
+        return mMeteredBytes;
+    }
+
+    /**
+     * Marks an upload as held, unless one is already held.
+     *
+     * @param nowMillis Current wall time in milliseconds.
+     */
+    private void hold(final long nowMillis)
+    {
+        if (-1 == mHoldStartMillis)
+        {
+            mHoldStartMillis = nowMillis;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+// @formatter:off
+/*
+ * UploadState.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the upload state of a single API key, in order to allow only one upload for a given key at a time.
+ * <p>
+ * An upload moves from {@link #IDLE} or {@link #BACKOFF} to {@link #BUILDING} while the upload blobs are built, then to
+ * {@link #UPLOADING} while the blobs are sent, and finally back to {@link #IDLE} if the upload succeeded or to {@link #BACKOFF}
+ * if it failed and should be reattempted later.
+ * <p>
+ * This class is thread-safe. The state can be read from any thread without locking.
+ */
+public final class UploadState
+{
+    /**
+     * No upload is in progress and the last upload, if any, succeeded.
+     */
+    public static final int IDLE = 0;
+
+    /**
+     * The upload blobs are being built.
+     */
+    public static final int BUILDING = 1;
+
+    /**
+     * The upload blobs are being sent to the webservice.
+     */
+    public static final int UPLOADING = 2;
+
+    /**
+     * No upload is in progress and the last upload failed or was held.
+     */
+    public static final int BACKOFF = 3;
+
+    /**
+     * Map of API key to {@link UploadState}.
+     */
+    private static final ConcurrentMap<String, UploadState> sStates = new ConcurrentHashMap<String, UploadState>();
+
+    /**
+     * Current state, one of {@link #IDLE}, {@link #BUILDING}, {@link #UPLOADING}, or {@link #BACKOFF}.
+     */
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+
+    /**
+     * Use {@link #getInstance(String)}.
+     */
+    private UploadState()
+    {
+        /*
+         * Private constructor prevents direct instantiation
+         */
+    }
+
+    /**
+     * Obtains the upload state for {@code apiKey}, creating it if necessary.
+     *
+     * @param apiKey Localytics API key. Cannot be null.
+     * @return The upload state shared by all sessions for {@code apiKey}.
+     * @throws IllegalArgumentException if {@code apiKey} is null.
+     */
+    public static UploadState getInstance(final String apiKey)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == apiKey)
+            {
+                throw new IllegalArgumentException("apiKey cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        final UploadState state = sStates.get(apiKey);
+        if (null != state)
+        {
+            return state;
+        }
+
+        final UploadState newState = new UploadState();
+        final UploadState existingState = sStates.putIfAbsent(apiKey, newState);
+
+        return null == existingState ? newState : existingState;
+    }
+
+    /**
+     * @return One of {@link #IDLE}, {@link #BUILDING}, {@link #UPLOADING}, or {@link #BACKOFF}.
+     */
+    public int get()
+    {
+        return mState.get();
+    }
+
+    /**
+     * @return True if an upload is being built or sent.
+     */
+    public boolean isInProgress()
+    {
+        final int state = mState.get();
+        return BUILDING == state || UPLOADING == state;
+    }
+
+    /**
+     * Atomically moves from {@link #IDLE} or {@link #BACKOFF} to {@link #BUILDING}.
+     *
+     * @return True if the transition was made, false if an upload is already in progress.
+     */
+    /* package */boolean beginBuilding()
+    {
+        return mState.compareAndSet(IDLE, BUILDING) || mState.compareAndSet(BACKOFF, BUILDING);
+    }
+
+    /**
+     * Atomically moves from {@link #BUILDING} to {@link #UPLOADING}.
+     *
+     * @return True if the transition was made.
+     */
+    /* package */boolean beginUploading()
+    {
+        return mState.compareAndSet(BUILDING, UPLOADING);
+    }
+
+    /**
+     * Ends the upload in progress, moving to {@link #IDLE} or {@link #BACKOFF}.
+     *
+     * @param isSuccess True if the upload succeeded.
+     */
+    /* package */void finish(final boolean isSuccess)
+    {
+        mState.set(isSuccess ? IDLE : BACKOFF);
+    }
+
+    /**
+     * @param state One of {@link #IDLE}, {@link #BUILDING}, {@link #UPLOADING}, or {@link #BACKOFF}.
+     * @return Name of {@code state} for diagnostics.
+     */
+    public static String toString(final int state)
+    {
+        switch (state)
+        {
+            case IDLE:
+                return "IDLE"; //$NON-NLS-1$
+            case BUILDING:
+                return "BUILDING"; //$NON-NLS-1$
+            case UPLOADING:
+                return "UPLOADING"; //$NON-NLS-1$
+            case BACKOFF:
+                return "BACKOFF"; //$NON-NLS-1$
+            default:
+                return "UNKNOWN"; //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("UploadState [%s]", toString(mState.get())); //$NON-NLS-1$
+    }
+}
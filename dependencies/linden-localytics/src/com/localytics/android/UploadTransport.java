@@ -0,0 +1,30 @@
+// @formatter:off
+/*
+ * UploadTransport.java Copyright (C) 2013 Char Software Inc., DBA Localytics. This code is provided under the Localytics
+ * Modified BSD License. A copy of this license has been distributed in a file called LICENSE with this source code. Please visit
+ * www.localytics.com for more information.
+ */
+// @formatter:on
+
+package com.localytics.android;
+
+/**
+ * Sends compressed upload bodies to the webservice.
+ * <p>
+ * {@link HttpUploadTransport} posts over HTTP. Other implementations can answer locally, which allows the upload engine to run
+ * without a network.
+ * <p>
+ * Implementations must be thread-safe.
+ */
+/* package */interface UploadTransport
+{
+    /**
+     * Uploads an already compressed post body.
+     *
+     * @param url where {@code data} will be posted to. Cannot be null.
+     * @param data GZIP compressed upload body. Cannot be null.
+     * @param installId Localytics install ID.
+     * @return The HTTP status code of the response, or {@link UploadResult#NO_STATUS} if the request failed.
+     */
+    int upload(String url, byte[] data, String installId);
+}
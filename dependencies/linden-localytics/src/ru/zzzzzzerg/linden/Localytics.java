@@ -7,14 +7,76 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.localytics.android.EventAttributes;
+import com.localytics.android.FlushResult;
 import com.localytics.android.LocalyticsSession;
 import org.haxe.extension.Extension;
 
 public class Localytics extends Extension
 {
+  /**
+   * Separates the events of a batch passed to {@link #tagEvents(String)}.
+   */
+  public static final char RECORD_SEPARATOR = '\u001e';
+
+  /**
+   * Separates the event name and the attribute keys and values within an event.
+   */
+  public static final char UNIT_SEPARATOR = '\u001f';
+
+  /**
+   * Attribute types for {@link #tagEventTyped}, matching LocalyticsAttributes.hx.
+   */
+  public static final int TYPE_STRING = 0;
+  public static final int TYPE_INT = 1;
+  public static final int TYPE_FLOAT = 2;
+  public static final int TYPE_BOOL = 3;
+  public static final int TYPE_RANGED = 4;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   private static String tag = "LindenLocalytics";
   private static LocalyticsSession localytics = null;
 
+  /**
+   * Last session started, kept after {@link #stop()} so that its close and
+   * final upload can be flushed.
+   */
+  private static volatile LocalyticsSession lastSession = null;
+
+  /**
+   * Runs the calls from Haxe and the lifecycle callbacks in order, off the
+   * game and UI threads.
+   */
+  private static final LocalyticsBridge bridge = new LocalyticsBridge("LindenLocalyticsBridge");
+
+  /**
+   * Coalesces the uploads requested by start and pause. Only used on the
+   * bridge thread.
+   */
+  private static final UploadDebouncer uploads = new UploadDebouncer(bridge);
+
+  /**
+   * Receives the exceptions thrown while processing bridged calls, such as
+   * the {@link IllegalArgumentException}s thrown for invalid events or
+   * attributes.
+   */
+  public interface BridgeErrorListener
+  {
+    /**
+     * Called on the bridge thread.
+     *
+     * @param call Description of the failed call, usually the event name.
+     * @param error Exception thrown by the call.
+     */
+    void onBridgeError(String call, RuntimeException error);
+  }
+
   public Localytics()
   {
     Log.d(tag, "Construct LindenLocalytics");
@@ -50,19 +112,65 @@ public class Localytics extends Extension
   /**
    * Called as part of the activity lifecycle when an activity is going into
    * the background, but has not (yet) been killed.
+   *
+   * The session is paused and a debounced upload is requested. If the pause
+   * outlasts the session lease, the upload that the library would request
+   * for the closed session joins the same debounce window. If the activity
+   * is finishing, this is the last chance before the process may die, so the
+   * session is closed and uploaded right away instead.
    */
   public void onPause()
   {
-    if(localytics != null)
+    final LocalyticsSession session = localytics;
+    if(session != null)
     {
-      Log.d(tag, "Pausing LindenLocalytics");
-      localytics.close();
-      localytics.upload();
-      Log.d(tag, "LindenLocalytics paused");
+      final boolean isFinishing = mainActivity != null && mainActivity.isFinishing();
+      bridge.post(new LocalyticsBridge.Call("onPause")
+      {
+        public void run()
+        {
+          Log.d(tag, "Pausing LindenLocalytics");
+          if(isFinishing)
+          {
+            session.close();
+            uploads.flush(session);
+          }
+          else
+          {
+            session.pause(new Runnable()
+            {
+              public void run()
+              {
+                requestUpload(session);
+              }
+            });
+            uploads.request(session);
+          }
+          Log.d(tag, "LindenLocalytics paused");
+        }
+      });
     }
   }
 
 
+  /**
+   * Requests a debounced upload from the session handler thread, on which
+   * the library reports an expired session lease.
+   *
+   * @param session Session to upload.
+   */
+  private static void requestUpload(final LocalyticsSession session)
+  {
+    bridge.post(new LocalyticsBridge.Call("leaseExpired")
+    {
+      public void run()
+      {
+        uploads.request(session);
+      }
+    });
+  }
+
+
   /**
    * Called after {@link #onStop} when the current activity is being
    * re-displayed to the user (the user has navigated back to it).
@@ -78,11 +186,18 @@ public class Localytics extends Extension
    */
   public void onResume()
   {
-    if(localytics != null)
+    final LocalyticsSession session = localytics;
+    if(session != null)
     {
-      Log.d(tag, "Resuming LindenLocalytics");
-      localytics.open();
-      Log.d(tag, "LindenLocalytics resumed");
+      bridge.post(new LocalyticsBridge.Call("onResume")
+      {
+        public void run()
+        {
+          Log.d(tag, "Resuming LindenLocalytics");
+          session.resume();
+          Log.d(tag, "LindenLocalytics resumed");
+        }
+      });
     }
   }
 
@@ -117,29 +232,412 @@ public class Localytics extends Extension
       Log.d(tag, "LindenLocalytics already created");
     }
 
-    Log.d(tag, "Starting LindenLocalytics");
+    final LocalyticsSession session = localytics;
+    lastSession = session;
+    bridge.post(new LocalyticsBridge.Call("start")
+    {
+      public void run()
+      {
+        Log.d(tag, "Starting LindenLocalytics");
 
-    localytics.open();
-    localytics.upload();
+        session.open();
+        uploads.request(session);
 
-    Log.d(tag, "LindenLocalytics started");
+        Log.d(tag, "LindenLocalytics started");
+      }
+    });
 
-    return localytics;
+    return session;
   }
 
   public static void stop()
   {
-    if(localytics != null)
+    final LocalyticsSession session = localytics;
+    if(session != null)
     {
-      Log.d(tag, "Closing LindenLocalytics");
+      localytics = null;
 
-      localytics.close();
-      localytics.upload();
+      bridge.post(new LocalyticsBridge.Call("stop")
+      {
+        public void run()
+        {
+          Log.d(tag, "Closing LindenLocalytics");
 
-      localytics = null;
+          session.close();
+          uploads.flush(session);
+
+          Log.d(tag, "LindenLocalytics closed");
+        }
+      });
+    }
+  }
+
+  /**
+   * Blocks until the calls made so far, including a preceding
+   * {@link #stop()}, are written to the database and uploaded, or until
+   * {@code timeoutMillis} elapses. Meant to be called right before the app
+   * exits, trading shutdown latency for data completeness.
+   *
+   * @param timeoutMillis Maximum time to wait in milliseconds.
+   * @return What completed before the deadline, or null if Localytics was
+   *         never started.
+   */
+  public static FlushResult flush(long timeoutMillis)
+  {
+    final LocalyticsSession session = lastSession;
+    if(session == null)
+    {
+      return null;
+    }
+
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    if(!bridge.awaitDrain(timeoutMillis))
+    {
+      Log.w(tag, "Timed out waiting for queued calls");
+    }
+
+    final FlushResult result = session.flush(Math.max(0, deadline - System.currentTimeMillis()), true);
+    Log.d(tag, "Flushed LindenLocalytics: " + result);
+    return result;
+  }
+
+  /**
+   * Haxe entry point for {@link #flush(long)}.
+   *
+   * @param timeoutMillis Maximum time to wait in milliseconds.
+   * @return True if everything was persisted and the upload completed before
+   *         the deadline.
+   */
+  public static boolean flushAndWait(int timeoutMillis)
+  {
+    final FlushResult result = flush(timeoutMillis);
+    return result != null && result.isComplete();
+  }
+
+  /**
+   * Sets the window within which uploads requested by start and pause are
+   * coalesced into one. Stopping the extension or finishing the activity
+   * always uploads right away.
+   *
+   * @param millis Length of the window in milliseconds, or 0 to upload on
+   *        every start and pause. Defaults to
+   *        {@link UploadDebouncer#DEFAULT_WINDOW_MILLIS}.
+   */
+  public static void setUploadDebounceWindow(long millis)
+  {
+    uploads.setWindow(millis);
+  }
+
+  /**
+   * Sets the listener for exceptions thrown while processing bridged calls.
+   *
+   * @param listener Listener, or null to log the exceptions.
+   */
+  public static void setBridgeErrorListener(BridgeErrorListener listener)
+  {
+    bridge.setErrorListener(listener);
+  }
+
+  /**
+   * Tags a screen on the bridge thread, after the events posted before it.
+   *
+   * @param screen Name of the screen.
+   * @return True if the screen was queued, false if Localytics is not
+   *         started.
+   */
+  public static boolean tagScreen(final String screen)
+  {
+    final LocalyticsSession session = localytics;
+    if(session == null)
+    {
+      return false;
+    }
+
+    bridge.post(new LocalyticsBridge.Call(screen)
+    {
+      public void run()
+      {
+        session.tagScreen(screen);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Tags a batch of events with a single JNI call from the Haxe side.
+   *
+   * Events are separated by {@link #RECORD_SEPARATOR}. Each event is its
+   * name optionally followed by attribute keys and values, all separated by
+   * {@link #UNIT_SEPARATOR}:
+   *
+   * <pre>
+   * name US key US value US key US value RS name RS ...
+   * </pre>
+   *
+   * Events are tagged in order on the bridge thread. Names and attributes
+   * must not contain either separator.
+   *
+   * @param events Packed events. May be null or empty.
+   * @return True if the events were queued, false if Localytics is not
+   *         started.
+   */
+  public static boolean tagEvents(final String events)
+  {
+    final LocalyticsSession session = localytics;
+    if(session == null)
+    {
+      return false;
+    }
+
+    if(events != null && events.length() != 0)
+    {
+      bridge.post(new LocalyticsBridge.Call("tagEvents")
+      {
+        public void run()
+        {
+          tagEvents(session, events);
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Tags packed events. Called on the bridge thread.
+   */
+  private static void tagEvents(LocalyticsSession session, String events)
+  {
+    final int length = events.length();
+    int start = 0;
+    while(start < length)
+    {
+      int end = events.indexOf(RECORD_SEPARATOR, start);
+      if(end < 0)
+      {
+        end = length;
+      }
+
+      if(end > start)
+      {
+        tagPackedEvent(session, events, start, end);
+      }
+
+      start = end + 1;
+    }
+  }
+
+  /**
+   * Tags an event whose attributes are passed as parallel arrays, so that
+   * the attributes cross JNI as two bulk array arguments.
+   *
+   * @param event Name of the event.
+   * @param keys Attribute keys. May be null if there are no attributes.
+   * @param values Attribute values, in the same order as {@code keys}.
+   * @return True if the event was queued, false if Localytics is not
+   *         started.
+   */
+  public static boolean tagEventPacked(final String event, final String[] keys, final String[] values)
+  {
+    final LocalyticsSession session = localytics;
+    if(session == null)
+    {
+      return false;
+    }
+
+    bridge.post(new LocalyticsBridge.Call(event)
+    {
+      public void run()
+      {
+        tagEventPacked(session, event, keys, values);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Tags an event with parallel attribute arrays. Called on the bridge thread.
+   */
+  private static void tagEventPacked(LocalyticsSession session, String event, String[] keys, String[] values)
+  {
+    final int count = keys == null ? 0 : keys.length;
+    if(count != (values == null ? 0 : values.length))
+    {
+      throw new IllegalArgumentException("Attribute keys and values don't match in event " + event);
+    }
+
+    if(count == 0)
+    {
+      session.tagEvent(event);
+      return;
+    }
+
+    final Map<String, String> attributes = new HashMap<String, String>(count * 4 / 3 + 1);
+    for(int i = 0; i < count; ++i)
+    {
+      attributes.put(keys[i], values[i]);
+    }
+
+    session.tagEvent(event, attributes);
+  }
+
+  /**
+   * Tags an event with typed attributes passed as parallel arrays. Numeric
+   * values cross JNI as primitives and are only converted to strings by the
+   * session's handler thread.
+   *
+   * @param event Name of the event.
+   * @param keys Attribute keys. May be null if there are no attributes.
+   * @param types Type of each attribute, one of the TYPE constants.
+   * @param numbers Value of each {@link #TYPE_INT}, {@link #TYPE_FLOAT},
+   *        {@link #TYPE_BOOL} (non-zero is true), and {@link #TYPE_RANGED}
+   *        attribute. Unused for other types.
+   * @param strings Value of each {@link #TYPE_STRING} attribute. Unused for
+   *        other types.
+   * @param ranges Minimum, maximum, and step of each {@link #TYPE_RANGED}
+   *        attribute, three elements per ranged attribute in key order.
+   * @return True if the event was queued, false if Localytics is not
+   *         started.
+   */
+  public static boolean tagEventTyped(final String event, final String[] keys, final int[] types, final double[] numbers, final String[] strings, final int[] ranges)
+  {
+    final LocalyticsSession session = localytics;
+    if(session == null)
+    {
+      return false;
+    }
+
+    bridge.post(new LocalyticsBridge.Call(event)
+    {
+      public void run()
+      {
+        tagEventTyped(session, event, keys, types, numbers, strings, ranges);
+      }
+    });
+    return true;
+  }
 
-      Log.d(tag, "LindenLocalytics closed");
+  /**
+   * Tags an event with typed attribute arrays. Called on the bridge thread.
+   */
+  private static void tagEventTyped(LocalyticsSession session, String event, String[] keys, int[] types, double[] numbers, String[] strings, int[] ranges)
+  {
+    final int count = keys == null ? 0 : keys.length;
+    if(count != 0 && (types == null || types.length != count || numbers == null || numbers.length != count || strings == null || strings.length != count))
+    {
+      throw new IllegalArgumentException("Attribute arrays don't match in event " + event);
     }
+
+    final EventAttributes attributes = new EventAttributes(count);
+    int range = 0;
+    for(int i = 0; i < count; ++i)
+    {
+      switch(types[i])
+      {
+        case TYPE_INT:
+          attributes.putLong(keys[i], (long) numbers[i]);
+          break;
+        case TYPE_FLOAT:
+          attributes.putDouble(keys[i], numbers[i]);
+          break;
+        case TYPE_BOOL:
+          attributes.putBoolean(keys[i], numbers[i] != 0);
+          break;
+        case TYPE_RANGED:
+          if(ranges == null || ranges.length < range + 3)
+          {
+            throw new IllegalArgumentException("Missing range for attribute " + keys[i] + " in event " + event);
+          }
+          attributes.putRanged(keys[i], (int) numbers[i], ranges[range], ranges[range + 1], ranges[range + 2]);
+          range += 3;
+          break;
+        default:
+          attributes.putString(keys[i], strings[i]);
+          break;
+      }
+    }
+
+    session.tagTypedEvent(event, attributes);
+  }
+
+  /**
+   * Tags a batch of events encoded in UTF-8, in the format described in
+   * {@link #tagEvents(String)}. This is meant for native callers that wrap
+   * their buffer with {@code NewDirectByteBuffer}, avoiding a Java string
+   * per event on the calling thread. The bytes are copied before this
+   * returns, so the buffer may be reused; decoding happens on the bridge
+   * thread.
+   *
+   * @param events Packed events from the position to the limit. The
+   *        position is advanced to the limit.
+   * @return True if the events were queued, false if Localytics is not
+   *         started.
+   */
+  public static boolean tagEventPacked(ByteBuffer events)
+  {
+    final LocalyticsSession session = localytics;
+    if(session == null)
+    {
+      return false;
+    }
+
+    final byte[] bytes = new byte[events.remaining()];
+    events.get(bytes);
+
+    bridge.post(new LocalyticsBridge.Call("tagEventPacked")
+    {
+      public void run()
+      {
+        tagEvents(session, new String(bytes, UTF_8));
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Tags a single event packed as described in {@link #tagEvents(String)}.
+   *
+   * @param session Session to tag the event on.
+   * @param events Packed events.
+   * @param start Index of the first character of the event.
+   * @param end Index after the last character of the event.
+   */
+  private static void tagPackedEvent(LocalyticsSession session, String events, int start, int end)
+  {
+    int separator = events.indexOf(UNIT_SEPARATOR, start);
+    if(separator < 0 || separator >= end)
+    {
+      session.tagEvent(events.substring(start, end));
+      return;
+    }
+
+    final String name = events.substring(start, separator);
+    final Map<String, String> attributes = new HashMap<String, String>();
+    while(separator < end)
+    {
+      final int keyStart = separator + 1;
+      final int keyEnd = indexOfUnit(events, keyStart, end);
+      if(keyEnd >= end)
+      {
+        Log.w(tag, "Attribute without value in event " + name);
+        break;
+      }
+
+      final int valueEnd = indexOfUnit(events, keyEnd + 1, end);
+      attributes.put(events.substring(keyStart, keyEnd), events.substring(keyEnd + 1, valueEnd));
+      separator = valueEnd;
+    }
+
+    session.tagEvent(name, attributes.isEmpty() ? null : attributes);
+  }
+
+  /**
+   * @return Index of the next {@link #UNIT_SEPARATOR} at or after
+   *         {@code from}, or {@code end} if there is none before {@code end}.
+   */
+  private static int indexOfUnit(String events, int from, int end)
+  {
+    final int index = events.indexOf(UNIT_SEPARATOR, from);
+    return index < 0 || index > end ? end : index;
   }
 
 }
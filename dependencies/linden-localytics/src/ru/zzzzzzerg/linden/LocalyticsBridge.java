@@ -0,0 +1,173 @@
+package ru.zzzzzzerg.linden;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs calls from the game thread on a dedicated background thread.
+ *
+ * Calls are put on a lock-free queue. The bridge thread is woken with a
+ * single message when the queue goes from idle to non-empty, so a burst of
+ * calls within a frame costs the game thread one queue insertion each and at
+ * most one message post. Calls run in the order they were posted.
+ *
+ * A call that throws doesn't stop the bridge; the exception is reported to
+ * the {@link Localytics.BridgeErrorListener}.
+ */
+final class LocalyticsBridge
+{
+  /**
+   * A call to run on the bridge thread.
+   */
+  static abstract class Call implements Runnable
+  {
+    /**
+     * Description of the call for the {@link Localytics.BridgeErrorListener}.
+     */
+    final String description;
+
+    Call(String description)
+    {
+      this.description = description;
+    }
+  }
+
+  private static final String tag = "LindenLocalytics";
+
+  /**
+   * Listener used until {@link #setErrorListener(Localytics.BridgeErrorListener)} is called.
+   */
+  private static final Localytics.BridgeErrorListener LOG_LISTENER = new Localytics.BridgeErrorListener()
+  {
+    public void onBridgeError(String call, RuntimeException error)
+    {
+      Log.w(tag, "Bridged call failed: " + call, error);
+    }
+  };
+
+  private final Queue<Call> queue = new ConcurrentLinkedQueue<Call>();
+
+  /**
+   * True while a drain is posted or running and will see newly queued calls.
+   */
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+  private final Handler handler;
+
+  private volatile Localytics.BridgeErrorListener errorListener = LOG_LISTENER;
+
+  private final Runnable drain = new Runnable()
+  {
+    public void run()
+    {
+      drainScheduled.set(false);
+
+      Call call;
+      while((call = queue.poll()) != null)
+      {
+        try
+        {
+          call.run();
+        }
+        catch(RuntimeException e)
+        {
+          errorListener.onBridgeError(call.description, e);
+        }
+      }
+    }
+  };
+
+  /**
+   * Starts the bridge thread.
+   *
+   * @param name Name of the thread.
+   */
+  LocalyticsBridge(String name)
+  {
+    final HandlerThread thread = new HandlerThread(name, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Queues a call. May be called from any thread.
+   *
+   * @param call Call to run on the bridge thread.
+   */
+  void post(Call call)
+  {
+    queue.offer(call);
+
+    if(drainScheduled.compareAndSet(false, true))
+    {
+      handler.post(drain);
+    }
+  }
+
+  /**
+   * Waits until every call posted before this one has run. Must not be
+   * called on the bridge thread.
+   *
+   * @param timeoutMillis Maximum time to wait in milliseconds.
+   * @return True if the calls ran, false on timeout or interruption.
+   */
+  boolean awaitDrain(long timeoutMillis)
+  {
+    final CountDownLatch drained = new CountDownLatch(1);
+    post(new Call("awaitDrain")
+    {
+      public void run()
+      {
+        drained.countDown();
+      }
+    });
+
+    try
+    {
+      return drained.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Runs a task on the bridge thread after a delay, outside of the call
+   * queue. Must only be used for tasks that don't need to be ordered with
+   * the calls, such as timers.
+   *
+   * @param task Task to run.
+   * @param delayMillis Delay in milliseconds.
+   */
+  void postDelayed(Runnable task, long delayMillis)
+  {
+    handler.postDelayed(task, delayMillis);
+  }
+
+  /**
+   * Cancels a task posted with {@link #postDelayed(Runnable, long)}.
+   *
+   * @param task Task to cancel.
+   */
+  void cancel(Runnable task)
+  {
+    handler.removeCallbacks(task);
+  }
+
+  /**
+   * @param listener Listener for failed calls, or null to log them.
+   */
+  void setErrorListener(Localytics.BridgeErrorListener listener)
+  {
+    errorListener = listener == null ? LOG_LISTENER : listener;
+  }
+}
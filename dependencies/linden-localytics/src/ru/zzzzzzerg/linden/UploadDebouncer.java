@@ -0,0 +1,108 @@
+package ru.zzzzzzerg.linden;
+
+import android.util.Log;
+
+import com.localytics.android.LocalyticsSession;
+
+/**
+ * Coalesces the uploads requested by lifecycle events.
+ *
+ * The first request schedules an upload at the end of the window; further
+ * requests within the window join it. A forced flush cancels the scheduled
+ * upload and uploads right away.
+ *
+ * All methods except {@link #setWindow(long)} must be called on the bridge
+ * thread.
+ */
+final class UploadDebouncer
+{
+  /**
+   * Default length of the window in milliseconds.
+   */
+  public static final long DEFAULT_WINDOW_MILLIS = 30 * 1000;
+
+  private static final String tag = "LindenLocalytics";
+
+  private final LocalyticsBridge bridge;
+
+  private volatile long window = DEFAULT_WINDOW_MILLIS;
+
+  /**
+   * Session to upload at the end of the window, or null if no upload is
+   * scheduled.
+   */
+  private LocalyticsSession pending;
+
+  private final Runnable fire = new Runnable()
+  {
+    public void run()
+    {
+      final LocalyticsSession session = pending;
+      pending = null;
+      if(session != null)
+      {
+        Log.d(tag, "Uploading after lifecycle debounce");
+        session.uploadIfBatchReady();
+      }
+    }
+  };
+
+  UploadDebouncer(LocalyticsBridge bridge)
+  {
+    this.bridge = bridge;
+  }
+
+  /**
+   * @param millis Length of the window in milliseconds. 0 uploads on every
+   *        request.
+   */
+  void setWindow(long millis)
+  {
+    window = millis;
+  }
+
+  /**
+   * Requests a lifecycle upload, coalescing it with any upload already
+   * scheduled.
+   *
+   * @param session Session to upload.
+   */
+  void request(LocalyticsSession session)
+  {
+    final long delay = window;
+    if(delay <= 0)
+    {
+      session.uploadIfBatchReady();
+      return;
+    }
+
+    if(pending == null)
+    {
+      bridge.postDelayed(fire, delay);
+    }
+    pending = session;
+  }
+
+  /**
+   * Cancels the scheduled upload, if any, and uploads {@code session} now.
+   *
+   * @param session Session to upload.
+   */
+  void flush(LocalyticsSession session)
+  {
+    cancel();
+    session.upload();
+  }
+
+  /**
+   * Cancels the scheduled upload, if any.
+   */
+  void cancel()
+  {
+    if(pending != null)
+    {
+      bridge.cancel(fire);
+      pending = null;
+    }
+  }
+}
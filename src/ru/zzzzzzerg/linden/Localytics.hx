@@ -2,13 +2,36 @@ package ru.zzzzzzerg.linden;
 
 #if android
 
+import openfl.Lib;
+import openfl.events.Event;
 import openfl.utils.JNI;
 import haxe.CallStack;
 
 class LocalyticsImpl
 {
+  /**
+   * Separates the events of a batch, see ru.zzzzzzerg.linden.Localytics.tagEvents.
+   */
+  private static inline var RECORD_SEPARATOR : String = "\x1e";
+
+  /**
+   * Separates the event name and the attribute keys and values within an event.
+   */
+  private static inline var UNIT_SEPARATOR : String = "\x1f";
+
+  /**
+   * Number of buffered events that triggers a flush before the end of the frame.
+   */
+  public static inline var MAX_BUFFERED_EVENTS : Int = 64;
+
   private var _localytics : Dynamic = null;
 
+  /**
+   * Events tagged since the last flush, packed for tagEvents.
+   */
+  private var _buffer : StringBuf = null;
+  private var _bufferedEvents : Int = 0;
+
   public function new()
   {
     initJNI();
@@ -19,6 +42,10 @@ class LocalyticsImpl
     if(_localytics == null)
     {
       _localytics = _start(localyticsKey);
+      _buffer = new StringBuf();
+      _bufferedEvents = 0;
+      Lib.current.addEventListener(Event.ENTER_FRAME, onFlushEvent);
+      Lib.current.addEventListener(Event.DEACTIVATE, onFlushEvent);
       return true;
     }
     else
@@ -31,6 +58,9 @@ class LocalyticsImpl
   {
     if(_localytics != null)
     {
+      Lib.current.removeEventListener(Event.ENTER_FRAME, onFlushEvent);
+      Lib.current.removeEventListener(Event.DEACTIVATE, onFlushEvent);
+      flush();
       _stop();
       _localytics = null;
       return true;
@@ -41,30 +71,91 @@ class LocalyticsImpl
     }
   }
 
+  /**
+   * Buffers an event. Buffered events are sent with a single JNI call at the
+   * next frame, when MAX_BUFFERED_EVENTS are buffered, or on flush().
+   */
   public function tagEvent(msg : String, ?params : Dynamic = null) : Bool
   {
     if(_localytics == null)
     {
       return false;
     }
-    else if(params != null)
+
+    if(_bufferedEvents > 0)
+    {
+      _buffer.add(RECORD_SEPARATOR);
+    }
+
+    _buffer.add(pack(msg));
+    if(params != null)
     {
-      var map = new JNIHashMap();
       for(n in Reflect.fields(params))
       {
-        map.put(n, Std.string(Reflect.field(params, n)));
+        _buffer.add(UNIT_SEPARATOR);
+        _buffer.add(pack(n));
+        _buffer.add(UNIT_SEPARATOR);
+        _buffer.add(pack(Std.string(Reflect.field(params, n))));
       }
+    }
 
-      callMethod(_tagEventParams, [_localytics, msg, map.getJNIObject()]);
+    if(++_bufferedEvents >= MAX_BUFFERED_EVENTS)
+    {
+      flush();
     }
-    else
+
+    return true;
+  }
+
+  /**
+   * Tags an event immediately with a single JNI call, passing the attributes
+   * as two parallel arrays. Events buffered by tagEvent are flushed first.
+   */
+  public function tagEventPacked(msg : String, keys : Array<String>, values : Array<String>) : Bool
+  {
+    if(_localytics == null)
     {
-      callMethod(_tagEvent, [_localytics, msg]);
+      return false;
     }
 
+    flush();
+    callMethod(_tagEventPacked, [msg, keys, values]);
     return true;
   }
 
+  /**
+   * Tags an event immediately with typed attributes, in a single JNI call.
+   * Events buffered by tagEvent are flushed first.
+   */
+  public function tagEventTyped(msg : String, attributes : LocalyticsAttributes) : Bool
+  {
+    if(_localytics == null)
+    {
+      return false;
+    }
+
+    flush();
+    callMethod(_tagEventTyped, [msg, attributes.keys, attributes.types, attributes.numbers, attributes.strings, attributes.ranges]);
+    return true;
+  }
+
+  /**
+   * Sends the buffered events to Localytics.
+   */
+  public function flush() : Void
+  {
+    if(_bufferedEvents == 0)
+    {
+      return;
+    }
+
+    var events = _buffer.toString();
+    _buffer = new StringBuf();
+    _bufferedEvents = 0;
+
+    callMethod(_tagEvents, [events]);
+  }
+
   public function tagScreen(screen : String) : Bool
   {
     if(_localytics == null)
@@ -73,28 +164,57 @@ class LocalyticsImpl
     }
     else
     {
-      _tagScreen(_localytics, screen);
+      // Keep screens ordered after the events tagged before them
+      flush();
+      callMethod(_tagScreen, [screen]);
       return true;
     }
   }
 
-  private static function getStaticMethod(pkg : String, name : String, sig : String) : Dynamic
+  /**
+   * Sends the buffered events and blocks until everything tagged so far is
+   * stored and uploaded, or until timeoutMs elapses. Call it right before
+   * the game exits, after stop() if the session should be closed.
+   *
+   * Returns true if everything completed in time.
+   */
+  public function flushAndWait(timeoutMs : Int) : Bool
   {
-    var m = JNI.createStaticMethod(pkg, name, sig);
-    if(m == null)
+    flush();
+
+    if(_flushAndWait == null)
     {
-      trace(["Can't find static JNI method", pkg, name, sig]);
+      trace("Method is null");
+      return false;
     }
 
-    return m;
+    return _flushAndWait([timeoutMs]);
+  }
+
+  private function onFlushEvent(e : Event) : Void
+  {
+    flush();
   }
 
-  private static function getMemberMethod(pkg : String, name : String, sig : String, ?useArray : Bool = false) : Dynamic
+  /**
+   * Replaces the separators in a user string, since they can't be escaped.
+   */
+  private static function pack(s : String) : String
   {
-    var m = JNI.createMemberMethod(pkg, name, sig, useArray);
+    if(s.indexOf(RECORD_SEPARATOR) < 0 && s.indexOf(UNIT_SEPARATOR) < 0)
+    {
+      return s;
+    }
+
+    return s.split(RECORD_SEPARATOR).join(" ").split(UNIT_SEPARATOR).join(" ");
+  }
+
+  private static function getStaticMethod(pkg : String, name : String, sig : String, ?useArray : Bool = false) : Dynamic
+  {
+    var m = JNI.createStaticMethod(pkg, name, sig, useArray);
     if(m == null)
     {
-      trace(["Can't find member JNI method", pkg, name, sig]);
+      trace(["Can't find static JNI method", pkg, name, sig]);
     }
 
     return m;
@@ -125,23 +245,31 @@ class LocalyticsImpl
       _stop = getStaticMethod("ru/zzzzzzerg/linden/Localytics", "stop", "()V");
     }
 
-    if(_tagEvent == null)
+    if(_tagEvents == null)
+    {
+      _tagEvents = getStaticMethod("ru/zzzzzzerg/linden/Localytics", "tagEvents", "(Ljava/lang/String;)Z", true);
+      _tagEventPacked = getStaticMethod("ru/zzzzzzerg/linden/Localytics", "tagEventPacked", "(Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;)Z", true);
+      _tagEventTyped = getStaticMethod("ru/zzzzzzerg/linden/Localytics", "tagEventTyped", "(Ljava/lang/String;[Ljava/lang/String;[I[D[Ljava/lang/String;[I)Z", true);
+    }
+
+    if(_flushAndWait == null)
     {
-      _tagEvent = getMemberMethod("com/localytics/android/LocalyticsSession", "tagEvent", "(Ljava/lang/String;)V", true);
-      _tagEventParams = getMemberMethod("com/localytics/android/LocalyticsSession", "tagEvent", "(Ljava/lang/String;Ljava/util/Map;)V", true);
+      _flushAndWait = getStaticMethod("ru/zzzzzzerg/linden/Localytics", "flushAndWait", "(I)Z", true);
     }
 
     if(_tagScreen == null)
     {
-      _tagScreen = getMemberMethod("com/localytics/android/LocalyticsSession", "tagScreen", "(Ljava/lang/String;)V");
+      _tagScreen = getStaticMethod("ru/zzzzzzerg/linden/Localytics", "tagScreen", "(Ljava/lang/String;)Z", true);
     }
   }
 
   private static var _start : Dynamic = null;
   private static var _stop : Dynamic = null;
-  private static var _tagEvent : Dynamic = null;
-  private static var _tagEventParams : Dynamic = null;
+  private static var _tagEvents : Dynamic = null;
+  private static var _tagEventPacked : Dynamic = null;
+  private static var _tagEventTyped : Dynamic = null;
   private static var _tagScreen : Dynamic = null;
+  private static var _flushAndWait : Dynamic = null;
 }
 
 typedef Localytics = LocalyticsImpl;
@@ -169,6 +297,25 @@ class LocalyticsFallback
     return false;
   }
 
+  public function tagEventPacked(msg : String, keys : Array<String>, values : Array<String>) : Bool
+  {
+    return false;
+  }
+
+  public function tagEventTyped(msg : String, attributes : LocalyticsAttributes) : Bool
+  {
+    return false;
+  }
+
+  public function flush() : Void
+  {
+  }
+
+  public function flushAndWait(timeoutMs : Int) : Bool
+  {
+    return false;
+  }
+
   public function tagScreen(screen : String) : Bool
   {
     return false;
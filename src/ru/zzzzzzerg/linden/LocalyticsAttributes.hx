@@ -0,0 +1,134 @@
+package ru.zzzzzzerg.linden;
+
+/**
+ * Typed event attributes for Localytics.tagEventTyped.
+ *
+ * Values are kept as primitives and passed to Java in bulk arrays, so
+ * numeric telemetry is tagged without reflection or Std.string on the
+ * render thread. Java converts the values to strings on its own thread.
+ *
+ * Setting a key that is already present replaces its value. An instance
+ * may be reused after clear().
+ */
+class LocalyticsAttributes
+{
+  // Must match the TYPE constants in ru.zzzzzzerg.linden.Localytics
+  public static inline var TYPE_STRING : Int = 0;
+  public static inline var TYPE_INT : Int = 1;
+  public static inline var TYPE_FLOAT : Int = 2;
+  public static inline var TYPE_BOOL : Int = 3;
+  public static inline var TYPE_RANGED : Int = 4;
+
+  public var keys(default, null) : Array<String>;
+  public var types(default, null) : Array<Int>;
+  public var numbers(default, null) : Array<Float>;
+  public var strings(default, null) : Array<String>;
+
+  /**
+   * Minimum, maximum, and step of each ranged attribute, in key order.
+   */
+  public var ranges(default, null) : Array<Int>;
+
+  public function new()
+  {
+    clear();
+  }
+
+  public function setInt(key : String, value : Int) : LocalyticsAttributes
+  {
+    set(key, TYPE_INT, value, "");
+    return this;
+  }
+
+  public function setFloat(key : String, value : Float) : LocalyticsAttributes
+  {
+    set(key, TYPE_FLOAT, value, "");
+    return this;
+  }
+
+  public function setBool(key : String, value : Bool) : LocalyticsAttributes
+  {
+    set(key, TYPE_BOOL, value ? 1 : 0, "");
+    return this;
+  }
+
+  public function setString(key : String, value : String) : LocalyticsAttributes
+  {
+    set(key, TYPE_STRING, 0, value);
+    return this;
+  }
+
+  /**
+   * Sets a value that Java buckets with LocalyticsSession.createRangedAttribute.
+   */
+  public function setRanged(key : String, value : Int, minValue : Int, maxValue : Int, step : Int) : LocalyticsAttributes
+  {
+    remove(key);
+    set(key, TYPE_RANGED, value, "");
+    ranges.push(minValue);
+    ranges.push(maxValue);
+    ranges.push(step);
+    return this;
+  }
+
+  public function clear() : Void
+  {
+    keys = [];
+    types = [];
+    numbers = [];
+    strings = [];
+    ranges = [];
+  }
+
+  private function set(key : String, type : Int, number : Float, string : String) : Void
+  {
+    var index = keys.indexOf(key);
+    if(index >= 0 && (type == TYPE_RANGED || types[index] == TYPE_RANGED))
+    {
+      // The position of a ranged attribute determines its slot in ranges
+      remove(key);
+      index = -1;
+    }
+
+    if(index < 0)
+    {
+      keys.push(key);
+      types.push(type);
+      numbers.push(number);
+      strings.push(string);
+    }
+    else
+    {
+      types[index] = type;
+      numbers[index] = number;
+      strings[index] = string;
+    }
+  }
+
+  private function remove(key : String) : Void
+  {
+    var index = keys.indexOf(key);
+    if(index < 0)
+    {
+      return;
+    }
+
+    if(types[index] == TYPE_RANGED)
+    {
+      var range = 0;
+      for(i in 0...index)
+      {
+        if(types[i] == TYPE_RANGED)
+        {
+          range += 3;
+        }
+      }
+      ranges.splice(range, 3);
+    }
+
+    keys.splice(index, 1);
+    types.splice(index, 1);
+    numbers.splice(index, 1);
+    strings.splice(index, 1);
+  }
+}